@@ -1,17 +1,45 @@
 package org.sagebionetworks.bridge.notification.config;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.sqs.AmazonSQS;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
+import org.springframework.context.annotation.Condition;
+import org.springframework.context.annotation.ConditionContext;
+import org.springframework.context.annotation.Conditional;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.type.AnnotatedTypeMetadata;
 
 import org.sagebionetworks.bridge.dynamodb.DynamoNamingHelper;
+import org.sagebionetworks.bridge.notification.helper.ShardQueue;
+import org.sagebionetworks.bridge.notification.helper.SqsShardQueue;
 
 @ComponentScan("org.sagebionetworks.bridge.notification")
 @Configuration
 public class SpringConfig {
+    // Property with the URL of the SQS queue that shard requests are sent to. Sharded runs need this.
+    private static final String SHARD_QUEUE_URL_PROPERTY = "notification.worker.shardQueueUrl";
+
+    @Bean(name = "ddbNotificationBurstAdherenceTable")
+    @Autowired
+    public Table ddbNotificationBurstAdherenceTable(DynamoDB ddbClient, DynamoNamingHelper namingHelper) {
+        String fullyQualifiedTableName = namingHelper.getFullyQualifiedTableName("NotificationBurstAdherence");
+        return ddbClient.getTable(fullyQualifiedTableName);
+    }
+
+    @Bean(name = "ddbNotificationBurstCalendarTable")
+    @Autowired
+    public Table ddbNotificationBurstCalendarTable(DynamoDB ddbClient, DynamoNamingHelper namingHelper) {
+        String fullyQualifiedTableName = namingHelper.getFullyQualifiedTableName("NotificationBurstCalendar");
+        return ddbClient.getTable(fullyQualifiedTableName);
+    }
+
     @Bean(name = "ddbNotificationConfigTable")
     @Autowired
     public Table ddbNotificationConfigTable(DynamoDB ddbClient, DynamoNamingHelper namingHelper) {
@@ -26,10 +54,66 @@ public class SpringConfig {
         return ddbClient.getTable(fullyQualifiedTableName);
     }
 
+    @Bean(name = "ddbNotificationRunCheckpointTable")
+    @Autowired
+    public Table ddbNotificationRunCheckpointTable(DynamoDB ddbClient, DynamoNamingHelper namingHelper) {
+        String fullyQualifiedTableName = namingHelper.getFullyQualifiedTableName("NotificationRunCheckpoint");
+        return ddbClient.getTable(fullyQualifiedTableName);
+    }
+
+    @Bean(name = "ddbNotificationRunLedgerTable")
+    @Autowired
+    public Table ddbNotificationRunLedgerTable(DynamoDB ddbClient, DynamoNamingHelper namingHelper) {
+        String fullyQualifiedTableName = namingHelper.getFullyQualifiedTableName("NotificationRunLedger");
+        return ddbClient.getTable(fullyQualifiedTableName);
+    }
+
+    @Bean(name = "ddbNotificationShardRunTable")
+    @Autowired
+    public Table ddbNotificationShardRunTable(DynamoDB ddbClient, DynamoNamingHelper namingHelper) {
+        String fullyQualifiedTableName = namingHelper.getFullyQualifiedTableName("NotificationShardRun");
+        return ddbClient.getTable(fullyQualifiedTableName);
+    }
+
+    @Bean(name = "ddbNotificationStudyRunTable")
+    @Autowired
+    public Table ddbNotificationStudyRunTable(DynamoDB ddbClient, DynamoNamingHelper namingHelper) {
+        String fullyQualifiedTableName = namingHelper.getFullyQualifiedTableName("NotificationStudyRun");
+        return ddbClient.getTable(fullyQualifiedTableName);
+    }
+
+    @Bean(name = "ddbNotificationWorkUnitTable")
+    @Autowired
+    public Table ddbNotificationWorkUnitTable(DynamoDB ddbClient, DynamoNamingHelper namingHelper) {
+        String fullyQualifiedTableName = namingHelper.getFullyQualifiedTableName("NotificationWorkUnit");
+        return ddbClient.getTable(fullyQualifiedTableName);
+    }
+
     @Bean(name = "ddbWorkerLogTable")
     @Autowired
     public Table ddbWorkerLogTable(DynamoDB ddbClient, DynamoNamingHelper namingHelper) {
         String fullyQualifiedTableName = namingHelper.getFullyQualifiedTableName("WorkerLog");
         return ddbClient.getTable(fullyQualifiedTableName);
     }
+
+    @Bean(name = "notificationWorkerBackgroundExecutor", destroyMethod = "shutdown")
+    public ExecutorService notificationWorkerBackgroundExecutor() {
+        return Executors.newCachedThreadPool();
+    }
+
+    @Bean(name = "notificationWorkerShardQueue")
+    @Autowired
+    @Conditional(ShardQueueUrlCondition.class)
+    public ShardQueue notificationWorkerShardQueue(AmazonSQS sqsClient,
+            @Value("${" + SHARD_QUEUE_URL_PROPERTY + "}") String queueUrl) {
+        return new SqsShardQueue(sqsClient, queueUrl);
+    }
+
+    // Only make the shard queue if it's configured, so workers that don't shard don't need an SQS client.
+    static class ShardQueueUrlCondition implements Condition {
+        @Override
+        public boolean matches(ConditionContext context, AnnotatedTypeMetadata metadata) {
+            return context.getEnvironment().containsProperty(SHARD_QUEUE_URL_PROPERTY);
+        }
+    }
 }
@@ -1,56 +1,177 @@
 package org.sagebionetworks.bridge.notification.helper;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Stopwatch;
 
 import org.sagebionetworks.bridge.rest.ClientManager;
 import org.sagebionetworks.bridge.rest.api.ForWorkersApi;
 import org.sagebionetworks.bridge.rest.model.AccountSummary;
 import org.sagebionetworks.bridge.rest.model.AccountSummaryList;
 
-/** Helper class that abstracts away Bridge's paginated API and uses an iterator instead. */
+/**
+ * Helper class that abstracts away Bridge's paginated API and uses an iterator instead. Page sizes come from a
+ * {@link PageSizer}, which may adapt to Bridge's latency. If constructed with a prefetch executor, this iterator
+ * fetches the next few pages in the background while the current page is being processed.
+ */
 public class AccountSummaryIterator implements Iterator<AccountSummary> {
-    // Package-scoped for unit tests
+    // Default page size, if no PageSizer is specified. Package-scoped for unit tests
     static final int PAGE_SIZE = 10;
 
+    // HACK: We use "1" for the phone filter. This is because we want to filter out any accounts that don't have phone
+    // numbers. Right now, all phone accounts are in the US, so we can simply use the country code ("1") in the filter.
+    // Package-scoped so BridgeHelper can count the same accounts.
+    static final String PHONE_FILTER = "1";
+
     // Instance invariants
     private final ClientManager clientManager;
     private final String studyId;
+    private final PageSizer pageSizer;
+    private final ExecutorService prefetchExecutor;
+    private final int prefetchDepth;
 
     // Instance state tracking
     private AccountSummaryList accountSummaryList;
     private int nextIndex;
     private int numAccounts = 0;
 
+    // Prefetch state. Pages are queued in offset order. nextPrefetchOffset is the offset of the next page to queue.
+    private final Deque<PrefetchedPage> prefetchedPageQueue = new ArrayDeque<>();
+    private int nextPrefetchOffset;
+
     /**
      * Constructs a AccountSummaryIterator for the given Bridge client and study. This kicks off requests to load the
      * first page.
      */
     public AccountSummaryIterator(ClientManager clientManager, String studyId) {
+        this(clientManager, studyId, PageSizer.fixed(PAGE_SIZE), null, 0);
+    }
+
+    /**
+     * Constructs a AccountSummaryIterator which gets its page sizes from the given PageSizer and reads up to
+     * prefetchDepth pages ahead, using the given executor. At most prefetchDepth pages are held in memory in addition
+     * to the current page. If the executor is null or the depth is zero, pages are loaded on the calling thread. This
+     * kicks off requests to load the first page.
+     */
+    public AccountSummaryIterator(ClientManager clientManager, String studyId, PageSizer pageSizer,
+            ExecutorService prefetchExecutor, int prefetchDepth) {
+        this(clientManager, studyId, pageSizer, prefetchExecutor, prefetchDepth, 0);
+    }
+
+    /**
+     * Constructs a AccountSummaryIterator like above, but which starts at the given offset into the study's accounts,
+     * skipping the accounts before it. This is used to resume a run partway through. This kicks off requests to load
+     * the first page.
+     */
+    public AccountSummaryIterator(ClientManager clientManager, String studyId, PageSizer pageSizer,
+            ExecutorService prefetchExecutor, int prefetchDepth, int startOffset) {
+        if (startOffset < 0) {
+            throw new IllegalArgumentException("startOffset can't be negative");
+        }
         this.clientManager = clientManager;
         this.studyId = studyId;
+        this.pageSizer = pageSizer;
+        this.prefetchExecutor = prefetchExecutor;
+        this.prefetchDepth = prefetchExecutor != null ? prefetchDepth : 0;
+        this.numAccounts = startOffset;
 
-        // Load first page.
+        // Load first page. We always load this on the calling thread, since we need the total to know how many pages
+        // to prefetch.
         loadNextPage();
     }
 
     // Helper method to load the next page of users.
     private void loadNextPage() {
-        // Call server for the next page.
-        try {
+        if (prefetchDepth > 0 && accountSummaryList != null) {
+            accountSummaryList = getPrefetchedPage();
+        } else {
             // The offset into the next page is equal to the number of accounts that we have seen.
-            // HACK: We use "1" for the phone filter. This is because we want to filter out any accounts that don't
-            // have phone numbers. Right now, all phone accounts are in the US, so we can simply use the country code
-            // ("1") in the filter.
-            accountSummaryList = clientManager.getClient(ForWorkersApi.class).getParticipants(studyId, numAccounts,
-                    PAGE_SIZE, null, "1", null, null).execute().body();
-        } catch (IOException ex) {
-            // Iterator can't throw exceptions. Wrap in a RuntimeException.
-            throw new RuntimeException("Error getting next page for study " + studyId + ": " + ex.getMessage(), ex);
+            int pageSize = pageSizer.getPageSize();
+            try {
+                accountSummaryList = callServerForPage(numAccounts, pageSize);
+            } catch (IOException ex) {
+                // Iterator can't throw exceptions. Wrap in a RuntimeException.
+                throw new RuntimeException("Error getting next page for study " + studyId + ": " + ex.getMessage(),
+                        ex);
+            }
+            nextPrefetchOffset = numAccounts + pageSize;
         }
 
         // Reset nextIndex.
         nextIndex = 0;
+
+        // Queue up the pages after this one.
+        fillPrefetchQueue();
+    }
+
+    // Helper method to call the server for the page at the given offset. Reports the page's latency to the PageSizer.
+    private AccountSummaryList callServerForPage(int offset, int pageSize) throws IOException {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        AccountSummaryList page;
+        try {
+            page = clientManager.getClient(ForWorkersApi.class).getParticipants(studyId, offset, pageSize, null,
+                    PHONE_FILTER, null, null).execute().body();
+        } catch (IOException | RuntimeException ex) {
+            pageSizer.recordError(pageSize);
+            throw ex;
+        }
+        pageSizer.recordSuccess(pageSize, page.getItems().size(), stopwatch.elapsed(TimeUnit.MILLISECONDS));
+        return page;
+    }
+
+    // Helper method to queue background requests for upcoming pages, up to the prefetch depth.
+    private void fillPrefetchQueue() {
+        while (prefetchedPageQueue.size() < prefetchDepth && nextPrefetchOffset < accountSummaryList.getTotal()) {
+            int offset = nextPrefetchOffset;
+            int pageSize = pageSizer.getPageSize();
+            Future<AccountSummaryList> future = prefetchExecutor.submit(() -> callServerForPage(offset, pageSize));
+            prefetchedPageQueue.add(new PrefetchedPage(offset, future));
+            nextPrefetchOffset += pageSize;
+        }
+    }
+
+    // Helper method to get the next page from the prefetch queue. This blocks if the page is still loading.
+    private AccountSummaryList getPrefetchedPage() {
+        // Prefetch assumes each page is full. If the page we queued doesn't start where we are (or we have nothing
+        // queued, because a previous page failed), discard the queue and start over from where we are.
+        PrefetchedPage prefetchedPage = prefetchedPageQueue.peek();
+        if (prefetchedPage == null || prefetchedPage.offset != numAccounts) {
+            clearPrefetchQueue();
+            nextPrefetchOffset = numAccounts;
+            fillPrefetchQueue();
+            prefetchedPage = prefetchedPageQueue.peek();
+        }
+        prefetchedPageQueue.remove();
+
+        try {
+            return prefetchedPage.future.get();
+        } catch (ExecutionException ex) {
+            // Discard the queue, so that the next call to next() retries this page. Iterator can't throw exceptions.
+            // Wrap in a RuntimeException.
+            clearPrefetchQueue();
+            Throwable cause = ex.getCause();
+            throw new RuntimeException("Error getting next page for study " + studyId + ": " + cause.getMessage(),
+                    cause);
+        } catch (InterruptedException ex) {
+            clearPrefetchQueue();
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted getting next page for study " + studyId, ex);
+        }
+    }
+
+    // Helper method to cancel and discard all prefetched pages.
+    private void clearPrefetchQueue() {
+        for (PrefetchedPage onePrefetchedPage : prefetchedPageQueue) {
+            onePrefetchedPage.future.cancel(true);
+        }
+        prefetchedPageQueue.clear();
     }
 
     /** {@inheritDoc} */
@@ -89,4 +210,15 @@ public class AccountSummaryIterator implements Iterator<AccountSummary> {
         numAccounts++;
         return accountSummary;
     }
+
+    // A page request that may still be in flight, along with the offset it was requested at.
+    private static class PrefetchedPage {
+        private final int offset;
+        private final Future<AccountSummaryList> future;
+
+        PrefetchedPage(int offset, Future<AccountSummaryList> future) {
+            this.offset = offset;
+            this.future = future;
+        }
+    }
 }
@@ -0,0 +1,72 @@
+package org.sagebionetworks.bridge.notification.helper;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.rest.model.ActivityEvent;
+
+/**
+ * Caches each user's burst start activity events across runs, in a local file per study. Burst start events are
+ * almost always fixed at enrollment, so most runs can skip the call to Bridge.
+ * <p>
+ * Bridge doesn't tell us when an event changes, so an entry's marker can't catch a changed event. Instead, entries
+ * expire after {@link #DEFAULT_ACTIVITY_EVENT_MAX_AGE_DAYS} days by default, rather than the usual
+ * {@link LocalCache#DEFAULT_MAX_AGE_DAYS}. With daily runs, this calls Bridge for each user every other run, and a
+ * moved event is seen within 2 days.
+ */
+@Component
+public class ActivityEventCache extends LocalCache<List<ActivityEvent>> {
+    // Bump this if the value format changes. Old files are discarded.
+    private static final int CODEC_VERSION = 1;
+
+    // Default number of days an entry can be used. Package-scoped for unit tests.
+    static final int DEFAULT_ACTIVITY_EVENT_MAX_AGE_DAYS = 2;
+
+    private static final LocalSnapshotStore.Codec<List<ActivityEvent>> CODEC =
+            new LocalSnapshotStore.Codec<List<ActivityEvent>>() {
+        @Override
+        public int getVersion() {
+            return CODEC_VERSION;
+        }
+
+        @Override
+        public List<ActivityEvent> read(DataInput in) throws IOException {
+            int numEvents = in.readInt();
+            List<ActivityEvent> activityEventList = new ArrayList<>(numEvents);
+            for (int i = 0; i < numEvents; i++) {
+                ActivityEvent activityEvent = new ActivityEvent().eventId(in.readUTF());
+                if (in.readBoolean()) {
+                    activityEvent.timestamp(new DateTime(in.readLong(), DateTimeZone.UTC));
+                }
+                activityEventList.add(activityEvent);
+            }
+            return activityEventList;
+        }
+
+        @Override
+        public void write(DataOutput out, List<ActivityEvent> activityEventList) throws IOException {
+            out.writeInt(activityEventList.size());
+            for (ActivityEvent oneActivityEvent : activityEventList) {
+                out.writeUTF(oneActivityEvent.getEventId());
+                DateTime timestamp = oneActivityEvent.getTimestamp();
+                out.writeBoolean(timestamp != null);
+                if (timestamp != null) {
+                    out.writeLong(timestamp.getMillis());
+                }
+            }
+        }
+    };
+
+    /** Constructs the cache. */
+    public ActivityEventCache() {
+        super(".activity-events.bin", CODEC);
+        setMaxAgeDays(DEFAULT_ACTIVITY_EVENT_MAX_AGE_DAYS);
+    }
+}
@@ -0,0 +1,208 @@
+package org.sagebionetworks.bridge.notification.helper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import com.amazonaws.services.dynamodbv2.document.BatchWriteItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.TableWriteItems;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import com.google.common.collect.Lists;
+import org.joda.time.DateTimeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Write-behind buffer for a DDB table. Records are converted to items and buffered, then written in BatchWriteItem
+ * calls on a background executor once the buffer reaches the flush size. The flush interval is also checked when a
+ * record is added: if the oldest buffered record is older than the flush interval, the buffer is written. There is no
+ * timer, so a partial buffer stays unwritten until the next add or the next {@link #flush}. Unprocessed items are
+ * retried with backoff. Callers must call {@link #flush} to make sure everything is written. This class is
+ * thread-safe.
+ */
+public class BatchWriteBuffer<T> {
+    private static final Logger LOG = LoggerFactory.getLogger(BatchWriteBuffer.class);
+
+    // DDB allows at most 25 items per BatchWriteItem call. Package-scoped for unit tests.
+    static final int MAX_BATCH_SIZE = 25;
+
+    // Number of times we call DDB for a batch, including retries of unprocessed items. Package-scoped for unit tests.
+    static final int MAX_ATTEMPTS = 5;
+
+    // Delay before the first retry of unprocessed items. Doubles with each retry.
+    private static final long RETRY_BASE_DELAY_MILLIS = 50;
+
+    private final DynamoDB ddbClient;
+    private final String tableName;
+    private final Function<T, Item> converter;
+    private final ExecutorService executor;
+    private final int flushSize;
+    private final long flushIntervalMillis;
+
+    // Buffer state. Guarded by this.
+    private final List<Item> bufferList = new ArrayList<>();
+    private long oldestItemMillis;
+
+    // Batches that have been submitted but not yet waited for. Guarded by itself.
+    private final List<Future<?>> pendingFutureList = new ArrayList<>();
+
+    // Stats
+    private final AtomicInteger numFailed = new AtomicInteger();
+    private final AtomicInteger numFailedSinceFlush = new AtomicInteger();
+    private final AtomicInteger numWritten = new AtomicInteger();
+
+    /**
+     * Constructs a write buffer.
+     *
+     * @param ddbClient
+     *         DDB client, used to call BatchWriteItem
+     * @param tableName
+     *         fully qualified name of the table to write to
+     * @param converter
+     *         converts records to DDB items
+     * @param executor
+     *         executor to write batches on
+     * @param flushSize
+     *         number of buffered items that triggers a write, from 1 to 25
+     * @param flushIntervalMillis
+     *         buffered items older than this are written the next time an item is added, checked on add only
+     */
+    public BatchWriteBuffer(DynamoDB ddbClient, String tableName, Function<T, Item> converter,
+            ExecutorService executor, int flushSize, long flushIntervalMillis) {
+        if (flushSize < 1 || flushSize > MAX_BATCH_SIZE) {
+            throw new IllegalArgumentException("flushSize must be between 1 and " + MAX_BATCH_SIZE);
+        }
+        this.ddbClient = ddbClient;
+        this.tableName = tableName;
+        this.converter = converter;
+        this.executor = executor;
+        this.flushSize = flushSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+    }
+
+    /** Adds a record to the buffer. If this fills the buffer, the buffer is written in the background. */
+    public void add(T record) {
+        Item item = converter.apply(record);
+        long nowMillis = DateTimeUtils.currentTimeMillis();
+
+        List<Item> batch = null;
+        synchronized (this) {
+            if (bufferList.isEmpty()) {
+                oldestItemMillis = nowMillis;
+            }
+            bufferList.add(item);
+            if (bufferList.size() >= flushSize || nowMillis - oldestItemMillis >= flushIntervalMillis) {
+                batch = new ArrayList<>(bufferList);
+                bufferList.clear();
+            }
+        }
+
+        if (batch != null) {
+            submitBatch(batch);
+        }
+    }
+
+    /**
+     * Writes everything in the buffer, and waits for all writes (including writes already in progress) to finish.
+     * Items that still couldn't be written after retries are logged and counted in {@link #getNumFailed}.
+     *
+     * @return number of items that couldn't be written since the previous flush
+     */
+    public int flush() {
+        List<Item> remainingList;
+        synchronized (this) {
+            remainingList = new ArrayList<>(bufferList);
+            bufferList.clear();
+        }
+        for (List<Item> oneBatch : Lists.partition(remainingList, MAX_BATCH_SIZE)) {
+            submitBatch(new ArrayList<>(oneBatch));
+        }
+
+        // Wait for all pending writes.
+        List<Future<?>> futureList;
+        synchronized (pendingFutureList) {
+            futureList = new ArrayList<>(pendingFutureList);
+            pendingFutureList.clear();
+        }
+        for (Future<?> oneFuture : futureList) {
+            try {
+                oneFuture.get();
+            } catch (ExecutionException ex) {
+                // writeBatch() catches its own exceptions, so this should never happen.
+                LOG.error("Unexpected error writing batch to table " + tableName + ": " + ex.getMessage(), ex);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while flushing writes to table " + tableName, ex);
+            }
+        }
+        return numFailedSinceFlush.getAndSet(0);
+    }
+
+    /** Number of items that couldn't be written since this buffer was created. */
+    public int getNumFailed() {
+        return numFailed.get();
+    }
+
+    /** Number of items successfully written. */
+    public int getNumWritten() {
+        return numWritten.get();
+    }
+
+    // Helper method to write a batch in the background.
+    private void submitBatch(List<Item> batch) {
+        Future<?> future = executor.submit(() -> writeBatch(batch));
+        synchronized (pendingFutureList) {
+            pendingFutureList.add(future);
+        }
+    }
+
+    // Writes a single batch, retrying unprocessed items with exponential backoff. Package-scoped for unit tests.
+    void writeBatch(List<Item> batch) {
+        int numRemaining = batch.size();
+        try {
+            BatchWriteItemOutcome outcome = ddbClient.batchWriteItem(new TableWriteItems(tableName)
+                    .withItemsToPut(batch));
+            Map<String, List<WriteRequest>> unprocessedItems = outcome.getUnprocessedItems();
+            for (int attempt = 1; attempt < MAX_ATTEMPTS && !isEmpty(unprocessedItems); attempt++) {
+                Thread.sleep(RETRY_BASE_DELAY_MILLIS << (attempt - 1));
+                outcome = ddbClient.batchWriteItemUnprocessed(unprocessedItems);
+                unprocessedItems = outcome.getUnprocessedItems();
+            }
+            numRemaining = countItems(unprocessedItems);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            LOG.error("Interrupted while writing batch to table " + tableName, ex);
+        } catch (RuntimeException ex) {
+            LOG.error("Error writing batch to table " + tableName + ": " + ex.getMessage(), ex);
+        }
+
+        numWritten.addAndGet(batch.size() - numRemaining);
+        if (numRemaining > 0) {
+            numFailed.addAndGet(numRemaining);
+            numFailedSinceFlush.addAndGet(numRemaining);
+            LOG.error("Failed to write " + numRemaining + " items to table " + tableName);
+        }
+    }
+
+    private static boolean isEmpty(Map<String, List<WriteRequest>> unprocessedItems) {
+        return countItems(unprocessedItems) == 0;
+    }
+
+    private static int countItems(Map<String, List<WriteRequest>> unprocessedItems) {
+        if (unprocessedItems == null) {
+            return 0;
+        }
+        int count = 0;
+        for (List<WriteRequest> oneRequestList : unprocessedItems.values()) {
+            count += oneRequestList.size();
+        }
+        return count;
+    }
+}
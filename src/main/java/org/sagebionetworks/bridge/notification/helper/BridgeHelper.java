@@ -3,6 +3,8 @@ package org.sagebionetworks.bridge.notification.helper;
 import java.io.IOException;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import javax.annotation.Resource;
 
 import org.joda.time.DateTime;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -19,8 +21,47 @@ import org.sagebionetworks.bridge.rest.model.StudyParticipant;
 /** Abstracts away calls to Bridge and wraps the iterator classes. */
 @Component("NotificationWorkerBridgeHelper")
 public class BridgeHelper {
+    // Default number of account summary pages to fetch ahead of the page being processed. Package-scoped for unit
+    // tests.
+    static final int DEFAULT_ACCOUNT_SUMMARY_PREFETCH_DEPTH = 2;
+
+    // Default bounds for adaptive page sizes. Bridge's paginated APIs accept page sizes from 5 to 100. We start at 10,
+    // which is the page size we used before pages were adaptive.
+    static final int DEFAULT_INITIAL_PAGE_SIZE = 10;
+    static final int DEFAULT_MIN_PAGE_SIZE = 5;
+    static final int DEFAULT_MAX_PAGE_SIZE = 100;
+    static final long DEFAULT_TARGET_PAGE_LATENCY_MILLIS = 2000;
+
+    private int accountSummaryPrefetchDepth = DEFAULT_ACCOUNT_SUMMARY_PREFETCH_DEPTH;
+    private PageSizer accountSummaryPageSizer = makeDefaultPageSizer();
+    private PageSizer taskHistoryPageSizer = makeDefaultPageSizer();
+    private ExecutorService backgroundExecutor;
     private ClientManager clientManager;
 
+    /**
+     * Number of account summary pages to fetch in the background ahead of the page being processed. Set to 0 to fetch
+     * each page only when it's needed.
+     */
+    public final void setAccountSummaryPrefetchDepth(int accountSummaryPrefetchDepth) {
+        this.accountSummaryPrefetchDepth = accountSummaryPrefetchDepth;
+    }
+
+    /** Chooses page sizes for getAllAccountSummaries. Defaults to an adaptive page size. */
+    public final void setAccountSummaryPageSizer(PageSizer accountSummaryPageSizer) {
+        this.accountSummaryPageSizer = accountSummaryPageSizer;
+    }
+
+    /** Chooses page sizes for getTaskHistory. Defaults to an adaptive page size. */
+    public final void setTaskHistoryPageSizer(PageSizer taskHistoryPageSizer) {
+        this.taskHistoryPageSizer = taskHistoryPageSizer;
+    }
+
+    /** Executor used to call Bridge in the background. If this isn't set, all calls are made on the calling thread. */
+    @Resource(name = "notificationWorkerBackgroundExecutor")
+    public final void setBackgroundExecutor(ExecutorService backgroundExecutor) {
+        this.backgroundExecutor = backgroundExecutor;
+    }
+
     /** Bridge client manager. */
     @Autowired
     public final void setClientManager(ClientManager clientManager) {
@@ -35,10 +76,34 @@ public class BridgeHelper {
 
     /**
      * Get an iterator for all account summaries in the given study. Note that since getAllAccountSummaries is a
-     * paginated API, the iterator may continue to call the server.
+     * paginated API, the iterator may continue to call the server, and may prefetch pages in the background.
      */
     public Iterator<AccountSummary> getAllAccountSummaries(String studyId) {
-        return new AccountSummaryIterator(clientManager, studyId);
+        return getAllAccountSummaries(studyId, 0);
+    }
+
+    /**
+     * Like {@link #getAllAccountSummaries(String)}, but starts at the given offset into the study's accounts. This is
+     * used to resume a run partway through.
+     */
+    public Iterator<AccountSummary> getAllAccountSummaries(String studyId, int startOffset) {
+        return new AccountSummaryIterator(clientManager, studyId, accountSummaryPageSizer, backgroundExecutor,
+                accountSummaryPrefetchDepth, startOffset);
+    }
+
+    /**
+     * Gets the number of accounts that {@link #getAllAccountSummaries(String)} would return for the given study, as
+     * reported by the first page of account summaries.
+     */
+    public int getAccountSummaryTotal(String studyId) throws IOException {
+        return clientManager.getClient(ForWorkersApi.class).getParticipants(studyId, 0,
+                accountSummaryPageSizer.getPageSize(), null, AccountSummaryIterator.PHONE_FILTER, null, null)
+                .execute().body().getTotal();
+    }
+
+    /** The page size getAllAccountSummaries is currently using. For adaptive page sizes, this changes over time. */
+    public int getAccountSummaryPageSize() {
+        return accountSummaryPageSizer.getPageSize();
     }
 
     /** Gets a participant for the given user in the given study. */
@@ -53,7 +118,13 @@ public class BridgeHelper {
      * */
     public Iterator<ScheduledActivity> getTaskHistory(String studyId, String userId, String taskId,
             DateTime scheduledOnStart, DateTime scheduledOnEnd) {
-        return new TaskHistoryIterator(clientManager, studyId, userId, taskId, scheduledOnStart, scheduledOnEnd);
+        return new TaskHistoryIterator(clientManager, studyId, userId, taskId, scheduledOnStart, scheduledOnEnd,
+                taskHistoryPageSizer);
+    }
+
+    /** The page size getTaskHistory is currently using. For adaptive page sizes, this changes over time. */
+    public int getTaskHistoryPageSize() {
+        return taskHistoryPageSizer.getPageSize();
     }
 
     /** Sends the given message as an SMS to the given user in the given study. */
@@ -62,4 +133,10 @@ public class BridgeHelper {
         clientManager.getClient(ForWorkersApi.class).sendSmsMessageToParticipant(studyId, userId, smsTemplate)
                 .execute();
     }
+
+    // Helper method to make the default adaptive PageSizer.
+    private static PageSizer makeDefaultPageSizer() {
+        return PageSizer.adaptive(DEFAULT_INITIAL_PAGE_SIZE, DEFAULT_MIN_PAGE_SIZE, DEFAULT_MAX_PAGE_SIZE,
+                DEFAULT_TARGET_PAGE_LATENCY_MILLIS);
+    }
 }
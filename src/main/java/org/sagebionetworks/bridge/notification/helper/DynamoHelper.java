@@ -1,32 +1,68 @@
 package org.sagebionetworks.bridge.notification.helper;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 import javax.annotation.Resource;
 
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.RangeKeyCondition;
 import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.PutItemSpec;
 import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
-import com.jcabi.aspects.Cacheable;
+import com.amazonaws.services.dynamodbv2.document.spec.ScanSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.UpdateItemSpec;
+import com.amazonaws.services.dynamodbv2.document.utils.NameMap;
+import com.amazonaws.services.dynamodbv2.document.utils.ValueMap;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
+import com.amazonaws.services.dynamodbv2.model.ReturnValue;
 import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import org.sagebionetworks.bridge.dynamodb.DynamoQueryHelper;
+import org.sagebionetworks.bridge.notification.worker.BurstAdherenceRecord;
+import org.sagebionetworks.bridge.notification.worker.BurstCalendarEntry;
 import org.sagebionetworks.bridge.notification.worker.NotificationType;
+import org.sagebionetworks.bridge.notification.worker.RunCheckpoint;
+import org.sagebionetworks.bridge.notification.worker.RunLedgerEntry;
+import org.sagebionetworks.bridge.notification.worker.RunLedgerStatus;
+import org.sagebionetworks.bridge.notification.worker.ShardedRun;
+import org.sagebionetworks.bridge.notification.worker.StudyRunLease;
+import org.sagebionetworks.bridge.notification.worker.StudyRunStatus;
 import org.sagebionetworks.bridge.notification.worker.UserNotification;
+import org.sagebionetworks.bridge.notification.worker.WorkUnitLease;
+import org.sagebionetworks.bridge.notification.worker.WorkUnitStatus;
 import org.sagebionetworks.bridge.notification.worker.WorkerConfig;
 
 /** Abstracts away DynamoDB calls. */
 @Component("NotificationWorkerDynamoHelper")
 public class DynamoHelper {
     // DDB column names. Package-scoped for unit tests.
+    static final String KEY_BURST_START_DATE = "burstStartDate";
+    static final String KEY_BURST_START_DATE_LIST = "burstStartDateList";
     static final String KEY_BURST_DURATION_DAYS = "burstDurationDays";
     static final String KEY_BURST_EVENT_ID_SET = "burstStartEventIdSet";
     static final String KEY_BURST_TASK_ID = "burstTaskId";
+    static final String KEY_COMPLETED_BURST_START_DATE_SET = "completedBurstStartDateSet";
     static final String KEY_EARLY_LATE_CUTOFF_DAYS = "earlyLateCutoffDays";
+    static final String KEY_ERROR_CLASS = "errorClass";
+    static final String KEY_EXPIRES_ON = "expiresOn";
     static final String KEY_EXCLUDED_DATA_GROUP_SET = "excludedDataGroupSet";
     static final String KEY_FINISH_TIME = "finishTime";
+    static final String KEY_FINISHED_DAYS = "finishedDays";
+    static final String KEY_FINISHED_SHARD_SET = "finishedShardSet";
+    static final String KEY_LEASE_EXPIRES_ON = "leaseExpiresOn";
     static final String KEY_MESSAGE = "message";
     static final String KEY_MISSED_CUMULATIVE_MESSAGES = "missedCumulativeActivitiesMessagesByDataGroup";
     static final String KEY_MISSED_EARLY_MESSAGES = "missedEarlyActivitiesMessagesByDataGroup";
@@ -35,24 +71,87 @@ public class DynamoHelper {
     static final String KEY_NOTIFICATION_BLACKOUT_DAYS_FROM_END = "notificationBlackoutDaysFromEnd";
     static final String KEY_NOTIFICATION_TIME = "notificationTime";
     static final String KEY_NOTIFICATION_TYPE = "notificationType";
+    static final String KEY_NUM_DAYS = "numDays";
+    static final String KEY_NUM_ERRORS = "numErrors";
+    static final String KEY_NUM_RESUMES = "numResumes";
+    static final String KEY_NUM_SHARDS = "numShards";
     static final String KEY_NUM_ACTIVITIES_TO_COMPLETE = "numActivitiesToCompleteBurst";
     static final String KEY_NUM_MISSED_DAYS_TO_NOTIFY = "numMissedDaysToNotify";
     static final String KEY_NUM_MISSED_CONSECUTIVE_DAYS_TO_NOTIFY = "numMissedConsecutiveDaysToNotify";
+    static final String KEY_OFFSET = "offset";
+    static final String KEY_OWNER_ID = "ownerId";
     static final String KEY_PREBURST_MESSAGES = "preburstMessagesByDataGroup";
     static final String KEY_REQUIRED_DATA_GROUPS = "requiredDataGroupsOneOfSet";
     static final String KEY_REQUIRED_SUBPOPULATION_GUID_SET = "requiredSubpopulationGuidSet";
+    static final String KEY_RUN_ID = "runId";
+    static final String KEY_STARTED_ON = "startedOn";
+    static final String KEY_STATUS = "status";
+    static final String KEY_STUDY_DATE = "studyDate";
     static final String KEY_STUDY_ID = "studyId";
     static final String KEY_TAG = "tag";
+    static final String KEY_UNIT_INDEX = "unitIndex";
+    static final String KEY_UPDATED_ON = "updatedOn";
     static final String KEY_USER_ID = "userId";
     static final String KEY_WORKER_ID = "workerId";
 
     // Worker ID for the Worker Log
     static final String VALUE_WORKER_ID = "ActivityNotificationWorker";
 
+    // Global secondary index on the notification log, with studyId as the hash key and notificationTime as the range
+    // key. It must project notificationType. Package-scoped for unit tests.
+    static final String NOTIFICATION_LOG_STUDY_INDEX = "studyId-notificationTime-index";
+
+    // Run ledger entries expire after this many days, using DDB's TTL. Package-scoped for unit tests.
+    static final int RUN_LEDGER_TTL_DAYS = 30;
+
+    // Buffered writes are written in batches of this size, or when the oldest buffered write is older than the flush
+    // interval. Package-scoped for unit tests.
+    static final int WRITE_BUFFER_FLUSH_SIZE = BatchWriteBuffer.MAX_BATCH_SIZE;
+    static final long WRITE_BUFFER_FLUSH_INTERVAL_MILLIS = 1000;
+
+    private ExecutorService backgroundExecutor;
+    private DynamoDB ddbClient;
+    private Table ddbBurstAdherenceTable;
+    private Table ddbBurstCalendarTable;
     private Table ddbNotificationConfigTable;
     private Table ddbNotificationLogTable;
+    private Table ddbRunCheckpointTable;
+    private Table ddbRunLedgerTable;
+    private Table ddbShardRunTable;
+    private Table ddbStudyRunTable;
+    private Table ddbWorkUnitTable;
     private Table ddbWorkerLogTable;
     private DynamoQueryHelper dynamoQueryHelper;
+    private DynamoIndexHelper dynamoIndexHelper;
+    private DynamoScanHelper dynamoScanHelper;
+    private BatchWriteBuffer<UserNotification> notificationLogBuffer;
+    private BatchWriteBuffer<BurstAdherenceRecord> burstAdherenceBuffer;
+    private BatchWriteBuffer<BurstCalendarEntry> burstCalendarBuffer;
+    private BatchWriteBuffer<RunLedgerEntry> runLedgerBuffer;
+
+    /** Executor used to write batches in the background. */
+    @Resource(name = "notificationWorkerBackgroundExecutor")
+    public final void setBackgroundExecutor(ExecutorService backgroundExecutor) {
+        this.backgroundExecutor = backgroundExecutor;
+    }
+
+    /** DDB table for burst adherence records, which track each user's adherence to their current burst. */
+    @Resource(name = "ddbNotificationBurstAdherenceTable")
+    public final void setDdbBurstAdherenceTable(Table ddbBurstAdherenceTable) {
+        this.ddbBurstAdherenceTable = ddbBurstAdherenceTable;
+    }
+
+    /** DDB table for the burst calendar, which records when each user's study bursts start. */
+    @Resource(name = "ddbNotificationBurstCalendarTable")
+    public final void setDdbBurstCalendarTable(Table ddbBurstCalendarTable) {
+        this.ddbBurstCalendarTable = ddbBurstCalendarTable;
+    }
+
+    /** DDB client, used for batch writes. */
+    @Autowired
+    public final void setDdbClient(DynamoDB ddbClient) {
+        this.ddbClient = ddbClient;
+    }
 
     /** DDB table for notification configs. */
     @Resource(name = "ddbNotificationConfigTable")
@@ -60,12 +159,48 @@ public class DynamoHelper {
         this.ddbNotificationConfigTable = ddbNotificationConfigTable;
     }
 
-    /** DDB table for notification logs, used to track which users have received notifications and when. */
+    /**
+     * DDB table for notification logs, used to track which users have received notifications and when. Loading a
+     * study's recent notifications requires the studyId-notificationTime-index global secondary index.
+     */
     @Resource(name = "ddbNotificationLogTable")
     public final void setDdbNotificationLogTable(Table ddbNotificationLogTable) {
         this.ddbNotificationLogTable = ddbNotificationLogTable;
     }
 
+    /** DDB table for run checkpoints, which let a run resume where it left off if the worker dies. */
+    @Resource(name = "ddbNotificationRunCheckpointTable")
+    public final void setDdbRunCheckpointTable(Table ddbRunCheckpointTable) {
+        this.ddbRunCheckpointTable = ddbRunCheckpointTable;
+    }
+
+    /**
+     * DDB table for the run ledger, which records the users each run has already handled. The table should have TTL
+     * enabled on the expiresOn attribute.
+     */
+    @Resource(name = "ddbNotificationRunLedgerTable")
+    public final void setDdbRunLedgerTable(Table ddbRunLedgerTable) {
+        this.ddbRunLedgerTable = ddbRunLedgerTable;
+    }
+
+    /** DDB table for sharded runs, which tracks which shards of each run have finished. */
+    @Resource(name = "ddbNotificationShardRunTable")
+    public final void setDdbShardRunTable(Table ddbShardRunTable) {
+        this.ddbShardRunTable = ddbShardRunTable;
+    }
+
+    /** DDB table for study run leases, which make sure only one run processes a study and date at a time. */
+    @Resource(name = "ddbNotificationStudyRunTable")
+    public final void setDdbStudyRunTable(Table ddbStudyRunTable) {
+        this.ddbStudyRunTable = ddbStudyRunTable;
+    }
+
+    /** DDB table for work unit leases, which let workers claim and steal small ranges of a run's roster. */
+    @Resource(name = "ddbNotificationWorkUnitTable")
+    public final void setDdbWorkUnitTable(Table ddbWorkUnitTable) {
+        this.ddbWorkUnitTable = ddbWorkUnitTable;
+    }
+
     /**
      * DDB table for the worker log. Used to track worker runs and to signal to integration tests when the worker has
      * finished running.
@@ -81,10 +216,177 @@ public class DynamoHelper {
         this.dynamoQueryHelper = dynamoQueryHelper;
     }
 
-    /** Gets the notification config for the given study. This method caches results for 5 minutes. */
-    @Cacheable(lifetime = 5, unit = TimeUnit.MINUTES)
+    /** DDB index helper, used to abstract away index query logic and typing. */
+    @Autowired
+    public final void setDynamoIndexHelper(DynamoIndexHelper dynamoIndexHelper) {
+        this.dynamoIndexHelper = dynamoIndexHelper;
+    }
+
+    /** DDB scan helper, used to abstract away scan logic and typing. */
+    @Autowired
+    public final void setDynamoScanHelper(DynamoScanHelper dynamoScanHelper) {
+        this.dynamoScanHelper = dynamoScanHelper;
+    }
+
+    /** Gets the burst adherence record for the given user. Returns null if the user doesn't have one. */
+    public BurstAdherenceRecord getBurstAdherenceRecord(String studyId, String userId) {
+        Item item = ddbBurstAdherenceTable.getItem(KEY_STUDY_ID, studyId, KEY_USER_ID, userId);
+        if (item == null) {
+            return null;
+        }
+
+        BurstAdherenceRecord record = new BurstAdherenceRecord();
+        record.setBurstStartDate(LocalDate.parse(item.getString(KEY_BURST_START_DATE)));
+        record.setBurstTaskId(item.getString(KEY_BURST_TASK_ID));
+        record.setFinishedDays(BitSet.valueOf(item.getBinary(KEY_FINISHED_DAYS)));
+        record.setNumDays(item.getInt(KEY_NUM_DAYS));
+        record.setStudyId(item.getString(KEY_STUDY_ID));
+        record.setUserId(item.getString(KEY_USER_ID));
+        return record;
+    }
+
+    /**
+     * Writes the burst adherence record, replacing the user's previous record, using a write-behind buffer. Callers
+     * must call {@link #flushBurstAdherence} to make sure the write has finished.
+     */
+    public void bufferBurstAdherenceRecord(BurstAdherenceRecord record) {
+        getBurstAdherenceBuffer().add(record);
+    }
+
+    /**
+     * Waits for all buffered burst adherence writes to finish. Returns the number of burst adherence writes that
+     * failed since the previous flush.
+     */
+    public int flushBurstAdherence() {
+        BatchWriteBuffer<BurstAdherenceRecord> buffer = getBurstAdherenceBuffer();
+        return buffer.flush();
+    }
+
+    // Helper method to create the burst adherence buffer on first use, since it depends on injected values.
+    private synchronized BatchWriteBuffer<BurstAdherenceRecord> getBurstAdherenceBuffer() {
+        if (burstAdherenceBuffer == null) {
+            burstAdherenceBuffer = new BatchWriteBuffer<>(ddbClient, ddbBurstAdherenceTable.getTableName(),
+                    DynamoHelper::makeBurstAdherenceItem, backgroundExecutor, WRITE_BUFFER_FLUSH_SIZE,
+                    WRITE_BUFFER_FLUSH_INTERVAL_MILLIS);
+        }
+        return burstAdherenceBuffer;
+    }
+
+    // Helper method to convert a BurstAdherenceRecord into a DDB item. The bitmap is stored as binary, which is at
+    // most a few bytes for a burst.
+    private static Item makeBurstAdherenceItem(BurstAdherenceRecord record) {
+        return new Item().withPrimaryKey(KEY_STUDY_ID, record.getStudyId(), KEY_USER_ID, record.getUserId())
+                .withString(KEY_BURST_START_DATE, record.getBurstStartDate().toString())
+                .withString(KEY_BURST_TASK_ID, record.getBurstTaskId())
+                .withBinary(KEY_FINISHED_DAYS, record.getFinishedDays().toByteArray())
+                .withInt(KEY_NUM_DAYS, record.getNumDays());
+    }
+
+    /** Gets the burst calendar entries for every user in the given study, keyed by user ID. */
+    public Map<String, BurstCalendarEntry> getBurstCalendar(String studyId) {
+        QuerySpec query = new QuerySpec().withHashKey(KEY_STUDY_ID, studyId);
+        Map<String, BurstCalendarEntry> entriesByUserId = new HashMap<>();
+        for (Item oneItem : dynamoQueryHelper.query(ddbBurstCalendarTable, query)) {
+            List<LocalDate> burstStartDateList = new ArrayList<>();
+            for (String oneDateString : oneItem.<String>getList(KEY_BURST_START_DATE_LIST)) {
+                burstStartDateList.add(LocalDate.parse(oneDateString));
+            }
+
+            // DDB doesn't allow empty sets, so this attribute is missing if the user hasn't completed any bursts.
+            Set<LocalDate> completedBurstStartDateSet = new HashSet<>();
+            if (oneItem.isPresent(KEY_COMPLETED_BURST_START_DATE_SET)) {
+                for (String oneDateString : oneItem.getStringSet(KEY_COMPLETED_BURST_START_DATE_SET)) {
+                    completedBurstStartDateSet.add(LocalDate.parse(oneDateString));
+                }
+            }
+
+            BurstCalendarEntry entry = new BurstCalendarEntry();
+            entry.setBurstStartDateList(burstStartDateList);
+            entry.setBurstStartEventIdSet(oneItem.getStringSet(KEY_BURST_EVENT_ID_SET));
+            entry.setCompletedBurstStartDateSet(completedBurstStartDateSet);
+            entry.setStudyId(oneItem.getString(KEY_STUDY_ID));
+            entry.setUpdatedOn(oneItem.getLong(KEY_UPDATED_ON));
+            entry.setUserId(oneItem.getString(KEY_USER_ID));
+            entriesByUserId.put(entry.getUserId(), entry);
+        }
+        return entriesByUserId;
+    }
+
+    /**
+     * Writes the burst calendar entry, using a write-behind buffer. Callers must call {@link #flushBurstCalendar} to
+     * make sure the write has finished.
+     */
+    public void bufferBurstCalendarEntry(BurstCalendarEntry entry) {
+        getBurstCalendarBuffer().add(entry);
+    }
+
+    /**
+     * Waits for all buffered burst calendar writes to finish. Returns the number of burst calendar writes that failed
+     * since the previous flush.
+     */
+    public int flushBurstCalendar() {
+        BatchWriteBuffer<BurstCalendarEntry> buffer = getBurstCalendarBuffer();
+        return buffer.flush();
+    }
+
+    // Helper method to create the burst calendar buffer on first use, since it depends on injected values.
+    private synchronized BatchWriteBuffer<BurstCalendarEntry> getBurstCalendarBuffer() {
+        if (burstCalendarBuffer == null) {
+            burstCalendarBuffer = new BatchWriteBuffer<>(ddbClient, ddbBurstCalendarTable.getTableName(),
+                    DynamoHelper::makeBurstCalendarItem, backgroundExecutor, WRITE_BUFFER_FLUSH_SIZE,
+                    WRITE_BUFFER_FLUSH_INTERVAL_MILLIS);
+        }
+        return burstCalendarBuffer;
+    }
+
+    // Helper method to convert a BurstCalendarEntry into a DDB item.
+    private static Item makeBurstCalendarItem(BurstCalendarEntry entry) {
+        List<String> burstStartDateStringList = new ArrayList<>();
+        for (LocalDate oneDate : entry.getBurstStartDateList()) {
+            burstStartDateStringList.add(oneDate.toString());
+        }
+        Item item = new Item().withPrimaryKey(KEY_STUDY_ID, entry.getStudyId(), KEY_USER_ID, entry.getUserId())
+                .withList(KEY_BURST_START_DATE_LIST, burstStartDateStringList)
+                .withStringSet(KEY_BURST_EVENT_ID_SET, new HashSet<>(entry.getBurstStartEventIdSet()))
+                .withLong(KEY_UPDATED_ON, entry.getUpdatedOn());
+
+        // DDB doesn't allow empty sets.
+        if (!entry.getCompletedBurstStartDateSet().isEmpty()) {
+            Set<String> completedBurstStartDateStringSet = new HashSet<>();
+            for (LocalDate oneDate : entry.getCompletedBurstStartDateSet()) {
+                completedBurstStartDateStringSet.add(oneDate.toString());
+            }
+            item.withStringSet(KEY_COMPLETED_BURST_START_DATE_SET, completedBurstStartDateStringSet);
+        }
+        return item;
+    }
+
+    /**
+     * Gets the notification configs for all studies, keyed by study ID. This scans the whole config table, and is
+     * used to preload the config cache.
+     */
+    public Map<String, WorkerConfig> getAllNotificationConfigs() {
+        Map<String, WorkerConfig> configsByStudyId = new HashMap<>();
+        for (Item oneItem : dynamoScanHelper.scan(ddbNotificationConfigTable, new ScanSpec())) {
+            configsByStudyId.put(oneItem.getString(KEY_STUDY_ID), makeWorkerConfig(oneItem));
+        }
+        return configsByStudyId;
+    }
+
+    /**
+     * Gets the notification config for the given study. This method always calls DDB. Callers should go through
+     * {@link WorkerConfigCache} instead.
+     */
     public WorkerConfig getNotificationConfigForStudy(String studyId) {
         Item item = ddbNotificationConfigTable.getItem(KEY_STUDY_ID, studyId);
+        if (item == null) {
+            throw new IllegalArgumentException("No notification config for study " + studyId);
+        }
+        return makeWorkerConfig(item);
+    }
+
+    // Helper method to convert a DDB item from the config table into a WorkerConfig.
+    private static WorkerConfig makeWorkerConfig(Item item) {
         WorkerConfig workerConfig = new WorkerConfig();
         workerConfig.setBurstDurationDays(item.getInt(KEY_BURST_DURATION_DAYS));
         workerConfig.setBurstStartEventIdSet(item.getStringSet(KEY_BURST_EVENT_ID_SET));
@@ -128,13 +430,416 @@ public class DynamoHelper {
         }
     }
 
+    /**
+     * Gets the most recent notification for every user in the given study who was sent a notification after the given
+     * time, keyed by user ID. Users who weren't notified since then aren't in the map. This queries the notification
+     * log's study index, so it only reads the study's recent notifications, and is used to avoid querying the
+     * notification log once per user. Notifications written without a study ID aren't in the index. The returned
+     * notifications don't include the message.
+     */
+    public Map<String, UserNotification> getLatestNotificationsSince(String studyId, long sinceMillis) {
+        QuerySpec query = new QuerySpec().withHashKey(KEY_STUDY_ID, studyId)
+                .withRangeKeyCondition(new RangeKeyCondition(KEY_NOTIFICATION_TIME).gt(sinceMillis));
+        Map<String, UserNotification> notificationsByUserId = new HashMap<>();
+        for (Item oneItem : dynamoIndexHelper.query(ddbNotificationLogTable.getIndex(NOTIFICATION_LOG_STUDY_INDEX),
+                query)) {
+            UserNotification userNotification = new UserNotification();
+            userNotification.setStudyId(oneItem.getString(KEY_STUDY_ID));
+            userNotification.setTime(oneItem.getLong(KEY_NOTIFICATION_TIME));
+            userNotification.setType(NotificationType.valueOf(oneItem.getString(KEY_NOTIFICATION_TYPE)));
+            userNotification.setUserId(oneItem.getString(KEY_USER_ID));
+            notificationsByUserId.merge(userNotification.getUserId(), userNotification,
+                    (oldValue, newValue) -> newValue.getTime() > oldValue.getTime() ? newValue : oldValue);
+        }
+        return notificationsByUserId;
+    }
+
     /** Appends the notification info to the notification log for the given user. */
     public void setLastNotificationTimeForUser(UserNotification userNotification) {
+        ddbNotificationLogTable.putItem(makeNotificationLogItem(userNotification));
+    }
+
+    /**
+     * Appends the notification info to the notification log for the given user, unless the log already has a
+     * notification for the user at the same time. This is written immediately. Every node in a run records its
+     * notifications at the run's notification time, so if two nodes evaluate the same user in the same run, only one
+     * of them records the notification. Returns true if the notification was written, false if it was already there.
+     */
+    public boolean claimNotificationLog(UserNotification userNotification) {
+        PutItemSpec putItemSpec = new PutItemSpec().withItem(makeNotificationLogItem(userNotification))
+                .withConditionExpression("attribute_not_exists(#notificationTime)")
+                .withNameMap(new NameMap().with("#notificationTime", KEY_NOTIFICATION_TIME));
+        try {
+            ddbNotificationLogTable.putItem(putItemSpec);
+            return true;
+        } catch (ConditionalCheckFailedException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Appends the notification info to the notification log for the given user, using a write-behind buffer. The
+     * write happens in the background, in a batch with other notifications. Callers must call
+     * {@link #flushNotificationLog} to make sure the write has finished.
+     */
+    public void bufferNotificationLog(UserNotification userNotification) {
+        getNotificationLogBuffer().add(userNotification);
+    }
+
+    /**
+     * Waits for all buffered notification log writes to finish. Returns the number of notification log writes that
+     * failed since the previous flush.
+     */
+    public int flushNotificationLog() {
+        BatchWriteBuffer<UserNotification> buffer = getNotificationLogBuffer();
+        return buffer.flush();
+    }
+
+    // Helper method to create the notification log buffer on first use, since it depends on injected values.
+    private synchronized BatchWriteBuffer<UserNotification> getNotificationLogBuffer() {
+        if (notificationLogBuffer == null) {
+            notificationLogBuffer = new BatchWriteBuffer<>(ddbClient, ddbNotificationLogTable.getTableName(),
+                    DynamoHelper::makeNotificationLogItem, backgroundExecutor, WRITE_BUFFER_FLUSH_SIZE,
+                    WRITE_BUFFER_FLUSH_INTERVAL_MILLIS);
+        }
+        return notificationLogBuffer;
+    }
+
+    // Helper method to convert a UserNotification into a DDB item for the notification log.
+    private static Item makeNotificationLogItem(UserNotification userNotification) {
         Item item = new Item().withPrimaryKey(KEY_USER_ID, userNotification.getUserId(),
                 KEY_NOTIFICATION_TIME, userNotification.getTime())
                 .withString(KEY_MESSAGE, userNotification.getMessage())
                 .withString(KEY_NOTIFICATION_TYPE, userNotification.getType().name());
-        ddbNotificationLogTable.putItem(item);
+        if (userNotification.getStudyId() != null) {
+            // The study ID puts the notification in the study index.
+            item.withString(KEY_STUDY_ID, userNotification.getStudyId());
+        }
+        return item;
+    }
+
+    /** Gets the checkpoint for the given run. Returns null if the run doesn't have one. */
+    public RunCheckpoint getRunCheckpoint(String runId) {
+        Item item = ddbRunCheckpointTable.getItem(KEY_RUN_ID, runId);
+        if (item == null) {
+            return null;
+        }
+
+        RunCheckpoint checkpoint = new RunCheckpoint();
+        checkpoint.setNumErrors(item.getInt(KEY_NUM_ERRORS));
+        checkpoint.setNumResumes(item.getInt(KEY_NUM_RESUMES));
+        checkpoint.setOffset(item.getInt(KEY_OFFSET));
+        checkpoint.setRunId(item.getString(KEY_RUN_ID));
+        checkpoint.setUpdatedOn(item.getLong(KEY_UPDATED_ON));
+        return checkpoint;
+    }
+
+    /** Writes the checkpoint for a run, replacing the run's previous checkpoint. */
+    public void writeRunCheckpoint(RunCheckpoint checkpoint) {
+        Item item = new Item().withPrimaryKey(KEY_RUN_ID, checkpoint.getRunId())
+                .withInt(KEY_NUM_ERRORS, checkpoint.getNumErrors())
+                .withInt(KEY_NUM_RESUMES, checkpoint.getNumResumes())
+                .withInt(KEY_OFFSET, checkpoint.getOffset())
+                .withLong(KEY_UPDATED_ON, checkpoint.getUpdatedOn());
+        ddbRunCheckpointTable.putItem(item);
+    }
+
+    /** Gets the run ledger for the given study and date, as the status of each user, keyed by user ID. */
+    public Map<String, RunLedgerStatus> getRunLedger(String studyId, LocalDate date) {
+        QuerySpec query = new QuerySpec().withHashKey(KEY_STUDY_DATE, makeStudyDateKey(studyId, date));
+        Map<String, RunLedgerStatus> statusByUserId = new HashMap<>();
+        for (Item oneItem : dynamoQueryHelper.query(ddbRunLedgerTable, query)) {
+            statusByUserId.put(oneItem.getString(KEY_USER_ID), RunLedgerStatus.valueOf(oneItem.getString(
+                    KEY_STATUS)));
+        }
+        return statusByUserId;
+    }
+
+    /**
+     * Writes the run ledger entry, using a write-behind buffer. Callers must call {@link #flushRunLedger} to make sure
+     * the write has finished. Use {@link #claimRunLedgerNotification} for notified users and
+     * {@link #writeRunLedgerFailure} for failed users instead.
+     */
+    public void bufferRunLedgerEntry(RunLedgerEntry entry) {
+        getRunLedgerBuffer().add(entry);
+    }
+
+    /**
+     * Waits for all buffered run ledger writes to finish. Returns the number of run ledger writes that failed since
+     * the previous flush.
+     */
+    public int flushRunLedger() {
+        BatchWriteBuffer<RunLedgerEntry> buffer = getRunLedgerBuffer();
+        return buffer.flush();
+    }
+
+    // Helper method to create the run ledger buffer on first use, since it depends on injected values.
+    private synchronized BatchWriteBuffer<RunLedgerEntry> getRunLedgerBuffer() {
+        if (runLedgerBuffer == null) {
+            runLedgerBuffer = new BatchWriteBuffer<>(ddbClient, ddbRunLedgerTable.getTableName(),
+                    DynamoHelper::makeRunLedgerItem, backgroundExecutor, WRITE_BUFFER_FLUSH_SIZE,
+                    WRITE_BUFFER_FLUSH_INTERVAL_MILLIS);
+        }
+        return runLedgerBuffer;
+    }
+
+    /**
+     * Marks the user as notified in the run ledger, unless they were already notified. This is written immediately,
+     * and is atomic, so even if two deliveries of the same request run at the same time, only one of them notifies
+     * the user. Returns true if the caller should send the notification, false if the user was already notified.
+     */
+    public boolean claimRunLedgerNotification(RunLedgerEntry entry) {
+        if (entry.getStatus() != RunLedgerStatus.NOTIFIED) {
+            throw new IllegalArgumentException("Run ledger entry must have status NOTIFIED");
+        }
+        return putRunLedgerEntryUnlessNotified(entry);
+    }
+
+    /**
+     * Marks the user as failed in the run ledger, unless they were already notified. This is written immediately, so
+     * a concurrent run that notified the user is never overwritten, and a retry of the failed users never notifies
+     * them twice. Returns true if the entry was written, false if the user was already notified.
+     */
+    public boolean writeRunLedgerFailure(RunLedgerEntry entry) {
+        if (entry.getStatus() != RunLedgerStatus.FAILED) {
+            throw new IllegalArgumentException("Run ledger entry must have status FAILED");
+        }
+        return putRunLedgerEntryUnlessNotified(entry);
+    }
+
+    // Helper method to write a run ledger entry, unless the user's existing entry has status NOTIFIED. Returns false
+    // if the user was already notified.
+    private boolean putRunLedgerEntryUnlessNotified(RunLedgerEntry entry) {
+        PutItemSpec putItemSpec = new PutItemSpec().withItem(makeRunLedgerItem(entry))
+                .withConditionExpression("attribute_not_exists(#status) OR #status <> :notified")
+                .withNameMap(new NameMap().with("#status", KEY_STATUS))
+                .withValueMap(new ValueMap().withString(":notified", RunLedgerStatus.NOTIFIED.name()));
+        try {
+            ddbRunLedgerTable.putItem(putItemSpec);
+            return true;
+        } catch (ConditionalCheckFailedException ex) {
+            return false;
+        }
+    }
+
+    // Helper method to convert a RunLedgerEntry into a DDB item.
+    private static Item makeRunLedgerItem(RunLedgerEntry entry) {
+        long expiresOnSeconds = TimeUnit.MILLISECONDS.toSeconds(entry.getUpdatedOn()) +
+                TimeUnit.DAYS.toSeconds(RUN_LEDGER_TTL_DAYS);
+        Item item = new Item().withPrimaryKey(KEY_STUDY_DATE, makeStudyDateKey(entry.getStudyId(),
+                entry.getDate()), KEY_USER_ID, entry.getUserId())
+                .withString(KEY_STATUS, entry.getStatus().name())
+                .withLong(KEY_UPDATED_ON, entry.getUpdatedOn())
+                .withLong(KEY_EXPIRES_ON, expiresOnSeconds);
+        if (entry.getErrorClass() != null) {
+            item.withString(KEY_ERROR_CLASS, entry.getErrorClass());
+        }
+        return item;
+    }
+
+    // Helper method to make the run ledger's hash key, which is shared by all runs for the same study and date.
+    private static String makeStudyDateKey(String studyId, LocalDate date) {
+        return studyId + ":" + date;
+    }
+
+    /**
+     * Starts tracking a sharded run with the given number of shards and start time. If the run was already started
+     * after the given stale time (for example, because the coordinator's request was redelivered), this leaves it
+     * alone, so shards that already finished stay finished, and returns the existing run. A run started before the
+     * stale time (or before runs had start times) is replaced, so a run that's sent again on purpose starts over.
+     */
+    public ShardedRun startShardedRun(String runId, int numShards, long startedOn, long staleBeforeMillis) {
+        Item item = new Item().withPrimaryKey(KEY_RUN_ID, runId).withInt(KEY_NUM_SHARDS, numShards)
+                .withLong(KEY_STARTED_ON, startedOn).withLong(KEY_UPDATED_ON, DateTime.now().getMillis());
+        PutItemSpec putItemSpec = new PutItemSpec().withItem(item)
+                .withConditionExpression("attribute_not_exists(#numShards) OR attribute_not_exists(#startedOn) OR " +
+                        "#startedOn < :staleBefore")
+                .withNameMap(new NameMap().with("#numShards", KEY_NUM_SHARDS).with("#startedOn", KEY_STARTED_ON))
+                .withValueMap(new ValueMap().withLong(":staleBefore", staleBeforeMillis));
+
+        ShardedRun shardedRun = new ShardedRun();
+        try {
+            ddbShardRunTable.putItem(putItemSpec);
+            shardedRun.setNumShards(numShards);
+            shardedRun.setStartedOn(startedOn);
+        } catch (ConditionalCheckFailedException ex) {
+            Item existingItem = ddbShardRunTable.getItem(new GetItemSpec().withPrimaryKey(KEY_RUN_ID, runId)
+                    .withConsistentRead(true));
+            shardedRun.setNumShards(existingItem.getInt(KEY_NUM_SHARDS));
+            shardedRun.setStartedOn(existingItem.getLong(KEY_STARTED_ON));
+        }
+        return shardedRun;
+    }
+
+    /**
+     * Marks the given shard of a sharded run as finished. Returns true if every shard of the run has now finished.
+     * This is atomic, so if the last shards finish at the same time, only one of them sees the run as finished. A
+     * shard that's redelivered after it finished doesn't count twice.
+     */
+    public boolean finishShard(String runId, int shardIndex) {
+        UpdateItemSpec updateItemSpec = new UpdateItemSpec().withPrimaryKey(KEY_RUN_ID, runId)
+                .withUpdateExpression("ADD #finished :shard SET #updatedOn = :now")
+                .withNameMap(new NameMap().with("#finished", KEY_FINISHED_SHARD_SET).with("#updatedOn",
+                        KEY_UPDATED_ON))
+                .withValueMap(new ValueMap().withNumberSet(":shard", shardIndex).withLong(":now",
+                        DateTime.now().getMillis()))
+                .withReturnValues(ReturnValue.ALL_NEW);
+        Item item = ddbShardRunTable.updateItem(updateItemSpec).getItem();
+        return item.isPresent(KEY_NUM_SHARDS) && item.getNumberSet(KEY_FINISHED_SHARD_SET).size() >= item.getInt(
+                KEY_NUM_SHARDS);
+    }
+
+    /** Gets the run lease for the given study and date, or null if no run has taken it yet. */
+    public StudyRunLease getStudyRunLease(String studyId, LocalDate date) {
+        GetItemSpec getItemSpec = new GetItemSpec().withPrimaryKey(KEY_STUDY_DATE, makeStudyDateKey(studyId, date))
+                .withConsistentRead(true);
+        Item item = ddbStudyRunTable.getItem(getItemSpec);
+        if (item == null) {
+            return null;
+        }
+
+        StudyRunLease lease = new StudyRunLease();
+        lease.setLeaseExpiresOn(item.getLong(KEY_LEASE_EXPIRES_ON));
+        lease.setRunId(item.getString(KEY_RUN_ID));
+        lease.setStartedOn(item.getLong(KEY_STARTED_ON));
+        lease.setStatus(StudyRunStatus.valueOf(item.getString(KEY_STATUS)));
+        lease.setUpdatedOn(item.getLong(KEY_UPDATED_ON));
+        return lease;
+    }
+
+    /**
+     * Takes the run lease for the given study and date, if no run has taken it yet, the last run finished, or the
+     * last run's lease expired. Returns true if the lease was taken, false if another run holds it.
+     */
+    public boolean acquireStudyRunLease(String studyId, LocalDate date, String runId, long startedOn,
+            long leaseExpiresOn) {
+        UpdateItemSpec updateItemSpec = new UpdateItemSpec()
+                .withPrimaryKey(KEY_STUDY_DATE, makeStudyDateKey(studyId, date))
+                .withUpdateExpression("SET #runId = :runId, #status = :running, #startedOn = :startedOn, " +
+                        "#leaseExpiresOn = :leaseExpiresOn, #updatedOn = :now")
+                .withConditionExpression("attribute_not_exists(#status) OR #status = :finished OR " +
+                        "#leaseExpiresOn < :now")
+                .withNameMap(new NameMap().with("#leaseExpiresOn", KEY_LEASE_EXPIRES_ON).with("#runId", KEY_RUN_ID)
+                        .with("#startedOn", KEY_STARTED_ON).with("#status", KEY_STATUS)
+                        .with("#updatedOn", KEY_UPDATED_ON))
+                .withValueMap(new ValueMap().withString(":finished", StudyRunStatus.FINISHED.name())
+                        .withLong(":leaseExpiresOn", leaseExpiresOn).withLong(":now", DateTime.now().getMillis())
+                        .withString(":runId", runId).withString(":running", StudyRunStatus.RUNNING.name())
+                        .withLong(":startedOn", startedOn));
+        return updateItemIfAllowed(ddbStudyRunTable, updateItemSpec);
+    }
+
+    /**
+     * Extends the run lease for the given study and date. Any node working on the run can renew the lease. Returns
+     * false if the run no longer holds the lease.
+     */
+    public boolean renewStudyRunLease(String studyId, LocalDate date, String runId, long leaseExpiresOn) {
+        UpdateItemSpec updateItemSpec = makeStudyRunLeaseUpdate(studyId, date, runId, StudyRunStatus.RUNNING,
+                leaseExpiresOn);
+        return updateItemIfAllowed(ddbStudyRunTable, updateItemSpec);
+    }
+
+    /**
+     * Releases the run lease for the given study and date, and marks the run as finished. Returns false if the run no
+     * longer holds the lease.
+     */
+    public boolean releaseStudyRunLease(String studyId, LocalDate date, String runId) {
+        UpdateItemSpec updateItemSpec = makeStudyRunLeaseUpdate(studyId, date, runId, StudyRunStatus.FINISHED,
+                DateTime.now().getMillis());
+        return updateItemIfAllowed(ddbStudyRunTable, updateItemSpec);
+    }
+
+    // Helper method to make an update to a run lease that the given run holds.
+    private static UpdateItemSpec makeStudyRunLeaseUpdate(String studyId, LocalDate date, String runId,
+            StudyRunStatus status, long leaseExpiresOn) {
+        return new UpdateItemSpec().withPrimaryKey(KEY_STUDY_DATE, makeStudyDateKey(studyId, date))
+                .withUpdateExpression("SET #status = :status, #leaseExpiresOn = :leaseExpiresOn, " +
+                        "#updatedOn = :now")
+                .withConditionExpression("#runId = :runId AND #status = :running")
+                .withNameMap(new NameMap().with("#leaseExpiresOn", KEY_LEASE_EXPIRES_ON).with("#runId", KEY_RUN_ID)
+                        .with("#status", KEY_STATUS).with("#updatedOn", KEY_UPDATED_ON))
+                .withValueMap(new ValueMap().withLong(":leaseExpiresOn", leaseExpiresOn)
+                        .withLong(":now", DateTime.now().getMillis()).withString(":runId", runId)
+                        .withString(":running", StudyRunStatus.RUNNING.name()).withString(":status", status.name()));
+    }
+
+    /** Gets the lease for the given work unit, or null if no worker has claimed the unit yet. */
+    public WorkUnitLease getWorkUnitLease(String runId, int unitIndex) {
+        GetItemSpec getItemSpec = new GetItemSpec().withPrimaryKey(KEY_RUN_ID, runId, KEY_UNIT_INDEX, unitIndex)
+                .withConsistentRead(true);
+        Item item = ddbWorkUnitTable.getItem(getItemSpec);
+        if (item == null) {
+            return null;
+        }
+
+        WorkUnitLease lease = new WorkUnitLease();
+        lease.setLeaseExpiresOn(item.getLong(KEY_LEASE_EXPIRES_ON));
+        lease.setOwnerId(item.getString(KEY_OWNER_ID));
+        lease.setRunId(item.getString(KEY_RUN_ID));
+        lease.setStatus(WorkUnitStatus.valueOf(item.getString(KEY_STATUS)));
+        lease.setUnitIndex(item.getInt(KEY_UNIT_INDEX));
+        return lease;
+    }
+
+    /**
+     * Claims the given work unit for the given owner, if no one has claimed it yet, or if the previous owner's lease
+     * has expired before the unit was finished. Returns true if the claim succeeded, false if another worker holds the
+     * unit or it's already finished.
+     */
+    public boolean claimWorkUnit(String runId, int unitIndex, String ownerId, long leaseExpiresOn) {
+        long now = DateTime.now().getMillis();
+        UpdateItemSpec updateItemSpec = makeWorkUnitUpdate(runId, unitIndex, ownerId, WorkUnitStatus.LEASED,
+                leaseExpiresOn, now)
+                .withConditionExpression("attribute_not_exists(#status) OR " +
+                        "(#status = :leased AND #leaseExpiresOn < :now)");
+        return updateItemIfAllowed(ddbWorkUnitTable, updateItemSpec);
+    }
+
+    /**
+     * Extends the owner's lease on the given work unit. Returns false if the owner no longer holds the lease, because
+     * another worker stole the unit after the lease expired.
+     */
+    public boolean renewWorkUnitLease(String runId, int unitIndex, String ownerId, long leaseExpiresOn) {
+        UpdateItemSpec updateItemSpec = makeWorkUnitUpdate(runId, unitIndex, ownerId, WorkUnitStatus.LEASED,
+                leaseExpiresOn, DateTime.now().getMillis())
+                .withConditionExpression("#ownerId = :ownerId AND #status = :leased");
+        return updateItemIfAllowed(ddbWorkUnitTable, updateItemSpec);
+    }
+
+    /**
+     * Marks the given work unit as finished. Returns false if the owner no longer holds the lease, in which case the
+     * worker that stole the unit finishes it instead.
+     */
+    public boolean finishWorkUnit(String runId, int unitIndex, String ownerId) {
+        long now = DateTime.now().getMillis();
+        UpdateItemSpec updateItemSpec = makeWorkUnitUpdate(runId, unitIndex, ownerId, WorkUnitStatus.FINISHED, now,
+                now).withConditionExpression("#ownerId = :ownerId AND #status = :leased");
+        return updateItemIfAllowed(ddbWorkUnitTable, updateItemSpec);
+    }
+
+    // Helper method to make the update for a work unit. All work unit updates write the same attributes, and only
+    // differ in their conditions. The value map includes the LEASED status and the current time for the conditions.
+    private static UpdateItemSpec makeWorkUnitUpdate(String runId, int unitIndex, String ownerId,
+            WorkUnitStatus status, long leaseExpiresOn, long now) {
+        return new UpdateItemSpec().withPrimaryKey(KEY_RUN_ID, runId, KEY_UNIT_INDEX, unitIndex)
+                .withUpdateExpression("SET #ownerId = :ownerId, #status = :status, " +
+                        "#leaseExpiresOn = :leaseExpiresOn, #updatedOn = :now")
+                .withNameMap(new NameMap().with("#leaseExpiresOn", KEY_LEASE_EXPIRES_ON)
+                        .with("#ownerId", KEY_OWNER_ID).with("#status", KEY_STATUS)
+                        .with("#updatedOn", KEY_UPDATED_ON))
+                .withValueMap(new ValueMap().withString(":leased", WorkUnitStatus.LEASED.name())
+                        .withLong(":leaseExpiresOn", leaseExpiresOn).withLong(":now", now)
+                        .withString(":ownerId", ownerId).withString(":status", status.name()));
+    }
+
+    // Helper method to apply a conditional update. Returns false if the condition failed.
+    private static boolean updateItemIfAllowed(Table table, UpdateItemSpec updateItemSpec) {
+        try {
+            table.updateItem(updateItemSpec);
+            return true;
+        } catch (ConditionalCheckFailedException ex) {
+            return false;
+        }
     }
 
     /** Writes the Notification Worker to the worker log, with the current timestamp and the given tag. */
@@ -0,0 +1,18 @@
+package org.sagebionetworks.bridge.notification.helper;
+
+import com.amazonaws.services.dynamodbv2.document.Index;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
+import org.springframework.stereotype.Component;
+
+/**
+ * Abstracts away DDB index query logic and typing. DDB's ItemCollection can't be mocked, so this allows DynamoHelper
+ * to be tested with a plain Iterable, the same as DynamoQueryHelper does for table queries.
+ */
+@Component
+public class DynamoIndexHelper {
+    /** Queries the given index with the given query spec. The returned Iterable makes additional calls as needed. */
+    public Iterable<Item> query(Index index, QuerySpec querySpec) {
+        return index.query(querySpec);
+    }
+}
@@ -0,0 +1,18 @@
+package org.sagebionetworks.bridge.notification.helper;
+
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.spec.ScanSpec;
+import org.springframework.stereotype.Component;
+
+/**
+ * Abstracts away DDB scan logic and typing. DDB's ItemCollection can't be mocked, so this allows DynamoHelper to be
+ * tested with a plain Iterable, the same as DynamoQueryHelper does for queries.
+ */
+@Component
+public class DynamoScanHelper {
+    /** Scans the given table with the given scan spec. The returned Iterable makes additional calls as needed. */
+    public Iterable<Item> scan(Table table, ScanSpec scanSpec) {
+        return table.scan(scanSpec);
+    }
+}
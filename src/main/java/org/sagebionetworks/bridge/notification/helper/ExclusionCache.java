@@ -0,0 +1,48 @@
+package org.sagebionetworks.bridge.notification.helper;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.notification.worker.ExclusionStage;
+
+/**
+ * Caches, for users who were excluded for a reason that rarely changes, the stage that excluded them. This is kept
+ * across runs, in a local file per study, so later runs can skip these users without calling Bridge.
+ */
+@Component
+public class ExclusionCache extends LocalCache<ExclusionStage> {
+    // Bump this if the value format or the set of cached stages changes. Old files are discarded. Version 1 cached
+    // data group exclusions.
+    private static final int CODEC_VERSION = 2;
+
+    private static final LocalSnapshotStore.Codec<ExclusionStage> CODEC =
+            new LocalSnapshotStore.Codec<ExclusionStage>() {
+        @Override
+        public int getVersion() {
+            return CODEC_VERSION;
+        }
+
+        @Override
+        public ExclusionStage read(DataInput in) throws IOException {
+            String stageName = in.readUTF();
+            try {
+                return ExclusionStage.valueOf(stageName);
+            } catch (IllegalArgumentException ex) {
+                throw new IOException("Unknown exclusion stage " + stageName, ex);
+            }
+        }
+
+        @Override
+        public void write(DataOutput out, ExclusionStage stage) throws IOException {
+            out.writeUTF(stage.name());
+        }
+    };
+
+    /** Constructs the cache. */
+    public ExclusionCache() {
+        super(".exclusions.bin", CODEC);
+    }
+}
@@ -0,0 +1,30 @@
+package org.sagebionetworks.bridge.notification.helper;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Shard queue that holds requests in memory, for tests and local runs. Callers poll the requests and pass them to the
+ * worker themselves. This class is thread-safe.
+ */
+public class InMemoryShardQueue implements ShardQueue {
+    private final Queue<JsonNode> requestQueue = new ConcurrentLinkedQueue<>();
+
+    /** {@inheritDoc} */
+    @Override
+    public void send(JsonNode request) {
+        requestQueue.add(request);
+    }
+
+    /** Removes and returns the oldest request in the queue, or null if the queue is empty. */
+    public JsonNode poll() {
+        return requestQueue.poll();
+    }
+
+    /** Number of requests in the queue. */
+    public int size() {
+        return requestQueue.size();
+    }
+}
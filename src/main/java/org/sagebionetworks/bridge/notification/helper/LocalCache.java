@@ -0,0 +1,108 @@
+package org.sagebionetworks.bridge.notification.helper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joda.time.DateTimeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Base class for caches of per-user data that is kept across runs, in a local file per study. Entries are invalidated
+ * when they're older than the max age, or when the caller's marker for the user changes. Subclasses provide the file
+ * name and the codec for their values.
+ */
+public abstract class LocalCache<V> {
+    private static final Logger LOG = LoggerFactory.getLogger(LocalCache.class);
+
+    // Default directory for the cache files. Package-scoped for unit tests.
+    static final File DEFAULT_CACHE_DIRECTORY = new File(System.getProperty("java.io.tmpdir"),
+            "bridge-notification-worker");
+
+    // Default number of days an entry can be used before we fetch the user's data again. Package-scoped for unit
+    // tests.
+    static final int DEFAULT_MAX_AGE_DAYS = 7;
+
+    private final LocalSnapshotStore.Codec<V> codec;
+    private final String fileSuffix;
+    private final AtomicLong numHits = new AtomicLong();
+    private final AtomicLong numMisses = new AtomicLong();
+    private final Map<String, LocalSnapshotStore<V>> storesByStudyId = new ConcurrentHashMap<>();
+
+    private File cacheDirectory = DEFAULT_CACHE_DIRECTORY;
+    private long maxAgeMillis = TimeUnit.DAYS.toMillis(DEFAULT_MAX_AGE_DAYS);
+
+    /** Constructs the cache. Each study's file is named with the study ID followed by the given suffix. */
+    protected LocalCache(String fileSuffix, LocalSnapshotStore.Codec<V> codec) {
+        this.codec = codec;
+        this.fileSuffix = fileSuffix;
+    }
+
+    /** Directory for the cache files. This should be on local disk. Defaults to a directory under java.io.tmpdir. */
+    public final void setCacheDirectory(File cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    /**
+     * Number of days an entry can be used before we fetch the user's data again. This bounds how long it takes to
+     * notice changes for a user whose marker hasn't changed.
+     */
+    public final void setMaxAgeDays(int maxAgeDays) {
+        if (maxAgeDays < 1) {
+            throw new IllegalArgumentException("maxAgeDays must be positive");
+        }
+        this.maxAgeMillis = TimeUnit.DAYS.toMillis(maxAgeDays);
+    }
+
+    /**
+     * Gets the cached value for the given user. Returns null if there is no entry, if the entry is older than the max
+     * age, or if the entry's marker doesn't match the given marker.
+     */
+    public V get(String studyId, String userId, long marker) {
+        LocalSnapshotStore.Entry<V> entry = getStore(studyId).get(userId);
+        long ageMillis = entry != null ? DateTimeUtils.currentTimeMillis() - entry.getStoredOn() : 0;
+        if (entry == null || entry.getMarker() != marker || ageMillis < 0 || ageMillis >= maxAgeMillis) {
+            numMisses.incrementAndGet();
+            return null;
+        }
+        numHits.incrementAndGet();
+        return entry.getValue();
+    }
+
+    /** Caches the value for the given user, with the given marker. */
+    public void put(String studyId, String userId, long marker, V value) {
+        getStore(studyId).put(userId, marker, DateTimeUtils.currentTimeMillis(), value);
+    }
+
+    /**
+     * Writes the given study's cache to disk, if it has changed. Errors are logged and swallowed, since the cache
+     * can always be rebuilt from Bridge.
+     */
+    public void save(String studyId) {
+        try {
+            getStore(studyId).save();
+        } catch (IOException | RuntimeException ex) {
+            LOG.error("Error saving " + fileSuffix + " cache for study " + studyId + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    /** Number of cache hits since the worker started. */
+    public long getNumHits() {
+        return numHits.get();
+    }
+
+    /** Number of cache misses since the worker started. */
+    public long getNumMisses() {
+        return numMisses.get();
+    }
+
+    // Helper method to get the store for the given study. The store's file is loaded the first time we see the study.
+    private LocalSnapshotStore<V> getStore(String studyId) {
+        return storesByStudyId.computeIfAbsent(studyId, key -> new LocalSnapshotStore<>(new File(cacheDirectory,
+                key + fileSuffix), codec));
+    }
+}
@@ -0,0 +1,183 @@
+package org.sagebionetworks.bridge.notification.helper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local on-disk store of per-user values, for data that rarely changes between runs. Each store is backed by a single
+ * file in a compact binary format. The whole file is loaded into memory when the store is created, and written back
+ * with {@link #save}. Each entry has a marker and the time it was stored, so callers can decide whether the entry is
+ * still valid. This class is thread-safe.
+ */
+public class LocalSnapshotStore<V> {
+    private static final Logger LOG = LoggerFactory.getLogger(LocalSnapshotStore.class);
+
+    // Identifies our files, so we don't try to read something else. Bump the version if the header changes.
+    private static final int FILE_MAGIC = 0x424e5753;
+    private static final int FILE_VERSION = 1;
+
+    /** Reads and writes values in the store's binary format. */
+    public interface Codec<V> {
+        /**
+         * Version of the value format. If this doesn't match the version in the file, the file is discarded, so
+         * changing the format doesn't require a migration.
+         */
+        int getVersion();
+
+        /** Reads a single value. */
+        V read(DataInput in) throws IOException;
+
+        /** Writes a single value. */
+        void write(DataOutput out, V value) throws IOException;
+    }
+
+    private final Codec<V> codec;
+    private final Map<String, Entry<V>> entriesByUserId = new ConcurrentHashMap<>();
+    private final File file;
+    private final AtomicBoolean modified = new AtomicBoolean();
+
+    /**
+     * Creates the store, backed by the given file, and loads the file if it exists. If the file can't be read, the
+     * store starts out empty.
+     */
+    public LocalSnapshotStore(File file, Codec<V> codec) {
+        this.codec = codec;
+        this.file = file;
+        if (file.exists()) {
+            try {
+                load();
+            } catch (IOException | RuntimeException ex) {
+                LOG.error("Error loading snapshot store " + file + ", starting empty: " + ex.getMessage(), ex);
+                entriesByUserId.clear();
+            }
+        }
+    }
+
+    // Helper method to load the file into memory.
+    private void load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION || in.readInt() != codec.getVersion()) {
+                LOG.info("Snapshot store " + file + " has an old format, starting empty");
+                return;
+            }
+
+            int numEntries = in.readInt();
+            for (int i = 0; i < numEntries; i++) {
+                String userId = in.readUTF();
+                long marker = in.readLong();
+                long storedOn = in.readLong();
+                V value = codec.read(in);
+                entriesByUserId.put(userId, new Entry<>(marker, storedOn, value));
+            }
+        }
+    }
+
+    /** Gets the entry for the given user, or null if there isn't one. */
+    public Entry<V> get(String userId) {
+        return entriesByUserId.get(userId);
+    }
+
+    /** Stores the value for the given user, replacing any previous entry. */
+    public void put(String userId, long marker, long storedOn, V value) {
+        entriesByUserId.put(userId, new Entry<>(marker, storedOn, value));
+        modified.set(true);
+    }
+
+    /** Removes the entry for the given user, if there is one. */
+    public void remove(String userId) {
+        if (entriesByUserId.remove(userId) != null) {
+            modified.set(true);
+        }
+    }
+
+    /** Number of entries in the store. */
+    public int size() {
+        return entriesByUserId.size();
+    }
+
+    /**
+     * Writes the store to disk, if it has changed since it was loaded or last saved. The file is written to a temp
+     * file and then moved into place, so a crash never leaves a partial file.
+     */
+    public synchronized void save() throws IOException {
+        if (!modified.getAndSet(false)) {
+            return;
+        }
+
+        File parentDir = file.getAbsoluteFile().getParentFile();
+        if (!parentDir.isDirectory() && !parentDir.mkdirs()) {
+            modified.set(true);
+            throw new IOException("Couldn't create directory " + parentDir);
+        }
+
+        File tempFile = new File(parentDir, file.getName() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+                    tempFile)))) {
+                // Snapshot the map, so the count matches the entries, even if another thread adds entries.
+                Map<String, Entry<V>> snapshot = new HashMap<>(entriesByUserId);
+                out.writeInt(FILE_MAGIC);
+                out.writeInt(FILE_VERSION);
+                out.writeInt(codec.getVersion());
+                out.writeInt(snapshot.size());
+                for (Map.Entry<String, Entry<V>> oneMapEntry : snapshot.entrySet()) {
+                    Entry<V> entry = oneMapEntry.getValue();
+                    out.writeUTF(oneMapEntry.getKey());
+                    out.writeLong(entry.getMarker());
+                    out.writeLong(entry.getStoredOn());
+                    codec.write(out, entry.getValue());
+                }
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException ex) {
+            modified.set(true);
+            throw ex;
+        }
+    }
+
+    /** A stored value, with the marker and time it was stored with. */
+    public static class Entry<V> {
+        private final long marker;
+        private final long storedOn;
+        private final V value;
+
+        private Entry(long marker, long storedOn, V value) {
+            this.marker = marker;
+            this.storedOn = storedOn;
+            this.value = value;
+        }
+
+        /** Marker the value was stored with. Callers use this to detect when the underlying data has changed. */
+        public long getMarker() {
+            return marker;
+        }
+
+        /** Time in epoch milliseconds that the value was stored. */
+        public long getStoredOn() {
+            return storedOn;
+        }
+
+        /** The stored value. */
+        public V getValue() {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package org.sagebionetworks.bridge.notification.helper;
+
+/**
+ * Chooses the page size for calls to Bridge's paginated APIs. A fixed PageSizer always returns the same page size. An
+ * adaptive PageSizer doubles the page size while full pages come back within the target latency, and halves it when
+ * pages are slower than the target or fail. PageSizer is thread-safe, so a single instance can be shared by every
+ * iterator that calls the same API.
+ */
+public class PageSizer {
+    private final int minPageSize;
+    private final int maxPageSize;
+    private final long targetLatencyMillis;
+
+    private int pageSize;
+
+    /** Creates a PageSizer that always returns the given page size. */
+    public static PageSizer fixed(int pageSize) {
+        return new PageSizer(pageSize, pageSize, pageSize, Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates a PageSizer that starts at the initial page size and adapts between the min and max page size, based on
+     * how long each page takes compared to the target latency.
+     */
+    public static PageSizer adaptive(int initialPageSize, int minPageSize, int maxPageSize,
+            long targetLatencyMillis) {
+        return new PageSizer(initialPageSize, minPageSize, maxPageSize, targetLatencyMillis);
+    }
+
+    private PageSizer(int initialPageSize, int minPageSize, int maxPageSize, long targetLatencyMillis) {
+        if (minPageSize < 1 || minPageSize > maxPageSize) {
+            throw new IllegalArgumentException("page size bounds must satisfy 1 <= min <= max");
+        }
+        if (initialPageSize < minPageSize || initialPageSize > maxPageSize) {
+            throw new IllegalArgumentException("initial page size must be between min and max");
+        }
+        this.minPageSize = minPageSize;
+        this.maxPageSize = maxPageSize;
+        this.targetLatencyMillis = targetLatencyMillis;
+        this.pageSize = initialPageSize;
+    }
+
+    /** The page size to use for the next call. This is also the page size the PageSizer has settled on so far. */
+    public synchronized int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Records a page that was requested with the given page size and came back with the given number of items after
+     * the given latency. We only grow after full pages, since a partial page means there was nothing more to get.
+     */
+    public synchronized void recordSuccess(int requestedPageSize, int numItems, long latencyMillis) {
+        if (latencyMillis > targetLatencyMillis) {
+            shrink(requestedPageSize);
+        } else if (numItems >= requestedPageSize) {
+            // Multiple threads may report pages requested with an older page size. Never grow past what this page
+            // justifies, and never shrink on a fast page.
+            pageSize = Math.max(pageSize, Math.min(maxPageSize, requestedPageSize * 2));
+        }
+    }
+
+    /** Records a page request with the given page size that failed. */
+    public synchronized void recordError(int requestedPageSize) {
+        shrink(requestedPageSize);
+    }
+
+    // Helper method to shrink the page size. Like growth, this is based on the page size that was requested.
+    private void shrink(int requestedPageSize) {
+        pageSize = Math.min(pageSize, Math.max(minPageSize, requestedPageSize / 2));
+    }
+}
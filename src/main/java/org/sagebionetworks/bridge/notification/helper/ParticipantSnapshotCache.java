@@ -0,0 +1,98 @@
+package org.sagebionetworks.bridge.notification.helper;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.notification.worker.ParticipantSnapshot;
+
+/**
+ * Caches a snapshot of each participant's eligibility fields across runs, in a local file per study. Most participants
+ * don't change from one day to the next, so most runs can skip downloading the full participant from Bridge.
+ */
+@Component
+public class ParticipantSnapshotCache extends LocalCache<ParticipantSnapshot> {
+    // Bump this if the value format changes. Old files are discarded.
+    private static final int CODEC_VERSION = 1;
+
+    // Encoding for phoneVerified, which can be null.
+    private static final byte PHONE_VERIFIED_NULL = -1;
+    private static final byte PHONE_VERIFIED_FALSE = 0;
+    private static final byte PHONE_VERIFIED_TRUE = 1;
+
+    private static final LocalSnapshotStore.Codec<ParticipantSnapshot> CODEC =
+            new LocalSnapshotStore.Codec<ParticipantSnapshot>() {
+        @Override
+        public int getVersion() {
+            return CODEC_VERSION;
+        }
+
+        @Override
+        public ParticipantSnapshot read(DataInput in) throws IOException {
+            ParticipantSnapshot snapshot = new ParticipantSnapshot();
+            snapshot.setConsentedSubpopulationGuidSet(readStrings(in, new HashSet<>()));
+            snapshot.setDataGroupList(readStrings(in, new ArrayList<>()));
+
+            byte phoneVerified = in.readByte();
+            snapshot.setPhoneVerified(phoneVerified == PHONE_VERIFIED_NULL ? null :
+                    phoneVerified == PHONE_VERIFIED_TRUE);
+
+            if (in.readBoolean()) {
+                snapshot.setTimeZone(in.readUTF());
+            }
+            return snapshot;
+        }
+
+        @Override
+        public void write(DataOutput out, ParticipantSnapshot snapshot) throws IOException {
+            writeStrings(out, snapshot.getConsentedSubpopulationGuidSet());
+            writeStrings(out, snapshot.getDataGroupList());
+
+            Boolean phoneVerified = snapshot.getPhoneVerified();
+            out.writeByte(phoneVerified == null ? PHONE_VERIFIED_NULL : phoneVerified ? PHONE_VERIFIED_TRUE :
+                    PHONE_VERIFIED_FALSE);
+
+            String timeZone = snapshot.getTimeZone();
+            out.writeBoolean(timeZone != null);
+            if (timeZone != null) {
+                out.writeUTF(timeZone);
+            }
+        }
+    };
+
+    /** Constructs the cache. */
+    public ParticipantSnapshotCache() {
+        super(".participants.bin", CODEC);
+    }
+
+    // Helper method to read a collection of strings, written by writeStrings(). Returns null if the collection was
+    // null.
+    private static <C extends Collection<String>> C readStrings(DataInput in, C collection) throws IOException {
+        int size = in.readInt();
+        if (size < 0) {
+            return null;
+        }
+        for (int i = 0; i < size; i++) {
+            collection.add(in.readUTF());
+        }
+        return collection;
+    }
+
+    // Helper method to write a collection of strings, as the size followed by each string. Null is written as a size
+    // of -1.
+    private static void writeStrings(DataOutput out, Collection<String> collection) throws IOException {
+        if (collection == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(collection.size());
+        for (String oneString : collection) {
+            out.writeUTF(oneString);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package org.sagebionetworks.bridge.notification.helper;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Queue for the shard requests of a sharded run. Each request is picked up by whichever worker node polls it next, so
+ * a large study is processed by every node in parallel.
+ */
+public interface ShardQueue {
+    /** Sends the given shard request to the queue. */
+    void send(JsonNode request);
+}
@@ -0,0 +1,22 @@
+package org.sagebionetworks.bridge.notification.helper;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/** Shard queue backed by SQS. This is normally the same queue the worker polls for requests. */
+public class SqsShardQueue implements ShardQueue {
+    private final AmazonSQS sqsClient;
+    private final String queueUrl;
+
+    /** Constructs a shard queue that sends requests to the given SQS queue. */
+    public SqsShardQueue(AmazonSQS sqsClient, String queueUrl) {
+        this.sqsClient = sqsClient;
+        this.queueUrl = queueUrl;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void send(JsonNode request) {
+        sqsClient.sendMessage(queueUrl, request.toString());
+    }
+}
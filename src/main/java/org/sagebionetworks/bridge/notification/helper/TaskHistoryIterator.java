@@ -2,7 +2,9 @@ package org.sagebionetworks.bridge.notification.helper;
 
 import java.io.IOException;
 import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
 
+import com.google.common.base.Stopwatch;
 import org.joda.time.DateTime;
 
 import org.sagebionetworks.bridge.rest.ClientManager;
@@ -10,9 +12,12 @@ import org.sagebionetworks.bridge.rest.api.ForWorkersApi;
 import org.sagebionetworks.bridge.rest.model.ForwardCursorScheduledActivityList;
 import org.sagebionetworks.bridge.rest.model.ScheduledActivity;
 
-/** Helper class that abstracts away Bridge's paginated API and uses an iterator instead. */
+/**
+ * Helper class that abstracts away Bridge's paginated API and uses an iterator instead. Page sizes come from a
+ * {@link PageSizer}, which may adapt to Bridge's latency.
+ */
 public class TaskHistoryIterator implements Iterator<ScheduledActivity> {
-    // Package-scoped for unit tests
+    // Default page size, if no PageSizer is specified. Package-scoped for unit tests
     static final int PAGE_SIZE = 10;
 
     // Instance invariants
@@ -22,6 +27,7 @@ public class TaskHistoryIterator implements Iterator<ScheduledActivity> {
     private final String taskId;
     private final DateTime scheduledOnStart;
     private final DateTime scheduledOnEnd;
+    private final PageSizer pageSizer;
 
     // Instance state tracking
     private ForwardCursorScheduledActivityList taskList;
@@ -33,12 +39,22 @@ public class TaskHistoryIterator implements Iterator<ScheduledActivity> {
      */
     public TaskHistoryIterator(ClientManager clientManager, String studyId, String userId, String taskId,
             DateTime scheduledOnStart, DateTime scheduledOnEnd) {
+        this(clientManager, studyId, userId, taskId, scheduledOnStart, scheduledOnEnd, PageSizer.fixed(PAGE_SIZE));
+    }
+
+    /**
+     * Constructs a TaskHistoryIterator for the given Bridge client, study, user, task ID, and schedule bounds, which
+     * gets its page sizes from the given PageSizer. This kicks off requests to load the first page.
+     */
+    public TaskHistoryIterator(ClientManager clientManager, String studyId, String userId, String taskId,
+            DateTime scheduledOnStart, DateTime scheduledOnEnd, PageSizer pageSizer) {
         this.clientManager = clientManager;
         this.studyId = studyId;
         this.userId = userId;
         this.taskId = taskId;
         this.scheduledOnStart = scheduledOnStart;
         this.scheduledOnEnd = scheduledOnEnd;
+        this.pageSizer = pageSizer;
 
         // Load first page. Pass in null offsetKey to get the first page.
         loadNextPage(null);
@@ -47,15 +63,19 @@ public class TaskHistoryIterator implements Iterator<ScheduledActivity> {
     // Helper method to load the next page of tasks.
     private void loadNextPage(String offsetKey) {
         // Call server for the next page.
+        int pageSize = pageSizer.getPageSize();
+        Stopwatch stopwatch = Stopwatch.createStarted();
         try {
             taskList = clientManager.getClient(ForWorkersApi.class).getParticipantTaskHistory(studyId, userId, taskId,
-            scheduledOnStart, scheduledOnEnd, offsetKey, PAGE_SIZE).execute().body();
+            scheduledOnStart, scheduledOnEnd, offsetKey, pageSize).execute().body();
         } catch (IOException ex) {
             // Iterator can't throw exceptions. Wrap in a RuntimeException.
+            pageSizer.recordError(pageSize);
             throw new RuntimeException("Error getting next page for study=" + studyId + ", user=" + userId +
                     ", task=" + taskId + ", start=" + scheduledOnStart + ", end=" + scheduledOnEnd + ": " +
                     ex.getMessage(), ex);
         }
+        pageSizer.recordSuccess(pageSize, taskList.getItems().size(), stopwatch.elapsed(TimeUnit.MILLISECONDS));
 
         // Reset nextIndex.
         nextIndex = 0;
@@ -67,8 +87,8 @@ public class TaskHistoryIterator implements Iterator<ScheduledActivity> {
         return hasNextItemInPage() || hasNextPage();
     }
 
-    // Helper method to determine if there are additional items in this page.
-    private boolean hasNextItemInPage() {
+    /** Returns true if the next item is already loaded, meaning that next() won't call the server. */
+    public boolean hasNextItemInPage() {
         return nextIndex < taskList.getItems().size();
     }
 
@@ -0,0 +1,124 @@
+package org.sagebionetworks.bridge.notification.helper;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.notification.worker.WorkerConfig;
+
+/**
+ * Caches notification configs by study ID. Entries are refreshed in the background once they're older than the
+ * refresh interval, so callers keep getting the old config while the new one loads, instead of blocking on DDB.
+ * Concurrent requests for the same study share a single load.
+ */
+@Component
+public class WorkerConfigCache {
+    private static final Logger LOG = LoggerFactory.getLogger(WorkerConfigCache.class);
+
+    // Configs older than this are reloaded in the background. Package-scoped for unit tests.
+    static final long REFRESH_AFTER_WRITE_MINUTES = 5;
+
+    // If a config hasn't been loaded successfully in this long (eg, background reloads keep failing), callers block
+    // on a fresh load rather than using a very stale config. Package-scoped for unit tests.
+    static final long EXPIRE_AFTER_WRITE_MINUTES = 60;
+
+    private final LoadingCache<String, WorkerConfig> cache;
+
+    private ExecutorService backgroundExecutor;
+    private DynamoHelper dynamoHelper;
+
+    /** Constructs the cache. */
+    public WorkerConfigCache() {
+        this(Ticker.systemTicker());
+    }
+
+    // Constructs the cache with the given ticker. Package-scoped so unit tests can control time.
+    WorkerConfigCache(Ticker ticker) {
+        // Reloads run on the background executor. This is looked up when the reload runs, since it's injected after
+        // construction.
+        CacheLoader<String, WorkerConfig> loader = CacheLoader.asyncReloading(CacheLoader.from(this::loadConfig),
+                runnable -> backgroundExecutor.execute(runnable));
+        cache = CacheBuilder.newBuilder().ticker(ticker).recordStats()
+                .refreshAfterWrite(REFRESH_AFTER_WRITE_MINUTES, TimeUnit.MINUTES)
+                .expireAfterWrite(EXPIRE_AFTER_WRITE_MINUTES, TimeUnit.MINUTES).build(loader);
+    }
+
+    /** Executor used to reload configs in the background. */
+    @Resource(name = "notificationWorkerBackgroundExecutor")
+    public final void setBackgroundExecutor(ExecutorService backgroundExecutor) {
+        this.backgroundExecutor = backgroundExecutor;
+    }
+
+    /** DynamoDB Helper, used to load the configs. */
+    @Autowired
+    public final void setDynamoHelper(DynamoHelper dynamoHelper) {
+        this.dynamoHelper = dynamoHelper;
+    }
+
+    /**
+     * Loads the configs for all studies into the cache. This is called on startup, so the first request for each
+     * study doesn't need to wait for DDB. Errors are logged and swallowed, since configs can still be loaded on
+     * demand.
+     */
+    @PostConstruct
+    public void preload() {
+        try {
+            Map<String, WorkerConfig> configsByStudyId = dynamoHelper.getAllNotificationConfigs();
+            cache.putAll(configsByStudyId);
+            LOG.info("Preloaded notification configs for " + configsByStudyId.size() + " studies");
+        } catch (RuntimeException ex) {
+            LOG.error("Error preloading notification configs: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Gets the notification config for the given study. Returns the cached config if present, triggering a
+     * background reload if the config is due for a refresh. Otherwise, loads the config from DDB.
+     */
+    public WorkerConfig getConfig(String studyId) {
+        try {
+            return cache.getUnchecked(studyId);
+        } catch (UncheckedExecutionException ex) {
+            // Unwrap the loader's exception, so callers see the same exceptions as calling DDB directly.
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw ex;
+        }
+    }
+
+    /** Removes the given study's config from the cache. The next call to getConfig() loads it from DDB. */
+    public void invalidate(String studyId) {
+        cache.invalidate(studyId);
+    }
+
+    /** Removes all configs from the cache. */
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /** Cache hit, miss, and load latency stats, since the worker started. */
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    // Helper method to load a config from DDB. Loads are rare (once per study per refresh interval), so log each one.
+    private WorkerConfig loadConfig(String studyId) {
+        LOG.info("Loading notification config for study " + studyId);
+        return dynamoHelper.getNotificationConfigForStudy(studyId);
+    }
+}
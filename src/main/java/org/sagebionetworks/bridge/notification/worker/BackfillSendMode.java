@@ -0,0 +1,13 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+/** Which dates of a backfill request actually send notifications. */
+public enum BackfillSendMode {
+    /** Don't send anything. Every date is a dry run, which only logs the notifications we would have sent. */
+    NONE,
+
+    /**
+     * Only send notifications for the last date of the backfill. Earlier dates are dry runs, since it's too late to
+     * send their notifications.
+     */
+    LATEST,
+}
@@ -1,27 +1,46 @@
 package org.sagebionetworks.bridge.notification.worker;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.base.Charsets;
 import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.common.util.concurrent.RateLimiter;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
+import org.joda.time.Days;
 import org.joda.time.LocalDate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import org.sagebionetworks.bridge.notification.helper.ActivityEventCache;
 import org.sagebionetworks.bridge.notification.helper.BridgeHelper;
 import org.sagebionetworks.bridge.notification.helper.DynamoHelper;
+import org.sagebionetworks.bridge.notification.helper.ExclusionCache;
+import org.sagebionetworks.bridge.notification.helper.ParticipantSnapshotCache;
+import org.sagebionetworks.bridge.notification.helper.TaskHistoryIterator;
+import org.sagebionetworks.bridge.notification.helper.WorkerConfigCache;
 import org.sagebionetworks.bridge.rest.model.AccountSummary;
 import org.sagebionetworks.bridge.rest.model.ActivityEvent;
 import org.sagebionetworks.bridge.rest.model.ScheduleStatus;
@@ -40,16 +59,57 @@ public class BridgeNotificationWorkerProcessor implements ThrowingConsumer<JsonN
     // If there are a lot of users, write log messages regularly so we know the worker is still running.
     private static final int REPORTING_INTERVAL = 250;
 
-    private static final int MIN_TIMEZONE_OFFSET_MILLIS = -11 * 60 * 60 * 1000;
-    private static final int MAX_TIMEZONE_OFFSET_MILLIS = -1 * 60 * 60 * 1000;
-    static final String REQUEST_PARAM_DATE = "date";
-    static final String REQUEST_PARAM_STUDY_ID = "studyId";
-    static final String REQUEST_PARAM_TAG = "tag";
+    // Default number of users we process in parallel.
+    static final int DEFAULT_NUM_THREADS = 4;
 
-    private final RateLimiter perUserRateLimiter = RateLimiter.create(1.0);
+    // Default rate limit for each thread, in users per second. This is the rate the worker had when it processed one
+    // user at a time, so each thread calls Bridge at that rate. Package-scoped for unit tests.
+    static final double DEFAULT_PER_THREAD_RATE_LIMIT = 1.0;
 
+    // Default number of days a burst calendar entry can be used before we recompute it from the user's activity
+    // events. Package-scoped for unit tests.
+    static final int DEFAULT_BURST_CALENDAR_MAX_AGE_DAYS = 7;
+
+    // Default number of users between run checkpoints. Package-scoped for unit tests.
+    static final int DEFAULT_RUN_CHECKPOINT_INTERVAL = 250;
+
+    // Run checkpoints older than this are ignored, so a request that's sent again on purpose (rather than redelivered
+    // because the worker died) starts from the beginning. Package-scoped for unit tests.
+    static final int RUN_CHECKPOINT_MAX_AGE_HOURS = 24;
+
+    // Stages that only use the participant snapshot's eligibility fields.
+    private static final Set<ExclusionStage> SNAPSHOT_STAGE_SET = Sets.immutableEnumSet(ExclusionStage.PHONE_VERIFIED,
+            ExclusionStage.TIME_ZONE, ExclusionStage.CONSENT, ExclusionStage.DATA_GROUPS);
+
+    private final RateLimiter perUserRateLimiter = RateLimiter.create(DEFAULT_NUM_THREADS *
+            DEFAULT_PER_THREAD_RATE_LIMIT);
+
+    private ActivityEventCache activityEventCache;
+    private boolean activityEventCacheEnabled = false;
     private BridgeHelper bridgeHelper;
+    private boolean conditionalNotificationLogEnabled = false;
+    private boolean burstAdherenceRecordEnabled = false;
+    private boolean burstCalendarEnabled = false;
+    private int burstCalendarMaxAgeDays = DEFAULT_BURST_CALENDAR_MAX_AGE_DAYS;
     private DynamoHelper dynamoHelper;
+    private ExclusionCache exclusionCache;
+    private boolean exclusionCacheEnabled = false;
+    private int numThreads = DEFAULT_NUM_THREADS;
+    private double perThreadRateLimit = DEFAULT_PER_THREAD_RATE_LIMIT;
+    private ParticipantSnapshotCache participantSnapshotCache;
+    private boolean participantSnapshotCacheEnabled = false;
+    private boolean recentNotificationIndexEnabled = false;
+    private boolean runCheckpointEnabled = false;
+    private boolean runLedgerEnabled = false;
+    private int runCheckpointInterval = DEFAULT_RUN_CHECKPOINT_INTERVAL;
+    private RunOrchestrator runOrchestrator;
+    private WorkerConfigCache workerConfigCache;
+
+    /** Local cache of each user's burst start activity events. */
+    @Autowired
+    public final void setActivityEventCache(ActivityEventCache activityEventCache) {
+        this.activityEventCache = activityEventCache;
+    }
 
     /** Bridge helper. */
     @Autowired
@@ -63,217 +123,1015 @@ public class BridgeNotificationWorkerProcessor implements ThrowingConsumer<JsonN
         this.dynamoHelper = dynamoHelper;
     }
 
-    /** Set rate limit, in users per second. This is primarily to allow unit tests to run without being throttled. */
-    public final void setPerUserRateLimit(double rate) {
-        perUserRateLimiter.setRate(rate);
+    /** Local cache of users who were excluded for a reason that rarely changes. */
+    @Autowired
+    public final void setExclusionCache(ExclusionCache exclusionCache) {
+        this.exclusionCache = exclusionCache;
+    }
+
+    /** Local cache of each participant's eligibility fields. */
+    @Autowired
+    public final void setParticipantSnapshotCache(ParticipantSnapshotCache participantSnapshotCache) {
+        this.participantSnapshotCache = participantSnapshotCache;
+    }
+
+    /** Decides how each request's run is split up, and who finishes it. */
+    @Autowired
+    public final void setRunOrchestrator(RunOrchestrator runOrchestrator) {
+        this.runOrchestrator = runOrchestrator;
+    }
+
+    /** Cache for the study's notification config. */
+    @Autowired
+    public final void setWorkerConfigCache(WorkerConfigCache workerConfigCache) {
+        this.workerConfigCache = workerConfigCache;
+    }
+
+    /**
+     * Number of users to process in parallel. This also bounds the number of users in flight, so we never read more
+     * of the roster than we can process. The per-user rate limit is shared across all threads, and scales with the
+     * number of threads, so each thread gets the per-thread rate.
+     */
+    @Value("${notification.worker.numThreads:" + DEFAULT_NUM_THREADS + "}")
+    public final void setNumThreads(int numThreads) {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("numThreads must be positive");
+        }
+        this.numThreads = numThreads;
+        updatePerUserRateLimit();
+    }
+
+    /**
+     * If true, each run loads the study's recent notifications from the notification log's study index up front,
+     * instead of querying the notification log once per user. This is cheaper for studies with many eligible users.
+     * The index only has notifications logged with a study ID, so only turn this on once every notification in the
+     * last burst duration was logged by a worker that records the study ID. Defaults to false.
+     */
+    @Value("${notification.worker.recentNotificationIndexEnabled:false}")
+    public final void setRecentNotificationIndexEnabled(boolean recentNotificationIndexEnabled) {
+        this.recentNotificationIndexEnabled = recentNotificationIndexEnabled;
+    }
+
+    /**
+     * If true, each user's burst start activity events are cached locally across runs, and we only call Bridge when
+     * the cached events are too old or the user's account summary has changed. Events are only cached once the user
+     * has every burst start event, so a user who is still waiting for a burst start event is checked every run. An
+     * event that is already set and then moved isn't seen until the cached events are too old (see
+     * {@link ActivityEventCache}). Defaults to false.
+     */
+    @Value("${notification.worker.activityEventCacheEnabled:false}")
+    public final void setActivityEventCacheEnabled(boolean activityEventCacheEnabled) {
+        this.activityEventCacheEnabled = activityEventCacheEnabled;
+    }
+
+    /**
+     * If true, users who are excluded for a reason that rarely changes (time zone outside the allowed window, or
+     * withdrawn consent) are remembered locally across runs. Later runs skip them without calling Bridge, until their
+     * account summary or the study's eligibility config changes, or the entry is older than the cache's max age. Data
+     * group exclusions aren't cached, since data group changes don't change the account summary. Defaults to false.
+     */
+    @Value("${notification.worker.exclusionCacheEnabled:false}")
+    public final void setExclusionCacheEnabled(boolean exclusionCacheEnabled) {
+        this.exclusionCacheEnabled = exclusionCacheEnabled;
+    }
+
+    /**
+     * If true, a snapshot of each participant's eligibility fields is cached locally across runs, and the exclusion
+     * stages use the snapshot instead of fetching the participant, unless the snapshot is too old or the user's
+     * account summary has changed. Changes like verifying a phone or signing a consent don't change the account
+     * summary, so only snapshots that pass the phone, time zone, consent, and data group stages are cached, and users
+     * who fail those stages on a cached snapshot are fetched fresh and checked again. Users who pass every stage are
+     * also fetched fresh before they're notified. Defaults to false.
+     */
+    @Value("${notification.worker.participantSnapshotCacheEnabled:false}")
+    public final void setParticipantSnapshotCacheEnabled(boolean participantSnapshotCacheEnabled) {
+        this.participantSnapshotCacheEnabled = participantSnapshotCacheEnabled;
+    }
+
+    /**
+     * If true, we keep a record of each user's adherence to their current burst, for the days of the burst that are
+     * over. Each run then only reads task history for the days after the ones in the record. Defaults to false.
+     */
+    @Value("${notification.worker.burstAdherenceRecordEnabled:false}")
+    public final void setBurstAdherenceRecordEnabled(boolean burstAdherenceRecordEnabled) {
+        this.burstAdherenceRecordEnabled = burstAdherenceRecordEnabled;
+    }
+
+    /**
+     * If true, each run loads the study's burst calendar up front, and skips users who are nowhere near a burst
+     * without calling Bridge. Users without an up-to-date entry are processed normally, and their entries are written
+     * at the end of processing. Defaults to false.
+     */
+    @Value("${notification.worker.burstCalendarEnabled:false}")
+    public final void setBurstCalendarEnabled(boolean burstCalendarEnabled) {
+        this.burstCalendarEnabled = burstCalendarEnabled;
+    }
+
+    /**
+     * Number of days a burst calendar entry can be used before we recompute it. This bounds how long it takes to
+     * notice new burst events for a user who already has an entry.
+     */
+    @Value("${notification.worker.burstCalendarMaxAgeDays:" + DEFAULT_BURST_CALENDAR_MAX_AGE_DAYS + "}")
+    public final void setBurstCalendarMaxAgeDays(int burstCalendarMaxAgeDays) {
+        if (burstCalendarMaxAgeDays < 1) {
+            throw new IllegalArgumentException("burstCalendarMaxAgeDays must be positive");
+        }
+        this.burstCalendarMaxAgeDays = burstCalendarMaxAgeDays;
+    }
+
+    /**
+     * If true, each run periodically writes a checkpoint with how far it got through the study's users. If the worker
+     * dies and the request is redelivered, the run resumes from the last checkpoint instead of starting over. This
+     * relies on Bridge returning the study's users in a stable order. Defaults to false.
+     */
+    @Value("${notification.worker.runCheckpointEnabled:false}")
+    public final void setRunCheckpointEnabled(boolean runCheckpointEnabled) {
+        this.runCheckpointEnabled = runCheckpointEnabled;
+    }
+
+    /**
+     * Number of users between run checkpoints. Each checkpoint waits for buffered notification log writes, so that a
+     * resumed run never skips a user whose notification wasn't logged.
+     */
+    @Value("${notification.worker.runCheckpointInterval:" + DEFAULT_RUN_CHECKPOINT_INTERVAL + "}")
+    public final void setRunCheckpointInterval(int runCheckpointInterval) {
+        if (runCheckpointInterval < 1) {
+            throw new IllegalArgumentException("runCheckpointInterval must be positive");
+        }
+        this.runCheckpointInterval = runCheckpointInterval;
+    }
+
+    /**
+     * If true, each run records the users it has handled in a ledger shared by all runs for the same study and date.
+     * A duplicate request skips those users without calling Bridge, and a user is never notified more than once for
+     * the same study and date. Users that fail with an error are recorded too, and can be reprocessed by sending the
+     * same request with retryFailedUsers set to true. Defaults to false.
+     */
+    @Value("${notification.worker.runLedgerEnabled:false}")
+    public final void setRunLedgerEnabled(boolean runLedgerEnabled) {
+        this.runLedgerEnabled = runLedgerEnabled;
+    }
+
+    /**
+     * True if notifications are written to the notification log with a conditional write before they're sent. Every
+     * node in a run records notifications at the run's start time, so if two nodes evaluate the same user in the same
+     * run, only one of them sends the notification. Requires the study run lease, which pins the run's start time and
+     * keeps different runs for the same study and date from overlapping. Defaults to false.
+     * <p>
+     * Because notifications are recorded at the run's start time rather than when they're sent, the recent
+     * notification window (burstDurationDays) is measured from the start of the run. For a long run, the window ends
+     * up to the run's length earlier than it would otherwise.
+     */
+    @Value("${notification.worker.conditionalNotificationLogEnabled:false}")
+    public final void setConditionalNotificationLogEnabled(boolean conditionalNotificationLogEnabled) {
+        this.conditionalNotificationLogEnabled = conditionalNotificationLogEnabled;
+    }
+
+    /**
+     * Rate limit for each thread, in users per second. The worker processes up to this rate times the number of
+     * threads users per second in total. For example, the defaults of 4 threads at 1 user per second each process a
+     * 50k user study in about 3.5 hours. Raise this or the number of threads to go faster, as long as Bridge can take
+     * the load.
+     */
+    @Value("${notification.worker.perThreadRateLimit:" + DEFAULT_PER_THREAD_RATE_LIMIT + "}")
+    public final void setPerThreadRateLimit(double perThreadRateLimit) {
+        if (perThreadRateLimit <= 0.0) {
+            throw new IllegalArgumentException("perThreadRateLimit must be positive");
+        }
+        this.perThreadRateLimit = perThreadRateLimit;
+        updatePerUserRateLimit();
+    }
+
+    // Helper method to set the shared rate limit from the number of threads and the per-thread rate.
+    private void updatePerUserRateLimit() {
+        perUserRateLimiter.setRate(numThreads * perThreadRateLimit);
+    }
+
+    // Total rate limit shared by all threads, in users per second. Package-scoped for unit tests.
+    double getPerUserRateLimit() {
+        return perUserRateLimiter.getRate();
     }
 
     /** Main entry point into the Notification Worker. */
     @Override
     public void accept(JsonNode jsonNode) throws PollSqsWorkerBadRequestException {
+        // Conditional notification log writes only catch duplicates if every node in the run uses the same
+        // notification time, which the study run lease guarantees.
+        if (conditionalNotificationLogEnabled && !runOrchestrator.isStudyRunLeaseEnabled()) {
+            throw new IllegalStateException("Conditional notification log writes require the study run lease");
+        }
+
         // Get request args
-        // studyId
-        JsonNode studyIdNode = jsonNode.get(REQUEST_PARAM_STUDY_ID);
-        if (studyIdNode == null || studyIdNode.isNull()) {
-            throw new PollSqsWorkerBadRequestException("studyId must be specified");
+        RunRequest request = RunRequest.parse(jsonNode);
+        if (request.isRetryFailedUsers() && !runLedgerEnabled) {
+            throw new PollSqsWorkerBadRequestException("retryFailedUsers requires the run ledger to be enabled");
         }
-        if (!studyIdNode.isTextual()) {
-            throw new PollSqsWorkerBadRequestException("studyId must be a string");
+        String studyId = request.getStudyId();
+        LocalDate date = request.getDate();
+        LOG.info("Received request for " + request);
+
+        // Resolve the study's config once for the whole run. This way, every user sees the same config, even if the
+        // config changes in the middle of the run. If the config is missing or invalid, retrying won't help.
+        CompiledWorkerConfig workerConfig;
+        try {
+            workerConfig = CompiledWorkerConfig.compile(workerConfigCache.getConfig(studyId));
+        } catch (IllegalArgumentException ex) {
+            throw new PollSqsWorkerBadRequestException("Invalid notification config for study " + studyId + ": " +
+                    ex.getMessage());
         }
-        String studyId = studyIdNode.textValue();
 
-        // date
-        JsonNode dateNode = jsonNode.get(REQUEST_PARAM_DATE);
-        if (dateNode == null || dateNode.isNull()) {
-            throw new PollSqsWorkerBadRequestException("date must be specified");
+        // Only one run processes a study and date at a time. Shards and work-stealing workers are part of a run that
+        // already holds the lease, so they only renew it.
+        Long runStartedOn = request.getRunStartedOn();
+        long runNotificationTime = runStartedOn != null ? runStartedOn : DateUtils.getCurrentMillisFromEpoch();
+        StudyRunLeaseKeeper studyRunLeaseKeeper = runOrchestrator.makeStudyRunLeaseKeeper(request);
+        if (studyRunLeaseKeeper != null && request.isRunStart()) {
+            if (!runOrchestrator.acquireStudyRunLease(studyRunLeaseKeeper)) {
+                LOG.info("Run " + request.getRunId() + " already finished, dropping duplicate request");
+                return;
+            }
+            runNotificationTime = studyRunLeaseKeeper.getStartedOn();
         }
-        if (!dateNode.isTextual()) {
-            throw new PollSqsWorkerBadRequestException("date must be a string");
+
+        // If the study is too big for one request, split the run into shards, and let the shards do the work. The
+        // shards renew the lease, and the last one to finish releases it.
+        if (runOrchestrator.startShardedRun(request, (ObjectNode) jsonNode, runNotificationTime)) {
+            return;
+        }
+        LocalDate backfillStartDate = request.getBackfillStartDate();
+        Map<String, UserNotification> recentNotificationsByUserId = null;
+        if (recentNotificationIndexEnabled) {
+            int numBackfillDays = backfillStartDate != null ? Days.daysBetween(backfillStartDate, date).getDays() : 0;
+            recentNotificationsByUserId = loadRecentNotifications(studyId, workerConfig, numBackfillDays);
+        }
+        Map<String, BurstCalendarEntry> burstCalendarByUserId = null;
+        if (burstCalendarEnabled) {
+            burstCalendarByUserId = loadBurstCalendar(studyId);
+        }
+        RunContext.Builder runContextBuilder = new RunContext.Builder().withStudyId(studyId)
+                .withWorkerConfig(workerConfig).withRecentNotificationsByUserId(recentNotificationsByUserId)
+                .withBurstCalendarByUserId(burstCalendarByUserId).withNotificationTime(runNotificationTime);
+        RunContext runContext = runContextBuilder.withDate(date).build();
+
+        // A backfill has a context for each date, ending with the request's date. They all share the config and
+        // indexes we loaded above.
+        boolean backfillSendLatest = request.getBackfillSendMode() == BackfillSendMode.LATEST;
+        List<RunContext> backfillRunContextList = null;
+        if (backfillStartDate != null) {
+            backfillRunContextList = new ArrayList<>();
+            for (LocalDate oneDate = backfillStartDate; oneDate.isBefore(date); oneDate = oneDate.plusDays(1)) {
+                backfillRunContextList.add(runContextBuilder.withDate(oneDate).build());
+            }
+            backfillRunContextList.add(runContext);
         }
 
-        String dateString = dateNode.textValue();
-        LocalDate date;
-        try {
-            date = LocalDate.parse(dateString);
-        } catch (IllegalArgumentException ex) {
-            throw new PollSqsWorkerBadRequestException("date must be in the format YYYY-MM-DD");
+        // A retry only processes the users that failed in earlier runs for this study and date. If we can't load the
+        // ledger, we don't know who they are, so let the error propagate and the request be redelivered.
+        List<String> targetUserIdList = request.getTargetUserIdList();
+        Map<String, RunLedgerStatus> runLedger = null;
+        if (request.isRetryFailedUsers()) {
+            targetUserIdList = getFailedUserIds(dynamoHelper.getRunLedger(studyId, date));
+            LOG.info("Retrying " + targetUserIdList.size() + " failed users for study " + studyId + " and date " +
+                    request.getDateString());
+        } else if (runLedgerEnabled && backfillStartDate == null) {
+            // Backfills evaluate every user for the earlier dates, even users the ledger says were handled for the
+            // request's date. Notifications are still claimed in the ledger, so this never notifies a user twice.
+            runLedger = loadRunLedger(studyId, date);
         }
 
-        // tag
-        JsonNode tagNode = jsonNode.get(REQUEST_PARAM_TAG);
-        String tag = null;
-        if (tagNode != null && !tagNode.isNull()) {
-            tag = tagNode.textValue();
+        // The orchestrator decides which ranges of the roster this request processes, and whether it finishes the run.
+        RunScope runScope = new RunScope(studyId, runContext, backfillRunContextList, backfillSendLatest, runLedger,
+                targetUserIdList, studyRunLeaseKeeper);
+        runOrchestrator.processRequest(request, (checkpointId, startOffset, endOffset, workUnitClaimer) ->
+                processUserRange(runScope, checkpointId, startOffset, endOffset, workUnitClaimer),
+                () -> finishRun(runScope, request.getTag()));
+
+        LOG.info("Finished processing users: " + runScope.numUsers.get() + " users in " +
+                runScope.stopwatch.elapsed(TimeUnit.SECONDS) + " seconds");
+        if (runLedger != null) {
+            LOG.info("Users skipped by the run ledger: " + runScope.numSkippedByLedger);
+        }
+        if (runScope.numErrors > 0) {
+            LOG.error("Users that failed with an error: " + runScope.numErrors);
+        }
+        LOG.info("Exclusion stats: " + runContext.getExclusionPipeline().formatStats());
+        if (backfillRunContextList != null) {
+            int numDryRunDates = backfillSendLatest ? backfillRunContextList.size() - 1 :
+                    backfillRunContextList.size();
+            for (RunContext oneRunContext : backfillRunContextList.subList(0, numDryRunDates)) {
+                LOG.info("Backfill dry run notifications: " + oneRunContext.formatDryRunStats());
+            }
         }
+        LOG.info("Distinct time zones: " + runContext.getTimeZoneTable().size());
+        if (runScope.numFailedNotificationLogWrites > 0) {
+            LOG.error("Failed notification log writes: " + runScope.numFailedNotificationLogWrites);
+        }
+        LOG.info("Config cache stats: " + workerConfigCache.getStats());
+        if (activityEventCacheEnabled) {
+            LOG.info("Activity event cache stats: hits=" + activityEventCache.getNumHits() + ", misses=" +
+                    activityEventCache.getNumMisses());
+        }
+        if (participantSnapshotCacheEnabled) {
+            LOG.info("Participant snapshot cache stats: hits=" + participantSnapshotCache.getNumHits() +
+                    ", misses=" + participantSnapshotCache.getNumMisses());
+        }
+        if (exclusionCacheEnabled) {
+            LOG.info("Exclusion cache stats: hits=" + exclusionCache.getNumHits() + ", misses=" +
+                    exclusionCache.getNumMisses());
+        }
+        LOG.info("Settled on page sizes: accountSummary=" + bridgeHelper.getAccountSummaryPageSize() +
+                ", taskHistory=" + bridgeHelper.getTaskHistoryPageSize());
+        LOG.info("Finished processing request for study " + studyId + " and date " + request.getDateString());
+    }
 
-        LOG.info("Received request for study=" + studyId + ", date=" + dateString + ", tag=" + tag);
+    // Helper method to signal the end of a run. Releases the study run lease, so the next run for the study and date
+    // can start, then writes to the Worker Log in DDB.
+    private void finishRun(RunScope runScope, String tag) {
+        if (runScope.studyRunLeaseKeeper != null) {
+            runScope.studyRunLeaseKeeper.release();
+        }
+        dynamoHelper.writeWorkerLog(tag);
+    }
 
-        // Iterate over each user
-        Iterator<AccountSummary> accountSummaryIterator = bridgeHelper.getAllAccountSummaries(studyId);
-        int numUsers = 0;
-        Stopwatch stopwatch = Stopwatch.createStarted();
-        while (accountSummaryIterator.hasNext()) {
-            // Rate limit
-            perUserRateLimiter.acquire();
+    // Waits for the per-user rate limiter. Package-scoped so unit tests can verify which paths are rate limited.
+    void acquireRateLimitPermit() {
+        perUserRateLimiter.acquire();
+    }
 
-            // Process
-            try {
-                AccountSummary oneAccountSummary = accountSummaryIterator.next();
+    // Helper method to process one range of the roster, from the start offset up to (but not including) the end
+    // offset, or the run's list of users if it has one. If the range has a checkpoint, this resumes from it. Buffered
+    // writes are flushed before this returns, so everything in the range is durable. If the range is a work unit,
+    // its lease is renewed as we go, as is the study run lease. Returns which lease we lost before the range was done,
+    // if any.
+    private RangeOutcome processUserRange(RunScope runScope, String checkpointId, int rangeStartOffset,
+            int rangeEndOffset, WorkUnitClaimer workUnitClaimer) {
+        // If this range was interrupted, resume where it left off. Runs for a list of users don't need checkpoints,
+        // since the list is short, and a redelivered retry only sees the users that still haven't succeeded.
+        boolean checkpointEnabled = runCheckpointEnabled && runScope.targetUserIdList == null;
+        RunCheckpoint previousCheckpoint = null;
+        if (checkpointEnabled) {
+            previousCheckpoint = loadRunCheckpoint(checkpointId);
+        }
+        int startOffset = rangeStartOffset;
+        int numResumes = 0;
+        RunProgress runProgress;
+        if (previousCheckpoint != null) {
+            startOffset = previousCheckpoint.getOffset();
+            numResumes = previousCheckpoint.getNumResumes() + 1;
+            runProgress = new RunProgress(startOffset, previousCheckpoint.getNumErrors());
+            LOG.info("Resuming run " + checkpointId + " from offset " + startOffset + ", resume #" + numResumes);
+        } else {
+            runProgress = new RunProgress(startOffset, 0);
+        }
+        int lastCheckpointOffset = startOffset;
+
+        // Iterate over each user. Users are processed in parallel. Each user holds a permit while in flight, which
+        // bounds how far ahead of the workers we read the roster.
+        // Runs for a list of users don't read the roster. We only have the users' IDs, so their local cache entries
+        // (which are keyed on the full account summary) miss, and everything is fetched fresh from Bridge.
+        Iterator<AccountSummary> accountSummaryIterator;
+        if (runScope.targetUserIdList != null) {
+            accountSummaryIterator = runScope.targetUserIdList.stream().map(userId -> new AccountSummary().id(userId))
+                    .iterator();
+        } else {
+            accountSummaryIterator = bridgeHelper.getAllAccountSummaries(runScope.studyId, startOffset);
+        }
+        ExecutorService executorService = Executors.newFixedThreadPool(numThreads);
+        Semaphore inFlightSemaphore = new Semaphore(numThreads);
+        AtomicInteger numUsers = runScope.numUsers;
+        Stopwatch stopwatch = runScope.stopwatch;
+        RangeOutcome outcome = RangeOutcome.FINISHED;
+        int nextUserOffset = startOffset;
+        try {
+            while (nextUserOffset < rangeEndOffset && accountSummaryIterator.hasNext()) {
+                // If another run took over the study and date, or another worker stole our work unit, stop and let
+                // them finish.
+                if (runScope.studyRunLeaseKeeper != null && !runScope.studyRunLeaseKeeper.renewLeaseIfNeeded()) {
+                    outcome = RangeOutcome.STUDY_RUN_LEASE_LOST;
+                    break;
+                }
+                if (workUnitClaimer != null && !workUnitClaimer.renewLeaseIfNeeded()) {
+                    outcome = RangeOutcome.WORK_UNIT_LOST;
+                    break;
+                }
 
+                AccountSummary oneAccountSummary;
                 try {
-                    processAccountForDate(studyId, date, oneAccountSummary);
+                    oneAccountSummary = accountSummaryIterator.next();
                 } catch (Exception ex) {
-                    LOG.error("Error processing user ID " + oneAccountSummary.getId() + ": " + ex.getMessage(), ex);
+                    // The iterator retries the failed page on the next call. Rate limit the retries, so a persistent
+                    // error doesn't call Bridge in a tight loop.
+                    LOG.error("Error getting next user: " + ex.getMessage(), ex);
+                    reportProgress(numUsers.incrementAndGet(), stopwatch);
+                    acquireRateLimitPermit();
+                    continue;
                 }
-            } catch (Exception ex) {
-                LOG.error("Error getting next user: " + ex.getMessage(), ex);
-            }
+                int userOffset = nextUserOffset++;
+
+                // Skip users that an earlier run for this study and date already handled. These don't call Bridge,
+                // so they don't count against the rate limit. Users that failed are processed again.
+                RunLedgerStatus ledgerStatus = runScope.runLedger != null ? runScope.runLedger.get(
+                        oneAccountSummary.getId()) : null;
+                if (ledgerStatus != null && ledgerStatus != RunLedgerStatus.FAILED) {
+                    runScope.numSkippedByLedger++;
+                    runProgress.finishUser(userOffset, false);
+                    reportProgress(numUsers.incrementAndGet(), stopwatch);
+                    continue;
+                }
+
+                // Rate limit
+                acquireRateLimitPermit();
+
+                // Process
+                inFlightSemaphore.acquireUninterruptibly();
+                executorService.execute(() -> {
+                    boolean error = false;
+                    try {
+                        if (runScope.backfillRunContextList != null) {
+                            processAccountForDateRange(runScope.backfillRunContextList, oneAccountSummary,
+                                    runScope.backfillSendLatest);
+                        } else {
+                            processAccountForDate(runScope.runContext, oneAccountSummary);
+                        }
+                    } catch (Exception ex) {
+                        error = true;
+                        LOG.error("Error processing user ID " + oneAccountSummary.getId() + ": " + ex.getMessage(),
+                                ex);
+                    } finally {
+                        runProgress.finishUser(userOffset, error);
+                        reportProgress(numUsers.incrementAndGet(), stopwatch);
+                        inFlightSemaphore.release();
+                    }
+                });
 
-            // Reporting
-            numUsers++;
-            if (numUsers % REPORTING_INTERVAL == 0) {
-                LOG.info("Processing users in progress: " + numUsers + " users in " +
-                        stopwatch.elapsed(TimeUnit.SECONDS) + " seconds");
+                // Checkpoint periodically.
+                if (checkpointEnabled && runProgress.getOffset() >= lastCheckpointOffset + runCheckpointInterval) {
+                    lastCheckpointOffset = writeRunCheckpoint(runScope, checkpointId, runProgress, numResumes);
+                }
             }
+
+            // Wait for all in-flight users to finish. Once we hold every permit, no user is still being processed.
+            inFlightSemaphore.acquireUninterruptibly(numThreads);
+        } finally {
+            executorService.shutdown();
         }
 
-        // Write to Worker Log in DDB so we can signal end of processing.
-        dynamoHelper.writeWorkerLog(tag);
+        // Notification log writes are buffered. Wait for them to finish before signaling end of processing.
+        runScope.numFailedNotificationLogWrites += dynamoHelper.flushNotificationLog();
+        if (runScope.runContext.getBurstCalendarByUserId() != null) {
+            dynamoHelper.flushBurstCalendar();
+        }
+        if (burstAdherenceRecordEnabled) {
+            dynamoHelper.flushBurstAdherence();
+        }
+        if (runLedgerEnabled) {
+            dynamoHelper.flushRunLedger();
+        }
+        if (activityEventCacheEnabled) {
+            activityEventCache.save(runScope.studyId);
+        }
+        if (participantSnapshotCacheEnabled) {
+            participantSnapshotCache.save(runScope.studyId);
+        }
+        if (exclusionCacheEnabled) {
+            exclusionCache.save(runScope.studyId);
+        }
+        runScope.numErrors += runProgress.getNumErrors();
 
-        LOG.info("Finished processing users: " + numUsers + " users in " + stopwatch.elapsed(TimeUnit.SECONDS) +
-                " seconds");
-        LOG.info("Finished processing request for study " + studyId + " and date " + dateString);
+        // Every user is finished, so the final checkpoint is at the end of the range. If the request is redelivered
+        // after this, the run won't process anyone again. If we lost a lease, whoever took over writes the checkpoints
+        // now.
+        if (outcome != RangeOutcome.FINISHED) {
+            return outcome;
+        }
+        if (checkpointEnabled) {
+            writeRunCheckpoint(runScope, checkpointId, runProgress, numResumes);
+        }
+        return RangeOutcome.FINISHED;
     }
 
-    // Processes a single user for the given date. Package-scoped for unit tests.
-    void processAccountForDate(String studyId, LocalDate date, AccountSummary accountSummary) throws IOException {
-        // Get participant. We'll need some attributes.
-        StudyParticipant participant = bridgeHelper.getParticipant(studyId, accountSummary.getId());
+    // Helper method to load the most recent notification for each user notified within the last burst duration. For a
+    // backfill, the window starts a burst duration before the first date of the backfill. If this fails, log an error
+    // and return null, so the run falls back to querying each user's last notification.
+    private Map<String, UserNotification> loadRecentNotifications(String studyId, CompiledWorkerConfig workerConfig,
+            int numBackfillDays) {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        long sinceMillis = DateTime.now().minusDays(numBackfillDays + workerConfig.getBurstDurationDays())
+                .getMillis();
+        try {
+            Map<String, UserNotification> recentNotificationsByUserId = dynamoHelper.getLatestNotificationsSince(
+                    studyId, sinceMillis);
+            LOG.info("Loaded recent notifications for " + recentNotificationsByUserId.size() + " users in " +
+                    stopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
+            return recentNotificationsByUserId;
+        } catch (RuntimeException ex) {
+            LOG.error("Error loading recent notifications, falling back to per-user queries: " + ex.getMessage(), ex);
+            return null;
+        }
+    }
 
-        // Exclude users who are not eligible for notifications.
-        if (shouldExcludeUser(studyId, participant)) {
-            return;
+    // Helper method to load the study's burst calendar. If this fails, log an error and return null, so the run falls
+    // back to checking every user's activity events.
+    private Map<String, BurstCalendarEntry> loadBurstCalendar(String studyId) {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        try {
+            Map<String, BurstCalendarEntry> burstCalendarByUserId = dynamoHelper.getBurstCalendar(studyId);
+            LOG.info("Loaded burst calendar entries for " + burstCalendarByUserId.size() + " users in " +
+                    stopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
+            return burstCalendarByUserId;
+        } catch (RuntimeException ex) {
+            LOG.error("Error loading burst calendar, falling back to checking all users: " + ex.getMessage(), ex);
+            return null;
         }
+    }
 
-        // Get user's activity events. Filter events that aren't study burst starts.
-        WorkerConfig workerConfig = dynamoHelper.getNotificationConfigForStudy(studyId);
-        List<ActivityEvent> activityEventList = bridgeHelper.getActivityEvents(studyId, participant.getId());
-        List<ActivityEvent> filteredActivityEventList = activityEventList.stream()
-                .filter(activityEvent -> workerConfig.getBurstStartEventIdSet().contains(activityEvent.getEventId()))
-                .collect(Collectors.toList());
+    // Helper method to load the run ledger for the given study and date. If this fails, log an error and return null,
+    // so the run evaluates every user. Notifications are still claimed in the ledger, so this never causes a user to be
+    // notified twice.
+    private Map<String, RunLedgerStatus> loadRunLedger(String studyId, LocalDate date) {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        try {
+            Map<String, RunLedgerStatus> runLedger = dynamoHelper.getRunLedger(studyId, date);
+            LOG.info("Loaded run ledger entries for " + runLedger.size() + " users in " +
+                    stopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms");
+            return runLedger;
+        } catch (RuntimeException ex) {
+            LOG.error("Error loading run ledger, falling back to evaluating all users: " + ex.getMessage(), ex);
+            return null;
+        }
+    }
 
-        // Find the upcoming burst, if a burst is coming up tomorrow.
-        ActivityEvent upcomingBurstEvent = findUpcomingActivityBurstEvent(date, participant,
-                filteredActivityEventList);
-        if (upcomingBurstEvent != null) {
-            // Notify user of upcoming burst.
-            notifyUser(studyId, participant, NotificationType.PRE_BURST);
+    // Helper method to get the IDs of the users that failed, from the run ledger. These are sorted, so retries process
+    // users in a consistent order.
+    private static List<String> getFailedUserIds(Map<String, RunLedgerStatus> runLedger) {
+        return runLedger.entrySet().stream().filter(entry -> entry.getValue() == RunLedgerStatus.FAILED)
+                .map(Map.Entry::getKey).sorted().collect(Collectors.toList());
+    }
+
+    // Helper method to load the checkpoint for the given run. Returns null if there isn't one, or it's too old to use.
+    // If this fails, log an error and return null, so the run starts from the beginning.
+    private RunCheckpoint loadRunCheckpoint(String runId) {
+        RunCheckpoint checkpoint;
+        try {
+            checkpoint = dynamoHelper.getRunCheckpoint(runId);
+        } catch (RuntimeException ex) {
+            LOG.error("Error loading checkpoint for run " + runId + ", starting from the beginning: " +
+                    ex.getMessage(), ex);
+            return null;
+        }
+        if (checkpoint == null) {
+            return null;
+        }
+        if (checkpoint.getUpdatedOn() <= DateTime.now().minusHours(RUN_CHECKPOINT_MAX_AGE_HOURS).getMillis()) {
+            LOG.info("Checkpoint for run " + runId + " is too old, starting from the beginning");
+            return null;
+        }
+        return checkpoint;
+    }
+
+    // Helper method to write a checkpoint for the run. Waits for buffered notification log writes first, so the
+    // checkpoint never gets ahead of the notification log. Returns the offset that was checkpointed. If this fails,
+    // log an error and keep going, since the checkpoint is only an optimization.
+    private int writeRunCheckpoint(RunScope runScope, String runId, RunProgress runProgress, int numResumes) {
+        // Get the progress before we flush, so everything before the checkpoint's offset is in the flush.
+        int offset = runProgress.getOffset();
+        int numErrors = runProgress.getNumErrors();
+        try {
+            runScope.numFailedNotificationLogWrites += dynamoHelper.flushNotificationLog();
+
+            RunCheckpoint checkpoint = new RunCheckpoint();
+            checkpoint.setNumErrors(numErrors);
+            checkpoint.setNumResumes(numResumes);
+            checkpoint.setOffset(offset);
+            checkpoint.setRunId(runId);
+            checkpoint.setUpdatedOn(DateUtils.getCurrentMillisFromEpoch());
+            dynamoHelper.writeRunCheckpoint(checkpoint);
+        } catch (RuntimeException ex) {
+            LOG.error("Error writing checkpoint for run " + runId + " at offset " + offset + ": " + ex.getMessage(),
+                    ex);
+        }
+        return offset;
+    }
+
+    // Helper method to write log messages regularly, so we know the worker is still running.
+    private static void reportProgress(int numUsers, Stopwatch stopwatch) {
+        if (numUsers % REPORTING_INTERVAL == 0) {
+            LOG.info("Processing users in progress: " + numUsers + " users in " +
+                    stopwatch.elapsed(TimeUnit.SECONDS) + " seconds");
+        }
+    }
+
+    // Processes a single user for the run's date. Package-scoped for unit tests.
+    void processAccountForDate(RunContext runContext, AccountSummary accountSummary) throws IOException {
+        processUser(new UserState(runContext, accountSummary));
+    }
+
+    // Processes a single user for each date of a backfill, in order. The user's participant, activity events, last
+    // notification, and task history are fetched once and shared by every date. Every date is a dry run, except the
+    // last date if sendLatest is true. Package-scoped for unit tests.
+    void processAccountForDateRange(List<RunContext> runContextList, AccountSummary accountSummary,
+            boolean sendLatest) throws IOException {
+        int lastIndex = runContextList.size() - 1;
+        LocalDate endDate = runContextList.get(lastIndex).getDate();
+        UserState previousState = null;
+        for (int i = 0; i <= lastIndex; i++) {
+            RunContext oneRunContext = runContextList.get(i);
+            UserState userState = previousState != null ? new UserState(oneRunContext, previousState) :
+                    new UserState(oneRunContext, accountSummary);
+            userState.backfillEndDate = endDate;
+            if (sendLatest && i == lastIndex) {
+                processUser(userState);
+            } else {
+                userState.dryRun = true;
+                evaluateUser(userState);
+                if (userState.dryRunNotificationType != null) {
+                    oneRunContext.recordDryRunNotification(userState.dryRunNotificationType);
+                    LOG.info("Dry run would have sent " + userState.dryRunNotificationType + " notification to user " +
+                            userState.userId + " for date " + oneRunContext.getDate());
+                }
+            }
+            previousState = userState;
+        }
+    }
+
+    // Helper method to process a single user, and record the results.
+    private void processUser(UserState userState) throws IOException {
+        RunContext runContext = userState.runContext;
+        try {
+            evaluateUser(userState);
+        } catch (IOException | RuntimeException ex) {
+            recordRunLedgerFailure(userState, ex);
+            throw ex;
+        } finally {
+            updateBurstCalendarEntry(userState);
+        }
+
+        // Record that we've handled this user, so a duplicate run can skip them. Users we notified were already
+        // recorded before the notification was sent.
+        if (runLedgerEnabled && !userState.notificationClaimed) {
+            dynamoHelper.bufferRunLedgerEntry(makeRunLedgerEntry(runContext, userState.userId,
+                    RunLedgerStatus.EVALUATED));
+        }
+    }
 
-            // If the burst starts tomorrow, no need to check if the user is in the middle of a burst.
+    // Helper method to record in the run ledger that the user failed with an error, so they can be retried. Users that
+    // were already claimed for a notification aren't recorded, since a retry might notify them twice. If this fails,
+    // log an error, so the caller still sees the original error.
+    private void recordRunLedgerFailure(UserState userState, Exception error) {
+        if (!runLedgerEnabled || userState.notificationClaimed) {
             return;
         }
 
-        // Find the current activity burst.
-        ActivityEvent burstEvent = findCurrentActivityBurstEventForParticipant(studyId, date, participant,
-                filteredActivityEventList);
-        if (burstEvent == null) {
-             // We're not currently in an activity burst. (Or we are, but we're in the blackout period.) Skip
-            // processing this user.
+        RunLedgerEntry entry = makeRunLedgerEntry(userState.runContext, userState.userId, RunLedgerStatus.FAILED);
+        entry.setErrorClass(error.getClass().getName());
+        try {
+            dynamoHelper.writeRunLedgerFailure(entry);
+        } catch (RuntimeException ex) {
+            LOG.error("Error recording failure in run ledger for user ID " + userState.userId + ": " +
+                    ex.getMessage(), ex);
+        }
+    }
+
+    // Helper method to determine if the user needs a notification, and if so, to notify them.
+    private void evaluateUser(UserState userState) throws IOException {
+        ExclusionPipeline exclusionPipeline = userState.runContext.getExclusionPipeline();
+
+        // Exclude users who are not eligible for notifications. Stages fetch the participant, activity events, and last
+        // notification only as needed, so users who are rejected early skip the expensive calls.
+        for (ExclusionStage oneStage : exclusionPipeline.startUser()) {
+            long startNanos = System.nanoTime();
+            long startFetchNanos = userState.fetchNanos;
+            boolean rejected = shouldExcludeUser(oneStage, userState);
+            long stageNanos = System.nanoTime() - startNanos - (userState.fetchNanos - startFetchNanos);
+            exclusionPipeline.recordStage(oneStage, rejected, stageNanos);
+            if (rejected) {
+                if (userState.participantSnapshotFromCache && SNAPSHOT_STAGE_SET.contains(oneStage)) {
+                    // Never exclude a user based on a cached snapshot. The user may have since become eligible.
+                    break;
+                }
+                cacheStableExclusion(oneStage, userState);
+                return;
+            }
+        }
+
+        // If the stages used a cached participant snapshot, fetch the participant before we notify or exclude the
+        // user. The snapshot can be out of date in ways the account summary doesn't show, such as a withdrawn consent
+        // or a newly verified phone. Check the stages again with the fresh participant. Everything else the stages
+        // need is usually already fetched, so this is cheap, and it isn't recorded in the stats.
+        if (userState.refreshParticipantSnapshot()) {
+            for (ExclusionStage oneStage : exclusionPipeline.getStageOrder()) {
+                if (shouldExcludeUser(oneStage, userState)) {
+                    cacheStableExclusion(oneStage, userState);
+                    return;
+                }
+            }
+        }
+        StudyParticipant participant = userState.getParticipant();
+        TimeZoneTable.ZoneInfo zoneInfo = userState.getZoneInfo();
+
+        // The burst window stage already found the burst. If a burst is coming up tomorrow, notify user of
+        // upcoming burst. If the burst starts tomorrow, no need to check if the user is in the middle of a burst.
+        if (userState.upcomingBurstEvent != null) {
+            notifyUser(userState, participant, NotificationType.PRE_BURST);
             return;
         }
 
         // Determine if we need to notify the user.
-        NotificationType notificationType = getNotificationTypeForUser(studyId, date, participant, burstEvent);
+        NotificationType notificationType = getNotificationTypeForUser(userState, participant, zoneInfo,
+                userState.currentBurstEvent);
         if (notificationType != null) {
-            notifyUser(studyId, participant, notificationType);
+            notifyUser(userState, participant, notificationType);
         }
     }
 
-    // Helper method to determine if a user is ineligible for receiving notifications.
-    private boolean shouldExcludeUser(String studyId, StudyParticipant participant) {
-        WorkerConfig workerConfig = dynamoHelper.getNotificationConfigForStudy(studyId);
-        Set<String> excludedDataGroupSet = workerConfig.getExcludedDataGroupSet();
-        Set<String> requiredDataGroupsOneOfSet = workerConfig.getRequiredDataGroupsOneOfSet();
+    // Helper method to determine if a user is ineligible for receiving notifications, according to a single stage.
+    private boolean shouldExcludeUser(ExclusionStage stage, UserState userState) throws IOException {
+        CompiledWorkerConfig workerConfig = userState.runContext.getWorkerConfig();
+        switch (stage) {
+            case BURST_CALENDAR:
+                return isFarFromBurst(userState);
+            case EXCLUSION_CACHE:
+                return exclusionCacheEnabled && exclusionCache.get(userState.runContext.getStudyId(),
+                        userState.userId, computeExclusionMarker(userState.accountSummary, workerConfig)) != null;
+            case PHONE_VERIFIED:
+            case TIME_ZONE:
+            case CONSENT:
+            case DATA_GROUPS:
+                return isExcludedBySnapshot(stage, userState.getParticipantSnapshot(), userState.getZoneInfo(),
+                        workerConfig);
+            case RECENT_NOTIFICATION: {
+                // If user was already sent a notification in the last burst duration, don't send another one
+                // Special case: If that notification was a PRE_BURST notification, that's fine.
+                UserNotification lastNotification = userState.getLastNotification();
+                return lastNotification != null &&
+                        lastNotification.getTime() > userState.getEvaluationTime().minusDays(
+                                workerConfig.getBurstDurationDays()).getMillis() &&
+                        lastNotification.getType() != NotificationType.PRE_BURST;
+            }
+            case BURST_WINDOW:
+                return !isInBurstWindow(userState);
+            default:
+                throw new IllegalStateException("Unexpected stage " + stage);
+        }
+    }
 
-        // Unverified phone numbers can't be notified
-        if (Boolean.FALSE.equals(participant.getPhoneVerified())) {
-            return true;
+    // Helper method to determine if a user is excluded by one of the stages that only use the participant snapshot.
+    private static boolean isExcludedBySnapshot(ExclusionStage stage, ParticipantSnapshot snapshot,
+            TimeZoneTable.ZoneInfo zoneInfo, CompiledWorkerConfig workerConfig) {
+        switch (stage) {
+            case PHONE_VERIFIED:
+                // Unverified phone numbers can't be notified
+                return Boolean.FALSE.equals(snapshot.getPhoneVerified());
+            case TIME_ZONE:
+                // Users without timezones can't be processed. Users with timezone < UTC-11 or > UTC-1 should be
+                // excluded. This is because we'd end up sending at unusually early or unusually late hours. This is
+                // precomputed in the time zone table.
+                return zoneInfo == null || !zoneInfo.isAllowed();
+            case CONSENT:
+                // Unconsented users can't be notified
+                return !snapshot.getConsentedSubpopulationGuidSet().containsAll(
+                        workerConfig.getRequiredSubpopulationGuidSet());
+            case DATA_GROUPS:
+                return !isInEligibleDataGroups(workerConfig, snapshot.getDataGroupList());
+            default:
+                throw new IllegalStateException("Stage " + stage + " doesn't use the participant snapshot");
         }
+    }
 
-        // Users without timezones can't be processed
-        if (participant.getTimeZone() == null) {
-            return true;
+    // Helper method to check if the participant snapshot passes every stage that only uses the snapshot. Only these
+    // snapshots are cached, since the marker doesn't notice a user becoming eligible. Package-scoped for unit tests.
+    static boolean isEligibleSnapshot(ParticipantSnapshot snapshot, RunContext runContext) {
+        String timeZoneString = snapshot.getTimeZone();
+        TimeZoneTable.ZoneInfo zoneInfo = timeZoneString != null ? runContext.getTimeZoneTable().get(timeZoneString) :
+                null;
+        for (ExclusionStage oneStage : SNAPSHOT_STAGE_SET) {
+            if (isExcludedBySnapshot(oneStage, snapshot, zoneInfo, runContext.getWorkerConfig())) {
+                return false;
+            }
         }
+        return true;
+    }
 
-        // Users with timezone < UTC-11 or > UTC-1 should be excluded. This is because we'd end up sending at unusually
-        // early or unusually late hours.
-        DateTimeZone timeZone = DateUtils.parseZoneFromOffsetString(participant.getTimeZone());
-        int timeZoneOffsetMillis = timeZone.getOffset(DateTime.now());
-        if (timeZoneOffsetMillis < MIN_TIMEZONE_OFFSET_MILLIS || timeZoneOffsetMillis > MAX_TIMEZONE_OFFSET_MILLIS) {
-            return true;
+    // Helper method to remember that the user was excluded for a reason that rarely changes, so later runs can skip
+    // them. Reasons that commonly change while a user is still onboarding, like not having a time zone or not having
+    // signed consent yet, aren't cached. Neither are unverified phones, since verifying a phone doesn't change the
+    // account summary, so the marker wouldn't notice. For the same reason, neither are data groups.
+    private void cacheStableExclusion(ExclusionStage stage, UserState userState) throws IOException {
+        if (!exclusionCacheEnabled || userState.dryRun) {
+            return;
         }
 
-        // Unconsented users can't be notified
-        if (!isUserConsented(studyId, participant)) {
-            return true;
+        CompiledWorkerConfig workerConfig = userState.runContext.getWorkerConfig();
+        boolean stable;
+        switch (stage) {
+            case TIME_ZONE:
+                // Only users who have a time zone, but outside of the allowed window.
+                stable = userState.getZoneInfo() != null;
+                break;
+            case CONSENT:
+                // Only users who withdrew. This needs the consent histories, which we only have if we fetched the
+                // participant.
+                stable = userState.participant != null && hasWithdrawnConsent(workerConfig, userState.participant);
+                break;
+            default:
+                stable = false;
+                break;
+        }
+        if (stable) {
+            exclusionCache.put(userState.runContext.getStudyId(), userState.userId, computeExclusionMarker(
+                    userState.accountSummary, workerConfig), stage);
         }
+    }
 
-        // Check required and excluded data groups.
+    // Helper method to check if the user withdrew from any of the required subpopulations.
+    private static boolean hasWithdrawnConsent(CompiledWorkerConfig workerConfig, StudyParticipant participant) {
+        Map<String, List<UserConsentHistory>> consentsBySubpop = participant.getConsentHistories();
+        if (consentsBySubpop == null) {
+            return false;
+        }
+        for (String oneRequiredSubpopGuid : workerConfig.getRequiredSubpopulationGuidSet()) {
+            List<UserConsentHistory> oneConsentList = consentsBySubpop.get(oneRequiredSubpopGuid);
+            if (oneConsentList != null && !oneConsentList.isEmpty() &&
+                    oneConsentList.get(oneConsentList.size() - 1).getWithdrewOn() != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Helper method to check the user's burst calendar entry. Returns true only if the entry is up to date and none of
+    // the user's bursts are in progress or start tomorrow. The entry's dates are in the user's time zone when the entry
+    // was computed, so allow an extra day on either side in case the user has changed time zones since then.
+    private boolean isFarFromBurst(UserState userState) {
+        BurstCalendarEntry entry = userState.getBurstCalendarEntry();
+        if (!isBurstCalendarEntryUpToDate(userState.runContext, entry)) {
+            return false;
+        }
+
+        LocalDate date = userState.runContext.getDate();
+        int burstDurationDays = userState.runContext.getWorkerConfig().getBurstDurationDays();
+        for (LocalDate oneBurstStartDate : entry.getBurstStartDateList()) {
+            // The pre-burst notification is sent the day before the burst starts. The last day of the burst is start
+            // + duration - 1.
+            LocalDate windowStartDate = oneBurstStartDate.minusDays(2);
+            LocalDate windowEndDate = oneBurstStartDate.plusDays(burstDurationDays);
+            if (!date.isBefore(windowStartDate) && !date.isAfter(windowEndDate) &&
+                    !isInCompletedBurst(entry, oneBurstStartDate, date, burstDurationDays)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Helper method to determine if the date is in a burst that the user already completed, so there's nothing to
+    // notify them about until the burst ends. This leaves a day of slack on each end of the burst for time zone
+    // changes, so we never skip the last day before the next burst.
+    private static boolean isInCompletedBurst(BurstCalendarEntry entry, LocalDate burstStartDate, LocalDate date,
+            int burstDurationDays) {
+        return entry.getCompletedBurstStartDateSet().contains(burstStartDate) && date.isAfter(burstStartDate) &&
+                date.isBefore(burstStartDate.plusDays(burstDurationDays - 1));
+    }
+
+    // Helper method to determine if a burst calendar entry can be used for this run. Entries with no bursts aren't
+    // used, since the user might not be fully bootstrapped yet.
+    private boolean isBurstCalendarEntryUpToDate(RunContext runContext, BurstCalendarEntry entry) {
+        return entry != null && !entry.getBurstStartDateList().isEmpty() &&
+                runContext.getWorkerConfig().getBurstStartEventIdSet().equals(entry.getBurstStartEventIdSet()) &&
+                entry.getUpdatedOn() > DateTime.now().minusDays(burstCalendarMaxAgeDays).getMillis();
+    }
+
+    // Helper method to write the user's burst calendar entry, if the burst calendar is enabled for this run and the
+    // user's entry is missing or out of date. This doesn't call Bridge. If the user was excluded before we fetched
+    // their activity events and time zone, we try again next run.
+    private void updateBurstCalendarEntry(UserState userState) {
+        RunContext runContext = userState.runContext;
+        if (runContext.getBurstCalendarByUserId() == null) {
+            return;
+        }
+
+        BurstCalendarEntry oldEntry = userState.getBurstCalendarEntry();
+        if (isBurstCalendarEntryUpToDate(runContext, oldEntry)) {
+            // The burst dates are still good. We only need to write the entry if the user just completed a burst.
+            LocalDate completedBurstStartDate = userState.completedBurstStartDate;
+            if (completedBurstStartDate != null && oldEntry.getBurstStartDateList().contains(
+                    completedBurstStartDate) && !oldEntry.getCompletedBurstStartDateSet().contains(
+                    completedBurstStartDate)) {
+                Set<LocalDate> completedBurstStartDateSet = new HashSet<>(oldEntry.getCompletedBurstStartDateSet());
+                completedBurstStartDateSet.add(completedBurstStartDate);
+
+                BurstCalendarEntry entry = new BurstCalendarEntry();
+                entry.setBurstStartDateList(oldEntry.getBurstStartDateList());
+                entry.setBurstStartEventIdSet(oldEntry.getBurstStartEventIdSet());
+                entry.setCompletedBurstStartDateSet(completedBurstStartDateSet);
+                entry.setStudyId(oldEntry.getStudyId());
+                entry.setUpdatedOn(oldEntry.getUpdatedOn());
+                entry.setUserId(oldEntry.getUserId());
+                dynamoHelper.bufferBurstCalendarEntry(entry);
+            }
+            return;
+        }
+        if (userState.activityEventList == null || !userState.zoneInfoResolved || userState.zoneInfo == null) {
+            return;
+        }
+
+        DateTimeZone timeZone = userState.zoneInfo.getTimeZone();
+        List<LocalDate> burstStartDateList = new ArrayList<>();
+        for (ActivityEvent oneActivityEvent : userState.activityEventList) {
+            burstStartDateList.add(oneActivityEvent.getTimestamp().withZone(timeZone).toLocalDate());
+        }
+        if (burstStartDateList.isEmpty()) {
+            // We wouldn't use this entry anyway.
+            return;
+        }
+
+        // Keep the completed bursts from the old entry, as long as the burst dates haven't changed.
+        Set<LocalDate> completedBurstStartDateSet = new HashSet<>();
+        if (oldEntry != null) {
+            completedBurstStartDateSet.addAll(oldEntry.getCompletedBurstStartDateSet());
+        }
+        if (userState.completedBurstStartDate != null) {
+            completedBurstStartDateSet.add(userState.completedBurstStartDate);
+        }
+        completedBurstStartDateSet.retainAll(burstStartDateList);
+
+        BurstCalendarEntry entry = new BurstCalendarEntry();
+        entry.setBurstStartDateList(burstStartDateList);
+        entry.setBurstStartEventIdSet(runContext.getWorkerConfig().getBurstStartEventIdSet());
+        entry.setCompletedBurstStartDateSet(completedBurstStartDateSet);
+        entry.setStudyId(runContext.getStudyId());
+        entry.setUpdatedOn(DateUtils.getCurrentMillisFromEpoch());
+        entry.setUserId(userState.userId);
+        dynamoHelper.bufferBurstCalendarEntry(entry);
+    }
+
+    // Helper method to check required and excluded data groups.
+    private static boolean isInEligibleDataGroups(CompiledWorkerConfig workerConfig, List<String> dataGroupList) {
         // If the user has any of the excluded data groups, exclude the user
         boolean foundRequiredGroup = false;
-        for (String oneUserDataGroup : participant.getDataGroups()) {
-            if (excludedDataGroupSet.contains(oneUserDataGroup)) {
-                return true;
+        for (String oneUserDataGroup : dataGroupList) {
+            if (workerConfig.getExcludedDataGroupSet().contains(oneUserDataGroup)) {
+                return false;
             }
-            if (requiredDataGroupsOneOfSet.contains(oneUserDataGroup)) {
+            if (workerConfig.getRequiredDataGroupsOneOfSet().contains(oneUserDataGroup)) {
                 foundRequiredGroup = true;
             }
         }
-        if (!foundRequiredGroup) {
-            return true;
+        return foundRequiredGroup;
+    }
+
+    // Helper method to determine if the user has a burst starting tomorrow, or is currently in a burst and outside of
+    // the blackout period. Saves the burst event in the user state.
+    private boolean isInBurstWindow(UserState userState) throws IOException {
+        // We need the time zone to determine burst dates. If the time zone stage hasn't run yet, the user might not
+        // have a time zone. Users without time zones are excluded anyway.
+        TimeZoneTable.ZoneInfo zoneInfo = userState.getZoneInfo();
+        if (zoneInfo == null) {
+            return false;
         }
+        DateTimeZone timeZone = zoneInfo.getTimeZone();
+        LocalDate date = userState.runContext.getDate();
+        List<ActivityEvent> activityEventList = userState.getActivityEvents();
 
-        // If user was already sent a notification in the last burst duration, don't send another one
-        // Special case: If that notification was a PRE_BURST notification, that's fine.
-        UserNotification lastNotification = dynamoHelper.getLastNotificationTimeForUser(participant.getId());
-        if (lastNotification != null &&
-                lastNotification.getTime() > DateTime.now().minusDays(workerConfig.getBurstDurationDays()).getMillis() &&
-                lastNotification.getType() != NotificationType.PRE_BURST) {
+        // Find the upcoming burst, if a burst is coming up tomorrow.
+        userState.upcomingBurstEvent = findUpcomingActivityBurstEvent(date, timeZone, activityEventList);
+        if (userState.upcomingBurstEvent != null) {
             return true;
         }
 
-        // We've checked all the exclude conditions. Do not exclude user.
-        return false;
+        // Find the current activity burst. If we're not currently in an activity burst (or we are, but we're in the
+        // blackout period), skip processing this user.
+        userState.currentBurstEvent = findCurrentActivityBurstEventForParticipant(date,
+                userState.runContext.getWorkerConfig(), timeZone, activityEventList);
+        return userState.currentBurstEvent != null;
     }
 
-    // Helper method to determine if the user has signed the required consent(s).
-    private boolean isUserConsented(String studyId, StudyParticipant participant) {
-        // Check each required subpop. The user must have signed that consent.
-        WorkerConfig workerConfig = dynamoHelper.getNotificationConfigForStudy(studyId);
+    // Helper method to make a snapshot of the participant's eligibility fields. Package-scoped for unit tests.
+    static ParticipantSnapshot makeParticipantSnapshot(StudyParticipant participant) {
+        // A subpop is consented if the consent signature exists and is not withdrawn. Newest consent is always at the
+        // end. This is consistent with the 412 logic in BridgePF.
+        Set<String> consentedSubpopGuidSet = new HashSet<>();
         Map<String, List<UserConsentHistory>> consentsBySubpop = participant.getConsentHistories();
-        for (String oneRequiredSubpopGuid : workerConfig.getRequiredSubpopulationGuidSet()) {
-            List<UserConsentHistory> oneConsentList = consentsBySubpop.get(oneRequiredSubpopGuid);
-            if (oneConsentList.isEmpty()) {
-                return false;
-            }
-
-            // Newest consent is always at the end. If consent signature exists and is not withdrawn, then the user is
-            // consented. This is consistent with the 412 logic in BridgePF.
-            UserConsentHistory newestConsent = oneConsentList.get(oneConsentList.size() - 1);
-            if (newestConsent.getWithdrewOn() != null) {
-                return false;
+        if (consentsBySubpop != null) {
+            for (Map.Entry<String, List<UserConsentHistory>> oneConsentEntry : consentsBySubpop.entrySet()) {
+                List<UserConsentHistory> oneConsentList = oneConsentEntry.getValue();
+                if (oneConsentList != null && !oneConsentList.isEmpty() &&
+                        oneConsentList.get(oneConsentList.size() - 1).getWithdrewOn() == null) {
+                    consentedSubpopGuidSet.add(oneConsentEntry.getKey());
+                }
             }
         }
 
-        // If we make it this far, then we've verified that all consents are signed, up-to-date, and not withdrawn.
-        return true;
+        ParticipantSnapshot snapshot = new ParticipantSnapshot();
+        snapshot.setConsentedSubpopulationGuidSet(consentedSubpopGuidSet);
+        snapshot.setDataGroupList(participant.getDataGroups());
+        snapshot.setPhoneVerified(participant.getPhoneVerified());
+        snapshot.setTimeZone(participant.getTimeZone());
+        return snapshot;
     }
 
     // Helper method to determine if there's an upcoming study burst coming up tomorrow.
-    private ActivityEvent findUpcomingActivityBurstEvent(LocalDate date, StudyParticipant participant,
+    private ActivityEvent findUpcomingActivityBurstEvent(LocalDate date, DateTimeZone timeZone,
             List<ActivityEvent> activityEventList) {
-        DateTimeZone timeZone = DateUtils.parseZoneFromOffsetString(participant.getTimeZone());
-
         for (ActivityEvent oneActivityEvent : activityEventList) {
             if (oneActivityEvent.getTimestamp().withZone(timeZone).toLocalDate().minusDays(1).equals(date)) {
                 // If the burst start is tomorrow, then we've found it!
@@ -286,13 +1144,11 @@ public class BridgeNotificationWorkerProcessor implements ThrowingConsumer<JsonN
     }
 
     // Helper method to determine the study burst event that we should be processing for this user.
-    private ActivityEvent findCurrentActivityBurstEventForParticipant(String studyId, LocalDate date,
-            StudyParticipant participant, List<ActivityEvent> activityEventList) throws IOException {
-        WorkerConfig workerConfig = dynamoHelper.getNotificationConfigForStudy(studyId);
+    private ActivityEvent findCurrentActivityBurstEventForParticipant(LocalDate date,
+            CompiledWorkerConfig workerConfig, DateTimeZone timeZone, List<ActivityEvent> activityEventList) {
         for (ActivityEvent oneActivityEvent : activityEventList) {
             // Calculate burst bounds. End date is start + period - 1. Skip if the current day is not within the burst
             // period (inclusive).
-            DateTimeZone timeZone = DateUtils.parseZoneFromOffsetString(participant.getTimeZone());
             LocalDate burstStartDate = oneActivityEvent.getTimestamp().withZone(timeZone).toLocalDate();
             LocalDate burstEndDate = burstStartDate.plusDays(workerConfig.getBurstDurationDays()).minusDays(1);
             if (date.isBefore(burstStartDate) || date.isAfter(burstEndDate)) {
@@ -318,139 +1174,535 @@ public class BridgeNotificationWorkerProcessor implements ThrowingConsumer<JsonN
     }
 
     // Helper method which looks at the participant's activities to determine if we should send a notification.
-    // Returns the notification type (or null if we shouldn't send a notification).
-    private NotificationType getNotificationTypeForUser(String studyId, LocalDate date, StudyParticipant participant,
-            ActivityEvent burstEvent) {
+    // Returns the notification type (or null if we shouldn't send a notification). If the participant completed the
+    // burst, this is recorded in the user state, so it can be saved to the burst calendar.
+    private NotificationType getNotificationTypeForUser(UserState userState, StudyParticipant participant,
+            TimeZoneTable.ZoneInfo zoneInfo, ActivityEvent burstEvent) {
+        String studyId = userState.runContext.getStudyId();
+        LocalDate date = userState.runContext.getDate();
+        CompiledWorkerConfig workerConfig = userState.runContext.getWorkerConfig();
         String userId = participant.getId();
-
-        WorkerConfig workerConfig = dynamoHelper.getNotificationConfigForStudy(studyId);
         String taskId = workerConfig.getBurstTaskId();
-        int numMissedDaysToNotify = workerConfig.getNumMissedDaysToNotify();
-        int numMissedConsecutiveDaysToNotify = workerConfig.getNumMissedConsecutiveDaysToNotify();
-
-        // Get user's activities between the burst start and now, including today's activities. Note that because of
-        // how scheduling works, we might have tasks scheduled on midnight before the start of the activity burst.
-        DateTimeZone timeZone = DateUtils.parseZoneFromOffsetString(participant.getTimeZone());
+        DateTimeZone timeZone = zoneInfo.getTimeZone();
         LocalDate burstStartDate = burstEvent.getTimestamp().withZone(timeZone).toLocalDate();
-        DateTime activityRangeStart = burstStartDate.toDateTimeAtStartOfDay(timeZone);
-        DateTime activityRangeEnd = date.plusDays(1).toDateTimeAtStartOfDay(timeZone);
-        Iterator<ScheduledActivity> activityIterator = bridgeHelper.getTaskHistory(studyId, userId, taskId,
-                activityRangeStart, activityRangeEnd);
-
-        // If the user somehow has no activities with this task ID, don't notify the user. The account is probably not
-        // fully bootstrapped, and we should avoid sending them a notification.
-        if (!activityIterator.hasNext()) {
-            return null;
+
+        // Start with the days of the burst we've already recorded, if any.
+        BurstAdherenceEvaluator evaluator = new BurstAdherenceEvaluator(workerConfig);
+        BurstAdherenceRecord adherenceRecord = null;
+        int numRecordedDays = 0;
+        if (burstAdherenceRecordEnabled && !userState.dryRun) {
+            adherenceRecord = getBurstAdherenceRecord(studyId, userId, taskId, burstStartDate, date);
+            numRecordedDays = adherenceRecord.getNumDays();
+            for (int i = 0; i < numRecordedDays && !evaluator.isDecided(); i++) {
+                evaluator.addDay(adherenceRecord.isDayFinished(i));
+            }
         }
+        LocalDate nextDay = burstStartDate.plusDays(numRecordedDays);
+
+        // Whether the user finished today's activity, if we've already read it, and whether we've read everything
+        // through the end of today. We might read today's activity and then decide on the days before it, so we have
+        // to remember it for the check at the end.
+        Iterator<ScheduledActivity> activityIterator = null;
+        Boolean todaysActivityFinished = null;
+        boolean readThroughToday = false;
+        if (!evaluator.isDecided()) {
+            // Get user's activities between the first unrecorded day and now, including today's activities. Note that
+            // because of how scheduling works, we might have tasks scheduled on midnight before the start of the
+            // activity burst.
+            DateTime activityRangeStart = nextDay.toDateTimeAtStartOfDay(timeZone);
+            DateTime activityRangeEnd = zoneInfo.getDateEnd();
+            activityIterator = userState.getTaskHistory(taskId, activityRangeStart, activityRangeEnd);
+
+            // If the user somehow has no activities with this task ID, don't notify the user. The account is probably
+            // not fully bootstrapped, and we should avoid sending them a notification.
+            if (numRecordedDays == 0 && !activityIterator.hasNext()) {
+                return null;
+            }
 
-        // Map the events by scheduled date so it's easier to work with.
-        Map<LocalDate, ScheduledActivity> activitiesByDate = new HashMap<>();
-        while (activityIterator.hasNext()) {
-            ScheduledActivity oneActivity = activityIterator.next();
-            LocalDate scheduleDate = oneActivity.getScheduledOn().withZone(timeZone).toLocalDate();
-            if (activitiesByDate.containsKey(scheduleDate)) {
-                // This shouldn't happen. If it does, log a warning and move on.
-                LOG.warn("Duplicate activities found for userId=" + userId + ", taskId=" + taskId + ", date=" +
-                        scheduleDate);
-            } else {
-                activitiesByDate.put(scheduleDate, oneActivity);
+            // Bridge returns task history in scheduled order. Walk the activities, feeding each day of the burst into
+            // the evaluator. Days with no activity count as missed. Stop reading as soon as the evaluator has decided,
+            // so we don't call Bridge for pages we don't need.
+            LocalDate lastScheduleDate = null;
+            while (!evaluator.isDecided()) {
+                if (!activityIterator.hasNext()) {
+                    readThroughToday = true;
+                    break;
+                }
+                ScheduledActivity oneActivity = activityIterator.next();
+                LocalDate scheduleDate = oneActivity.getScheduledOn().withZone(timeZone).toLocalDate();
+                if (scheduleDate.isAfter(date)) {
+                    // Activities are in order, so there's nothing left in the range we care about.
+                    readThroughToday = true;
+                    break;
+                }
+                if (scheduleDate.equals(lastScheduleDate)) {
+                    // This shouldn't happen. If it does, log a warning and move on.
+                    LOG.warn("Duplicate activities found for userId=" + userId + ", taskId=" + taskId + ", date=" +
+                            scheduleDate);
+                    continue;
+                }
+                lastScheduleDate = scheduleDate;
+                if (scheduleDate.equals(date)) {
+                    todaysActivityFinished = oneActivity.getStatus() == ScheduleStatus.FINISHED;
+                }
+
+                for (; nextDay.isBefore(scheduleDate) && !evaluator.isDecided(); nextDay = nextDay.plusDays(1)) {
+                    addDay(evaluator, adherenceRecord, nextDay, date, false);
+                }
+                if (nextDay.equals(scheduleDate) && !evaluator.isDecided()) {
+                    addDay(evaluator, adherenceRecord, nextDay, date,
+                            oneActivity.getStatus() == ScheduleStatus.FINISHED);
+                    nextDay = nextDay.plusDays(1);
+                }
+            }
+
+            // Any remaining days through today have no activities, and are missed.
+            for (; !nextDay.isAfter(date) && !evaluator.isDecided(); nextDay = nextDay.plusDays(1)) {
+                addDay(evaluator, adherenceRecord, nextDay, date, false);
+            }
+
+            // Save any days we've added to the record.
+            if (adherenceRecord != null && adherenceRecord.getNumDays() > numRecordedDays) {
+                dynamoHelper.bufferBurstAdherenceRecord(adherenceRecord);
             }
         }
 
-        // Check today's activities first. If they did today's activities, don't bother notifying.
-        ScheduledActivity todaysActivity = activitiesByDate.get(date);
-        if (todaysActivity != null && todaysActivity.getStatus() == ScheduleStatus.FINISHED) {
-            return null;
+        if (evaluator.isCompleted()) {
+            userState.completedBurstStartDate = burstStartDate;
         }
 
-        // Loop through activities in order by date
-        int daysMissed = 0;
-        int consecutiveDaysMissed = 0;
-        int numDays = 0;
-        int numActivitiesCompleted = 0;
-        for (LocalDate d = burstStartDate; !d.isAfter(date); d = d.plusDays(1)) {
-            ScheduledActivity daysActivity = activitiesByDate.get(d);
-            if (daysActivity == null || daysActivity.getStatus() != ScheduleStatus.FINISHED) {
-                daysMissed++;
-                consecutiveDaysMissed++;
+        NotificationType notificationType = evaluator.getNotificationType();
+        if (notificationType == null) {
+            return null;
+        }
 
-                if (daysMissed >= numMissedDaysToNotify) {
-                    return NotificationType.CUMULATIVE;
-                }
-                if (consecutiveDaysMissed >= numMissedConsecutiveDaysToNotify) {
-                    if (numDays < workerConfig.getEarlyLateCutoffDays()) {
-                        return NotificationType.EARLY;
-                    } else {
-                        return NotificationType.LATE;
-                    }
-                }
+        // If they did today's activities, don't bother notifying. If the evaluator decided on today, then we already
+        // know today's activity wasn't finished. If we already read today's activity, or read past today without
+        // finding one, we know the answer. Otherwise, we still need to check.
+        LocalDate decidedDate = burstStartDate.plusDays(evaluator.getNumDays() - 1);
+        if (decidedDate.isBefore(date)) {
+            boolean finishedToday;
+            if (todaysActivityFinished != null) {
+                finishedToday = todaysActivityFinished;
+            } else if (readThroughToday) {
+                finishedToday = false;
             } else {
-                consecutiveDaysMissed = 0;
-                numActivitiesCompleted++;
-
-                if (numActivitiesCompleted >= workerConfig.getNumActivitiesToCompleteBurst()) {
-                    // Participant has completed requisite number of activities to complete the study burst. We won't
-                    // send a notification. No need to process any further.
-                    return null;
-                }
+                finishedToday = isActivityFinishedOnDate(userState, taskId, zoneInfo, date, activityIterator);
             }
+            if (finishedToday) {
+                return null;
+            }
+        }
+        return notificationType;
+    }
 
-            // Increment the day counter so we can determine early vs late.
-            numDays++;
+    // Helper method to get the user's adherence record for the given burst. Only days before the given date are used,
+    // since today isn't over yet. If the user doesn't have a record for this burst, or the record can't be read,
+    // returns a new empty record.
+    private BurstAdherenceRecord getBurstAdherenceRecord(String studyId, String userId, String taskId,
+            LocalDate burstStartDate, LocalDate date) {
+        BurstAdherenceRecord record = null;
+        try {
+            record = dynamoHelper.getBurstAdherenceRecord(studyId, userId);
+        } catch (RuntimeException ex) {
+            LOG.error("Error getting burst adherence record for user " + userId + ": " + ex.getMessage(), ex);
         }
 
-        // If we make it this far, we've determined we don't need to notify.
-        return null;
+        if (record != null && burstStartDate.equals(record.getBurstStartDate()) &&
+                taskId.equals(record.getBurstTaskId())) {
+            // If we're re-running an earlier date, we only use the days before that date.
+            int numFinalDays = Math.max(Days.daysBetween(burstStartDate, date).getDays(), 0);
+            if (record.getNumDays() > numFinalDays) {
+                record.setNumDays(numFinalDays);
+            }
+            return record;
+        }
+
+        BurstAdherenceRecord newRecord = new BurstAdherenceRecord();
+        newRecord.setBurstStartDate(burstStartDate);
+        newRecord.setBurstTaskId(taskId);
+        newRecord.setStudyId(studyId);
+        newRecord.setUserId(userId);
+        return newRecord;
     }
 
-    // Encapsulates sending an SMS notification to the user.
-    private void notifyUser(String studyId, StudyParticipant participant, NotificationType notificationType)
-            throws IOException {
-        String userId = participant.getId();
-        WorkerConfig workerConfig = dynamoHelper.getNotificationConfigForStudy(studyId);
+    // Helper method to add a day to the evaluator. If the day is over, also add it to the adherence record (if any).
+    private static void addDay(BurstAdherenceEvaluator evaluator, BurstAdherenceRecord adherenceRecord, LocalDate day,
+            LocalDate date, boolean finished) {
+        evaluator.addDay(finished);
+        if (adherenceRecord != null && day.isBefore(date)) {
+            adherenceRecord.addDay(finished);
+        }
+    }
 
-        // Get notification messages for type.
-        Map<String, String> messagesByDataGroup;
-        switch (notificationType) {
-            case CUMULATIVE:
-                messagesByDataGroup = workerConfig.getMissedCumulativeActivitiesMessagesByDataGroup();
-                break;
-            case EARLY:
-                messagesByDataGroup = workerConfig.getMissedEarlyActivitiesMessagesByDataGroup();
-                break;
-            case LATE:
-                messagesByDataGroup = workerConfig.getMissedLaterActivitiesMessagesByDataGroup();
-                break;
-            case PRE_BURST:
-                messagesByDataGroup = workerConfig.getPreburstMessagesByDataGroup();
-                break;
-            default:
-                throw new IllegalStateException("Unexpected type " + notificationType);
+    // Helper method which determines if the user finished their first activity scheduled on the given date. Reads the
+    // rest of the activity iterator if it's already loaded. If the iterator still needs to call Bridge (or we never
+    // read task history because the adherence record decided), then make one call for just that date instead of paging
+    // through the rest of the range.
+    private boolean isActivityFinishedOnDate(UserState userState, String taskId, TimeZoneTable.ZoneInfo zoneInfo,
+            LocalDate date, Iterator<ScheduledActivity> activityIterator) {
+        Iterator<ScheduledActivity> dateIterator = activityIterator;
+        if (activityIterator == null || (activityIterator instanceof TaskHistoryIterator &&
+                !((TaskHistoryIterator) activityIterator).hasNextItemInPage())) {
+            dateIterator = userState.getTaskHistory(taskId, zoneInfo.getDateStart(), zoneInfo.getDateEnd());
         }
 
-        // Narrow down notification messages for data group.
-        String message = null;
-        for (String oneDataGroup : participant.getDataGroups()) {
-            if (messagesByDataGroup.containsKey(oneDataGroup)) {
-                message = messagesByDataGroup.get(oneDataGroup);
-                break;
+        DateTimeZone timeZone = zoneInfo.getTimeZone();
+
+        while (dateIterator.hasNext()) {
+            ScheduledActivity oneActivity = dateIterator.next();
+            LocalDate scheduleDate = oneActivity.getScheduledOn().withZone(timeZone).toLocalDate();
+            if (scheduleDate.equals(date)) {
+                return oneActivity.getStatus() == ScheduleStatus.FINISHED;
             }
         }
+        return false;
+    }
+
+    // Encapsulates sending an SMS notification to the user.
+    private void notifyUser(UserState userState, StudyParticipant participant, NotificationType notificationType)
+            throws IOException {
+        String studyId = userState.runContext.getStudyId();
+        CompiledWorkerConfig workerConfig = userState.runContext.getWorkerConfig();
+        String userId = participant.getId();
+
+        // Get notification message for type, narrowed down by data group.
+        String message = workerConfig.getMessageForDataGroups(notificationType, participant.getDataGroups());
         if (message == null) {
             throw new IllegalStateException("No messages found for type " + notificationType + " for user " + userId);
         }
 
-        LOG.info("Sending " + notificationType.name() + " notification to user " + userId);
+        // In a dry run, only remember what we would have sent.
+        if (userState.dryRun) {
+            userState.dryRunNotificationType = notificationType;
+            return;
+        }
+
+        // Claim the user in the run ledger before we send anything. If another delivery of this request already
+        // notified the user, don't notify them again.
+        if (runLedgerEnabled) {
+            userState.notificationClaimed = true;
+            if (!dynamoHelper.claimRunLedgerNotification(makeRunLedgerEntry(userState.runContext, userId,
+                    RunLedgerStatus.NOTIFIED))) {
+                LOG.info("User " + userId + " was already notified for this study and date, skipping");
+                return;
+            }
+        }
 
-        // Log in Dynamo that we notified this user
+        // Log in Dynamo that we notified this user. Normally, this is written in the background, and flushed at the
+        // end of the run. With conditional writes, it's written at the run's notification time before we send
+        // anything, so if another node in the same run already logged the user, we don't notify them again.
         UserNotification userNotification = new UserNotification();
         userNotification.setMessage(message);
-        userNotification.setTime(DateUtils.getCurrentMillisFromEpoch());
+        userNotification.setStudyId(studyId);
         userNotification.setType(notificationType);
         userNotification.setUserId(userId);
-        dynamoHelper.setLastNotificationTimeForUser(userNotification);
+        if (conditionalNotificationLogEnabled) {
+            userNotification.setTime(userState.runContext.getNotificationTime());
+            if (!dynamoHelper.claimNotificationLog(userNotification)) {
+                LOG.info("User " + userId + " was already notified in this run, skipping");
+                return;
+            }
+        } else {
+            userNotification.setTime(DateUtils.getCurrentMillisFromEpoch());
+            dynamoHelper.bufferNotificationLog(userNotification);
+        }
 
         // Send SMS
+        LOG.info("Sending " + notificationType.name() + " notification to user " + userId);
         bridgeHelper.sendSmsToUser(studyId, userId, message);
     }
+
+    // Helper method to make a run ledger entry for the given user, as of now.
+    private static RunLedgerEntry makeRunLedgerEntry(RunContext runContext, String userId, RunLedgerStatus status) {
+        RunLedgerEntry entry = new RunLedgerEntry();
+        entry.setDate(runContext.getDate());
+        entry.setStatus(status);
+        entry.setStudyId(runContext.getStudyId());
+        entry.setUpdatedOn(DateUtils.getCurrentMillisFromEpoch());
+        entry.setUserId(userId);
+        return entry;
+    }
+
+    // Helper method to compute the activity event cache marker for a user. Bridge doesn't tell us when a user's
+    // activity events change, so we use a fingerprint of the user's account summary as a proxy. The config's burst
+    // start event IDs are included, since the cache only holds events that match them. Package-scoped for unit tests.
+    static long computeActivityEventMarker(AccountSummary accountSummary, Set<String> burstStartEventIdSet) {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        hasher.putString(String.valueOf(accountSummary), Charsets.UTF_8).putByte((byte) 0);
+        putSortedStrings(hasher, burstStartEventIdSet);
+        return hasher.hash().asLong();
+    }
+
+    // Helper method to check whether the list has a timestamped event for each of the given event IDs. Bridge doesn't
+    // tell us when an event is added, so we only cache a user's activity events once none are missing.
+    private static boolean hasEveryEvent(List<ActivityEvent> activityEventList, Set<String> eventIdSet) {
+        Set<String> foundEventIdSet = activityEventList.stream().filter(activityEvent -> activityEvent.getTimestamp()
+                != null).map(ActivityEvent::getEventId).collect(Collectors.toSet());
+        return foundEventIdSet.containsAll(eventIdSet);
+    }
+
+    // Helper method to compute the exclusion cache marker for a user. This is a fingerprint of the user's account
+    // summary, like the other markers, and of the config fields that the cached exclusion reasons depend on. Other
+    // config changes, like message text, don't invalidate the cache. Package-scoped for unit tests.
+    static long computeExclusionMarker(AccountSummary accountSummary, CompiledWorkerConfig workerConfig) {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        hasher.putString(String.valueOf(accountSummary), Charsets.UTF_8).putByte((byte) 0);
+        putSortedStrings(hasher, workerConfig.getExcludedDataGroupSet());
+        putSortedStrings(hasher, workerConfig.getRequiredDataGroupsOneOfSet());
+        putSortedStrings(hasher, workerConfig.getRequiredSubpopulationGuidSet());
+        return hasher.hash().asLong();
+    }
+
+    // Helper method to add a set of strings to a hash, in a way that doesn't depend on the set's order.
+    private static void putSortedStrings(Hasher hasher, Set<String> stringSet) {
+        hasher.putInt(stringSet.size());
+        for (String oneString : ImmutableSortedSet.copyOf(stringSet)) {
+            hasher.putString(oneString, Charsets.UTF_8).putByte((byte) 0);
+        }
+    }
+
+    // Helper method to compute the participant snapshot cache marker for a user. Like the activity event marker, this
+    // is a fingerprint of the user's account summary. Package-scoped for unit tests.
+    static long computeParticipantSnapshotMarker(AccountSummary accountSummary) {
+        return Hashing.murmur3_128().hashString(String.valueOf(accountSummary), Charsets.UTF_8).asLong();
+    }
+
+    // Run-wide state shared by each range of the roster that a request processes, and the run's totals.
+    private static class RunScope {
+        private final String studyId;
+        private final RunContext runContext;
+        private final List<RunContext> backfillRunContextList;
+        private final boolean backfillSendLatest;
+        private final Map<String, RunLedgerStatus> runLedger;
+        private final List<String> targetUserIdList;
+        private final StudyRunLeaseKeeper studyRunLeaseKeeper;
+
+        // Totals across ranges. numUsers is updated by the processing threads. The others are only updated by the
+        // thread that reads the roster.
+        private final AtomicInteger numUsers = new AtomicInteger();
+        private final Stopwatch stopwatch = Stopwatch.createStarted();
+        private int numErrors;
+        private int numFailedNotificationLogWrites;
+        private int numSkippedByLedger;
+
+        RunScope(String studyId, RunContext runContext, List<RunContext> backfillRunContextList,
+                boolean backfillSendLatest, Map<String, RunLedgerStatus> runLedger, List<String> targetUserIdList,
+                StudyRunLeaseKeeper studyRunLeaseKeeper) {
+            this.studyId = studyId;
+            this.runContext = runContext;
+            this.backfillRunContextList = backfillRunContextList;
+            this.backfillSendLatest = backfillSendLatest;
+            this.runLedger = runLedger;
+            this.targetUserIdList = targetUserIdList;
+            this.studyRunLeaseKeeper = studyRunLeaseKeeper;
+        }
+    }
+
+    // Per-user state for the exclusion stages. Fetches the participant, activity events, and last notification the
+    // first time they're needed, and records how long each fetch took. Each user is processed on a single thread, so
+    // this doesn't need to be thread-safe.
+    private class UserState {
+        private final AccountSummary accountSummary;
+        private final RunContext runContext;
+        private final String userId;
+
+        // Fetched resources.
+        private StudyParticipant participant;
+        private ParticipantSnapshot participantSnapshot;
+        private boolean participantSnapshotFromCache;
+        private List<ActivityEvent> activityEventList;
+        private UserNotification lastNotification;
+        private boolean lastNotificationFetched;
+        private TimeZoneTable.ZoneInfo zoneInfo;
+        private boolean zoneInfoResolved;
+
+        // Total time spent fetching resources, so stages can subtract it from their own time.
+        private long fetchNanos;
+
+        // Results of the burst window stage.
+        private ActivityEvent upcomingBurstEvent;
+        private ActivityEvent currentBurstEvent;
+
+        // Start date of the current burst, if the user completed it.
+        private LocalDate completedBurstStartDate;
+
+        // Whether we've claimed this user for a notification in the run ledger.
+        private boolean notificationClaimed;
+
+        // In a backfill, the last date of the backfill. The task history is fetched once, through the end of that
+        // date, and each date's range is served from memory. Null if this isn't a backfill.
+        private LocalDate backfillEndDate;
+        private DateTime taskHistoryStart;
+        private List<ScheduledActivity> taskHistoryList;
+
+        // In a dry run, we don't notify the user or write anything, including the local caches. We only remember
+        // what we would have sent.
+        private boolean dryRun;
+        private NotificationType dryRunNotificationType;
+
+        UserState(RunContext runContext, AccountSummary accountSummary) {
+            this.accountSummary = accountSummary;
+            this.runContext = runContext;
+            this.userId = accountSummary.getId();
+        }
+
+        // Creates the state for the same user on another date of a backfill. Everything that doesn't depend on the
+        // date is carried over, so it isn't fetched again.
+        UserState(RunContext runContext, UserState previousState) {
+            this(runContext, previousState.accountSummary);
+            this.participant = previousState.participant;
+            this.participantSnapshot = previousState.participantSnapshot;
+            this.participantSnapshotFromCache = previousState.participantSnapshotFromCache;
+            this.activityEventList = previousState.activityEventList;
+            this.lastNotification = previousState.lastNotification;
+            this.lastNotificationFetched = previousState.lastNotificationFetched;
+            this.taskHistoryStart = previousState.taskHistoryStart;
+            this.taskHistoryList = previousState.taskHistoryList;
+        }
+
+        // Fetch the participant from Bridge. This also replaces the participant snapshot, and caches it if the
+        // participant snapshot cache is enabled and the snapshot is eligible.
+        StudyParticipant getParticipant() throws IOException {
+            if (participant == null) {
+                long startNanos = System.nanoTime();
+                participant = bridgeHelper.getParticipant(runContext.getStudyId(), userId);
+                participantSnapshot = makeParticipantSnapshot(participant);
+                participantSnapshotFromCache = false;
+                if (participantSnapshotCacheEnabled && !dryRun && isEligibleSnapshot(participantSnapshot,
+                        runContext)) {
+                    participantSnapshotCache.put(runContext.getStudyId(), userId, computeParticipantSnapshotMarker(
+                            accountSummary), participantSnapshot);
+                }
+                recordFetch(UserResource.PARTICIPANT, startNanos);
+            }
+            return participant;
+        }
+
+        // Get the participant's eligibility fields. If the participant snapshot cache is enabled, use the cached
+        // snapshot if it's still valid. Otherwise, fetch the participant.
+        ParticipantSnapshot getParticipantSnapshot() throws IOException {
+            if (participantSnapshot == null && participantSnapshotCacheEnabled) {
+                long startNanos = System.nanoTime();
+                participantSnapshot = participantSnapshotCache.get(runContext.getStudyId(), userId,
+                        computeParticipantSnapshotMarker(accountSummary));
+                if (participantSnapshot != null) {
+                    participantSnapshotFromCache = true;
+                    recordFetch(UserResource.PARTICIPANT, startNanos);
+                }
+            }
+            if (participantSnapshot == null) {
+                getParticipant();
+            }
+            return participantSnapshot;
+        }
+
+        // If the participant snapshot came from the cache, fetch the participant to replace it. Returns true if the
+        // snapshot was replaced. This also clears the results that depend on the snapshot, so the stages can be run
+        // again.
+        boolean refreshParticipantSnapshot() throws IOException {
+            if (!participantSnapshotFromCache) {
+                return false;
+            }
+            getParticipant();
+            zoneInfo = null;
+            zoneInfoResolved = false;
+            upcomingBurstEvent = null;
+            currentBurstEvent = null;
+            return true;
+        }
+
+        // Look up the participant's time zone. This is the only time zone parsing we do for this user. Returns null
+        // if the user doesn't have a time zone.
+        TimeZoneTable.ZoneInfo getZoneInfo() throws IOException {
+            if (!zoneInfoResolved) {
+                String timeZoneString = getParticipantSnapshot().getTimeZone();
+                zoneInfo = timeZoneString != null ? runContext.getTimeZoneTable().get(timeZoneString) : null;
+                zoneInfoResolved = true;
+            }
+            return zoneInfo;
+        }
+
+        // Get user's activity events. Filter events that aren't study burst starts. If the activity event cache is
+        // enabled, use the cached events if they're still valid, and cache the events we fetch.
+        List<ActivityEvent> getActivityEvents() throws IOException {
+            if (activityEventList == null) {
+                long startNanos = System.nanoTime();
+                String studyId = runContext.getStudyId();
+                Set<String> burstStartEventIdSet = runContext.getWorkerConfig().getBurstStartEventIdSet();
+                long marker = activityEventCacheEnabled ? computeActivityEventMarker(accountSummary,
+                        burstStartEventIdSet) : 0;
+                if (activityEventCacheEnabled) {
+                    activityEventList = activityEventCache.get(studyId, userId, marker);
+                }
+                if (activityEventList == null) {
+                    activityEventList = bridgeHelper.getActivityEvents(studyId, userId).stream()
+                            .filter(activityEvent -> burstStartEventIdSet.contains(activityEvent.getEventId()))
+                            .collect(Collectors.toList());
+                    if (activityEventCacheEnabled && !dryRun && hasEveryEvent(activityEventList,
+                            burstStartEventIdSet)) {
+                        activityEventCache.put(studyId, userId, marker, activityEventList);
+                    }
+                }
+                recordFetch(UserResource.ACTIVITY_EVENTS, startNanos);
+            }
+            return activityEventList;
+        }
+
+        // Time the user is evaluated as of. For an earlier date of a backfill, this is the same time of day on that
+        // date, so time windows like the recent notification window are measured from that date.
+        DateTime getEvaluationTime() {
+            DateTime now = DateTime.now();
+            if (backfillEndDate == null) {
+                return now;
+            }
+            return now.minusDays(Days.daysBetween(runContext.getDate(), backfillEndDate).getDays());
+        }
+
+        // Get user's entry from the run's burst calendar. Returns null if the burst calendar wasn't loaded, or if the
+        // user doesn't have an entry.
+        BurstCalendarEntry getBurstCalendarEntry() {
+            Map<String, BurstCalendarEntry> burstCalendarByUserId = runContext.getBurstCalendarByUserId();
+            return burstCalendarByUserId != null ? burstCalendarByUserId.get(userId) : null;
+        }
+
+        // Get user's last notification. Use the run's recent notification index if we have one. Users who aren't in
+        // the index weren't notified recently.
+        UserNotification getLastNotification() {
+            if (!lastNotificationFetched) {
+                long startNanos = System.nanoTime();
+                Map<String, UserNotification> recentNotificationsByUserId = runContext
+                        .getRecentNotificationsByUserId();
+                lastNotification = recentNotificationsByUserId != null ? recentNotificationsByUserId.get(userId) :
+                        dynamoHelper.getLastNotificationTimeForUser(userId);
+                lastNotificationFetched = true;
+                recordFetch(UserResource.LAST_NOTIFICATION, startNanos);
+            }
+            return lastNotification;
+        }
+
+        // Get user's task history in the given range. In a backfill, fetch everything from the start of the range
+        // through the end of the backfill, and keep it for the later dates. Otherwise, read from Bridge one page at a
+        // time.
+        Iterator<ScheduledActivity> getTaskHistory(String taskId, DateTime rangeStart, DateTime rangeEnd) {
+            if (backfillEndDate == null) {
+                return bridgeHelper.getTaskHistory(runContext.getStudyId(), userId, taskId, rangeStart, rangeEnd);
+            }
+
+            if (taskHistoryList == null || rangeStart.isBefore(taskHistoryStart)) {
+                DateTime backfillEnd = backfillEndDate.plusDays(1).toDateTimeAtStartOfDay(rangeEnd.getZone());
+                taskHistoryList = ImmutableList.copyOf(bridgeHelper.getTaskHistory(runContext.getStudyId(), userId,
+                        taskId, rangeStart, backfillEnd));
+                taskHistoryStart = rangeStart;
+            }
+            return taskHistoryList.stream().filter(activity -> !activity.getScheduledOn().isBefore(rangeStart) &&
+                    activity.getScheduledOn().isBefore(rangeEnd)).iterator();
+        }
+
+        private void recordFetch(UserResource resource, long startNanos) {
+            long nanos = System.nanoTime() - startNanos;
+            fetchNanos += nanos;
+            runContext.getExclusionPipeline().recordFetch(resource, nanos);
+        }
+    }
 }
@@ -0,0 +1,96 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+/**
+ * Evaluates a participant's adherence to a study burst, one day at a time, in order from the start of the burst. This
+ * determines which notification (if any) we should send, and lets the caller stop reading activities as soon as the
+ * answer is known.
+ */
+public class BurstAdherenceEvaluator {
+    // Instance invariants
+    private final int earlyLateCutoffDays;
+    private final int numActivitiesToCompleteBurst;
+    private final int numMissedConsecutiveDaysToNotify;
+    private final int numMissedDaysToNotify;
+
+    // Instance state tracking
+    private int consecutiveDaysMissed = 0;
+    private int daysMissed = 0;
+    private boolean decided = false;
+    private int numActivitiesCompleted = 0;
+    private int numDays = 0;
+    private NotificationType notificationType;
+
+    /** Constructs an evaluator for the given config. */
+    public BurstAdherenceEvaluator(CompiledWorkerConfig workerConfig) {
+        this.earlyLateCutoffDays = workerConfig.getEarlyLateCutoffDays();
+        this.numActivitiesToCompleteBurst = workerConfig.getNumActivitiesToCompleteBurst();
+        this.numMissedConsecutiveDaysToNotify = workerConfig.getNumMissedConsecutiveDaysToNotify();
+        this.numMissedDaysToNotify = workerConfig.getNumMissedDaysToNotify();
+    }
+
+    /**
+     * Adds the next day of the burst, and whether the participant finished that day's activity. Returns true if the
+     * evaluation is now decided. Once decided, additional days are ignored.
+     */
+    public boolean addDay(boolean finished) {
+        if (decided) {
+            return true;
+        }
+
+        if (!finished) {
+            daysMissed++;
+            consecutiveDaysMissed++;
+
+            if (daysMissed >= numMissedDaysToNotify) {
+                decide(NotificationType.CUMULATIVE);
+            } else if (consecutiveDaysMissed >= numMissedConsecutiveDaysToNotify) {
+                decide(numDays < earlyLateCutoffDays ? NotificationType.EARLY : NotificationType.LATE);
+            }
+        } else {
+            consecutiveDaysMissed = 0;
+            numActivitiesCompleted++;
+
+            if (numActivitiesCompleted >= numActivitiesToCompleteBurst) {
+                // Participant has completed requisite number of activities to complete the study burst. We won't send
+                // a notification.
+                decide(null);
+            }
+        }
+
+        // Increment the day counter so we can determine early vs late.
+        numDays++;
+        return decided;
+    }
+
+    // Helper method to record the decision.
+    private void decide(NotificationType notificationType) {
+        this.decided = true;
+        this.notificationType = notificationType;
+    }
+
+    /** True if adding more days can't change the result. */
+    public boolean isDecided() {
+        return decided;
+    }
+
+    /**
+     * True if the participant completed the burst. The result can't change for the rest of the burst, so there's no
+     * need to check this participant again until the next burst.
+     */
+    public boolean isCompleted() {
+        return decided && notificationType == null;
+    }
+
+    /** Number of days added so far, up to and including the day that decided the evaluation. */
+    public int getNumDays() {
+        return numDays;
+    }
+
+    /**
+     * The notification to send, or null if we shouldn't send one. If the evaluation isn't decided, this is the result
+     * for the days added so far, which is null.
+     */
+    public NotificationType getNotificationType() {
+        return notificationType;
+    }
+}
@@ -0,0 +1,89 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+import java.util.BitSet;
+
+import org.joda.time.LocalDate;
+
+/**
+ * A user's adherence to their current study burst, for the days of the burst that are already over. Those days can't
+ * change, so daily runs only need to read task history for the days after the ones in this record.
+ */
+public class BurstAdherenceRecord {
+    private LocalDate burstStartDate;
+    private String burstTaskId;
+    private BitSet finishedDays = new BitSet();
+    private int numDays;
+    private String studyId;
+    private String userId;
+
+    /** Appends the next day of the burst, and whether the user finished that day's activity. */
+    public void addDay(boolean finished) {
+        finishedDays.set(numDays, finished);
+        numDays++;
+    }
+
+    /** True if the user finished the activity on the given day of the burst, where 0 is the first day. */
+    public boolean isDayFinished(int day) {
+        return finishedDays.get(day);
+    }
+
+    /** Start date of the burst, in the user's time zone. */
+    public LocalDate getBurstStartDate() {
+        return burstStartDate;
+    }
+
+    /** @see #getBurstStartDate */
+    public void setBurstStartDate(LocalDate burstStartDate) {
+        this.burstStartDate = burstStartDate;
+    }
+
+    /** Task ID of the burst activity. If the study's config changes, the record needs to be recomputed. */
+    public String getBurstTaskId() {
+        return burstTaskId;
+    }
+
+    /** @see #getBurstTaskId */
+    public void setBurstTaskId(String burstTaskId) {
+        this.burstTaskId = burstTaskId;
+    }
+
+    /** Bitmap of which days of the burst the user finished the activity on. Bit 0 is the first day. */
+    public BitSet getFinishedDays() {
+        return finishedDays;
+    }
+
+    /** @see #getFinishedDays */
+    public void setFinishedDays(BitSet finishedDays) {
+        this.finishedDays = finishedDays;
+    }
+
+    /** Number of days of the burst in this record, starting from the first day. */
+    public int getNumDays() {
+        return numDays;
+    }
+
+    /** @see #getNumDays */
+    public void setNumDays(int numDays) {
+        this.numDays = numDays;
+    }
+
+    /** Study the user belongs to. */
+    public String getStudyId() {
+        return studyId;
+    }
+
+    /** @see #getStudyId */
+    public void setStudyId(String studyId) {
+        this.studyId = studyId;
+    }
+
+    /** ID of the user this record is for. */
+    public String getUserId() {
+        return userId;
+    }
+
+    /** @see #getUserId */
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+}
@@ -0,0 +1,87 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.joda.time.LocalDate;
+
+/**
+ * A user's entry in the burst calendar, which records when each of the user's study bursts start, and which bursts the
+ * user already completed. This lets daily runs skip users who are nowhere near a burst, or who have nothing left to do
+ * in the current burst, without calling Bridge.
+ */
+public class BurstCalendarEntry {
+    private List<LocalDate> burstStartDateList;
+    private Set<String> burstStartEventIdSet;
+    private Set<LocalDate> completedBurstStartDateSet = new HashSet<>();
+    private String studyId;
+    private long updatedOn;
+    private String userId;
+
+    /** Start date of each of the user's study bursts, in the user's time zone. */
+    public List<LocalDate> getBurstStartDateList() {
+        return burstStartDateList;
+    }
+
+    /** @see #getBurstStartDateList */
+    public void setBurstStartDateList(List<LocalDate> burstStartDateList) {
+        this.burstStartDateList = burstStartDateList;
+    }
+
+    /**
+     * Burst start event IDs from the study's config when this entry was computed. If the config changes, the entry
+     * needs to be recomputed.
+     */
+    public Set<String> getBurstStartEventIdSet() {
+        return burstStartEventIdSet;
+    }
+
+    /** @see #getBurstStartEventIdSet */
+    public void setBurstStartEventIdSet(Set<String> burstStartEventIdSet) {
+        this.burstStartEventIdSet = burstStartEventIdSet;
+    }
+
+    /**
+     * Start dates of the bursts the user already completed, in the user's time zone. Each is one of the dates in
+     * {@link #getBurstStartDateList}. We never notify a user for the rest of a burst they've completed.
+     */
+    public Set<LocalDate> getCompletedBurstStartDateSet() {
+        return completedBurstStartDateSet;
+    }
+
+    /** @see #getCompletedBurstStartDateSet */
+    public void setCompletedBurstStartDateSet(Set<LocalDate> completedBurstStartDateSet) {
+        this.completedBurstStartDateSet = completedBurstStartDateSet;
+    }
+
+    /** Study the user belongs to. */
+    public String getStudyId() {
+        return studyId;
+    }
+
+    /** @see #getStudyId */
+    public void setStudyId(String studyId) {
+        this.studyId = studyId;
+    }
+
+    /** Time in epoch milliseconds that this entry was computed. */
+    public long getUpdatedOn() {
+        return updatedOn;
+    }
+
+    /** @see #getUpdatedOn */
+    public void setUpdatedOn(long updatedOn) {
+        this.updatedOn = updatedOn;
+    }
+
+    /** ID of the user this entry is for. */
+    public String getUserId() {
+        return userId;
+    }
+
+    /** @see #getUserId */
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+}
@@ -0,0 +1,178 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.Maps;
+
+/**
+ * Immutable, validated snapshot of a study's {@link WorkerConfig}. This is resolved once per run and passed to the
+ * per-user code, so that every user in the run sees the same config and the per-user path does no config lookups.
+ */
+public final class CompiledWorkerConfig {
+    private final int burstDurationDays;
+    private final Set<String> burstStartEventIdSet;
+    private final String burstTaskId;
+    private final int earlyLateCutoffDays;
+    private final Set<String> excludedDataGroupSet;
+    private final Map<NotificationType, Map<String, String>> messagesByDataGroupByType;
+    private final int notificationBlackoutDaysFromStart;
+    private final int notificationBlackoutDaysFromEnd;
+    private final int numActivitiesToCompleteBurst;
+    private final int numMissedConsecutiveDaysToNotify;
+    private final int numMissedDaysToNotify;
+    private final Set<String> requiredDataGroupsOneOfSet;
+    private final Set<String> requiredSubpopulationGuidSet;
+
+    /**
+     * Validates the given config and compiles it into a snapshot. Throws IllegalArgumentException if the config is
+     * structurally invalid, that is, if no user could be processed with it. Missing messages aren't validated here,
+     * since they only affect the users who would get that message. Those users fail when they're notified, and the
+     * rest of the run goes on. The WorkerConfig's collections are already immutable copies, so later changes to the
+     * WorkerConfig don't affect the snapshot.
+     */
+    public static CompiledWorkerConfig compile(WorkerConfig workerConfig) {
+        if (workerConfig == null) {
+            throw new IllegalArgumentException("config must be specified");
+        }
+        if (workerConfig.getBurstDurationDays() <= 0) {
+            throw new IllegalArgumentException("burstDurationDays must be positive");
+        }
+        if (workerConfig.getBurstStartEventIdSet().isEmpty()) {
+            throw new IllegalArgumentException("burstStartEventIdSet must be specified");
+        }
+        if (Strings.isNullOrEmpty(workerConfig.getBurstTaskId())) {
+            throw new IllegalArgumentException("burstTaskId must be specified");
+        }
+        if (workerConfig.getEarlyLateCutoffDays() < 0) {
+            throw new IllegalArgumentException("earlyLateCutoffDays can't be negative");
+        }
+        if (workerConfig.getNotificationBlackoutDaysFromStart() < 0) {
+            throw new IllegalArgumentException("notificationBlackoutDaysFromStart can't be negative");
+        }
+        if (workerConfig.getNotificationBlackoutDaysFromEnd() < 0) {
+            throw new IllegalArgumentException("notificationBlackoutDaysFromEnd can't be negative");
+        }
+        if (workerConfig.getNumActivitiesToCompleteBurst() <= 0) {
+            throw new IllegalArgumentException("numActivitiesToCompleteBurst must be positive");
+        }
+        if (workerConfig.getNumMissedConsecutiveDaysToNotify() <= 0) {
+            throw new IllegalArgumentException("numMissedConsecutiveDaysToNotify must be positive");
+        }
+        if (workerConfig.getNumMissedDaysToNotify() <= 0) {
+            throw new IllegalArgumentException("numMissedDaysToNotify must be positive");
+        }
+
+        Map<NotificationType, Map<String, String>> messagesByDataGroupByType = new EnumMap<>(NotificationType.class);
+        messagesByDataGroupByType.put(NotificationType.CUMULATIVE,
+                workerConfig.getMissedCumulativeActivitiesMessagesByDataGroup());
+        messagesByDataGroupByType.put(NotificationType.EARLY,
+                workerConfig.getMissedEarlyActivitiesMessagesByDataGroup());
+        messagesByDataGroupByType.put(NotificationType.LATE,
+                workerConfig.getMissedLaterActivitiesMessagesByDataGroup());
+        messagesByDataGroupByType.put(NotificationType.PRE_BURST, workerConfig.getPreburstMessagesByDataGroup());
+
+        return new CompiledWorkerConfig(workerConfig, Maps.immutableEnumMap(messagesByDataGroupByType));
+    }
+
+    // Private constructor. Use compile().
+    private CompiledWorkerConfig(WorkerConfig workerConfig,
+            Map<NotificationType, Map<String, String>> messagesByDataGroupByType) {
+        this.burstDurationDays = workerConfig.getBurstDurationDays();
+        this.burstStartEventIdSet = workerConfig.getBurstStartEventIdSet();
+        this.burstTaskId = workerConfig.getBurstTaskId();
+        this.earlyLateCutoffDays = workerConfig.getEarlyLateCutoffDays();
+        this.excludedDataGroupSet = workerConfig.getExcludedDataGroupSet();
+        this.messagesByDataGroupByType = messagesByDataGroupByType;
+        this.notificationBlackoutDaysFromStart = workerConfig.getNotificationBlackoutDaysFromStart();
+        this.notificationBlackoutDaysFromEnd = workerConfig.getNotificationBlackoutDaysFromEnd();
+        this.numActivitiesToCompleteBurst = workerConfig.getNumActivitiesToCompleteBurst();
+        this.numMissedConsecutiveDaysToNotify = workerConfig.getNumMissedConsecutiveDaysToNotify();
+        this.numMissedDaysToNotify = workerConfig.getNumMissedDaysToNotify();
+        this.requiredDataGroupsOneOfSet = workerConfig.getRequiredDataGroupsOneOfSet();
+        this.requiredSubpopulationGuidSet = workerConfig.getRequiredSubpopulationGuidSet();
+    }
+
+    /** @see WorkerConfig#getBurstDurationDays */
+    public int getBurstDurationDays() {
+        return burstDurationDays;
+    }
+
+    /** @see WorkerConfig#getBurstStartEventIdSet */
+    public Set<String> getBurstStartEventIdSet() {
+        return burstStartEventIdSet;
+    }
+
+    /** @see WorkerConfig#getBurstTaskId */
+    public String getBurstTaskId() {
+        return burstTaskId;
+    }
+
+    /** @see WorkerConfig#getEarlyLateCutoffDays */
+    public int getEarlyLateCutoffDays() {
+        return earlyLateCutoffDays;
+    }
+
+    /** @see WorkerConfig#getExcludedDataGroupSet */
+    public Set<String> getExcludedDataGroupSet() {
+        return excludedDataGroupSet;
+    }
+
+    /** Messages for the given notification type, keyed by data group. Never null. */
+    public Map<String, String> getMessagesByDataGroup(NotificationType notificationType) {
+        return messagesByDataGroupByType.get(notificationType);
+    }
+
+    /**
+     * Returns the message for the given notification type, for the first of the participant's data groups that has a
+     * message. Returns null if none of the data groups have a message.
+     */
+    public String getMessageForDataGroups(NotificationType notificationType, List<String> dataGroupList) {
+        Map<String, String> messagesByDataGroup = getMessagesByDataGroup(notificationType);
+        for (String oneDataGroup : dataGroupList) {
+            String message = messagesByDataGroup.get(oneDataGroup);
+            if (message != null) {
+                return message;
+            }
+        }
+        return null;
+    }
+
+    /** @see WorkerConfig#getNotificationBlackoutDaysFromStart */
+    public int getNotificationBlackoutDaysFromStart() {
+        return notificationBlackoutDaysFromStart;
+    }
+
+    /** @see WorkerConfig#getNotificationBlackoutDaysFromEnd */
+    public int getNotificationBlackoutDaysFromEnd() {
+        return notificationBlackoutDaysFromEnd;
+    }
+
+    /** @see WorkerConfig#getNumActivitiesToCompleteBurst */
+    public int getNumActivitiesToCompleteBurst() {
+        return numActivitiesToCompleteBurst;
+    }
+
+    /** @see WorkerConfig#getNumMissedConsecutiveDaysToNotify */
+    public int getNumMissedConsecutiveDaysToNotify() {
+        return numMissedConsecutiveDaysToNotify;
+    }
+
+    /** @see WorkerConfig#getNumMissedDaysToNotify */
+    public int getNumMissedDaysToNotify() {
+        return numMissedDaysToNotify;
+    }
+
+    /** @see WorkerConfig#getRequiredDataGroupsOneOfSet */
+    public Set<String> getRequiredDataGroupsOneOfSet() {
+        return requiredDataGroupsOneOfSet;
+    }
+
+    /** @see WorkerConfig#getRequiredSubpopulationGuidSet */
+    public Set<String> getRequiredSubpopulationGuidSet() {
+        return requiredSubpopulationGuidSet;
+    }
+}
@@ -0,0 +1,175 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Tracks the cost and selectivity of each exclusion stage and decides what order to run the stages in. The goal is
+ * for cheap, selective stages to run first, so fewer users reach the expensive Bridge and DynamoDB calls. This class
+ * is thread-safe.
+ */
+public class ExclusionPipeline {
+    // Run the stages in default order for this many users before reordering, so we have some stats to go on.
+    // Package-scoped for unit tests.
+    static final int MIN_USERS_BEFORE_REORDER = 50;
+
+    // After that, recompute the order every this many users. Package-scoped for unit tests.
+    static final int REORDER_INTERVAL = 100;
+
+    private final Map<ExclusionStage, StageStats> statsByStage = new EnumMap<>(ExclusionStage.class);
+    private final Map<UserResource, FetchStats> statsByResource = new EnumMap<>(UserResource.class);
+    private final AtomicInteger numUsers = new AtomicInteger();
+    private volatile List<ExclusionStage> stageOrder = ImmutableList.copyOf(ExclusionStage.values());
+
+    /** Constructs a pipeline with empty stats, which runs the stages in default order. */
+    public ExclusionPipeline() {
+        for (ExclusionStage oneStage : ExclusionStage.values()) {
+            statsByStage.put(oneStage, new StageStats());
+        }
+        for (UserResource oneResource : UserResource.values()) {
+            statsByResource.put(oneResource, new FetchStats());
+        }
+    }
+
+    /**
+     * Called once at the start of each user. Returns the order to run the stages in for that user. Every so often,
+     * this recomputes the order based on the stats so far.
+     */
+    public List<ExclusionStage> startUser() {
+        int userCount = numUsers.incrementAndGet();
+        if (userCount >= MIN_USERS_BEFORE_REORDER && (userCount - MIN_USERS_BEFORE_REORDER) % REORDER_INTERVAL == 0) {
+            stageOrder = computeStageOrder();
+        }
+        return stageOrder;
+    }
+
+    /** Current stage order. */
+    public List<ExclusionStage> getStageOrder() {
+        return stageOrder;
+    }
+
+    /**
+     * Records the result of running a stage for one user. Nanos is the time spent in the stage itself, not including
+     * resource fetches, which are recorded separately.
+     */
+    public void recordStage(ExclusionStage stage, boolean rejected, long nanos) {
+        StageStats stats = statsByStage.get(stage);
+        stats.numEvaluated.increment();
+        if (rejected) {
+            stats.numRejected.increment();
+        }
+        stats.totalNanos.add(nanos);
+    }
+
+    /** Records a resource fetch for one user. */
+    public void recordFetch(UserResource resource, long nanos) {
+        FetchStats stats = statsByResource.get(resource);
+        stats.numFetched.increment();
+        stats.totalNanos.add(nanos);
+    }
+
+    /** Number of users that ran the given stage. */
+    public long getNumEvaluated(ExclusionStage stage) {
+        return statsByStage.get(stage).numEvaluated.sum();
+    }
+
+    /** Number of users rejected by the given stage. */
+    public long getNumRejected(ExclusionStage stage) {
+        return statsByStage.get(stage).numRejected.sum();
+    }
+
+    /** Number of times the given resource was fetched. */
+    public long getNumFetched(UserResource resource) {
+        return statsByResource.get(resource).numFetched.sum();
+    }
+
+    /** Human-readable summary of the stats, for logging at the end of the run. */
+    public String formatStats() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("stageOrder=").append(stageOrder);
+        for (ExclusionStage oneStage : ExclusionStage.values()) {
+            StageStats stats = statsByStage.get(oneStage);
+            long numEvaluated = stats.numEvaluated.sum();
+            long numRejected = stats.numRejected.sum();
+            builder.append(", ").append(oneStage).append("={evaluated=").append(numEvaluated).append(", rejected=")
+                    .append(numRejected).append(", avgMicros=")
+                    .append(numEvaluated > 0 ? stats.totalNanos.sum() / numEvaluated / 1000 : 0).append('}');
+        }
+        for (UserResource oneResource : UserResource.values()) {
+            FetchStats stats = statsByResource.get(oneResource);
+            long numFetched = stats.numFetched.sum();
+            builder.append(", ").append(oneResource).append("={fetched=").append(numFetched).append(", avgMillis=")
+                    .append(numFetched > 0 ? stats.totalNanos.sum() / numFetched / 1000000 : 0).append('}');
+        }
+        return builder.toString();
+    }
+
+    // Greedy ordering. At each step, pick the stage with the lowest expected cost per rejected user, where cost
+    // includes fetching any resources that earlier stages haven't already fetched. Rejection rates are smoothed, so
+    // stages that haven't rejected anyone yet still get a chance to move up. Note that rejection rates are measured on
+    // the users that reach each stage, so they're only an estimate if stages are correlated. Package-scoped for unit
+    // tests.
+    List<ExclusionStage> computeStageOrder() {
+        Set<UserResource> fetchedResourceSet = EnumSet.noneOf(UserResource.class);
+        Set<ExclusionStage> remainingStageSet = EnumSet.allOf(ExclusionStage.class);
+        List<ExclusionStage> order = new ArrayList<>();
+        while (!remainingStageSet.isEmpty()) {
+            ExclusionStage bestStage = null;
+            double bestScore = Double.MAX_VALUE;
+            for (ExclusionStage oneStage : remainingStageSet) {
+                double score = expectedNanos(oneStage, fetchedResourceSet) / rejectionRate(oneStage);
+                if (score < bestScore) {
+                    bestStage = oneStage;
+                    bestScore = score;
+                }
+            }
+
+            order.add(bestStage);
+            fetchedResourceSet.addAll(bestStage.getResourceSet());
+            remainingStageSet.remove(bestStage);
+        }
+        return ImmutableList.copyOf(order);
+    }
+
+    // Expected cost of running the stage, given the resources that have already been fetched.
+    private double expectedNanos(ExclusionStage stage, Set<UserResource> fetchedResourceSet) {
+        StageStats stageStats = statsByStage.get(stage);
+        long numEvaluated = stageStats.numEvaluated.sum();
+        double nanos = numEvaluated > 0 ? (double) stageStats.totalNanos.sum() / numEvaluated : 0.0;
+        for (UserResource oneResource : stage.getResourceSet()) {
+            if (!fetchedResourceSet.contains(oneResource)) {
+                FetchStats fetchStats = statsByResource.get(oneResource);
+                long numFetched = fetchStats.numFetched.sum();
+                nanos += numFetched > 0 ? (double) fetchStats.totalNanos.sum() / numFetched : 0.0;
+            }
+        }
+        return nanos;
+    }
+
+    // Smoothed rejection rate. This is never zero, so it's safe to divide by.
+    private double rejectionRate(ExclusionStage stage) {
+        StageStats stats = statsByStage.get(stage);
+        return (stats.numRejected.sum() + 1.0) / (stats.numEvaluated.sum() + 2.0);
+    }
+
+    // Stats for a single stage.
+    private static class StageStats {
+        private final LongAdder numEvaluated = new LongAdder();
+        private final LongAdder numRejected = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+    }
+
+    // Stats for a single resource.
+    private static class FetchStats {
+        private final LongAdder numFetched = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+    }
+}
@@ -0,0 +1,58 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+import java.util.Arrays;
+import java.util.Set;
+
+import com.google.common.collect.Sets;
+
+/**
+ * Eligibility checks that can exclude a user from notifications. A user must pass every stage to be considered for
+ * notifications, so stages can run in any order. Declaration order is the default order.
+ */
+public enum ExclusionStage {
+    /**
+     * Users whose burst calendar entry says they're nowhere near a burst, or that they already completed the current
+     * burst, are excluded. This only uses the burst calendar loaded at the start of the run, so it doesn't need any
+     * resources. Users without an up-to-date entry pass this stage, and are checked by the burst window stage instead.
+     */
+    BURST_CALENDAR,
+
+    /**
+     * Users who were excluded on an earlier run for a reason that rarely changes, and whose account and relevant
+     * config haven't changed since, are excluded. This only uses the local exclusion cache, so it doesn't need any
+     * resources.
+     */
+    EXCLUSION_CACHE,
+
+    /** Users with unverified phone numbers can't be notified. */
+    PHONE_VERIFIED(UserResource.PARTICIPANT),
+
+    /** Users without time zones, or outside of the allowed time zones, are excluded. */
+    TIME_ZONE(UserResource.PARTICIPANT),
+
+    /** Users who haven't signed all required consents are excluded. */
+    CONSENT(UserResource.PARTICIPANT),
+
+    /** Users must be in one of the required data groups and in none of the excluded data groups. */
+    DATA_GROUPS(UserResource.PARTICIPANT),
+
+    /** Users who were sent a notification (other than pre-burst) within the last burst duration are excluded. */
+    RECENT_NOTIFICATION(UserResource.LAST_NOTIFICATION),
+
+    /**
+     * Users are excluded unless a burst starts tomorrow, or they are in a burst and outside of the blackout period.
+     * This needs the participant for their time zone.
+     */
+    BURST_WINDOW(UserResource.PARTICIPANT, UserResource.ACTIVITY_EVENTS);
+
+    private final Set<UserResource> resourceSet;
+
+    ExclusionStage(UserResource... resources) {
+        this.resourceSet = Sets.immutableEnumSet(Arrays.asList(resources));
+    }
+
+    /** Resources this stage needs. */
+    public Set<UserResource> getResourceSet() {
+        return resourceSet;
+    }
+}
@@ -0,0 +1,58 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The participant fields that the exclusion stages use. This is much smaller than the full participant, so it can be
+ * kept locally across runs, and most runs don't need to fetch the participant from Bridge.
+ */
+public class ParticipantSnapshot {
+    private Set<String> consentedSubpopulationGuidSet;
+    private List<String> dataGroupList;
+    private Boolean phoneVerified;
+    private String timeZone;
+
+    /**
+     * Subpopulations the participant is consented to, that is, the participant's newest consent for that subpopulation
+     * is signed and not withdrawn.
+     */
+    public Set<String> getConsentedSubpopulationGuidSet() {
+        return consentedSubpopulationGuidSet;
+    }
+
+    /** @see #getConsentedSubpopulationGuidSet */
+    public void setConsentedSubpopulationGuidSet(Set<String> consentedSubpopulationGuidSet) {
+        this.consentedSubpopulationGuidSet = consentedSubpopulationGuidSet;
+    }
+
+    /** Participant's data groups. */
+    public List<String> getDataGroupList() {
+        return dataGroupList;
+    }
+
+    /** @see #getDataGroupList */
+    public void setDataGroupList(List<String> dataGroupList) {
+        this.dataGroupList = dataGroupList;
+    }
+
+    /** True if the participant's phone number is verified. May be null if Bridge didn't say. */
+    public Boolean getPhoneVerified() {
+        return phoneVerified;
+    }
+
+    /** @see #getPhoneVerified */
+    public void setPhoneVerified(Boolean phoneVerified) {
+        this.phoneVerified = phoneVerified;
+    }
+
+    /** Participant's time zone, as an offset string. May be null if the participant doesn't have a time zone. */
+    public String getTimeZone() {
+        return timeZone;
+    }
+
+    /** @see #getTimeZone */
+    public void setTimeZone(String timeZone) {
+        this.timeZone = timeZone;
+    }
+}
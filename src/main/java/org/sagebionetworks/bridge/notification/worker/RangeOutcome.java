@@ -0,0 +1,13 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+/** How processing a range of the roster ended: either every user was processed, or we lost a lease and stopped. */
+public enum RangeOutcome {
+    /** Every user in the range was processed. */
+    FINISHED,
+
+    /** Another run took over the study and date. Every other range of the run would stop the same way. */
+    STUDY_RUN_LEASE_LOST,
+
+    /** Another worker stole the work unit, and will finish it. */
+    WORK_UNIT_LOST,
+}
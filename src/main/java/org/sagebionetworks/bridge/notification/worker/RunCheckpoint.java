@@ -0,0 +1,66 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+/**
+ * A checkpoint for a run that's in progress. If the worker dies partway through a run, the request is redelivered, and
+ * the run resumes from its last checkpoint instead of starting over.
+ */
+public class RunCheckpoint {
+    private int numErrors;
+    private int numResumes;
+    private int offset;
+    private String runId;
+    private long updatedOn;
+
+    /** Number of users that failed with an error, before the offset. */
+    public int getNumErrors() {
+        return numErrors;
+    }
+
+    /** @see #getNumErrors */
+    public void setNumErrors(int numErrors) {
+        this.numErrors = numErrors;
+    }
+
+    /** Number of times the run was resumed from a checkpoint. */
+    public int getNumResumes() {
+        return numResumes;
+    }
+
+    /** @see #getNumResumes */
+    public void setNumResumes(int numResumes) {
+        this.numResumes = numResumes;
+    }
+
+    /**
+     * Offset into the study's account summaries. Every user before this offset has been processed, so a resumed run
+     * starts here.
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /** @see #getOffset */
+    public void setOffset(int offset) {
+        this.offset = offset;
+    }
+
+    /** Identifies the run, from the study ID, date, and tag of the request. */
+    public String getRunId() {
+        return runId;
+    }
+
+    /** @see #getRunId */
+    public void setRunId(String runId) {
+        this.runId = runId;
+    }
+
+    /** Time in epoch milliseconds that this checkpoint was written. */
+    public long getUpdatedOn() {
+        return updatedOn;
+    }
+
+    /** @see #getUpdatedOn */
+    public void setUpdatedOn(long updatedOn) {
+        this.updatedOn = updatedOn;
+    }
+}
@@ -0,0 +1,184 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+
+import org.sagebionetworks.bridge.time.DateUtils;
+
+/**
+ * Everything the per-user code needs to know about the current run. This is created once per request and shared by
+ * all users (and all threads) in the run.
+ */
+public class RunContext {
+    private final String studyId;
+    private final LocalDate date;
+    private final CompiledWorkerConfig workerConfig;
+    private final TimeZoneTable timeZoneTable;
+    private final Map<String, UserNotification> recentNotificationsByUserId;
+    private final Map<String, BurstCalendarEntry> burstCalendarByUserId;
+    private final ExclusionPipeline exclusionPipeline = new ExclusionPipeline();
+    private final Map<NotificationType, LongAdder> dryRunCountsByType = new EnumMap<>(NotificationType.class);
+    private final long notificationTime;
+
+    // Use the Builder.
+    private RunContext(String studyId, LocalDate date, CompiledWorkerConfig workerConfig,
+            Map<String, UserNotification> recentNotificationsByUserId,
+            Map<String, BurstCalendarEntry> burstCalendarByUserId, long notificationTime) {
+        this.studyId = studyId;
+        this.date = date;
+        this.workerConfig = workerConfig;
+        this.timeZoneTable = new TimeZoneTable(date, DateTime.now());
+        this.recentNotificationsByUserId = recentNotificationsByUserId;
+        this.burstCalendarByUserId = burstCalendarByUserId;
+        this.notificationTime = notificationTime;
+
+        // Populate the map up front, so it's never modified once the run starts.
+        for (NotificationType oneType : NotificationType.values()) {
+            dryRunCountsByType.put(oneType, new LongAdder());
+        }
+    }
+
+    /** Study we are sending notifications for. */
+    public String getStudyId() {
+        return studyId;
+    }
+
+    /** Date we are sending notifications for. */
+    public LocalDate getDate() {
+        return date;
+    }
+
+    /** The study's notification config, resolved at the start of the run. */
+    public CompiledWorkerConfig getWorkerConfig() {
+        return workerConfig;
+    }
+
+    /**
+     * Burst calendar entries for every user in the study, as of the start of the run, keyed by user ID. Null if the
+     * burst calendar wasn't loaded for this run.
+     */
+    public Map<String, BurstCalendarEntry> getBurstCalendarByUserId() {
+        return burstCalendarByUserId;
+    }
+
+    /**
+     * Time in epoch milliseconds that notifications sent in this run are recorded at, when conditional notification
+     * log writes are enabled. This is the time the run started, so that two nodes that evaluate the same user in the
+     * same run write the same notification log entry, and only one of them sends the notification. Since this can be
+     * earlier than the actual send, the recent notification window for these notifications starts at the run's start.
+     */
+    public long getNotificationTime() {
+        return notificationTime;
+    }
+
+    /** Exclusion stage stats and ordering for this run. */
+    public ExclusionPipeline getExclusionPipeline() {
+        return exclusionPipeline;
+    }
+
+    /**
+     * Most recent notification for every user notified within the last burst duration, as of the start of the run,
+     * keyed by user ID. Null if the index wasn't loaded for this run.
+     */
+    public Map<String, UserNotification> getRecentNotificationsByUserId() {
+        return recentNotificationsByUserId;
+    }
+
+    /** Records that a dry run for this date would have sent the given type of notification. */
+    public void recordDryRunNotification(NotificationType type) {
+        dryRunCountsByType.get(type).increment();
+    }
+
+    /** Number of notifications of the given type that dry runs for this date would have sent. */
+    public long getDryRunNotificationCount(NotificationType type) {
+        return dryRunCountsByType.get(type).sum();
+    }
+
+    /** Human-readable summary of the dry run counts, for logging. */
+    public String formatDryRunStats() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("date=").append(date);
+        for (NotificationType oneType : NotificationType.values()) {
+            builder.append(", ").append(oneType).append('=').append(getDryRunNotificationCount(oneType));
+        }
+        return builder.toString();
+    }
+
+    /** Participant time zones seen during this run. */
+    public TimeZoneTable getTimeZoneTable() {
+        return timeZoneTable;
+    }
+
+    /** Builder for RunContext. A builder can build several contexts, for example one for each date of a backfill. */
+    public static class Builder {
+        private String studyId;
+        private LocalDate date;
+        private CompiledWorkerConfig workerConfig;
+        private Map<String, UserNotification> recentNotificationsByUserId;
+        private Map<String, BurstCalendarEntry> burstCalendarByUserId;
+        private Long notificationTime;
+
+        /** Study we are sending notifications for. Required. */
+        public Builder withStudyId(String studyId) {
+            this.studyId = studyId;
+            return this;
+        }
+
+        /** Date we are sending notifications for. Required. */
+        public Builder withDate(LocalDate date) {
+            this.date = date;
+            return this;
+        }
+
+        /** The study's notification config, resolved at the start of the run. Required. */
+        public Builder withWorkerConfig(CompiledWorkerConfig workerConfig) {
+            this.workerConfig = workerConfig;
+            return this;
+        }
+
+        /**
+         * Recent notification index, loaded at the start of the run. If this is null, the run looks up each user's
+         * last notification individually.
+         */
+        public Builder withRecentNotificationsByUserId(Map<String, UserNotification> recentNotificationsByUserId) {
+            this.recentNotificationsByUserId = recentNotificationsByUserId;
+            return this;
+        }
+
+        /** Burst calendar, loaded at the start of the run. Null if it wasn't loaded for this run. */
+        public Builder withBurstCalendarByUserId(Map<String, BurstCalendarEntry> burstCalendarByUserId) {
+            this.burstCalendarByUserId = burstCalendarByUserId;
+            return this;
+        }
+
+        /**
+         * Time in epoch milliseconds that notifications sent in this run are recorded at. Every node working on the
+         * same run uses the same notification time. If this isn't set, the context uses the time it was built.
+         */
+        public Builder withNotificationTime(Long notificationTime) {
+            this.notificationTime = notificationTime;
+            return this;
+        }
+
+        /** Builds the run context. */
+        public RunContext build() {
+            if (studyId == null) {
+                throw new IllegalStateException("studyId must be specified");
+            }
+            if (date == null) {
+                throw new IllegalStateException("date must be specified");
+            }
+            if (workerConfig == null) {
+                throw new IllegalStateException("workerConfig must be specified");
+            }
+            long builtNotificationTime = notificationTime != null ? notificationTime :
+                    DateUtils.getCurrentMillisFromEpoch();
+            return new RunContext(studyId, date, workerConfig, recentNotificationsByUserId, burstCalendarByUserId,
+                    builtNotificationTime);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+import org.joda.time.LocalDate;
+
+/**
+ * A user's entry in the run ledger. Runs for the same study and date share a ledger, so a duplicate request can skip
+ * the users that were already handled.
+ */
+public class RunLedgerEntry {
+    private LocalDate date;
+    private String errorClass;
+    private RunLedgerStatus status;
+    private String studyId;
+    private long updatedOn;
+    private String userId;
+
+    /** Date of the run. */
+    public LocalDate getDate() {
+        return date;
+    }
+
+    /** @see #getDate */
+    public void setDate(LocalDate date) {
+        this.date = date;
+    }
+
+    /** Class name of the error that the user failed with. Only set if the status is FAILED. */
+    public String getErrorClass() {
+        return errorClass;
+    }
+
+    /** @see #getErrorClass */
+    public void setErrorClass(String errorClass) {
+        this.errorClass = errorClass;
+    }
+
+    /** What the run did with the user. */
+    public RunLedgerStatus getStatus() {
+        return status;
+    }
+
+    /** @see #getStatus */
+    public void setStatus(RunLedgerStatus status) {
+        this.status = status;
+    }
+
+    /** Study of the run. */
+    public String getStudyId() {
+        return studyId;
+    }
+
+    /** @see #getStudyId */
+    public void setStudyId(String studyId) {
+        this.studyId = studyId;
+    }
+
+    /** Time in epoch milliseconds that this entry was written. */
+    public long getUpdatedOn() {
+        return updatedOn;
+    }
+
+    /** @see #getUpdatedOn */
+    public void setUpdatedOn(long updatedOn) {
+        this.updatedOn = updatedOn;
+    }
+
+    /** ID of the user this entry is for. */
+    public String getUserId() {
+        return userId;
+    }
+
+    /** @see #getUserId */
+    public void setUserId(String userId) {
+        this.userId = userId;
+    }
+}
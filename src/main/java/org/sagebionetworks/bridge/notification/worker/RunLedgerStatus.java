@@ -0,0 +1,19 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+/** Status of a user in the run ledger, which records the users each run has already handled. */
+public enum RunLedgerStatus {
+    /** The user was evaluated and didn't need a notification. */
+    EVALUATED,
+
+    /**
+     * The user was claimed for a notification. This is written before the notification is sent, so a user is never
+     * sent more than one notification in the same run.
+     */
+    NOTIFIED,
+
+    /**
+     * The user failed with an error before they were claimed for a notification. These users aren't skipped by
+     * duplicate runs, and they can be reprocessed by themselves with a retry request.
+     */
+    FAILED,
+}
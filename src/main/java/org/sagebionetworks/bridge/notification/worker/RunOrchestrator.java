@@ -0,0 +1,363 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import org.sagebionetworks.bridge.notification.helper.BridgeHelper;
+import org.sagebionetworks.bridge.notification.helper.DynamoHelper;
+import org.sagebionetworks.bridge.notification.helper.ShardQueue;
+
+/**
+ * Decides how a request's run is split up and who finishes it. This covers the study run lease, splitting a large
+ * study into shards or work units, claiming work units, and tracking which shards are finished. The processor
+ * supplies the code that processes a range of the roster, and the code that finishes the run.
+ */
+@Component
+public class RunOrchestrator {
+    private static final Logger LOG = LoggerFactory.getLogger(RunOrchestrator.class);
+
+    // Default max number of users in each shard of a sharded run. Package-scoped for unit tests.
+    static final int DEFAULT_SHARD_SIZE = 5000;
+
+    // Defaults for work-stealing runs: the number of users in each work unit, the number of worker requests the
+    // coordinator sends, and how long a work unit lease lasts without renewal. Package-scoped for unit tests.
+    static final int DEFAULT_WORK_UNIT_SIZE = 500;
+    static final int DEFAULT_NUM_WORK_STEALING_WORKERS = 8;
+    static final int DEFAULT_WORK_UNIT_LEASE_SECONDS = 300;
+
+    // Defaults for study run leases: how long a lease lasts without renewal, and how long a request waits for another
+    // run to release the lease before giving up and letting the request be redelivered. Package-scoped for unit
+    // tests.
+    static final int DEFAULT_STUDY_RUN_LEASE_SECONDS = 300;
+    static final int DEFAULT_STUDY_RUN_LEASE_MAX_WAIT_SECONDS = 600;
+
+    private BridgeHelper bridgeHelper;
+    private DynamoHelper dynamoHelper;
+    private int numWorkStealingWorkers = DEFAULT_NUM_WORK_STEALING_WORKERS;
+    private ShardQueue shardQueue;
+    private boolean shardingEnabled = false;
+    private int shardSize = DEFAULT_SHARD_SIZE;
+    private boolean studyRunLeaseEnabled = false;
+    private int studyRunLeaseMaxWaitSeconds = DEFAULT_STUDY_RUN_LEASE_MAX_WAIT_SECONDS;
+    private int studyRunLeaseSeconds = DEFAULT_STUDY_RUN_LEASE_SECONDS;
+    private boolean workStealingEnabled = false;
+    private int workUnitLeaseSeconds = DEFAULT_WORK_UNIT_LEASE_SECONDS;
+    private int workUnitSize = DEFAULT_WORK_UNIT_SIZE;
+
+    /** Bridge helper. */
+    @Autowired
+    public final void setBridgeHelper(BridgeHelper bridgeHelper) {
+        this.bridgeHelper = bridgeHelper;
+    }
+
+    /** DynamoDB Helper. */
+    @Autowired
+    public final void setDynamoHelper(DynamoHelper dynamoHelper) {
+        this.dynamoHelper = dynamoHelper;
+    }
+
+    /**
+     * Queue for the shard requests of sharded runs. This is required if sharding is enabled. The worker only has one
+     * if notification.worker.shardQueueUrl is set.
+     */
+    @Autowired(required = false)
+    public final void setShardQueue(ShardQueue shardQueue) {
+        this.shardQueue = shardQueue;
+    }
+
+    /**
+     * If true, a run for a study with more users than the shard size is split into shards. The request that starts
+     * the run only sends a request for each shard to the shard queue, so the shards can be processed by any worker
+     * node. The worker log is written when the last shard finishes. Like run checkpoints, this relies on Bridge
+     * returning the study's users in a stable order. Defaults to false.
+     */
+    @Value("${notification.worker.shardingEnabled:false}")
+    public final void setShardingEnabled(boolean shardingEnabled) {
+        this.shardingEnabled = shardingEnabled;
+    }
+
+    /** Max number of users in each shard of a sharded run. */
+    @Value("${notification.worker.shardSize:" + DEFAULT_SHARD_SIZE + "}")
+    public final void setShardSize(int shardSize) {
+        if (shardSize < 1) {
+            throw new IllegalArgumentException("shardSize must be positive");
+        }
+        this.shardSize = shardSize;
+    }
+
+    /**
+     * If true, sharded runs split the roster into many small work units, instead of one range per shard. The
+     * coordinator sends a request for each worker, and each worker claims units one at a time with a lease in DDB,
+     * renewing the lease while it works. If a worker stops renewing (for example, because its node died), its unit is
+     * stolen by another worker, so a slow or dead node doesn't hold up the run. Requires sharding. Defaults to false.
+     */
+    @Value("${notification.worker.workStealingEnabled:false}")
+    public final void setWorkStealingEnabled(boolean workStealingEnabled) {
+        this.workStealingEnabled = workStealingEnabled;
+    }
+
+    /** Number of worker requests to send for a work-stealing run. This bounds how many nodes can work on the run. */
+    @Value("${notification.worker.numWorkStealingWorkers:" + DEFAULT_NUM_WORK_STEALING_WORKERS + "}")
+    public final void setNumWorkStealingWorkers(int numWorkStealingWorkers) {
+        if (numWorkStealingWorkers < 1) {
+            throw new IllegalArgumentException("numWorkStealingWorkers must be positive");
+        }
+        this.numWorkStealingWorkers = numWorkStealingWorkers;
+    }
+
+    /**
+     * How long a work unit lease lasts without renewal. Workers renew their leases every third of this, so it should
+     * be several times longer than it takes to process a user.
+     */
+    @Value("${notification.worker.workUnitLeaseSeconds:" + DEFAULT_WORK_UNIT_LEASE_SECONDS + "}")
+    public final void setWorkUnitLeaseSeconds(int workUnitLeaseSeconds) {
+        if (workUnitLeaseSeconds < 1) {
+            throw new IllegalArgumentException("workUnitLeaseSeconds must be positive");
+        }
+        this.workUnitLeaseSeconds = workUnitLeaseSeconds;
+    }
+
+    /** Number of users in each work unit of a work-stealing run. */
+    @Value("${notification.worker.workUnitSize:" + DEFAULT_WORK_UNIT_SIZE + "}")
+    public final void setWorkUnitSize(int workUnitSize) {
+        if (workUnitSize < 1) {
+            throw new IllegalArgumentException("workUnitSize must be positive");
+        }
+        this.workUnitSize = workUnitSize;
+    }
+
+    /**
+     * True if only one run can process a study and date at a time. A run holds a lease on the study and date, which
+     * every node working on the run renews. Another run waits for the lease to be released, or to expire. A duplicate
+     * delivery of the same run joins it instead: it waits for the run to finish, then drops. Defaults to false.
+     */
+    public boolean isStudyRunLeaseEnabled() {
+        return studyRunLeaseEnabled;
+    }
+
+    /** @see #isStudyRunLeaseEnabled */
+    @Value("${notification.worker.studyRunLeaseEnabled:false}")
+    public final void setStudyRunLeaseEnabled(boolean studyRunLeaseEnabled) {
+        this.studyRunLeaseEnabled = studyRunLeaseEnabled;
+    }
+
+    /**
+     * How long a study run lease lasts without renewal. The run renews its lease every third of this, so it should be
+     * several times longer than it takes to process a user. For a sharded run, it should also be longer than shard
+     * requests wait in the shard queue.
+     */
+    @Value("${notification.worker.studyRunLeaseSeconds:" + DEFAULT_STUDY_RUN_LEASE_SECONDS + "}")
+    public final void setStudyRunLeaseSeconds(int studyRunLeaseSeconds) {
+        if (studyRunLeaseSeconds < 1) {
+            throw new IllegalArgumentException("studyRunLeaseSeconds must be positive");
+        }
+        this.studyRunLeaseSeconds = studyRunLeaseSeconds;
+    }
+
+    /**
+     * How long a request waits for another run to release the study run lease. After this, the request fails, and is
+     * redelivered later.
+     */
+    @Value("${notification.worker.studyRunLeaseMaxWaitSeconds:" + DEFAULT_STUDY_RUN_LEASE_MAX_WAIT_SECONDS + "}")
+    public final void setStudyRunLeaseMaxWaitSeconds(int studyRunLeaseMaxWaitSeconds) {
+        if (studyRunLeaseMaxWaitSeconds < 0) {
+            throw new IllegalArgumentException("studyRunLeaseMaxWaitSeconds can't be negative");
+        }
+        this.studyRunLeaseMaxWaitSeconds = studyRunLeaseMaxWaitSeconds;
+    }
+
+    /**
+     * Makes the lease keeper for the request's run, or returns null if study run leases are disabled. Runs for a list
+     * of users are short, and may be sent again on purpose, so each one gets its own lease run ID: they wait for other
+     * runs, but never join one.
+     */
+    public StudyRunLeaseKeeper makeStudyRunLeaseKeeper(RunRequest request) {
+        if (!studyRunLeaseEnabled) {
+            return null;
+        }
+        String runId = request.getRunId();
+        String leaseRunId = request.isTargetedRun() ? runId + "#targeted-" + UUID.randomUUID() : runId;
+        return makeStudyRunLeaseKeeper(request.getStudyId(), request.getDate(), leaseRunId);
+    }
+
+    /**
+     * Acquires the study run lease, for a request that starts a run. Waits for another run to release the lease, up to
+     * the max wait. Returns false if this same run already finished, in which case the request should be dropped.
+     */
+    public boolean acquireStudyRunLease(StudyRunLeaseKeeper studyRunLeaseKeeper) {
+        return studyRunLeaseKeeper.acquire(TimeUnit.SECONDS.toMillis(studyRunLeaseMaxWaitSeconds));
+    }
+
+    /**
+     * If sharding is enabled and the request starts a run for a study that has more users than fit in one shard, split
+     * the run into shards. Sends a request for each shard (or for each worker, if work stealing is enabled) to the
+     * shard queue. Each request is a copy of this request, with the shard's offsets into the roster or the worker's
+     * work unit params, and the run's start time. Returns true if the run was sharded, false if this request should
+     * process the study itself.
+     */
+    public boolean startShardedRun(RunRequest request, ObjectNode requestNode, long runStartedOn) {
+        if (!shardingEnabled || !request.isRunStart() || request.isTargetedRun()) {
+            return false;
+        }
+        if (shardQueue == null) {
+            throw new IllegalStateException("Sharding is enabled, but there's no shard queue");
+        }
+
+        String studyId = request.getStudyId();
+        String runId = request.getRunId();
+        int numUsers;
+        try {
+            numUsers = bridgeHelper.getAccountSummaryTotal(studyId);
+        } catch (IOException ex) {
+            throw new RuntimeException("Error getting number of users for study " + studyId + ": " +
+                    ex.getMessage(), ex);
+        }
+        if (numUsers <= shardSize) {
+            return false;
+        }
+
+        // Start tracking the run before sending any requests, so a fast worker can't finish before the run exists. In
+        // a work-stealing run, each work unit counts as a shard. If this request was redelivered, join the run that's
+        // already being tracked, rather than resetting its finished shards. Its requests are sent again, in case the
+        // coordinator died before sending them all; shards and work units that already finished don't run again.
+        int unitSize = workStealingEnabled ? workUnitSize : shardSize;
+        long staleBeforeMillis = DateTime.now().minusHours(
+                BridgeNotificationWorkerProcessor.RUN_CHECKPOINT_MAX_AGE_HOURS).getMillis();
+        ShardedRun shardedRun = dynamoHelper.startShardedRun(runId, (numUsers + unitSize - 1) / unitSize,
+                runStartedOn, staleBeforeMillis);
+        if (shardedRun.getStartedOn() != runStartedOn) {
+            LOG.info("Joining sharded run " + runId + ", which was already started");
+        }
+        long shardedRunStartedOn = shardedRun.getStartedOn();
+
+        if (workStealingEnabled) {
+            int numWorkUnits = shardedRun.getNumShards();
+            int numWorkers = Math.min(numWorkStealingWorkers, numWorkUnits);
+            for (int i = 0; i < numWorkers; i++) {
+                // Spread the workers' first units evenly, so they rarely compete for the same unit.
+                ObjectNode workerRequest = requestNode.deepCopy();
+                workerRequest.put(RunRequest.REQUEST_PARAM_WORK_UNIT_SIZE, workUnitSize);
+                workerRequest.put(RunRequest.REQUEST_PARAM_NUM_WORK_UNITS, numWorkUnits);
+                workerRequest.put(RunRequest.REQUEST_PARAM_FIRST_WORK_UNIT, i * numWorkUnits / numWorkers);
+                workerRequest.put(RunRequest.REQUEST_PARAM_RUN_STARTED_ON, shardedRunStartedOn);
+                shardQueue.send(workerRequest);
+            }
+            LOG.info("Split run " + runId + " with " + numUsers + " users into " + numWorkUnits +
+                    " work units for " + numWorkers + " workers");
+            return true;
+        }
+
+        int numShards = shardedRun.getNumShards();
+        for (int i = 0; i < numShards; i++) {
+            ObjectNode shardRequest = requestNode.deepCopy();
+            shardRequest.put(RunRequest.REQUEST_PARAM_SHARD_INDEX, i);
+            shardRequest.put(RunRequest.REQUEST_PARAM_SHARD_START_OFFSET, i * shardSize);
+            shardRequest.put(RunRequest.REQUEST_PARAM_RUN_STARTED_ON, shardedRunStartedOn);
+            if (i < numShards - 1) {
+                shardRequest.put(RunRequest.REQUEST_PARAM_SHARD_END_OFFSET, (i + 1) * shardSize);
+            }
+            shardQueue.send(shardRequest);
+        }
+        LOG.info("Split run " + runId + " with " + numUsers + " users into " + numShards + " shards");
+        return true;
+    }
+
+    /**
+     * Processes the request's part of the run with the given range processor, and calls finishRun if this request
+     * finished the whole run. A work-stealing worker claims small units of the roster until every unit is finished. A
+     * shard processes its range once, and finishes the run if it's the last shard to finish. Any other request
+     * processes the whole roster, or its list of users.
+     */
+    public void processRequest(RunRequest request, RangeProcessor rangeProcessor, Runnable finishRun) {
+        if (request.isWorkStealingWorker()) {
+            processWorkUnits(request, rangeProcessor, finishRun);
+            return;
+        }
+
+        String runId = request.getRunId();
+        Integer shardIndex = request.getShardIndex();
+        String checkpointId = shardIndex != null ? runId + "#shard-" + shardIndex : runId;
+        if (rangeProcessor.processRange(checkpointId, request.getShardStartOffset(), request.getShardEndOffset(),
+                null) != RangeOutcome.FINISHED) {
+            // Another run took over the study and date, and will finish the run.
+            LOG.warn("Run " + runId + " lost its lease, stopping");
+            return;
+        }
+
+        // Signal end of processing. For a sharded run, only the last shard to finish does this.
+        if (shardIndex == null || dynamoHelper.finishShard(runId, shardIndex)) {
+            finishRun.run();
+        }
+    }
+
+    // Helper method to claim and process work units until every unit of the run is finished. Each unit has its own
+    // checkpoint, so a stolen unit resumes where its previous owner left off. Whoever finishes the last unit finishes
+    // the run. Work unit leases are keyed on the run's start time as well as its ID, so if the same run is started
+    // over (after the tracked run went stale), its units aren't already finished.
+    private void processWorkUnits(RunRequest request, RangeProcessor rangeProcessor, Runnable finishRun) {
+        String runId = request.getRunId();
+        int unitSize = request.getWorkUnitSize();
+        int numWorkUnits = request.getNumWorkUnits();
+        Long runStartedOn = request.getRunStartedOn();
+        String workUnitRunId = runStartedOn != null ? runId + "@" + runStartedOn : runId;
+        WorkUnitClaimer workUnitClaimer = makeWorkUnitClaimer(workUnitRunId, numWorkUnits,
+                request.getFirstWorkUnit());
+        int numFinishedUnits = 0;
+        Integer unitIndex;
+        while ((unitIndex = workUnitClaimer.claimNextWorkUnit()) != null) {
+            // The last unit goes to the end of the roster, in case users were added after the run started.
+            int unitStartOffset = unitIndex * unitSize;
+            int unitEndOffset = unitIndex < numWorkUnits - 1 ? unitStartOffset + unitSize : Integer.MAX_VALUE;
+            RangeOutcome outcome = rangeProcessor.processRange(runId + "#unit-" + unitIndex, unitStartOffset,
+                    unitEndOffset, workUnitClaimer);
+            if (outcome == RangeOutcome.STUDY_RUN_LEASE_LOST) {
+                // Another run took over the study and date. Every other unit would fail the same way, so stop.
+                LOG.warn("Run " + runId + " lost its lease, stopping after " + numFinishedUnits + " work units");
+                return;
+            }
+            if (outcome == RangeOutcome.WORK_UNIT_LOST || !workUnitClaimer.finishWorkUnit()) {
+                // Another worker stole the unit, and will finish it.
+                continue;
+            }
+            numFinishedUnits++;
+            if (dynamoHelper.finishShard(runId, unitIndex)) {
+                finishRun.run();
+            }
+        }
+        LOG.info("Finished " + numFinishedUnits + " work units of run " + runId);
+    }
+
+    // Makes the lease keeper for a run of the given study and date. Package-scoped so unit tests can mock it.
+    StudyRunLeaseKeeper makeStudyRunLeaseKeeper(String studyId, LocalDate date, String runId) {
+        return new StudyRunLeaseKeeper(dynamoHelper, studyId, date, runId,
+                TimeUnit.SECONDS.toMillis(studyRunLeaseSeconds));
+    }
+
+    // Makes the claimer for a work-stealing worker. Package-scoped so unit tests can mock it.
+    WorkUnitClaimer makeWorkUnitClaimer(String runId, int numWorkUnits, int firstWorkUnit) {
+        return new WorkUnitClaimer(dynamoHelper, runId, numWorkUnits, firstWorkUnit,
+                TimeUnit.SECONDS.toMillis(workUnitLeaseSeconds));
+    }
+
+    /** Processes one range of the roster for a run. */
+    @FunctionalInterface
+    public interface RangeProcessor {
+        /**
+         * Processes the users from the start offset up to (but not including) the end offset, resuming from the given
+         * checkpoint if there is one. If the range is a work unit, the claimer's lease is renewed along the way;
+         * otherwise, the claimer is null. Returns whether the range finished, or which lease was lost.
+         */
+        RangeOutcome processRange(String checkpointId, int startOffset, int endOffset,
+                WorkUnitClaimer workUnitClaimer);
+    }
+}
@@ -0,0 +1,50 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+import java.util.BitSet;
+
+/**
+ * Tracks which users in a run have been processed. Users are processed in parallel and can finish out of order, so
+ * this tracks the offset before which every user has finished. That offset is safe to resume from. This class is
+ * thread-safe.
+ */
+public class RunProgress {
+    // Users that have finished, relative to the start offset. Bits below the offset are always set.
+    private final BitSet finishedUsers = new BitSet();
+    private final int startOffset;
+
+    private int numErrors;
+    private int offset;
+
+    /**
+     * Creates progress for a run that starts at the given offset. The number of errors carries over from the previous
+     * attempt, if any.
+     */
+    public RunProgress(int startOffset, int numErrors) {
+        this.startOffset = startOffset;
+        this.numErrors = numErrors;
+        this.offset = startOffset;
+    }
+
+    /** Marks the user at the given offset as finished, and whether they failed with an error. */
+    public synchronized void finishUser(int userOffset, boolean error) {
+        if (userOffset < startOffset) {
+            throw new IllegalArgumentException("userOffset " + userOffset + " is before start offset " +
+                    startOffset);
+        }
+        finishedUsers.set(userOffset - startOffset);
+        if (error) {
+            numErrors++;
+        }
+        offset = startOffset + finishedUsers.nextClearBit(offset - startOffset);
+    }
+
+    /** Number of users that failed with an error, including previous attempts of this run. */
+    public synchronized int getNumErrors() {
+        return numErrors;
+    }
+
+    /** Offset before which every user has finished. */
+    public synchronized int getOffset() {
+        return offset;
+    }
+}
@@ -0,0 +1,398 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.base.Strings;
+import org.joda.time.Days;
+import org.joda.time.LocalDate;
+
+import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
+
+/**
+ * A parsed and validated request to the Notification Worker. Requests are either a whole run of a study and date, a
+ * shard or a work-stealing worker of a sharded run, or a targeted run for a list of users or the users who failed in
+ * earlier runs. Use {@link #parse} to create one.
+ */
+public class RunRequest {
+    // Max number of dates in a backfill request. This bounds how long a single request can take. Package-scoped for
+    // unit tests.
+    static final int MAX_BACKFILL_DAYS = 14;
+
+    static final String REQUEST_PARAM_BACKFILL_SEND_MODE = "backfillSendMode";
+    static final String REQUEST_PARAM_BACKFILL_START_DATE = "backfillStartDate";
+    static final String REQUEST_PARAM_DATE = "date";
+    static final String REQUEST_PARAM_FIRST_WORK_UNIT = "firstWorkUnit";
+    static final String REQUEST_PARAM_NUM_WORK_UNITS = "numWorkUnits";
+    static final String REQUEST_PARAM_RETRY_FAILED_USERS = "retryFailedUsers";
+    static final String REQUEST_PARAM_RUN_STARTED_ON = "runStartedOn";
+    static final String REQUEST_PARAM_SHARD_END_OFFSET = "shardEndOffset";
+    static final String REQUEST_PARAM_SHARD_INDEX = "shardIndex";
+    static final String REQUEST_PARAM_SHARD_START_OFFSET = "shardStartOffset";
+    static final String REQUEST_PARAM_STUDY_ID = "studyId";
+    static final String REQUEST_PARAM_TAG = "tag";
+    static final String REQUEST_PARAM_USER_IDS = "userIds";
+    static final String REQUEST_PARAM_WORK_UNIT_SIZE = "workUnitSize";
+
+    private String studyId;
+    private LocalDate date;
+    private String dateString;
+    private String tag;
+    private boolean retryFailedUsers;
+    private List<String> targetUserIdList;
+    private LocalDate backfillStartDate;
+    private BackfillSendMode backfillSendMode = BackfillSendMode.NONE;
+    private Integer shardIndex;
+    private int shardStartOffset = 0;
+    private int shardEndOffset = Integer.MAX_VALUE;
+    private Integer workUnitSize;
+    private Integer numWorkUnits;
+    private Integer firstWorkUnit;
+    private Long runStartedOn;
+
+    // Private constructor. Use parse().
+    private RunRequest() {
+    }
+
+    /** Parses and validates the given request. Throws PollSqsWorkerBadRequestException if the request is invalid. */
+    public static RunRequest parse(JsonNode jsonNode) throws PollSqsWorkerBadRequestException {
+        RunRequest request = new RunRequest();
+
+        // studyId
+        JsonNode studyIdNode = jsonNode.get(REQUEST_PARAM_STUDY_ID);
+        if (studyIdNode == null || studyIdNode.isNull()) {
+            throw new PollSqsWorkerBadRequestException("studyId must be specified");
+        }
+        if (!studyIdNode.isTextual()) {
+            throw new PollSqsWorkerBadRequestException("studyId must be a string");
+        }
+        request.studyId = studyIdNode.textValue();
+
+        // date
+        JsonNode dateNode = jsonNode.get(REQUEST_PARAM_DATE);
+        if (dateNode == null || dateNode.isNull()) {
+            throw new PollSqsWorkerBadRequestException("date must be specified");
+        }
+        if (!dateNode.isTextual()) {
+            throw new PollSqsWorkerBadRequestException("date must be a string");
+        }
+
+        request.dateString = dateNode.textValue();
+        try {
+            request.date = LocalDate.parse(request.dateString);
+        } catch (IllegalArgumentException ex) {
+            throw new PollSqsWorkerBadRequestException("date must be in the format YYYY-MM-DD");
+        }
+
+        // tag
+        JsonNode tagNode = jsonNode.get(REQUEST_PARAM_TAG);
+        if (tagNode != null && !tagNode.isNull()) {
+            request.tag = tagNode.textValue();
+        }
+
+        // retryFailedUsers
+        JsonNode retryFailedUsersNode = jsonNode.get(REQUEST_PARAM_RETRY_FAILED_USERS);
+        if (retryFailedUsersNode != null && !retryFailedUsersNode.isNull()) {
+            if (!retryFailedUsersNode.isBoolean()) {
+                throw new PollSqsWorkerBadRequestException("retryFailedUsers must be a boolean");
+            }
+            request.retryFailedUsers = retryFailedUsersNode.booleanValue();
+        }
+
+        // userIds
+        JsonNode userIdsNode = jsonNode.get(REQUEST_PARAM_USER_IDS);
+        if (userIdsNode != null && !userIdsNode.isNull()) {
+            if (request.retryFailedUsers) {
+                throw new PollSqsWorkerBadRequestException("userIds can't be specified with retryFailedUsers");
+            }
+            request.targetUserIdList = parseUserIds(userIdsNode);
+        }
+
+        parseBackfillParams(jsonNode, request);
+        parseShardParams(jsonNode, request);
+
+        // runStartedOn, if this request is a shard or work-stealing worker. This is when the coordinator started the
+        // run, and is used as the run's notification time.
+        JsonNode runStartedOnNode = jsonNode.get(REQUEST_PARAM_RUN_STARTED_ON);
+        if (runStartedOnNode != null && !runStartedOnNode.isNull()) {
+            if (!runStartedOnNode.isIntegralNumber() || !runStartedOnNode.canConvertToLong()) {
+                throw new PollSqsWorkerBadRequestException("runStartedOn must be an integer");
+            }
+            if (request.shardIndex == null && request.workUnitSize == null) {
+                throw new PollSqsWorkerBadRequestException("runStartedOn requires shardIndex or workUnitSize");
+            }
+            request.runStartedOn = runStartedOnNode.longValue();
+        }
+
+        return request;
+    }
+
+    // Helper method to parse backfillStartDate and backfillSendMode.
+    private static void parseBackfillParams(JsonNode jsonNode, RunRequest request)
+            throws PollSqsWorkerBadRequestException {
+        // backfillStartDate
+        JsonNode backfillStartDateNode = jsonNode.get(REQUEST_PARAM_BACKFILL_START_DATE);
+        if (backfillStartDateNode != null && !backfillStartDateNode.isNull()) {
+            if (!backfillStartDateNode.isTextual()) {
+                throw new PollSqsWorkerBadRequestException("backfillStartDate must be a string");
+            }
+            LocalDate backfillStartDate;
+            try {
+                backfillStartDate = LocalDate.parse(backfillStartDateNode.textValue());
+            } catch (IllegalArgumentException ex) {
+                throw new PollSqsWorkerBadRequestException("backfillStartDate must be in the format YYYY-MM-DD");
+            }
+            if (!backfillStartDate.isBefore(request.date)) {
+                throw new PollSqsWorkerBadRequestException("backfillStartDate must be before date");
+            }
+            if (Days.daysBetween(backfillStartDate, request.date).getDays() >= MAX_BACKFILL_DAYS) {
+                throw new PollSqsWorkerBadRequestException("backfill can't be more than " + MAX_BACKFILL_DAYS +
+                        " days");
+            }
+            if (request.retryFailedUsers) {
+                throw new PollSqsWorkerBadRequestException(
+                        "backfillStartDate can't be specified with retryFailedUsers");
+            }
+            request.backfillStartDate = backfillStartDate;
+        }
+
+        // backfillSendMode
+        JsonNode backfillSendModeNode = jsonNode.get(REQUEST_PARAM_BACKFILL_SEND_MODE);
+        if (backfillSendModeNode != null && !backfillSendModeNode.isNull()) {
+            if (request.backfillStartDate == null) {
+                throw new PollSqsWorkerBadRequestException("backfillSendMode requires backfillStartDate");
+            }
+            if (!backfillSendModeNode.isTextual()) {
+                throw new PollSqsWorkerBadRequestException("backfillSendMode must be a string");
+            }
+            try {
+                request.backfillSendMode = BackfillSendMode.valueOf(backfillSendModeNode.textValue().toUpperCase(
+                        Locale.US));
+            } catch (IllegalArgumentException ex) {
+                throw new PollSqsWorkerBadRequestException("backfillSendMode must be none or latest");
+            }
+        }
+    }
+
+    // Helper method to parse the shard params (shardIndex, shardStartOffset, and shardEndOffset) and the work unit
+    // params (workUnitSize, numWorkUnits, and firstWorkUnit).
+    private static void parseShardParams(JsonNode jsonNode, RunRequest request)
+            throws PollSqsWorkerBadRequestException {
+        boolean targetedRun = request.isTargetedRun();
+
+        // shardIndex, shardStartOffset, and shardEndOffset, if this request is a shard of a sharded run. The last
+        // shard has no end offset, so it includes users who were added after the run started.
+        Integer shardIndex = getOptionalNonNegativeInt(jsonNode, REQUEST_PARAM_SHARD_INDEX);
+        Integer shardStartOffsetParam = getOptionalNonNegativeInt(jsonNode, REQUEST_PARAM_SHARD_START_OFFSET);
+        Integer shardEndOffsetParam = getOptionalNonNegativeInt(jsonNode, REQUEST_PARAM_SHARD_END_OFFSET);
+        if (shardIndex != null) {
+            if (shardStartOffsetParam == null) {
+                throw new PollSqsWorkerBadRequestException("shardStartOffset must be specified");
+            }
+            if (targetedRun) {
+                throw new PollSqsWorkerBadRequestException(
+                        "shards can't be specified with userIds or retryFailedUsers");
+            }
+            request.shardIndex = shardIndex;
+            request.shardStartOffset = shardStartOffsetParam;
+            if (shardEndOffsetParam != null) {
+                if (shardEndOffsetParam <= shardStartOffsetParam) {
+                    throw new PollSqsWorkerBadRequestException("shardEndOffset must be after shardStartOffset");
+                }
+                request.shardEndOffset = shardEndOffsetParam;
+            }
+        } else if (shardStartOffsetParam != null || shardEndOffsetParam != null) {
+            throw new PollSqsWorkerBadRequestException("shard offsets require shardIndex");
+        }
+
+        // workUnitSize, numWorkUnits, and firstWorkUnit, if this request is a worker of a work-stealing run.
+        Integer workUnitSize = getOptionalNonNegativeInt(jsonNode, REQUEST_PARAM_WORK_UNIT_SIZE);
+        Integer numWorkUnits = getOptionalNonNegativeInt(jsonNode, REQUEST_PARAM_NUM_WORK_UNITS);
+        Integer firstWorkUnit = getOptionalNonNegativeInt(jsonNode, REQUEST_PARAM_FIRST_WORK_UNIT);
+        if (workUnitSize != null) {
+            if (numWorkUnits == null || firstWorkUnit == null) {
+                throw new PollSqsWorkerBadRequestException("workUnitSize requires numWorkUnits and firstWorkUnit");
+            }
+            if (workUnitSize == 0 || numWorkUnits == 0) {
+                throw new PollSqsWorkerBadRequestException("workUnitSize and numWorkUnits must be positive");
+            }
+            if (firstWorkUnit >= numWorkUnits) {
+                throw new PollSqsWorkerBadRequestException("firstWorkUnit must be less than numWorkUnits");
+            }
+            if (shardIndex != null || targetedRun) {
+                throw new PollSqsWorkerBadRequestException(
+                        "work units can't be specified with shards, userIds, or retryFailedUsers");
+            }
+            request.workUnitSize = workUnitSize;
+            request.numWorkUnits = numWorkUnits;
+            request.firstWorkUnit = firstWorkUnit;
+        } else if (numWorkUnits != null || firstWorkUnit != null) {
+            throw new PollSqsWorkerBadRequestException("work unit params require workUnitSize");
+        }
+    }
+
+    // Helper method to get an optional non-negative integer request param. Returns null if it isn't specified.
+    private static Integer getOptionalNonNegativeInt(JsonNode jsonNode, String paramName)
+            throws PollSqsWorkerBadRequestException {
+        JsonNode paramNode = jsonNode.get(paramName);
+        if (paramNode == null || paramNode.isNull()) {
+            return null;
+        }
+        if (!paramNode.isInt() || paramNode.intValue() < 0) {
+            throw new PollSqsWorkerBadRequestException(paramName + " must be a non-negative integer");
+        }
+        return paramNode.intValue();
+    }
+
+    // Helper method to parse the request's list of user IDs. Duplicates are removed, so each user is only processed
+    // once.
+    private static List<String> parseUserIds(JsonNode userIdsNode) throws PollSqsWorkerBadRequestException {
+        if (!userIdsNode.isArray()) {
+            throw new PollSqsWorkerBadRequestException("userIds must be an array");
+        }
+        if (userIdsNode.size() == 0) {
+            throw new PollSqsWorkerBadRequestException("userIds must not be empty");
+        }
+
+        Set<String> userIdSet = new LinkedHashSet<>();
+        for (JsonNode oneUserIdNode : userIdsNode) {
+            if (!oneUserIdNode.isTextual() || oneUserIdNode.textValue().isEmpty()) {
+                throw new PollSqsWorkerBadRequestException("userIds must only contain non-empty strings");
+            }
+            userIdSet.add(oneUserIdNode.textValue());
+        }
+        return new ArrayList<>(userIdSet);
+    }
+
+    // Helper method to make the ID for a run, which is the same for every delivery of the same request. Package-scoped
+    // for unit tests.
+    static String makeRunId(String studyId, String dateString, String tag) {
+        return studyId + ":" + dateString + ":" + Strings.nullToEmpty(tag);
+    }
+
+    /**
+     * ID of the run this request belongs to. This is the same for every delivery of the same request, and for every
+     * shard and worker of a sharded run. A backfill's run ID includes its start date.
+     */
+    public String getRunId() {
+        return makeRunId(studyId, backfillStartDate != null ? backfillStartDate + "/" + dateString : dateString,
+                tag);
+    }
+
+    /** Study to send notifications for. */
+    public String getStudyId() {
+        return studyId;
+    }
+
+    /** Date to send notifications for. */
+    public LocalDate getDate() {
+        return date;
+    }
+
+    /** The date, as it was specified in the request. */
+    public String getDateString() {
+        return dateString;
+    }
+
+    /** Tag to write to the worker log when the run finishes. May be null. */
+    public String getTag() {
+        return tag;
+    }
+
+    /** True if this request only processes the users that failed in earlier runs for the study and date. */
+    public boolean isRetryFailedUsers() {
+        return retryFailedUsers;
+    }
+
+    /** IDs of the users to process, with duplicates removed. Null if the request is for the whole study. */
+    public List<String> getTargetUserIdList() {
+        return targetUserIdList;
+    }
+
+    /**
+     * True if this run is for a list of users, or the users that failed in earlier runs, rather than the whole study.
+     */
+    public boolean isTargetedRun() {
+        return retryFailedUsers || targetUserIdList != null;
+    }
+
+    /** First date of a backfill, which runs up to and including the request's date. Null if this isn't a backfill. */
+    public LocalDate getBackfillStartDate() {
+        return backfillStartDate;
+    }
+
+    /** Which dates of a backfill send notifications. Defaults to NONE, where every date is a dry run. */
+    public BackfillSendMode getBackfillSendMode() {
+        return backfillSendMode;
+    }
+
+    /** Index of this shard in a sharded run. Null if this request isn't a shard. */
+    public Integer getShardIndex() {
+        return shardIndex;
+    }
+
+    /** Offset into the study's users where this shard starts. 0 if this request isn't a shard. */
+    public int getShardStartOffset() {
+        return shardStartOffset;
+    }
+
+    /**
+     * Offset into the study's users where this shard ends, exclusive. Integer.MAX_VALUE if this request isn't a shard,
+     * or is the last shard.
+     */
+    public int getShardEndOffset() {
+        return shardEndOffset;
+    }
+
+    /** True if this request is a shard of a sharded run. */
+    public boolean isShard() {
+        return shardIndex != null;
+    }
+
+    /** Number of users in each work unit of a work-stealing run. Null if this request isn't a worker. */
+    public Integer getWorkUnitSize() {
+        return workUnitSize;
+    }
+
+    /** Number of work units in a work-stealing run. Null if this request isn't a worker. */
+    public Integer getNumWorkUnits() {
+        return numWorkUnits;
+    }
+
+    /** Work unit this worker tries to claim first. Null if this request isn't a worker. */
+    public Integer getFirstWorkUnit() {
+        return firstWorkUnit;
+    }
+
+    /** True if this request is a worker of a work-stealing run. */
+    public boolean isWorkStealingWorker() {
+        return workUnitSize != null;
+    }
+
+    /**
+     * True if this request starts a run, rather than being a shard or worker of a run that another request started.
+     */
+    public boolean isRunStart() {
+        return shardIndex == null && workUnitSize == null;
+    }
+
+    /**
+     * Time in epoch milliseconds that the coordinator started the run, for shards and workers. Null if the request
+     * didn't specify it.
+     */
+    public Long getRunStartedOn() {
+        return runStartedOn;
+    }
+
+    @Override
+    public String toString() {
+        return "study=" + studyId + ", date=" + dateString + ", tag=" + tag + ", retryFailedUsers=" +
+                retryFailedUsers + ", numUserIds=" + (targetUserIdList != null ? targetUserIdList.size() : "all") +
+                ", backfillStartDate=" + backfillStartDate + ", backfillSendMode=" + backfillSendMode +
+                ", shardIndex=" + shardIndex + ", firstWorkUnit=" + firstWorkUnit;
+    }
+}
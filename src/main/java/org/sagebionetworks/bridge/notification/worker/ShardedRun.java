@@ -0,0 +1,30 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+/**
+ * A sharded run, as tracked in DDB. If the coordinator's request is redelivered, the coordinator joins the run that's
+ * already being tracked, and reuses its shard count and start time, so shards that already finished stay finished.
+ */
+public class ShardedRun {
+    private int numShards;
+    private long startedOn;
+
+    /** Number of shards (or work units, for a work-stealing run) in the run. */
+    public int getNumShards() {
+        return numShards;
+    }
+
+    /** @see #getNumShards */
+    public void setNumShards(int numShards) {
+        this.numShards = numShards;
+    }
+
+    /** Time in epoch milliseconds that the run started. This is the run's notification time. */
+    public long getStartedOn() {
+        return startedOn;
+    }
+
+    /** @see #getStartedOn */
+    public void setStartedOn(long startedOn) {
+        this.startedOn = startedOn;
+    }
+}
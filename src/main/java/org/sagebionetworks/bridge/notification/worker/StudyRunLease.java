@@ -0,0 +1,67 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+/**
+ * The run lease for a study and date. Only the run that holds the lease processes the study and date, so two nodes
+ * never evaluate the same users at the same time. Every node working on the run (including shards and work units)
+ * renews the lease while it works.
+ */
+public class StudyRunLease {
+    private long leaseExpiresOn;
+    private String runId;
+    private long startedOn;
+    private StudyRunStatus status;
+    private long updatedOn;
+
+    /** Time in epoch milliseconds that the lease expires, unless the run renews it. */
+    public long getLeaseExpiresOn() {
+        return leaseExpiresOn;
+    }
+
+    /** @see #getLeaseExpiresOn */
+    public void setLeaseExpiresOn(long leaseExpiresOn) {
+        this.leaseExpiresOn = leaseExpiresOn;
+    }
+
+    /** ID of the run that holds (or last held) the lease. */
+    public String getRunId() {
+        return runId;
+    }
+
+    /** @see #getRunId */
+    public void setRunId(String runId) {
+        this.runId = runId;
+    }
+
+    /**
+     * Time in epoch milliseconds that the run started. This is the run's notification time, and it's kept if another
+     * request takes over the same run.
+     */
+    public long getStartedOn() {
+        return startedOn;
+    }
+
+    /** @see #getStartedOn */
+    public void setStartedOn(long startedOn) {
+        this.startedOn = startedOn;
+    }
+
+    /** Whether the run is in progress, or finished. */
+    public StudyRunStatus getStatus() {
+        return status;
+    }
+
+    /** @see #getStatus */
+    public void setStatus(StudyRunStatus status) {
+        this.status = status;
+    }
+
+    /** Time in epoch milliseconds that the lease was last written. */
+    public long getUpdatedOn() {
+        return updatedOn;
+    }
+
+    /** @see #getUpdatedOn */
+    public void setUpdatedOn(long updatedOn) {
+        this.updatedOn = updatedOn;
+    }
+}
@@ -0,0 +1,141 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.joda.time.LocalDate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.sagebionetworks.bridge.notification.helper.DynamoHelper;
+import org.sagebionetworks.bridge.time.DateUtils;
+
+/**
+ * Holds the run lease for a study and date on behalf of one request, so that only one run processes a study and date
+ * at a time. The request that starts a run acquires the lease. Shards and work units of the run only renew it. This
+ * class is not thread-safe; it's only used by the thread that reads the roster.
+ */
+public class StudyRunLeaseKeeper {
+    private static final Logger LOG = LoggerFactory.getLogger(StudyRunLeaseKeeper.class);
+
+    // How long to wait before checking the lease again, if another run holds it. Package-scoped for unit tests.
+    static final long WAIT_MILLIS = 10000;
+
+    private final LocalDate date;
+    private final DynamoHelper dynamoHelper;
+    private final long leaseMillis;
+    private final String runId;
+    private final String studyId;
+
+    // When we next renew the lease. Starts at 0, so the first renewal also checks that the run still holds the lease.
+    private long nextRenewalMillis;
+    private Long startedOn;
+
+    /** Creates a lease keeper for the given run of the given study and date. */
+    public StudyRunLeaseKeeper(DynamoHelper dynamoHelper, String studyId, LocalDate date, String runId,
+            long leaseMillis) {
+        this.date = date;
+        this.dynamoHelper = dynamoHelper;
+        this.leaseMillis = leaseMillis;
+        this.runId = runId;
+        this.studyId = studyId;
+    }
+
+    /**
+     * Time in epoch milliseconds that the run started, once the lease is acquired. If this request took over the run
+     * from a request whose lease expired, this is when that request started the run.
+     */
+    public Long getStartedOn() {
+        return startedOn;
+    }
+
+    /**
+     * Acquires the lease for this run. If another run holds the lease, this waits for it to finish, or for its lease
+     * to expire. If the run holding the lease is this same run (for example, because the request was delivered
+     * twice), this request joins it: it waits for the run to finish and then returns false, so the caller can skip
+     * the run. If the lease isn't free within the given time, this throws, so the request is retried later.
+     */
+    public boolean acquire(long maxWaitMillis) {
+        long waitUntilMillis = DateUtils.getCurrentMillisFromEpoch() + maxWaitMillis;
+        while (true) {
+            StudyRunLease lease = dynamoHelper.getStudyRunLease(studyId, date);
+            long now = DateUtils.getCurrentMillisFromEpoch();
+            boolean sameRun = lease != null && runId.equals(lease.getRunId());
+            long runStartedOn = now;
+            if (lease != null && lease.getStatus() == StudyRunStatus.FINISHED) {
+                // A run that finished long ago is treated like a new run, the same way old checkpoints are ignored.
+                long finishedRunMinMillis = now - TimeUnit.HOURS.toMillis(
+                        BridgeNotificationWorkerProcessor.RUN_CHECKPOINT_MAX_AGE_HOURS);
+                if (sameRun && lease.getUpdatedOn() > finishedRunMinMillis) {
+                    LOG.info("Run " + runId + " already finished");
+                    return false;
+                }
+            } else if (lease != null && lease.getLeaseExpiresOn() >= now) {
+                if (now >= waitUntilMillis) {
+                    throw new IllegalStateException("Timed out waiting for run " + lease.getRunId() +
+                            " to release the lease for study " + studyId + " and date " + date);
+                }
+                LOG.info("Waiting for run " + lease.getRunId() + " to release the lease for study " + studyId +
+                        " and date " + date);
+                sleep(WAIT_MILLIS);
+                continue;
+            } else if (sameRun) {
+                // This run's lease expired, probably because its node died. Take over the run, and keep its start
+                // time, so notifications are recorded at the same time as before and can't be sent twice.
+                LOG.info("Taking over run " + runId + " after its lease expired");
+                runStartedOn = lease.getStartedOn();
+            }
+
+            // Another request might take the lease first. If so, check the lease again.
+            if (dynamoHelper.acquireStudyRunLease(studyId, date, runId, runStartedOn, now + leaseMillis)) {
+                startedOn = runStartedOn;
+                nextRenewalMillis = now + leaseMillis / 3;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Renews the lease, if it's been long enough since the last renewal. Returns false if the run no longer holds the
+     * lease, in which case the caller should stop working on the run. If the renewal fails with an error, log it and
+     * keep going; the worst case is that another run takes over, and the notification log and run ledger guard
+     * against duplicate notifications.
+     */
+    public boolean renewLeaseIfNeeded() {
+        long now = DateUtils.getCurrentMillisFromEpoch();
+        if (now < nextRenewalMillis) {
+            return true;
+        }
+
+        try {
+            if (!dynamoHelper.renewStudyRunLease(studyId, date, runId, now + leaseMillis)) {
+                LOG.warn("Run " + runId + " lost the lease for study " + studyId + " and date " + date);
+                return false;
+            }
+            nextRenewalMillis = now + leaseMillis / 3;
+        } catch (RuntimeException ex) {
+            LOG.error("Error renewing lease for run " + runId + ": " + ex.getMessage(), ex);
+        }
+        return true;
+    }
+
+    /**
+     * Releases the lease, so the next run for the study and date can start. Errors are logged and otherwise ignored;
+     * the lease expires on its own.
+     */
+    public void release() {
+        try {
+            if (!dynamoHelper.releaseStudyRunLease(studyId, date, runId)) {
+                LOG.warn("Run " + runId + " lost the lease for study " + studyId + " and date " + date +
+                        " before it finished");
+            }
+        } catch (RuntimeException ex) {
+            LOG.error("Error releasing lease for run " + runId + ": " + ex.getMessage(), ex);
+        }
+    }
+
+    // Waits before checking the lease again. Package-scoped so unit tests can skip the wait.
+    void sleep(long millis) {
+        Uninterruptibles.sleepUninterruptibly(millis, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,10 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+/** Status of the run that holds (or last held) the run lease for a study and date. */
+public enum StudyRunStatus {
+    /** The run is in progress. If its lease expires, another request can take over the study and date. */
+    RUNNING,
+
+    /** The run finished, and released the lease. */
+    FINISHED,
+}
@@ -0,0 +1,92 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+
+import org.sagebionetworks.bridge.time.DateUtils;
+
+/**
+ * Per-run table of participant time zones, keyed by the participant's offset string (eg "-07:00"). Participants only
+ * use a few dozen distinct offsets, so each offset is parsed once per run, along with whether we're allowed to send
+ * notifications in that time zone and the bounds of the run date in that time zone. This class is thread-safe.
+ */
+public class TimeZoneTable {
+    // Participants in time zones outside of UTC-11 to UTC-1 are excluded. This is because we'd end up sending at
+    // unusually early or unusually late hours. Package-scoped for unit tests.
+    static final int MIN_TIMEZONE_OFFSET_MILLIS = -11 * 60 * 60 * 1000;
+    static final int MAX_TIMEZONE_OFFSET_MILLIS = -1 * 60 * 60 * 1000;
+
+    private final LocalDate date;
+    private final DateTime now;
+    private final ConcurrentMap<String, ZoneInfo> zoneInfoByOffsetString = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs a time zone table for the given run date. Eligibility is computed at the given instant, so that
+     * every participant in the run is checked against the same time.
+     */
+    public TimeZoneTable(LocalDate date, DateTime now) {
+        this.date = date;
+        this.now = now;
+    }
+
+    /**
+     * Gets the zone info for the given offset string, parsing it if this is the first time we've seen it this run.
+     * Throws IllegalArgumentException if the offset string can't be parsed.
+     */
+    public ZoneInfo get(String offsetString) {
+        return zoneInfoByOffsetString.computeIfAbsent(offsetString, this::makeZoneInfo);
+    }
+
+    /** Number of distinct offsets seen so far this run. */
+    public int size() {
+        return zoneInfoByOffsetString.size();
+    }
+
+    // Helper method to parse an offset string and precompute everything the per-user code needs.
+    private ZoneInfo makeZoneInfo(String offsetString) {
+        DateTimeZone timeZone = DateUtils.parseZoneFromOffsetString(offsetString);
+        int offsetMillis = timeZone.getOffset(now);
+        boolean allowed = offsetMillis >= MIN_TIMEZONE_OFFSET_MILLIS && offsetMillis <= MAX_TIMEZONE_OFFSET_MILLIS;
+        return new ZoneInfo(timeZone, allowed, date.toDateTimeAtStartOfDay(timeZone),
+                date.plusDays(1).toDateTimeAtStartOfDay(timeZone));
+    }
+
+    /** A parsed time zone, with values precomputed for the run. */
+    public static class ZoneInfo {
+        private final DateTimeZone timeZone;
+        private final boolean allowed;
+        private final DateTime dateStart;
+        private final DateTime dateEnd;
+
+        private ZoneInfo(DateTimeZone timeZone, boolean allowed, DateTime dateStart, DateTime dateEnd) {
+            this.timeZone = timeZone;
+            this.allowed = allowed;
+            this.dateStart = dateStart;
+            this.dateEnd = dateEnd;
+        }
+
+        /** The parsed time zone. */
+        public DateTimeZone getTimeZone() {
+            return timeZone;
+        }
+
+        /** True if we're allowed to send notifications to participants in this time zone. */
+        public boolean isAllowed() {
+            return allowed;
+        }
+
+        /** Start of the run date in this time zone, inclusive. */
+        public DateTime getDateStart() {
+            return dateStart;
+        }
+
+        /** End of the run date in this time zone, exclusive. This is the start of the next day. */
+        public DateTime getDateEnd() {
+            return dateEnd;
+        }
+    }
+}
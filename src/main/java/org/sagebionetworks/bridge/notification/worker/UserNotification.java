@@ -3,6 +3,7 @@ package org.sagebionetworks.bridge.notification.worker;
 /** This class encapsulates all the fields necessary to represent a notification sent to a user. */
 public class UserNotification {
     private String message;
+    private String studyId;
     private long time;
     private NotificationType type;
     private String userId;
@@ -17,6 +18,16 @@ public class UserNotification {
         this.message = message;
     }
 
+    /** ID of the study the notification was sent for. Null for notifications logged before this was recorded. */
+    public String getStudyId() {
+        return studyId;
+    }
+
+    /** @see #getStudyId */
+    public void setStudyId(String studyId) {
+        this.studyId = studyId;
+    }
+
     /** Time in epoch milliseconds that the message was sent. */
     public long getTime() {
         return time;
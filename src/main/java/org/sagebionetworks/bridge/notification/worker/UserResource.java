@@ -0,0 +1,16 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+/**
+ * Per-user data that the exclusion stages need, and which requires a call to Bridge or DynamoDB. Each resource is
+ * fetched at most once per user, by the first stage that needs it.
+ */
+public enum UserResource {
+    /** The participant's activity events, from Bridge. */
+    ACTIVITY_EVENTS,
+
+    /** The participant's most recent notification, from DynamoDB. */
+    LAST_NOTIFICATION,
+
+    /** The participant, from Bridge, or the participant snapshot, if it is cached. */
+    PARTICIPANT,
+}
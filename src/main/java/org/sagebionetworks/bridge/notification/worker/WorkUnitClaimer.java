@@ -0,0 +1,149 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.sagebionetworks.bridge.notification.helper.DynamoHelper;
+import org.sagebionetworks.bridge.time.DateUtils;
+
+/**
+ * Claims work units of a work-stealing run on behalf of one worker request. Units are claimed one at a time, starting
+ * from the request's first unit and wrapping around, so workers that start at different units rarely compete for the
+ * same unit. A unit whose owner stopped renewing its lease is stolen. This class is not thread-safe; it's only used by
+ * the thread that reads the roster.
+ */
+public class WorkUnitClaimer {
+    private static final Logger LOG = LoggerFactory.getLogger(WorkUnitClaimer.class);
+
+    // How long to wait before checking the work units again, if every unfinished unit is leased by another worker.
+    // Package-scoped for unit tests.
+    static final long WAIT_MILLIS = 10000;
+
+    private final DynamoHelper dynamoHelper;
+    private final int firstWorkUnit;
+    private final Set<Integer> finishedUnitSet = new HashSet<>();
+    private final long leaseMillis;
+    private final int numWorkUnits;
+    private final String ownerId = UUID.randomUUID().toString();
+    private final String runId;
+
+    // The unit we currently hold, if any, and when we next renew its lease.
+    private Integer currentUnitIndex;
+    private long nextRenewalMillis;
+
+    /** Creates a claimer for the given run, which is split into the given number of work units. */
+    public WorkUnitClaimer(DynamoHelper dynamoHelper, String runId, int numWorkUnits, int firstWorkUnit,
+            long leaseMillis) {
+        this.dynamoHelper = dynamoHelper;
+        this.firstWorkUnit = firstWorkUnit;
+        this.leaseMillis = leaseMillis;
+        this.numWorkUnits = numWorkUnits;
+        this.runId = runId;
+    }
+
+    /** ID that identifies this claimer as the owner of its leases. */
+    public String getOwnerId() {
+        return ownerId;
+    }
+
+    /**
+     * Claims the next work unit and returns its index. If every unfinished unit is leased by another worker, this
+     * waits, in case one of them stops renewing its lease. Returns null once every unit is finished.
+     */
+    public Integer claimNextWorkUnit() {
+        currentUnitIndex = null;
+        while (true) {
+            boolean anyLeasedByOthers = false;
+            for (int i = 0; i < numWorkUnits; i++) {
+                int unitIndex = (firstWorkUnit + i) % numWorkUnits;
+                if (finishedUnitSet.contains(unitIndex)) {
+                    continue;
+                }
+
+                // Read the lease first. This is cheaper than a failed conditional write, and tells us whether the
+                // unit is finished, so we never check it again.
+                WorkUnitLease lease = dynamoHelper.getWorkUnitLease(runId, unitIndex);
+                long now = DateUtils.getCurrentMillisFromEpoch();
+                if (lease != null && lease.getStatus() == WorkUnitStatus.FINISHED) {
+                    finishedUnitSet.add(unitIndex);
+                    continue;
+                }
+                if (lease != null && lease.getLeaseExpiresOn() >= now) {
+                    anyLeasedByOthers = true;
+                    continue;
+                }
+
+                // The unit is unclaimed, or its owner's lease expired. Another worker might get there first.
+                if (dynamoHelper.claimWorkUnit(runId, unitIndex, ownerId, now + leaseMillis)) {
+                    if (lease != null) {
+                        LOG.info("Stole work unit " + unitIndex + " of run " + runId + " from " + lease.getOwnerId());
+                    }
+                    currentUnitIndex = unitIndex;
+                    nextRenewalMillis = now + leaseMillis / 3;
+                    return unitIndex;
+                }
+                anyLeasedByOthers = true;
+            }
+
+            if (!anyLeasedByOthers) {
+                return null;
+            }
+            sleep(WAIT_MILLIS);
+        }
+    }
+
+    /**
+     * Renews the lease on the current work unit, if it's been long enough since the last renewal. Returns false if
+     * we lost the lease to another worker, in which case the caller should stop working on the unit. If the renewal
+     * fails with an error, log it and keep going; the worst case is that another worker steals the unit and some
+     * users are processed twice, which the run ledger guards against.
+     */
+    public boolean renewLeaseIfNeeded() {
+        long now = DateUtils.getCurrentMillisFromEpoch();
+        if (currentUnitIndex == null || now < nextRenewalMillis) {
+            return currentUnitIndex != null;
+        }
+
+        try {
+            if (!dynamoHelper.renewWorkUnitLease(runId, currentUnitIndex, ownerId, now + leaseMillis)) {
+                LOG.warn("Lost lease on work unit " + currentUnitIndex + " of run " + runId);
+                currentUnitIndex = null;
+                return false;
+            }
+            nextRenewalMillis = now + leaseMillis / 3;
+        } catch (RuntimeException ex) {
+            LOG.error("Error renewing lease on work unit " + currentUnitIndex + " of run " + runId + ": " +
+                    ex.getMessage(), ex);
+        }
+        return true;
+    }
+
+    /**
+     * Marks the current work unit as finished. Returns false if we lost the lease before we could finish it, in which
+     * case the worker that stole the unit finishes it instead.
+     */
+    public boolean finishWorkUnit() {
+        if (currentUnitIndex == null) {
+            return false;
+        }
+        int unitIndex = currentUnitIndex;
+        currentUnitIndex = null;
+        if (!dynamoHelper.finishWorkUnit(runId, unitIndex, ownerId)) {
+            LOG.warn("Lost lease on work unit " + unitIndex + " of run " + runId + " before it finished");
+            return false;
+        }
+        finishedUnitSet.add(unitIndex);
+        return true;
+    }
+
+    // Waits before checking the work units again. Package-scoped so unit tests can skip the wait.
+    void sleep(long millis) {
+        Uninterruptibles.sleepUninterruptibly(millis, TimeUnit.MILLISECONDS);
+    }
+}
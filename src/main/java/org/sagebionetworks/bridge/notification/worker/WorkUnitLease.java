@@ -0,0 +1,63 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+/**
+ * A worker's lease on a work unit. The owner keeps renewing the lease while it works on the unit. If the owner stops
+ * (for example, because its node died), the lease expires, and another worker can steal the unit.
+ */
+public class WorkUnitLease {
+    private long leaseExpiresOn;
+    private String ownerId;
+    private String runId;
+    private WorkUnitStatus status;
+    private int unitIndex;
+
+    /** Time in epoch milliseconds that the lease expires, unless the owner renews it. */
+    public long getLeaseExpiresOn() {
+        return leaseExpiresOn;
+    }
+
+    /** @see #getLeaseExpiresOn */
+    public void setLeaseExpiresOn(long leaseExpiresOn) {
+        this.leaseExpiresOn = leaseExpiresOn;
+    }
+
+    /** ID of the worker that holds (or last held) the lease. */
+    public String getOwnerId() {
+        return ownerId;
+    }
+
+    /** @see #getOwnerId */
+    public void setOwnerId(String ownerId) {
+        this.ownerId = ownerId;
+    }
+
+    /** Run that the work unit is part of. */
+    public String getRunId() {
+        return runId;
+    }
+
+    /** @see #getRunId */
+    public void setRunId(String runId) {
+        this.runId = runId;
+    }
+
+    /** Whether the unit is still being worked on, or finished. */
+    public WorkUnitStatus getStatus() {
+        return status;
+    }
+
+    /** @see #getStatus */
+    public void setStatus(WorkUnitStatus status) {
+        this.status = status;
+    }
+
+    /** Index of the work unit within the run. */
+    public int getUnitIndex() {
+        return unitIndex;
+    }
+
+    /** @see #getUnitIndex */
+    public void setUnitIndex(int unitIndex) {
+        this.unitIndex = unitIndex;
+    }
+}
@@ -0,0 +1,13 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+/** Status of a work unit, which is a small range of the roster in a work-stealing run. */
+public enum WorkUnitStatus {
+    /**
+     * A worker has claimed the unit and is processing it. If the lease expires before the unit is finished, another
+     * worker can steal it.
+     */
+    LEASED,
+
+    /** Every user in the unit has been processed. */
+    FINISHED,
+}
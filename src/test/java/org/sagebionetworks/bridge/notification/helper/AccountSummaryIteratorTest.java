@@ -1,6 +1,10 @@
 package org.sagebionetworks.bridge.notification.helper;
 
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
@@ -10,7 +14,10 @@ import static org.testng.Assert.assertTrue;
 import static org.testng.Assert.fail;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import com.google.common.util.concurrent.MoreExecutors;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 import retrofit2.Call;
@@ -25,6 +32,7 @@ import org.sagebionetworks.bridge.rest.model.AccountSummaryList;
 public class AccountSummaryIteratorTest {
     private static final String STUDY_ID = "test-study";
     private static final String USER_ID_PREFIX = "dummy-user-id-";
+    private static final PageSizer FIXED_PAGE_SIZER = PageSizer.fixed(AccountSummaryIterator.PAGE_SIZE);
 
     private ClientManager mockClientManager;
     private ForWorkersApi mockApi;
@@ -163,12 +171,227 @@ public class AccountSummaryIteratorTest {
         }
     }
 
+    @Test
+    public void prefetchReadsAheadUpToDepth() throws Exception {
+        // 5 pages, prefetch depth 2. Direct executor so prefetches happen synchronously.
+        for (int i = 0; i < 5; i++) {
+            mockApiWithPage(i * AccountSummaryIterator.PAGE_SIZE, AccountSummaryIterator.PAGE_SIZE,
+                    5 * AccountSummaryIterator.PAGE_SIZE);
+        }
+
+        // Creating the iterator loads the first page and prefetches the next 2.
+        AccountSummaryIterator iter = new AccountSummaryIterator(mockClientManager, STUDY_ID, FIXED_PAGE_SIZER,
+                MoreExecutors.newDirectExecutorService(), 2);
+        verifyPageRequested(0);
+        verifyPageRequested(AccountSummaryIterator.PAGE_SIZE);
+        verifyPageRequested(2 * AccountSummaryIterator.PAGE_SIZE);
+        verifyNoMoreInteractions(mockApi);
+
+        // Consuming the first page doesn't request any more pages.
+        for (int i = 0; i < AccountSummaryIterator.PAGE_SIZE; i++) {
+            assertEquals(iter.next().getId(), USER_ID_PREFIX + i);
+        }
+        verifyNoMoreInteractions(mockApi);
+
+        // Moving to the second page prefetches the fourth page.
+        assertEquals(iter.next().getId(), USER_ID_PREFIX + AccountSummaryIterator.PAGE_SIZE);
+        verifyPageRequested(3 * AccountSummaryIterator.PAGE_SIZE);
+        verifyNoMoreInteractions(mockApi);
+
+        // Drain the rest of the iterator. Each page is requested exactly once.
+        int numAccounts = AccountSummaryIterator.PAGE_SIZE + 1;
+        while (iter.hasNext()) {
+            assertEquals(iter.next().getId(), USER_ID_PREFIX + numAccounts);
+            numAccounts++;
+        }
+        assertEquals(numAccounts, 5 * AccountSummaryIterator.PAGE_SIZE);
+        verifyPageRequested(4 * AccountSummaryIterator.PAGE_SIZE);
+        verifyNoMoreInteractions(mockApi);
+    }
+
+    @Test
+    public void prefetchWithThreadPool() throws Exception {
+        mockApiWithPage(0, AccountSummaryIterator.PAGE_SIZE, 2 * AccountSummaryIterator.PAGE_SIZE + 1);
+        mockApiWithPage(AccountSummaryIterator.PAGE_SIZE, AccountSummaryIterator.PAGE_SIZE,
+                2 * AccountSummaryIterator.PAGE_SIZE + 1);
+        mockApiWithPage(2 * AccountSummaryIterator.PAGE_SIZE, 1, 2 * AccountSummaryIterator.PAGE_SIZE + 1);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try {
+            testIterator(new AccountSummaryIterator(mockClientManager, STUDY_ID, FIXED_PAGE_SIZER,
+                    executorService, 2), 2 * AccountSummaryIterator.PAGE_SIZE + 1);
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
+    @Test
+    public void prefetchErrorSurfacesWhenPageIsReached() throws Exception {
+        // Page 2 fails the first time, then succeeds.
+        mockApiWithPage(0, AccountSummaryIterator.PAGE_SIZE, 3 * AccountSummaryIterator.PAGE_SIZE);
+
+        Response<AccountSummaryList> secondPageResponse = makePageResponse(AccountSummaryIterator.PAGE_SIZE,
+                AccountSummaryIterator.PAGE_SIZE, 3 * AccountSummaryIterator.PAGE_SIZE);
+        Call<AccountSummaryList> mockSecondPageCall = mock(Call.class);
+        when(mockSecondPageCall.execute()).thenThrow(IOException.class).thenReturn(secondPageResponse);
+        when(mockApi.getParticipants(STUDY_ID, AccountSummaryIterator.PAGE_SIZE, AccountSummaryIterator.PAGE_SIZE,
+                null, "1", null, null)).thenReturn(mockSecondPageCall);
+
+        mockApiWithPage(2 * AccountSummaryIterator.PAGE_SIZE, AccountSummaryIterator.PAGE_SIZE,
+                3 * AccountSummaryIterator.PAGE_SIZE);
+
+        // The second page already failed in the background, but we can still read all of the first page.
+        AccountSummaryIterator iter = new AccountSummaryIterator(mockClientManager, STUDY_ID, FIXED_PAGE_SIZER,
+                MoreExecutors.newDirectExecutorService(), 2);
+        for (int i = 0; i < AccountSummaryIterator.PAGE_SIZE; i++) {
+            assertEquals(iter.next().getId(), USER_ID_PREFIX + i);
+        }
+
+        // The error surfaces when we reach the second page.
+        assertTrue(iter.hasNext());
+        try {
+            iter.next();
+            fail("expected exception");
+        } catch (RuntimeException ex) {
+            assertTrue(ex.getCause() instanceof IOException);
+        }
+
+        // The next call retries the second page. Then we read the rest of the study.
+        int numAccounts = AccountSummaryIterator.PAGE_SIZE;
+        while (iter.hasNext()) {
+            assertEquals(iter.next().getId(), USER_ID_PREFIX + numAccounts);
+            numAccounts++;
+        }
+        assertEquals(numAccounts, 3 * AccountSummaryIterator.PAGE_SIZE);
+    }
+
+    @Test
+    public void prefetchShortPageRequestsFromActualOffset() throws Exception {
+        // The first page comes back with fewer items than the page size, even though there are more accounts. The
+        // prefetched page at offset PAGE_SIZE is discarded, and we request the page at offset 1 instead.
+        mockApiWithPage(0, 1, AccountSummaryIterator.PAGE_SIZE + 1);
+        mockApiWithPage(1, AccountSummaryIterator.PAGE_SIZE, AccountSummaryIterator.PAGE_SIZE + 1);
+        mockApiWithPage(AccountSummaryIterator.PAGE_SIZE, 1, AccountSummaryIterator.PAGE_SIZE + 1);
+
+        testIterator(new AccountSummaryIterator(mockClientManager, STUDY_ID, FIXED_PAGE_SIZER,
+                MoreExecutors.newDirectExecutorService(), 1), AccountSummaryIterator.PAGE_SIZE + 1);
+        verifyPageRequested(1);
+    }
+
+    @Test
+    public void prefetchWithNoExecutorLoadsOnCallingThread() throws Exception {
+        mockApiWithPage(0, AccountSummaryIterator.PAGE_SIZE, 2 * AccountSummaryIterator.PAGE_SIZE);
+        mockApiWithPage(AccountSummaryIterator.PAGE_SIZE, AccountSummaryIterator.PAGE_SIZE,
+                2 * AccountSummaryIterator.PAGE_SIZE);
+
+        // No prefetch happens at construction.
+        AccountSummaryIterator iter = new AccountSummaryIterator(mockClientManager, STUDY_ID, FIXED_PAGE_SIZER,
+                null, 2);
+        verify(mockApi, never()).getParticipants(eq(STUDY_ID), eq(AccountSummaryIterator.PAGE_SIZE), anyInt(),
+                any(), any(), any(), any());
+        testIterator(iter, 2 * AccountSummaryIterator.PAGE_SIZE);
+    }
+
+    @Test
+    public void adaptivePageSizeGrows() throws Exception {
+        // Pages come back full and fast, so each page is twice the size of the last one. 10 + 20 + 40 = 70 accounts.
+        mockApiWithPage(0, 10, 10, 70);
+        mockApiWithPage(10, 20, 20, 70);
+        mockApiWithPage(30, 40, 40, 70);
+
+        PageSizer pageSizer = PageSizer.adaptive(10, 5, 100, 60000);
+        testIterator(new AccountSummaryIterator(mockClientManager, STUDY_ID, pageSizer,
+                MoreExecutors.newDirectExecutorService(), 1), 70);
+        assertEquals(pageSizer.getPageSize(), 80);
+    }
+
+    @Test
+    public void adaptivePageSizeShrinksOnError() throws Exception {
+        // Mock page call to throw
+        Call<AccountSummaryList> mockPageCall = mock(Call.class);
+        when(mockPageCall.execute()).thenThrow(IOException.class);
+        when(mockApi.getParticipants(STUDY_ID, 0, 40, null, "1", null, null)).thenReturn(mockPageCall);
+
+        PageSizer pageSizer = PageSizer.adaptive(40, 5, 100, 60000);
+        try {
+            new AccountSummaryIterator(mockClientManager, STUDY_ID, pageSizer, null, 0);
+            fail("expected exception");
+        } catch (RuntimeException ex) {
+            // expected exception
+        }
+        assertEquals(pageSizer.getPageSize(), 20);
+    }
+
+    @Test
+    public void startOffset() throws Exception {
+        // 2 pages after the start offset. We never request the accounts before the start offset.
+        int startOffset = 15;
+        int total = startOffset + AccountSummaryIterator.PAGE_SIZE + 3;
+        mockApiWithPage(startOffset, AccountSummaryIterator.PAGE_SIZE, total);
+        mockApiWithPage(startOffset + AccountSummaryIterator.PAGE_SIZE, 3, total);
+
+        AccountSummaryIterator iter = new AccountSummaryIterator(mockClientManager, STUDY_ID, FIXED_PAGE_SIZER,
+                null, 0, startOffset);
+        int numAccounts = startOffset;
+        while (iter.hasNext()) {
+            assertEquals(iter.next().getId(), USER_ID_PREFIX + numAccounts);
+            numAccounts++;
+        }
+        assertEquals(numAccounts, total);
+        verifyPageRequested(startOffset);
+        verifyPageRequested(startOffset + AccountSummaryIterator.PAGE_SIZE);
+        verifyNoMoreInteractions(mockApi);
+    }
+
+    @Test
+    public void startOffsetWithPrefetch() throws Exception {
+        // The first page is loaded on the calling thread, even though we're past offset 0.
+        int startOffset = 15;
+        int total = startOffset + 2 * AccountSummaryIterator.PAGE_SIZE;
+        mockApiWithPage(startOffset, AccountSummaryIterator.PAGE_SIZE, total);
+        mockApiWithPage(startOffset + AccountSummaryIterator.PAGE_SIZE, AccountSummaryIterator.PAGE_SIZE, total);
+
+        AccountSummaryIterator iter = new AccountSummaryIterator(mockClientManager, STUDY_ID, FIXED_PAGE_SIZER,
+                MoreExecutors.newDirectExecutorService(), 2, startOffset);
+        int numAccounts = startOffset;
+        while (iter.hasNext()) {
+            assertEquals(iter.next().getId(), USER_ID_PREFIX + numAccounts);
+            numAccounts++;
+        }
+        assertEquals(numAccounts, total);
+        verifyPageRequested(startOffset);
+        verifyPageRequested(startOffset + AccountSummaryIterator.PAGE_SIZE);
+        verifyNoMoreInteractions(mockApi);
+    }
+
+    @Test
+    public void startOffsetAtEnd() throws Exception {
+        // Resuming a finished run. The page at the end of the roster is empty.
+        mockApiWithPage(20, 0, 20);
+        AccountSummaryIterator iter = new AccountSummaryIterator(mockClientManager, STUDY_ID, FIXED_PAGE_SIZER,
+                null, 0, 20);
+        assertFalse(iter.hasNext());
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void negativeStartOffset() {
+        new AccountSummaryIterator(mockClientManager, STUDY_ID, FIXED_PAGE_SIZER, null, 0, -1);
+    }
+
+    private void verifyPageRequested(int offset) {
+        verify(mockApi).getParticipants(STUDY_ID, offset, AccountSummaryIterator.PAGE_SIZE, null, "1", null, null);
+    }
+
     private void mockApiWithPage(int offset, int accountsInPage, int total) throws Exception {
+        mockApiWithPage(offset, AccountSummaryIterator.PAGE_SIZE, accountsInPage, total);
+    }
+
+    private void mockApiWithPage(int offset, int pageSize, int accountsInPage, int total) throws Exception {
         // Mock page call.
         Response<AccountSummaryList> pageResponse = makePageResponse(offset, accountsInPage, total);
         Call<AccountSummaryList> mockPageCall = mock(Call.class);
         when(mockPageCall.execute()).thenReturn(pageResponse);
-        when(mockApi.getParticipants(STUDY_ID, offset, AccountSummaryIterator.PAGE_SIZE, null,
+        when(mockApi.getParticipants(STUDY_ID, offset, pageSize, null,
                 "1", null, null)).thenReturn(mockPageCall);
     }
 
@@ -190,8 +413,10 @@ public class AccountSummaryIteratorTest {
     }
 
     private void testIterator(int expectedCount) {
-        AccountSummaryIterator iter = new AccountSummaryIterator(mockClientManager, STUDY_ID);
+        testIterator(new AccountSummaryIterator(mockClientManager, STUDY_ID), expectedCount);
+    }
 
+    private void testIterator(AccountSummaryIterator iter, int expectedCount) {
         int numAccounts = 0;
         while (iter.hasNext()) {
             AccountSummary oneAccount = iter.next();
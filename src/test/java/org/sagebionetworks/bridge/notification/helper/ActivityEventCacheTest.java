@@ -0,0 +1,129 @@
+package org.sagebionetworks.bridge.notification.helper;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.rest.model.ActivityEvent;
+
+public class ActivityEventCacheTest {
+    private static final String EVENT_ID = "enrollment";
+    private static final long MARKER = 1234L;
+    private static final long MOCK_NOW_MILLIS = DateTime.parse("2018-04-30T16:41:15.831-0700").getMillis();
+    private static final String STUDY_ID = "test-study";
+    private static final DateTime TIMESTAMP = DateTime.parse("2018-04-27T18:51:47.159-0700");
+    private static final String USER_ID = "test-user";
+
+    private ActivityEventCache cache;
+    private File tempDir;
+
+    @BeforeMethod
+    public void before() throws Exception {
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_MILLIS);
+        tempDir = Files.createTempDirectory("ActivityEventCacheTest").toFile();
+        cache = makeCache();
+    }
+
+    @AfterMethod
+    public void after() throws Exception {
+        DateTimeUtils.setCurrentMillisSystem();
+        MoreFiles.deleteRecursively(tempDir.toPath(), RecursiveDeleteOption.ALLOW_INSECURE);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void maxAgeDaysMustBePositive() {
+        cache.setMaxAgeDays(0);
+    }
+
+    @Test
+    public void noEntry() {
+        assertNull(cache.get(STUDY_ID, USER_ID, MARKER));
+        assertEquals(cache.getNumMisses(), 1);
+        assertEquals(cache.getNumHits(), 0);
+    }
+
+    @Test
+    public void hit() {
+        cache.put(STUDY_ID, USER_ID, MARKER, makeEventList());
+        assertEventList(cache.get(STUDY_ID, USER_ID, MARKER));
+        assertEquals(cache.getNumHits(), 1);
+        assertEquals(cache.getNumMisses(), 0);
+    }
+
+    @Test
+    public void markerChanged() {
+        cache.put(STUDY_ID, USER_ID, MARKER, makeEventList());
+        assertNull(cache.get(STUDY_ID, USER_ID, MARKER + 1));
+        assertEquals(cache.getNumMisses(), 1);
+    }
+
+    @Test
+    public void entryExpires() {
+        cache.put(STUDY_ID, USER_ID, MARKER, makeEventList());
+
+        // Just before the max age, the entry is still valid.
+        long maxAgeMillis = TimeUnit.DAYS.toMillis(ActivityEventCache.DEFAULT_ACTIVITY_EVENT_MAX_AGE_DAYS);
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_MILLIS + maxAgeMillis - 1);
+        assertEventList(cache.get(STUDY_ID, USER_ID, MARKER));
+
+        // At the max age, it's not.
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_MILLIS + maxAgeMillis);
+        assertNull(cache.get(STUDY_ID, USER_ID, MARKER));
+    }
+
+    @Test
+    public void studiesAreSeparate() {
+        cache.put(STUDY_ID, USER_ID, MARKER, makeEventList());
+        assertNull(cache.get("other-study", USER_ID, MARKER));
+    }
+
+    @Test
+    public void persistsAcrossInstances() {
+        cache.put(STUDY_ID, USER_ID, MARKER, makeEventList());
+        cache.save(STUDY_ID);
+
+        // A new cache, eg after the worker restarts, reads the entries from disk.
+        ActivityEventCache newCache = makeCache();
+        assertEventList(newCache.get(STUDY_ID, USER_ID, MARKER));
+    }
+
+    @Test
+    public void eventWithoutTimestamp() {
+        cache.put(STUDY_ID, USER_ID, MARKER, ImmutableList.of(new ActivityEvent().eventId(EVENT_ID)));
+        cache.save(STUDY_ID);
+
+        List<ActivityEvent> eventList = makeCache().get(STUDY_ID, USER_ID, MARKER);
+        assertEquals(eventList.size(), 1);
+        assertEquals(eventList.get(0).getEventId(), EVENT_ID);
+        assertNull(eventList.get(0).getTimestamp());
+    }
+
+    private ActivityEventCache makeCache() {
+        ActivityEventCache newCache = new ActivityEventCache();
+        newCache.setCacheDirectory(tempDir);
+        return newCache;
+    }
+
+    private static List<ActivityEvent> makeEventList() {
+        return ImmutableList.of(new ActivityEvent().eventId(EVENT_ID).timestamp(TIMESTAMP));
+    }
+
+    private static void assertEventList(List<ActivityEvent> eventList) {
+        assertEquals(eventList.size(), 1);
+        assertEquals(eventList.get(0).getEventId(), EVENT_ID);
+        assertEquals(eventList.get(0).getTimestamp().getMillis(), TIMESTAMP.getMillis());
+    }
+}
@@ -0,0 +1,227 @@
+package org.sagebionetworks.bridge.notification.helper;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyMap;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.amazonaws.services.dynamodbv2.document.BatchWriteItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.TableWriteItems;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.PutRequest;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.joda.time.DateTimeUtils;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("unchecked")
+public class BatchWriteBufferTest {
+    private static final long FLUSH_INTERVAL_MILLIS = 1000;
+    private static final long MOCK_NOW_MILLIS = 1524872475831L;
+    private static final String TABLE_NAME = "test-table";
+
+    private DynamoDB mockDdbClient;
+    private List<Integer> batchSizeList;
+
+    @BeforeMethod
+    public void before() {
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_MILLIS);
+
+        // Record the size of every batch written.
+        batchSizeList = new ArrayList<>();
+        mockDdbClient = mock(DynamoDB.class);
+        when(mockDdbClient.batchWriteItem(any(TableWriteItems.class))).thenAnswer(invocation -> {
+            TableWriteItems writeItems = invocation.getArgumentAt(0, TableWriteItems.class);
+            synchronized (batchSizeList) {
+                batchSizeList.add(writeItems.getItemsToPut().size());
+            }
+            return makeOutcome(0);
+        });
+    }
+
+    @AfterMethod
+    public void after() {
+        DateTimeUtils.setCurrentMillisSystem();
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void flushSizeTooSmall() {
+        makeBuffer(MoreExecutors.newDirectExecutorService(), 0);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void flushSizeTooLarge() {
+        makeBuffer(MoreExecutors.newDirectExecutorService(), BatchWriteBuffer.MAX_BATCH_SIZE + 1);
+    }
+
+    @Test
+    public void sizeThresholdTriggersWrite() {
+        BatchWriteBuffer<String> buffer = makeBuffer(MoreExecutors.newDirectExecutorService(), 3);
+
+        // Adding 7 records writes 2 full batches. The last record stays in the buffer until we flush.
+        for (int i = 0; i < 7; i++) {
+            buffer.add("record-" + i);
+        }
+        assertEquals(batchSizeList, ImmutableList.of(3, 3));
+        assertEquals(buffer.getNumWritten(), 6);
+
+        buffer.flush();
+        assertEquals(batchSizeList, ImmutableList.of(3, 3, 1));
+        assertEquals(buffer.getNumWritten(), 7);
+        assertEquals(buffer.getNumFailed(), 0);
+    }
+
+    @Test
+    public void timeThresholdTriggersWrite() {
+        BatchWriteBuffer<String> buffer = makeBuffer(MoreExecutors.newDirectExecutorService(), 25);
+
+        buffer.add("record-0");
+        buffer.add("record-1");
+        assertEquals(batchSizeList.size(), 0);
+
+        // Once the oldest record is older than the flush interval, the next add writes the buffer.
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_MILLIS + FLUSH_INTERVAL_MILLIS);
+        buffer.add("record-2");
+        assertEquals(batchSizeList, ImmutableList.of(3));
+
+        // The time threshold restarts with the next record.
+        buffer.add("record-3");
+        assertEquals(batchSizeList, ImmutableList.of(3));
+    }
+
+    @Test
+    public void flushEmptyBuffer() {
+        BatchWriteBuffer<String> buffer = makeBuffer(MoreExecutors.newDirectExecutorService(), 25);
+        buffer.flush();
+        verify(mockDdbClient, times(0)).batchWriteItem(any(TableWriteItems.class));
+    }
+
+    @Test
+    public void flushWaitsForBackgroundWrites() {
+        // Writes are slow, so they're still in progress when we call flush.
+        doAnswer(invocation -> {
+            Thread.sleep(50);
+            return makeOutcome(0);
+        }).when(mockDdbClient).batchWriteItem(any(TableWriteItems.class));
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            BatchWriteBuffer<String> buffer = makeBuffer(executor, 2);
+            for (int i = 0; i < 9; i++) {
+                buffer.add("record-" + i);
+            }
+            buffer.flush();
+            assertEquals(buffer.getNumWritten(), 9);
+            verify(mockDdbClient, times(5)).batchWriteItem(any(TableWriteItems.class));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void unprocessedItemsAreRetried() {
+        // First call leaves 2 items unprocessed. The retry processes them.
+        doReturn(makeOutcome(2)).when(mockDdbClient).batchWriteItem(any(TableWriteItems.class));
+        when(mockDdbClient.batchWriteItemUnprocessed(anyMap())).thenReturn(
+                makeOutcome(0));
+
+        BatchWriteBuffer<String> buffer = makeBuffer(MoreExecutors.newDirectExecutorService(), 5);
+        for (int i = 0; i < 5; i++) {
+            buffer.add("record-" + i);
+        }
+        buffer.flush();
+        assertEquals(buffer.getNumWritten(), 5);
+        assertEquals(buffer.getNumFailed(), 0);
+
+        // The retry only contains the unprocessed items.
+        ArgumentCaptor<Map> unprocessedCaptor = ArgumentCaptor.forClass(Map.class);
+        verify(mockDdbClient).batchWriteItemUnprocessed(unprocessedCaptor.capture());
+        assertEquals(((List<WriteRequest>) unprocessedCaptor.getValue().get(TABLE_NAME)).size(), 2);
+    }
+
+    @Test
+    public void unprocessedItemsGiveUpAfterMaxAttempts() {
+        doReturn(makeOutcome(2)).when(mockDdbClient).batchWriteItem(any(TableWriteItems.class));
+        when(mockDdbClient.batchWriteItemUnprocessed(anyMap())).thenReturn(
+                makeOutcome(2));
+
+        BatchWriteBuffer<String> buffer = makeBuffer(MoreExecutors.newDirectExecutorService(), 5);
+        for (int i = 0; i < 5; i++) {
+            buffer.add("record-" + i);
+        }
+        buffer.flush();
+        assertEquals(buffer.getNumWritten(), 3);
+        assertEquals(buffer.getNumFailed(), 2);
+        verify(mockDdbClient, times(BatchWriteBuffer.MAX_ATTEMPTS - 1)).batchWriteItemUnprocessed(
+                anyMap());
+    }
+
+    @Test
+    public void errorCountsWholeBatchAsFailed() {
+        doThrow(RuntimeException.class).doReturn(makeOutcome(0)).when(mockDdbClient).batchWriteItem(
+                any(TableWriteItems.class));
+
+        // The first batch fails. The second batch still gets written.
+        BatchWriteBuffer<String> buffer = makeBuffer(MoreExecutors.newDirectExecutorService(), 2);
+        for (int i = 0; i < 3; i++) {
+            buffer.add("record-" + i);
+        }
+        buffer.flush();
+        assertEquals(buffer.getNumWritten(), 1);
+        assertEquals(buffer.getNumFailed(), 2);
+    }
+
+    @Test
+    public void flushReturnsFailuresSinceLastFlush() {
+        doThrow(RuntimeException.class).doReturn(makeOutcome(0)).when(mockDdbClient).batchWriteItem(
+                any(TableWriteItems.class));
+
+        // The first flush includes the failed batch.
+        BatchWriteBuffer<String> buffer = makeBuffer(MoreExecutors.newDirectExecutorService(), 2);
+        buffer.add("record-0");
+        buffer.add("record-1");
+        assertEquals(buffer.flush(), 2);
+
+        // The second flush only counts its own writes. getNumFailed() is still the total.
+        buffer.add("record-2");
+        assertEquals(buffer.flush(), 0);
+        assertEquals(buffer.getNumFailed(), 2);
+    }
+
+    private BatchWriteBuffer<String> makeBuffer(ExecutorService executor, int flushSize) {
+        return new BatchWriteBuffer<>(mockDdbClient, TABLE_NAME, record -> new Item().withPrimaryKey("key", record),
+                executor, flushSize, FLUSH_INTERVAL_MILLIS);
+    }
+
+    // Makes an outcome with the given number of unprocessed items.
+    private static BatchWriteItemOutcome makeOutcome(int numUnprocessed) {
+        BatchWriteItemResult result = new BatchWriteItemResult();
+        if (numUnprocessed > 0) {
+            List<WriteRequest> requestList = new ArrayList<>();
+            for (int i = 0; i < numUnprocessed; i++) {
+                requestList.add(new WriteRequest().withPutRequest(new PutRequest()));
+            }
+            result.setUnprocessedItems(ImmutableMap.of(TABLE_NAME, requestList));
+        }
+        return new BatchWriteItemOutcome(result);
+    }
+}
@@ -6,6 +6,7 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNotNull;
 
 import java.util.Iterator;
@@ -93,6 +94,53 @@ public class BridgeHelperTest {
         verify(mockWorkerApi).getParticipants(eq(STUDY_ID), any(), any(), any(), any(), any(), any());
     }
 
+    @Test
+    public void getAllAccountSummariesWithStartOffset() throws Exception {
+        AccountSummaryList accountSummaryList = new AccountSummaryList().total(20);
+        Response<AccountSummaryList> response = Response.success(accountSummaryList);
+
+        Call<AccountSummaryList> mockCall = mock(Call.class);
+        when(mockCall.execute()).thenReturn(response);
+
+        when(mockWorkerApi.getParticipants(eq(STUDY_ID), eq(20), any(), any(), any(), any(), any())).thenReturn(
+                mockCall);
+
+        // Execute and validate
+        Iterator<AccountSummary> accountSummaryIterator = bridgeHelper.getAllAccountSummaries(STUDY_ID, 20);
+        assertFalse(accountSummaryIterator.hasNext());
+
+        verify(mockWorkerApi).getParticipants(eq(STUDY_ID), eq(20), any(), any(), any(), any(), any());
+    }
+
+    @Test
+    public void getAccountSummaryTotal() throws Exception {
+        Response<AccountSummaryList> response = Response.success(new AccountSummaryList().total(1234));
+
+        Call<AccountSummaryList> mockCall = mock(Call.class);
+        when(mockCall.execute()).thenReturn(response);
+
+        when(mockWorkerApi.getParticipants(eq(STUDY_ID), eq(0), any(), any(), any(), any(), any())).thenReturn(
+                mockCall);
+
+        // Execute and validate. The total uses the same filter as the iterator, so shard offsets line up.
+        assertEquals(bridgeHelper.getAccountSummaryTotal(STUDY_ID), 1234);
+        verify(mockWorkerApi).getParticipants(eq(STUDY_ID), eq(0), any(), any(), eq(AccountSummaryIterator
+                .PHONE_FILTER), any(), any());
+    }
+
+    @Test
+    public void pageSizes() {
+        // Defaults start at the initial page size.
+        assertEquals(bridgeHelper.getAccountSummaryPageSize(), BridgeHelper.DEFAULT_INITIAL_PAGE_SIZE);
+        assertEquals(bridgeHelper.getTaskHistoryPageSize(), BridgeHelper.DEFAULT_INITIAL_PAGE_SIZE);
+
+        // Page sizes are configurable per iterator.
+        bridgeHelper.setAccountSummaryPageSizer(PageSizer.fixed(50));
+        bridgeHelper.setTaskHistoryPageSizer(PageSizer.fixed(25));
+        assertEquals(bridgeHelper.getAccountSummaryPageSize(), 50);
+        assertEquals(bridgeHelper.getTaskHistoryPageSize(), 25);
+    }
+
     @Test
     public void getParticipant() throws Exception {
         // Set up mocks
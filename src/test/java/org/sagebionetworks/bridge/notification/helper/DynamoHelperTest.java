@@ -3,44 +3,90 @@ package org.sagebionetworks.bridge.notification.helper;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.same;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
-import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNotNull;
 import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
 
+import java.math.BigDecimal;
+import java.util.BitSet;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import com.amazonaws.services.dynamodbv2.document.BatchWriteItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Index;
 import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.KeyConditions;
 import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.UpdateItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.spec.GetItemSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.PutItemSpec;
 import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
+import com.amazonaws.services.dynamodbv2.document.TableWriteItems;
+import com.amazonaws.services.dynamodbv2.document.spec.ScanSpec;
+import com.amazonaws.services.dynamodbv2.document.spec.UpdateItemSpec;
+import com.amazonaws.services.dynamodbv2.model.BatchWriteItemResult;
+import com.amazonaws.services.dynamodbv2.model.ConditionalCheckFailedException;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeUtils;
+import org.joda.time.LocalDate;
 import org.mockito.ArgumentCaptor;
+import org.testng.annotations.AfterMethod;
 import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import org.sagebionetworks.bridge.dynamodb.DynamoQueryHelper;
+import org.sagebionetworks.bridge.notification.worker.BurstAdherenceRecord;
+import org.sagebionetworks.bridge.notification.worker.BurstCalendarEntry;
 import org.sagebionetworks.bridge.notification.worker.NotificationType;
+import org.sagebionetworks.bridge.notification.worker.RunCheckpoint;
+import org.sagebionetworks.bridge.notification.worker.RunLedgerEntry;
+import org.sagebionetworks.bridge.notification.worker.RunLedgerStatus;
 import org.sagebionetworks.bridge.notification.worker.UserNotification;
+import org.sagebionetworks.bridge.notification.worker.ShardedRun;
+import org.sagebionetworks.bridge.notification.worker.StudyRunLease;
+import org.sagebionetworks.bridge.notification.worker.StudyRunStatus;
+import org.sagebionetworks.bridge.notification.worker.WorkUnitLease;
+import org.sagebionetworks.bridge.notification.worker.WorkUnitStatus;
 import org.sagebionetworks.bridge.notification.worker.WorkerConfig;
 
 public class DynamoHelperTest {
     private static final long MOCK_NOW_MILLIS = DateTime.parse("2018-04-27T16:41:15.831-0700").getMillis();
     private static final String STUDY_ID = "test-study";
     private static final String USER_ID = "test-user";
+    private static final String BURST_ADHERENCE_TABLE_NAME = "test-NotificationBurstAdherence";
+    private static final String BURST_CALENDAR_TABLE_NAME = "test-NotificationBurstCalendar";
+    private static final String RUN_LEDGER_TABLE_NAME = "test-NotificationRunLedger";
+    private static final String NOTIFICATION_LOG_TABLE_NAME = "test-NotificationLog";
 
+    private ExecutorService backgroundExecutor;
     private DynamoHelper dynamoHelper;
+    private DynamoDB mockDdbClient;
     private DynamoQueryHelper mockQueryHelper;
+    private DynamoIndexHelper mockIndexHelper;
+    private DynamoScanHelper mockScanHelper;
+    private Table mockBurstAdherenceTable;
+    private Table mockBurstCalendarTable;
     private Table mockNotificationConfigTable;
     private Table mockNotificationLogTable;
+    private Table mockRunCheckpointTable;
+    private Table mockRunLedgerTable;
+    private Table mockShardRunTable;
+    private Table mockStudyRunTable;
+    private Table mockWorkUnitTable;
     private Table mockWorkerLogTable;
 
     @BeforeClass
@@ -56,19 +102,50 @@ public class DynamoHelperTest {
     @BeforeMethod
     public void before() {
         // Set up mocks
+        mockDdbClient = mock(DynamoDB.class);
         mockQueryHelper = mock(DynamoQueryHelper.class);
+        mockIndexHelper = mock(DynamoIndexHelper.class);
+        mockScanHelper = mock(DynamoScanHelper.class);
+        mockBurstAdherenceTable = mock(Table.class);
+        when(mockBurstAdherenceTable.getTableName()).thenReturn(BURST_ADHERENCE_TABLE_NAME);
+        mockBurstCalendarTable = mock(Table.class);
+        when(mockBurstCalendarTable.getTableName()).thenReturn(BURST_CALENDAR_TABLE_NAME);
         mockNotificationConfigTable = mock(Table.class);
         mockNotificationLogTable = mock(Table.class);
+        when(mockNotificationLogTable.getTableName()).thenReturn(NOTIFICATION_LOG_TABLE_NAME);
+        mockRunCheckpointTable = mock(Table.class);
+        mockRunLedgerTable = mock(Table.class);
+        when(mockRunLedgerTable.getTableName()).thenReturn(RUN_LEDGER_TABLE_NAME);
+        mockShardRunTable = mock(Table.class);
+        mockStudyRunTable = mock(Table.class);
+        mockWorkUnitTable = mock(Table.class);
         mockWorkerLogTable = mock(Table.class);
 
         // Create DynamoHelper
+        backgroundExecutor = Executors.newCachedThreadPool();
         dynamoHelper = new DynamoHelper();
+        dynamoHelper.setBackgroundExecutor(backgroundExecutor);
+        dynamoHelper.setDdbClient(mockDdbClient);
+        dynamoHelper.setDdbBurstAdherenceTable(mockBurstAdherenceTable);
+        dynamoHelper.setDdbBurstCalendarTable(mockBurstCalendarTable);
         dynamoHelper.setDynamoQueryHelper(mockQueryHelper);
+        dynamoHelper.setDynamoIndexHelper(mockIndexHelper);
+        dynamoHelper.setDynamoScanHelper(mockScanHelper);
         dynamoHelper.setDdbNotificationConfigTable(mockNotificationConfigTable);
         dynamoHelper.setDdbNotificationLogTable(mockNotificationLogTable);
+        dynamoHelper.setDdbRunCheckpointTable(mockRunCheckpointTable);
+        dynamoHelper.setDdbRunLedgerTable(mockRunLedgerTable);
+        dynamoHelper.setDdbShardRunTable(mockShardRunTable);
+        dynamoHelper.setDdbStudyRunTable(mockStudyRunTable);
+        dynamoHelper.setDdbWorkUnitTable(mockWorkUnitTable);
         dynamoHelper.setDdbWorkerLogTable(mockWorkerLogTable);
     }
 
+    @AfterMethod
+    public void after() {
+        backgroundExecutor.shutdown();
+    }
+
     @Test
     public void getNotificationConfigForStudy() {
         // Set up dummy maps
@@ -130,10 +207,91 @@ public class DynamoHelperTest {
 
         verify(mockNotificationConfigTable).getItem(DynamoHelper.KEY_STUDY_ID, STUDY_ID);
 
-        // Test caching
+        // DynamoHelper doesn't cache. (That's WorkerConfigCache's job.) Calling again calls DDB again.
         WorkerConfig config2 = dynamoHelper.getNotificationConfigForStudy(STUDY_ID);
         assertNotNull(config2);
-        verifyNoMoreInteractions(mockNotificationConfigTable);
+        verify(mockNotificationConfigTable, times(2)).getItem(DynamoHelper.KEY_STUDY_ID, STUDY_ID);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp =
+            "No notification config for study " + STUDY_ID)
+    public void getNotificationConfigForStudy_NotFound() {
+        when(mockNotificationConfigTable.getItem(DynamoHelper.KEY_STUDY_ID, STUDY_ID)).thenReturn(null);
+        dynamoHelper.getNotificationConfigForStudy(STUDY_ID);
+    }
+
+    @Test
+    public void getAllNotificationConfigs() {
+        // Set up mock. We test the full set of config attributes above, so just spot check a few attributes here.
+        Item item1 = new Item().withPrimaryKey(DynamoHelper.KEY_STUDY_ID, "study-1")
+                .withInt(DynamoHelper.KEY_BURST_DURATION_DAYS, 9)
+                .withString(DynamoHelper.KEY_BURST_TASK_ID, "task-1")
+                .withInt(DynamoHelper.KEY_EARLY_LATE_CUTOFF_DAYS, 5)
+                .withInt(DynamoHelper.KEY_NOTIFICATION_BLACKOUT_DAYS_FROM_START, 3)
+                .withInt(DynamoHelper.KEY_NOTIFICATION_BLACKOUT_DAYS_FROM_END, 1)
+                .withInt(DynamoHelper.KEY_NUM_ACTIVITIES_TO_COMPLETE, 6)
+                .withInt(DynamoHelper.KEY_NUM_MISSED_CONSECUTIVE_DAYS_TO_NOTIFY, 2)
+                .withInt(DynamoHelper.KEY_NUM_MISSED_DAYS_TO_NOTIFY, 3);
+        Item item2 = new Item().withPrimaryKey(DynamoHelper.KEY_STUDY_ID, "study-2")
+                .withInt(DynamoHelper.KEY_BURST_DURATION_DAYS, 19)
+                .withString(DynamoHelper.KEY_BURST_TASK_ID, "task-2")
+                .withInt(DynamoHelper.KEY_EARLY_LATE_CUTOFF_DAYS, 7)
+                .withInt(DynamoHelper.KEY_NOTIFICATION_BLACKOUT_DAYS_FROM_START, 2)
+                .withInt(DynamoHelper.KEY_NOTIFICATION_BLACKOUT_DAYS_FROM_END, 1)
+                .withInt(DynamoHelper.KEY_NUM_ACTIVITIES_TO_COMPLETE, 10)
+                .withInt(DynamoHelper.KEY_NUM_MISSED_CONSECUTIVE_DAYS_TO_NOTIFY, 3)
+                .withInt(DynamoHelper.KEY_NUM_MISSED_DAYS_TO_NOTIFY, 4);
+        when(mockScanHelper.scan(same(mockNotificationConfigTable), any())).thenReturn(ImmutableList.of(item1,
+                item2));
+
+        // Execute and validate
+        Map<String, WorkerConfig> configsByStudyId = dynamoHelper.getAllNotificationConfigs();
+        assertEquals(configsByStudyId.size(), 2);
+        assertEquals(configsByStudyId.get("study-1").getBurstDurationDays(), 9);
+        assertEquals(configsByStudyId.get("study-1").getBurstTaskId(), "task-1");
+        assertEquals(configsByStudyId.get("study-2").getBurstDurationDays(), 19);
+        assertEquals(configsByStudyId.get("study-2").getBurstTaskId(), "task-2");
+    }
+
+    @Test
+    public void getLatestNotificationsSince() {
+        // User 1 has two notifications. User 2 only has one notification.
+        Item user1OldItem = makeNotificationLogItem("user-1", 1000L, NotificationType.EARLY);
+        Item user1NewItem = makeNotificationLogItem("user-1", 3000L, NotificationType.PRE_BURST);
+        Item user2Item = makeNotificationLogItem("user-2", 2000L, NotificationType.LATE);
+        Index mockIndex = mock(Index.class);
+        when(mockNotificationLogTable.getIndex(DynamoHelper.NOTIFICATION_LOG_STUDY_INDEX)).thenReturn(mockIndex);
+        when(mockIndexHelper.query(same(mockIndex), any())).thenReturn(ImmutableList.of(user1OldItem, user2Item,
+                user1NewItem));
+
+        // Execute and validate
+        Map<String, UserNotification> notificationsByUserId = dynamoHelper.getLatestNotificationsSince(STUDY_ID,
+                500L);
+        assertEquals(notificationsByUserId.size(), 2);
+
+        UserNotification user1Notification = notificationsByUserId.get("user-1");
+        assertEquals(user1Notification.getStudyId(), STUDY_ID);
+        assertEquals(user1Notification.getTime(), 3000L);
+        assertEquals(user1Notification.getType(), NotificationType.PRE_BURST);
+        assertEquals(user1Notification.getUserId(), "user-1");
+
+        UserNotification user2Notification = notificationsByUserId.get("user-2");
+        assertEquals(user2Notification.getTime(), 2000L);
+        assertEquals(user2Notification.getType(), NotificationType.LATE);
+        assertEquals(user2Notification.getUserId(), "user-2");
+
+        // Validate query. It only reads the study's notifications after the given time.
+        ArgumentCaptor<QuerySpec> queryCaptor = ArgumentCaptor.forClass(QuerySpec.class);
+        verify(mockIndexHelper).query(same(mockIndex), queryCaptor.capture());
+        QuerySpec query = queryCaptor.getValue();
+        assertEquals(query.getHashKey().getName(), DynamoHelper.KEY_STUDY_ID);
+        assertEquals(query.getHashKey().getValue(), STUDY_ID);
+        assertEquals(query.getRangeKeyCondition().getAttrName(), DynamoHelper.KEY_NOTIFICATION_TIME);
+        assertEquals(query.getRangeKeyCondition().getKeyCondition(), KeyConditions.GT);
+        assertEquals(((Number) query.getRangeKeyCondition().getValues()[0]).longValue(), 500L);
+
+        // We never scan the notification log.
+        verify(mockScanHelper, never()).scan(same(mockNotificationLogTable), any());
     }
 
     @Test
@@ -191,6 +349,660 @@ public class DynamoHelperTest {
         assertEquals(item.getLong(DynamoHelper.KEY_NOTIFICATION_TIME), 1234L);
         assertEquals(item.getString(DynamoHelper.KEY_NOTIFICATION_TYPE), "LATE");
         assertEquals(item.getString(DynamoHelper.KEY_USER_ID), USER_ID);
+
+        // Without a study ID, the notification isn't in the study index.
+        assertFalse(item.isPresent(DynamoHelper.KEY_STUDY_ID));
+    }
+
+    @Test
+    public void claimNotificationLog() {
+        UserNotification userNotification = new UserNotification();
+        userNotification.setMessage("dummy message");
+        userNotification.setTime(1234L);
+        userNotification.setType(NotificationType.LATE);
+        userNotification.setStudyId(STUDY_ID);
+        userNotification.setUserId(USER_ID);
+        assertTrue(dynamoHelper.claimNotificationLog(userNotification));
+
+        // The write only succeeds if the user has no notification at the same time.
+        ArgumentCaptor<PutItemSpec> putItemSpecCaptor = ArgumentCaptor.forClass(PutItemSpec.class);
+        verify(mockNotificationLogTable).putItem(putItemSpecCaptor.capture());
+        PutItemSpec putItemSpec = putItemSpecCaptor.getValue();
+        assertEquals(putItemSpec.getConditionExpression(), "attribute_not_exists(#notificationTime)");
+        assertEquals(putItemSpec.getNameMap().get("#notificationTime"), DynamoHelper.KEY_NOTIFICATION_TIME);
+
+        Item item = putItemSpec.getItem();
+        assertEquals(item.getString(DynamoHelper.KEY_MESSAGE), "dummy message");
+        assertEquals(item.getLong(DynamoHelper.KEY_NOTIFICATION_TIME), 1234L);
+        assertEquals(item.getString(DynamoHelper.KEY_NOTIFICATION_TYPE), "LATE");
+        assertEquals(item.getString(DynamoHelper.KEY_USER_ID), USER_ID);
+        assertEquals(item.getString(DynamoHelper.KEY_STUDY_ID), STUDY_ID);
+    }
+
+    @Test
+    public void claimNotificationLogAlreadyWritten() {
+        when(mockNotificationLogTable.putItem(any(PutItemSpec.class))).thenThrow(new ConditionalCheckFailedException(
+                "test exception"));
+
+        UserNotification userNotification = new UserNotification();
+        userNotification.setMessage("dummy message");
+        userNotification.setTime(1234L);
+        userNotification.setType(NotificationType.LATE);
+        userNotification.setUserId(USER_ID);
+        assertFalse(dynamoHelper.claimNotificationLog(userNotification));
+    }
+
+    @Test
+    public void bufferNotificationLog() {
+        when(mockDdbClient.batchWriteItem(any(TableWriteItems.class))).thenReturn(new BatchWriteItemOutcome(
+                new BatchWriteItemResult()));
+
+        // Buffer a notification. Nothing is written until we flush.
+        UserNotification userNotification = new UserNotification();
+        userNotification.setMessage("dummy message");
+        userNotification.setTime(1234L);
+        userNotification.setType(NotificationType.LATE);
+        userNotification.setUserId(USER_ID);
+        dynamoHelper.bufferNotificationLog(userNotification);
+        verify(mockDdbClient, times(0)).batchWriteItem(any(TableWriteItems.class));
+
+        // Flush
+        int numFailed = dynamoHelper.flushNotificationLog();
+        assertEquals(numFailed, 0);
+
+        // Validate back-end
+        ArgumentCaptor<TableWriteItems> writeItemsCaptor = ArgumentCaptor.forClass(TableWriteItems.class);
+        verify(mockDdbClient).batchWriteItem(writeItemsCaptor.capture());
+        verify(mockNotificationLogTable, times(0)).putItem(any(Item.class));
+
+        TableWriteItems writeItems = writeItemsCaptor.getValue();
+        assertEquals(writeItems.getTableName(), NOTIFICATION_LOG_TABLE_NAME);
+        assertEquals(writeItems.getItemsToPut().size(), 1);
+
+        Item item = writeItems.getItemsToPut().iterator().next();
+        assertEquals(item.getString(DynamoHelper.KEY_MESSAGE), "dummy message");
+        assertEquals(item.getLong(DynamoHelper.KEY_NOTIFICATION_TIME), 1234L);
+        assertEquals(item.getString(DynamoHelper.KEY_NOTIFICATION_TYPE), "LATE");
+        assertEquals(item.getString(DynamoHelper.KEY_USER_ID), USER_ID);
+    }
+
+    @Test
+    public void getBurstAdherenceRecord() {
+        // Days 0 and 2 are finished.
+        BitSet finishedDays = new BitSet();
+        finishedDays.set(0);
+        finishedDays.set(2);
+        Item item = new Item().withPrimaryKey(DynamoHelper.KEY_STUDY_ID, STUDY_ID, DynamoHelper.KEY_USER_ID, USER_ID)
+                .withString(DynamoHelper.KEY_BURST_START_DATE, "2018-04-27")
+                .withString(DynamoHelper.KEY_BURST_TASK_ID, "test-task")
+                .withBinary(DynamoHelper.KEY_FINISHED_DAYS, finishedDays.toByteArray())
+                .withInt(DynamoHelper.KEY_NUM_DAYS, 4);
+        when(mockBurstAdherenceTable.getItem(DynamoHelper.KEY_STUDY_ID, STUDY_ID, DynamoHelper.KEY_USER_ID,
+                USER_ID)).thenReturn(item);
+
+        // Execute and validate
+        BurstAdherenceRecord record = dynamoHelper.getBurstAdherenceRecord(STUDY_ID, USER_ID);
+        assertEquals(record.getBurstStartDate(), LocalDate.parse("2018-04-27"));
+        assertEquals(record.getBurstTaskId(), "test-task");
+        assertEquals(record.getNumDays(), 4);
+        assertTrue(record.isDayFinished(0));
+        assertFalse(record.isDayFinished(1));
+        assertTrue(record.isDayFinished(2));
+        assertFalse(record.isDayFinished(3));
+        assertEquals(record.getStudyId(), STUDY_ID);
+        assertEquals(record.getUserId(), USER_ID);
+    }
+
+    @Test
+    public void getBurstAdherenceRecord_NoResult() {
+        assertNull(dynamoHelper.getBurstAdherenceRecord(STUDY_ID, USER_ID));
+    }
+
+    @Test
+    public void bufferBurstAdherenceRecord() {
+        when(mockDdbClient.batchWriteItem(any(TableWriteItems.class))).thenReturn(new BatchWriteItemOutcome(
+                new BatchWriteItemResult()));
+
+        BurstAdherenceRecord record = new BurstAdherenceRecord();
+        record.setBurstStartDate(LocalDate.parse("2018-04-27"));
+        record.setBurstTaskId("test-task");
+        record.setStudyId(STUDY_ID);
+        record.setUserId(USER_ID);
+        record.addDay(true);
+        record.addDay(false);
+        record.addDay(true);
+        dynamoHelper.bufferBurstAdherenceRecord(record);
+        assertEquals(dynamoHelper.flushBurstAdherence(), 0);
+
+        // Validate back-end
+        ArgumentCaptor<TableWriteItems> writeItemsCaptor = ArgumentCaptor.forClass(TableWriteItems.class);
+        verify(mockDdbClient).batchWriteItem(writeItemsCaptor.capture());
+        TableWriteItems writeItems = writeItemsCaptor.getValue();
+        assertEquals(writeItems.getTableName(), BURST_ADHERENCE_TABLE_NAME);
+
+        Item item = writeItems.getItemsToPut().iterator().next();
+        assertEquals(item.getString(DynamoHelper.KEY_STUDY_ID), STUDY_ID);
+        assertEquals(item.getString(DynamoHelper.KEY_USER_ID), USER_ID);
+        assertEquals(item.getString(DynamoHelper.KEY_BURST_START_DATE), "2018-04-27");
+        assertEquals(item.getString(DynamoHelper.KEY_BURST_TASK_ID), "test-task");
+        assertEquals(item.getInt(DynamoHelper.KEY_NUM_DAYS), 3);
+
+        BitSet finishedDays = BitSet.valueOf(item.getBinary(DynamoHelper.KEY_FINISHED_DAYS));
+        assertTrue(finishedDays.get(0));
+        assertFalse(finishedDays.get(1));
+        assertTrue(finishedDays.get(2));
+    }
+
+    @Test
+    public void getBurstCalendar() {
+        Item item1 = new Item().withPrimaryKey(DynamoHelper.KEY_STUDY_ID, STUDY_ID, DynamoHelper.KEY_USER_ID,
+                "user-1").withList(DynamoHelper.KEY_BURST_START_DATE_LIST, "2018-04-27", "2018-05-11")
+                .withStringSet(DynamoHelper.KEY_BURST_EVENT_ID_SET, "enrollment", "custom:burst2")
+                .withStringSet(DynamoHelper.KEY_COMPLETED_BURST_START_DATE_SET, "2018-04-27")
+                .withLong(DynamoHelper.KEY_UPDATED_ON, 1234L);
+        Item item2 = new Item().withPrimaryKey(DynamoHelper.KEY_STUDY_ID, STUDY_ID, DynamoHelper.KEY_USER_ID,
+                "user-2").withList(DynamoHelper.KEY_BURST_START_DATE_LIST)
+                .withStringSet(DynamoHelper.KEY_BURST_EVENT_ID_SET, "enrollment")
+                .withLong(DynamoHelper.KEY_UPDATED_ON, 5678L);
+        when(mockQueryHelper.query(same(mockBurstCalendarTable), any())).thenReturn(ImmutableList.of(item1, item2));
+
+        // Execute and validate
+        Map<String, BurstCalendarEntry> entriesByUserId = dynamoHelper.getBurstCalendar(STUDY_ID);
+        assertEquals(entriesByUserId.size(), 2);
+
+        BurstCalendarEntry entry1 = entriesByUserId.get("user-1");
+        assertEquals(entry1.getBurstStartDateList(), ImmutableList.of(LocalDate.parse("2018-04-27"),
+                LocalDate.parse("2018-05-11")));
+        assertEquals(entry1.getBurstStartEventIdSet(), ImmutableSet.of("enrollment", "custom:burst2"));
+        assertEquals(entry1.getCompletedBurstStartDateSet(), ImmutableSet.of(LocalDate.parse("2018-04-27")));
+        assertEquals(entry1.getStudyId(), STUDY_ID);
+        assertEquals(entry1.getUpdatedOn(), 1234L);
+        assertEquals(entry1.getUserId(), "user-1");
+
+        BurstCalendarEntry entry2 = entriesByUserId.get("user-2");
+        assertTrue(entry2.getBurstStartDateList().isEmpty());
+        assertTrue(entry2.getCompletedBurstStartDateSet().isEmpty());
+        assertEquals(entry2.getUpdatedOn(), 5678L);
+
+        // Verify query
+        ArgumentCaptor<QuerySpec> queryCaptor = ArgumentCaptor.forClass(QuerySpec.class);
+        verify(mockQueryHelper).query(same(mockBurstCalendarTable), queryCaptor.capture());
+        QuerySpec query = queryCaptor.getValue();
+        assertEquals(query.getHashKey().getName(), DynamoHelper.KEY_STUDY_ID);
+        assertEquals(query.getHashKey().getValue(), STUDY_ID);
+    }
+
+    @Test
+    public void bufferBurstCalendarEntry() {
+        when(mockDdbClient.batchWriteItem(any(TableWriteItems.class))).thenReturn(new BatchWriteItemOutcome(
+                new BatchWriteItemResult()));
+
+        BurstCalendarEntry entry = new BurstCalendarEntry();
+        entry.setBurstStartDateList(ImmutableList.of(LocalDate.parse("2018-04-27"), LocalDate.parse("2018-05-11")));
+        entry.setBurstStartEventIdSet(ImmutableSet.of("enrollment", "custom:burst2"));
+        entry.setStudyId(STUDY_ID);
+        entry.setUpdatedOn(1234L);
+        entry.setUserId(USER_ID);
+        dynamoHelper.bufferBurstCalendarEntry(entry);
+        assertEquals(dynamoHelper.flushBurstCalendar(), 0);
+
+        // Validate back-end
+        ArgumentCaptor<TableWriteItems> writeItemsCaptor = ArgumentCaptor.forClass(TableWriteItems.class);
+        verify(mockDdbClient).batchWriteItem(writeItemsCaptor.capture());
+        TableWriteItems writeItems = writeItemsCaptor.getValue();
+        assertEquals(writeItems.getTableName(), BURST_CALENDAR_TABLE_NAME);
+
+        Item item = writeItems.getItemsToPut().iterator().next();
+        assertEquals(item.getString(DynamoHelper.KEY_STUDY_ID), STUDY_ID);
+        assertEquals(item.getString(DynamoHelper.KEY_USER_ID), USER_ID);
+        assertEquals(item.getList(DynamoHelper.KEY_BURST_START_DATE_LIST), ImmutableList.of("2018-04-27",
+                "2018-05-11"));
+        assertEquals(item.getStringSet(DynamoHelper.KEY_BURST_EVENT_ID_SET), ImmutableSet.of("enrollment",
+                "custom:burst2"));
+        assertEquals(item.getLong(DynamoHelper.KEY_UPDATED_ON), 1234L);
+
+        // DDB doesn't allow empty sets, so there are no completed bursts.
+        assertFalse(item.isPresent(DynamoHelper.KEY_COMPLETED_BURST_START_DATE_SET));
+    }
+
+    @Test
+    public void bufferBurstCalendarEntryWithCompletedBursts() {
+        when(mockDdbClient.batchWriteItem(any(TableWriteItems.class))).thenReturn(new BatchWriteItemOutcome(
+                new BatchWriteItemResult()));
+
+        BurstCalendarEntry entry = new BurstCalendarEntry();
+        entry.setBurstStartDateList(ImmutableList.of(LocalDate.parse("2018-04-27"), LocalDate.parse("2018-05-11")));
+        entry.setBurstStartEventIdSet(ImmutableSet.of("enrollment", "custom:burst2"));
+        entry.setCompletedBurstStartDateSet(ImmutableSet.of(LocalDate.parse("2018-04-27")));
+        entry.setStudyId(STUDY_ID);
+        entry.setUpdatedOn(1234L);
+        entry.setUserId(USER_ID);
+        dynamoHelper.bufferBurstCalendarEntry(entry);
+        assertEquals(dynamoHelper.flushBurstCalendar(), 0);
+
+        // Validate back-end
+        ArgumentCaptor<TableWriteItems> writeItemsCaptor = ArgumentCaptor.forClass(TableWriteItems.class);
+        verify(mockDdbClient).batchWriteItem(writeItemsCaptor.capture());
+        Item item = writeItemsCaptor.getValue().getItemsToPut().iterator().next();
+        assertEquals(item.getStringSet(DynamoHelper.KEY_COMPLETED_BURST_START_DATE_SET), ImmutableSet.of(
+                "2018-04-27"));
+    }
+
+    @Test
+    public void getRunCheckpoint() {
+        Item item = new Item().withPrimaryKey(DynamoHelper.KEY_RUN_ID, "test-run")
+                .withInt(DynamoHelper.KEY_NUM_ERRORS, 2)
+                .withInt(DynamoHelper.KEY_NUM_RESUMES, 1)
+                .withInt(DynamoHelper.KEY_OFFSET, 250)
+                .withLong(DynamoHelper.KEY_UPDATED_ON, 1234L);
+        when(mockRunCheckpointTable.getItem(DynamoHelper.KEY_RUN_ID, "test-run")).thenReturn(item);
+
+        // Execute and validate
+        RunCheckpoint checkpoint = dynamoHelper.getRunCheckpoint("test-run");
+        assertEquals(checkpoint.getNumErrors(), 2);
+        assertEquals(checkpoint.getNumResumes(), 1);
+        assertEquals(checkpoint.getOffset(), 250);
+        assertEquals(checkpoint.getRunId(), "test-run");
+        assertEquals(checkpoint.getUpdatedOn(), 1234L);
+    }
+
+    @Test
+    public void getRunCheckpoint_NoResult() {
+        assertNull(dynamoHelper.getRunCheckpoint("test-run"));
+    }
+
+    @Test
+    public void writeRunCheckpoint() {
+        RunCheckpoint checkpoint = new RunCheckpoint();
+        checkpoint.setNumErrors(2);
+        checkpoint.setNumResumes(1);
+        checkpoint.setOffset(250);
+        checkpoint.setRunId("test-run");
+        checkpoint.setUpdatedOn(1234L);
+        dynamoHelper.writeRunCheckpoint(checkpoint);
+
+        // Validate back-end
+        ArgumentCaptor<Item> itemCaptor = ArgumentCaptor.forClass(Item.class);
+        verify(mockRunCheckpointTable).putItem(itemCaptor.capture());
+
+        Item item = itemCaptor.getValue();
+        assertEquals(item.getString(DynamoHelper.KEY_RUN_ID), "test-run");
+        assertEquals(item.getInt(DynamoHelper.KEY_NUM_ERRORS), 2);
+        assertEquals(item.getInt(DynamoHelper.KEY_NUM_RESUMES), 1);
+        assertEquals(item.getInt(DynamoHelper.KEY_OFFSET), 250);
+        assertEquals(item.getLong(DynamoHelper.KEY_UPDATED_ON), 1234L);
+    }
+
+    @Test
+    public void getRunLedger() {
+        Item item1 = new Item().withPrimaryKey(DynamoHelper.KEY_STUDY_DATE, STUDY_ID + ":2018-04-27",
+                DynamoHelper.KEY_USER_ID, "user-1").withString(DynamoHelper.KEY_STATUS, "EVALUATED");
+        Item item2 = new Item().withPrimaryKey(DynamoHelper.KEY_STUDY_DATE, STUDY_ID + ":2018-04-27",
+                DynamoHelper.KEY_USER_ID, "user-2").withString(DynamoHelper.KEY_STATUS, "NOTIFIED");
+        when(mockQueryHelper.query(same(mockRunLedgerTable), any())).thenReturn(ImmutableList.of(item1, item2));
+
+        // Execute and validate
+        Map<String, RunLedgerStatus> statusByUserId = dynamoHelper.getRunLedger(STUDY_ID, LocalDate.parse(
+                "2018-04-27"));
+        assertEquals(statusByUserId, ImmutableMap.of("user-1", RunLedgerStatus.EVALUATED, "user-2",
+                RunLedgerStatus.NOTIFIED));
+
+        // Verify query
+        ArgumentCaptor<QuerySpec> queryCaptor = ArgumentCaptor.forClass(QuerySpec.class);
+        verify(mockQueryHelper).query(same(mockRunLedgerTable), queryCaptor.capture());
+        QuerySpec query = queryCaptor.getValue();
+        assertEquals(query.getHashKey().getName(), DynamoHelper.KEY_STUDY_DATE);
+        assertEquals(query.getHashKey().getValue(), STUDY_ID + ":2018-04-27");
+    }
+
+    @Test
+    public void bufferRunLedgerEntry() {
+        when(mockDdbClient.batchWriteItem(any(TableWriteItems.class))).thenReturn(new BatchWriteItemOutcome(
+                new BatchWriteItemResult()));
+
+        dynamoHelper.bufferRunLedgerEntry(makeRunLedgerEntry(RunLedgerStatus.EVALUATED));
+        assertEquals(dynamoHelper.flushRunLedger(), 0);
+
+        // Validate back-end
+        ArgumentCaptor<TableWriteItems> writeItemsCaptor = ArgumentCaptor.forClass(TableWriteItems.class);
+        verify(mockDdbClient).batchWriteItem(writeItemsCaptor.capture());
+        TableWriteItems writeItems = writeItemsCaptor.getValue();
+        assertEquals(writeItems.getTableName(), RUN_LEDGER_TABLE_NAME);
+        Item item = writeItems.getItemsToPut().iterator().next();
+        validateRunLedgerItem(item, RunLedgerStatus.EVALUATED);
+        assertFalse(item.isPresent(DynamoHelper.KEY_ERROR_CLASS));
+    }
+
+    @Test
+    public void claimRunLedgerNotification() {
+        assertTrue(dynamoHelper.claimRunLedgerNotification(makeRunLedgerEntry(RunLedgerStatus.NOTIFIED)));
+
+        // Validate back-end
+        ArgumentCaptor<PutItemSpec> putItemSpecCaptor = ArgumentCaptor.forClass(PutItemSpec.class);
+        verify(mockRunLedgerTable).putItem(putItemSpecCaptor.capture());
+        PutItemSpec putItemSpec = putItemSpecCaptor.getValue();
+        validateRunLedgerItem(putItemSpec.getItem(), RunLedgerStatus.NOTIFIED);
+        assertEquals(putItemSpec.getConditionExpression(),
+                "attribute_not_exists(#status) OR #status <> :notified");
+        assertEquals(putItemSpec.getNameMap(), ImmutableMap.of("#status", DynamoHelper.KEY_STATUS));
+        assertEquals(putItemSpec.getValueMap(), ImmutableMap.of(":notified", "NOTIFIED"));
+    }
+
+    @Test
+    public void claimRunLedgerNotification_AlreadyNotified() {
+        when(mockRunLedgerTable.putItem(any(PutItemSpec.class))).thenThrow(new ConditionalCheckFailedException(
+                "test exception"));
+        assertFalse(dynamoHelper.claimRunLedgerNotification(makeRunLedgerEntry(RunLedgerStatus.NOTIFIED)));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void claimRunLedgerNotification_WrongStatus() {
+        dynamoHelper.claimRunLedgerNotification(makeRunLedgerEntry(RunLedgerStatus.EVALUATED));
+    }
+
+    @Test
+    public void writeRunLedgerFailure() {
+        RunLedgerEntry entry = makeRunLedgerEntry(RunLedgerStatus.FAILED);
+        entry.setErrorClass("java.io.IOException");
+        assertTrue(dynamoHelper.writeRunLedgerFailure(entry));
+
+        // Validate back-end. Failures never replace a notified entry.
+        ArgumentCaptor<PutItemSpec> putItemSpecCaptor = ArgumentCaptor.forClass(PutItemSpec.class);
+        verify(mockRunLedgerTable).putItem(putItemSpecCaptor.capture());
+        PutItemSpec putItemSpec = putItemSpecCaptor.getValue();
+        validateRunLedgerItem(putItemSpec.getItem(), RunLedgerStatus.FAILED);
+        assertEquals(putItemSpec.getItem().getString(DynamoHelper.KEY_ERROR_CLASS), "java.io.IOException");
+        assertEquals(putItemSpec.getConditionExpression(),
+                "attribute_not_exists(#status) OR #status <> :notified");
+        assertEquals(putItemSpec.getNameMap(), ImmutableMap.of("#status", DynamoHelper.KEY_STATUS));
+        assertEquals(putItemSpec.getValueMap(), ImmutableMap.of(":notified", "NOTIFIED"));
+    }
+
+    @Test
+    public void writeRunLedgerFailure_AlreadyNotified() {
+        when(mockRunLedgerTable.putItem(any(PutItemSpec.class))).thenThrow(new ConditionalCheckFailedException(
+                "test exception"));
+        assertFalse(dynamoHelper.writeRunLedgerFailure(makeRunLedgerEntry(RunLedgerStatus.FAILED)));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void writeRunLedgerFailure_WrongStatus() {
+        dynamoHelper.writeRunLedgerFailure(makeRunLedgerEntry(RunLedgerStatus.EVALUATED));
+    }
+
+    private static RunLedgerEntry makeRunLedgerEntry(RunLedgerStatus status) {
+        RunLedgerEntry entry = new RunLedgerEntry();
+        entry.setDate(LocalDate.parse("2018-04-27"));
+        entry.setStatus(status);
+        entry.setStudyId(STUDY_ID);
+        entry.setUpdatedOn(MOCK_NOW_MILLIS);
+        entry.setUserId(USER_ID);
+        return entry;
+    }
+
+    private static void validateRunLedgerItem(Item item, RunLedgerStatus status) {
+        assertEquals(item.getString(DynamoHelper.KEY_STUDY_DATE), STUDY_ID + ":2018-04-27");
+        assertEquals(item.getString(DynamoHelper.KEY_USER_ID), USER_ID);
+        assertEquals(item.getString(DynamoHelper.KEY_STATUS), status.name());
+        assertEquals(item.getLong(DynamoHelper.KEY_UPDATED_ON), MOCK_NOW_MILLIS);
+        assertEquals(item.getLong(DynamoHelper.KEY_EXPIRES_ON), MOCK_NOW_MILLIS / 1000 +
+                DynamoHelper.RUN_LEDGER_TTL_DAYS * 24 * 60 * 60);
+    }
+
+    @Test
+    public void startShardedRun() {
+        ShardedRun shardedRun = dynamoHelper.startShardedRun("test-run", 3, 1234L, 1000L);
+        assertEquals(shardedRun.getNumShards(), 3);
+        assertEquals(shardedRun.getStartedOn(), 1234L);
+
+        // The run is only written if it doesn't exist yet, or it's stale.
+        ArgumentCaptor<PutItemSpec> putItemSpecCaptor = ArgumentCaptor.forClass(PutItemSpec.class);
+        verify(mockShardRunTable).putItem(putItemSpecCaptor.capture());
+        PutItemSpec putItemSpec = putItemSpecCaptor.getValue();
+        assertEquals(putItemSpec.getConditionExpression(), "attribute_not_exists(#numShards) OR " +
+                "attribute_not_exists(#startedOn) OR #startedOn < :staleBefore");
+        assertEquals(putItemSpec.getValueMap().get(":staleBefore"), new BigDecimal(1000L));
+
+        Item item = putItemSpec.getItem();
+        assertEquals(item.getString(DynamoHelper.KEY_RUN_ID), "test-run");
+        assertEquals(item.getInt(DynamoHelper.KEY_NUM_SHARDS), 3);
+        assertEquals(item.getLong(DynamoHelper.KEY_STARTED_ON), 1234L);
+        assertEquals(item.getLong(DynamoHelper.KEY_UPDATED_ON), MOCK_NOW_MILLIS);
+        verify(mockShardRunTable, never()).getItem(any(GetItemSpec.class));
+    }
+
+    @Test
+    public void startShardedRunAlreadyStarted() {
+        // The coordinator's request was redelivered. We get the existing run, and don't reset its finished shards.
+        when(mockShardRunTable.putItem(any(PutItemSpec.class))).thenThrow(new ConditionalCheckFailedException(
+                "test exception"));
+        when(mockShardRunTable.getItem(any(GetItemSpec.class))).thenReturn(new Item().withPrimaryKey(
+                DynamoHelper.KEY_RUN_ID, "test-run").withInt(DynamoHelper.KEY_NUM_SHARDS, 2)
+                .withLong(DynamoHelper.KEY_STARTED_ON, 999L).withNumberSet(DynamoHelper.KEY_FINISHED_SHARD_SET, 0));
+
+        ShardedRun shardedRun = dynamoHelper.startShardedRun("test-run", 3, 1234L, 500L);
+        assertEquals(shardedRun.getNumShards(), 2);
+        assertEquals(shardedRun.getStartedOn(), 999L);
+
+        ArgumentCaptor<GetItemSpec> getItemSpecCaptor = ArgumentCaptor.forClass(GetItemSpec.class);
+        verify(mockShardRunTable).getItem(getItemSpecCaptor.capture());
+        assertTrue(getItemSpecCaptor.getValue().isConsistentRead());
+        verify(mockShardRunTable, never()).updateItem(any(UpdateItemSpec.class));
+    }
+
+    @Test
+    public void finishShard() {
+        mockShardRunUpdate(new Item().withInt(DynamoHelper.KEY_NUM_SHARDS, 3).withNumberSet(
+                DynamoHelper.KEY_FINISHED_SHARD_SET, 0, 2));
+        assertFalse(dynamoHelper.finishShard("test-run", 2));
+
+        ArgumentCaptor<UpdateItemSpec> updateItemSpecCaptor = ArgumentCaptor.forClass(UpdateItemSpec.class);
+        verify(mockShardRunTable).updateItem(updateItemSpecCaptor.capture());
+
+        UpdateItemSpec updateItemSpec = updateItemSpecCaptor.getValue();
+        assertEquals(updateItemSpec.getUpdateExpression(), "ADD #finished :shard SET #updatedOn = :now");
+        assertEquals(updateItemSpec.getNameMap().get("#finished"), DynamoHelper.KEY_FINISHED_SHARD_SET);
+        assertEquals(updateItemSpec.getValueMap().get(":shard"), ImmutableSet.of(new BigDecimal(2)));
+        assertEquals(updateItemSpec.getValueMap().get(":now"), new BigDecimal(MOCK_NOW_MILLIS));
+    }
+
+    @Test
+    public void finishLastShard() {
+        mockShardRunUpdate(new Item().withInt(DynamoHelper.KEY_NUM_SHARDS, 3).withNumberSet(
+                DynamoHelper.KEY_FINISHED_SHARD_SET, 0, 1, 2));
+        assertTrue(dynamoHelper.finishShard("test-run", 1));
+    }
+
+    @Test
+    public void finishShardWithoutRun() {
+        // The run was never started, so we can't tell if this is the last shard. Don't mark the run as finished.
+        mockShardRunUpdate(new Item().withNumberSet(DynamoHelper.KEY_FINISHED_SHARD_SET, 0));
+        assertFalse(dynamoHelper.finishShard("test-run", 0));
+    }
+
+    private void mockShardRunUpdate(Item item) {
+        UpdateItemOutcome mockOutcome = mock(UpdateItemOutcome.class);
+        when(mockOutcome.getItem()).thenReturn(item);
+        when(mockShardRunTable.updateItem(any(UpdateItemSpec.class))).thenReturn(mockOutcome);
+    }
+
+    @Test
+    public void getStudyRunLease() {
+        Item item = new Item().withPrimaryKey(DynamoHelper.KEY_STUDY_DATE, STUDY_ID + ":2018-04-27")
+                .withLong(DynamoHelper.KEY_LEASE_EXPIRES_ON, MOCK_NOW_MILLIS + 1000)
+                .withString(DynamoHelper.KEY_RUN_ID, "test-run").withLong(DynamoHelper.KEY_STARTED_ON, 1234L)
+                .withString(DynamoHelper.KEY_STATUS, StudyRunStatus.RUNNING.name())
+                .withLong(DynamoHelper.KEY_UPDATED_ON, MOCK_NOW_MILLIS);
+        when(mockStudyRunTable.getItem(any(GetItemSpec.class))).thenReturn(item);
+
+        StudyRunLease lease = dynamoHelper.getStudyRunLease(STUDY_ID, LocalDate.parse("2018-04-27"));
+        assertEquals(lease.getLeaseExpiresOn(), MOCK_NOW_MILLIS + 1000);
+        assertEquals(lease.getRunId(), "test-run");
+        assertEquals(lease.getStartedOn(), 1234L);
+        assertEquals(lease.getStatus(), StudyRunStatus.RUNNING);
+        assertEquals(lease.getUpdatedOn(), MOCK_NOW_MILLIS);
+
+        ArgumentCaptor<GetItemSpec> getItemSpecCaptor = ArgumentCaptor.forClass(GetItemSpec.class);
+        verify(mockStudyRunTable).getItem(getItemSpecCaptor.capture());
+        GetItemSpec getItemSpec = getItemSpecCaptor.getValue();
+        assertTrue(getItemSpec.isConsistentRead());
+        assertEquals(getItemSpec.getKeyComponents().iterator().next().getValue(), STUDY_ID + ":2018-04-27");
+    }
+
+    @Test
+    public void getStudyRunLease_NoResult() {
+        assertNull(dynamoHelper.getStudyRunLease(STUDY_ID, LocalDate.parse("2018-04-27")));
+    }
+
+    @Test
+    public void acquireStudyRunLease() {
+        assertTrue(dynamoHelper.acquireStudyRunLease(STUDY_ID, LocalDate.parse("2018-04-27"), "test-run", 1234L,
+                MOCK_NOW_MILLIS + 1000));
+
+        UpdateItemSpec updateItemSpec = captureStudyRunUpdate();
+        assertEquals(updateItemSpec.getConditionExpression(), "attribute_not_exists(#status) OR " +
+                "#status = :finished OR #leaseExpiresOn < :now");
+        assertEquals(updateItemSpec.getValueMap().get(":leaseExpiresOn"), new BigDecimal(MOCK_NOW_MILLIS + 1000));
+        assertEquals(updateItemSpec.getValueMap().get(":now"), new BigDecimal(MOCK_NOW_MILLIS));
+        assertEquals(updateItemSpec.getValueMap().get(":runId"), "test-run");
+        assertEquals(updateItemSpec.getValueMap().get(":running"), StudyRunStatus.RUNNING.name());
+        assertEquals(updateItemSpec.getValueMap().get(":startedOn"), new BigDecimal(1234L));
+    }
+
+    @Test
+    public void acquireStudyRunLeaseHeldByOtherRun() {
+        when(mockStudyRunTable.updateItem(any(UpdateItemSpec.class))).thenThrow(new ConditionalCheckFailedException(
+                "test exception"));
+        assertFalse(dynamoHelper.acquireStudyRunLease(STUDY_ID, LocalDate.parse("2018-04-27"), "test-run", 1234L,
+                MOCK_NOW_MILLIS + 1000));
+    }
+
+    @Test
+    public void renewStudyRunLease() {
+        assertTrue(dynamoHelper.renewStudyRunLease(STUDY_ID, LocalDate.parse("2018-04-27"), "test-run",
+                MOCK_NOW_MILLIS + 1000));
+
+        UpdateItemSpec updateItemSpec = captureStudyRunUpdate();
+        assertEquals(updateItemSpec.getConditionExpression(), "#runId = :runId AND #status = :running");
+        assertEquals(updateItemSpec.getValueMap().get(":leaseExpiresOn"), new BigDecimal(MOCK_NOW_MILLIS + 1000));
+        assertEquals(updateItemSpec.getValueMap().get(":runId"), "test-run");
+        assertEquals(updateItemSpec.getValueMap().get(":status"), StudyRunStatus.RUNNING.name());
+    }
+
+    @Test
+    public void renewStudyRunLeaseLost() {
+        when(mockStudyRunTable.updateItem(any(UpdateItemSpec.class))).thenThrow(new ConditionalCheckFailedException(
+                "test exception"));
+        assertFalse(dynamoHelper.renewStudyRunLease(STUDY_ID, LocalDate.parse("2018-04-27"), "test-run",
+                MOCK_NOW_MILLIS + 1000));
+    }
+
+    @Test
+    public void releaseStudyRunLease() {
+        assertTrue(dynamoHelper.releaseStudyRunLease(STUDY_ID, LocalDate.parse("2018-04-27"), "test-run"));
+
+        UpdateItemSpec updateItemSpec = captureStudyRunUpdate();
+        assertEquals(updateItemSpec.getConditionExpression(), "#runId = :runId AND #status = :running");
+        assertEquals(updateItemSpec.getValueMap().get(":leaseExpiresOn"), new BigDecimal(MOCK_NOW_MILLIS));
+        assertEquals(updateItemSpec.getValueMap().get(":status"), StudyRunStatus.FINISHED.name());
+    }
+
+    @Test
+    public void releaseStudyRunLeaseLost() {
+        when(mockStudyRunTable.updateItem(any(UpdateItemSpec.class))).thenThrow(new ConditionalCheckFailedException(
+                "test exception"));
+        assertFalse(dynamoHelper.releaseStudyRunLease(STUDY_ID, LocalDate.parse("2018-04-27"), "test-run"));
+    }
+
+    private UpdateItemSpec captureStudyRunUpdate() {
+        ArgumentCaptor<UpdateItemSpec> updateItemSpecCaptor = ArgumentCaptor.forClass(UpdateItemSpec.class);
+        verify(mockStudyRunTable).updateItem(updateItemSpecCaptor.capture());
+        return updateItemSpecCaptor.getValue();
+    }
+
+    @Test
+    public void getWorkUnitLease() {
+        Item item = new Item().withPrimaryKey(DynamoHelper.KEY_RUN_ID, "test-run", DynamoHelper.KEY_UNIT_INDEX, 3)
+                .withLong(DynamoHelper.KEY_LEASE_EXPIRES_ON, MOCK_NOW_MILLIS).withString(DynamoHelper.KEY_OWNER_ID,
+                        "test-owner").withString(DynamoHelper.KEY_STATUS, WorkUnitStatus.LEASED.name());
+        when(mockWorkUnitTable.getItem(any(GetItemSpec.class))).thenReturn(item);
+
+        WorkUnitLease lease = dynamoHelper.getWorkUnitLease("test-run", 3);
+        assertEquals(lease.getLeaseExpiresOn(), MOCK_NOW_MILLIS);
+        assertEquals(lease.getOwnerId(), "test-owner");
+        assertEquals(lease.getRunId(), "test-run");
+        assertEquals(lease.getStatus(), WorkUnitStatus.LEASED);
+        assertEquals(lease.getUnitIndex(), 3);
+
+        // Leases are read with consistent reads, so a worker never claims a unit that was just finished.
+        ArgumentCaptor<GetItemSpec> getItemSpecCaptor = ArgumentCaptor.forClass(GetItemSpec.class);
+        verify(mockWorkUnitTable).getItem(getItemSpecCaptor.capture());
+        assertTrue(getItemSpecCaptor.getValue().isConsistentRead());
+    }
+
+    @Test
+    public void getWorkUnitLease_NoResult() {
+        assertNull(dynamoHelper.getWorkUnitLease("test-run", 3));
+    }
+
+    @Test
+    public void claimWorkUnit() {
+        assertTrue(dynamoHelper.claimWorkUnit("test-run", 3, "test-owner", MOCK_NOW_MILLIS + 1000));
+
+        UpdateItemSpec updateItemSpec = captureWorkUnitUpdate();
+        assertEquals(updateItemSpec.getConditionExpression(), "attribute_not_exists(#status) OR " +
+                "(#status = :leased AND #leaseExpiresOn < :now)");
+        assertEquals(updateItemSpec.getValueMap().get(":leaseExpiresOn"), new BigDecimal(MOCK_NOW_MILLIS + 1000));
+        assertEquals(updateItemSpec.getValueMap().get(":now"), new BigDecimal(MOCK_NOW_MILLIS));
+        assertEquals(updateItemSpec.getValueMap().get(":ownerId"), "test-owner");
+        assertEquals(updateItemSpec.getValueMap().get(":status"), WorkUnitStatus.LEASED.name());
+    }
+
+    @Test
+    public void claimWorkUnitHeldByOtherWorker() {
+        when(mockWorkUnitTable.updateItem(any(UpdateItemSpec.class))).thenThrow(new ConditionalCheckFailedException(
+                "test exception"));
+        assertFalse(dynamoHelper.claimWorkUnit("test-run", 3, "test-owner", MOCK_NOW_MILLIS + 1000));
+    }
+
+    @Test
+    public void renewWorkUnitLease() {
+        assertTrue(dynamoHelper.renewWorkUnitLease("test-run", 3, "test-owner", MOCK_NOW_MILLIS + 1000));
+
+        UpdateItemSpec updateItemSpec = captureWorkUnitUpdate();
+        assertEquals(updateItemSpec.getConditionExpression(), "#ownerId = :ownerId AND #status = :leased");
+        assertEquals(updateItemSpec.getValueMap().get(":leaseExpiresOn"), new BigDecimal(MOCK_NOW_MILLIS + 1000));
+        assertEquals(updateItemSpec.getValueMap().get(":status"), WorkUnitStatus.LEASED.name());
+    }
+
+    @Test
+    public void renewWorkUnitLeaseLost() {
+        when(mockWorkUnitTable.updateItem(any(UpdateItemSpec.class))).thenThrow(new ConditionalCheckFailedException(
+                "test exception"));
+        assertFalse(dynamoHelper.renewWorkUnitLease("test-run", 3, "test-owner", MOCK_NOW_MILLIS + 1000));
+    }
+
+    @Test
+    public void finishWorkUnit() {
+        assertTrue(dynamoHelper.finishWorkUnit("test-run", 3, "test-owner"));
+
+        UpdateItemSpec updateItemSpec = captureWorkUnitUpdate();
+        assertEquals(updateItemSpec.getConditionExpression(), "#ownerId = :ownerId AND #status = :leased");
+        assertEquals(updateItemSpec.getValueMap().get(":ownerId"), "test-owner");
+        assertEquals(updateItemSpec.getValueMap().get(":status"), WorkUnitStatus.FINISHED.name());
+    }
+
+    @Test
+    public void finishWorkUnitLost() {
+        when(mockWorkUnitTable.updateItem(any(UpdateItemSpec.class))).thenThrow(new ConditionalCheckFailedException(
+                "test exception"));
+        assertFalse(dynamoHelper.finishWorkUnit("test-run", 3, "test-owner"));
+    }
+
+    private UpdateItemSpec captureWorkUnitUpdate() {
+        ArgumentCaptor<UpdateItemSpec> updateItemSpecCaptor = ArgumentCaptor.forClass(UpdateItemSpec.class);
+        verify(mockWorkUnitTable).updateItem(updateItemSpecCaptor.capture());
+        return updateItemSpecCaptor.getValue();
     }
 
     @Test
@@ -207,4 +1019,10 @@ public class DynamoHelperTest {
         assertEquals(item.getLong(DynamoHelper.KEY_FINISH_TIME), MOCK_NOW_MILLIS);
         assertEquals(item.getString(DynamoHelper.KEY_TAG), "dummy tag");
     }
+
+    private static Item makeNotificationLogItem(String userId, long notificationTime, NotificationType type) {
+        return new Item().withPrimaryKey(DynamoHelper.KEY_USER_ID, userId, DynamoHelper.KEY_NOTIFICATION_TIME,
+                notificationTime).withString(DynamoHelper.KEY_NOTIFICATION_TYPE, type.name())
+                .withString(DynamoHelper.KEY_STUDY_ID, STUDY_ID);
+    }
 }
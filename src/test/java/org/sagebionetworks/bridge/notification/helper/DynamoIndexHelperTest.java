@@ -0,0 +1,26 @@
+package org.sagebionetworks.bridge.notification.helper;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertSame;
+
+import com.amazonaws.services.dynamodbv2.document.Index;
+import com.amazonaws.services.dynamodbv2.document.ItemCollection;
+import com.amazonaws.services.dynamodbv2.document.QueryOutcome;
+import com.amazonaws.services.dynamodbv2.document.spec.QuerySpec;
+import org.testng.annotations.Test;
+
+public class DynamoIndexHelperTest {
+    @Test
+    public void query() {
+        // Mock index. ItemCollection can be mocked, but its iterator can't, so just check that we pass through.
+        @SuppressWarnings("unchecked")
+        ItemCollection<QueryOutcome> mockItemCollection = mock(ItemCollection.class);
+        QuerySpec querySpec = new QuerySpec();
+        Index mockIndex = mock(Index.class);
+        when(mockIndex.query(querySpec)).thenReturn(mockItemCollection);
+
+        // Execute and validate
+        assertSame(new DynamoIndexHelper().query(mockIndex, querySpec), mockItemCollection);
+    }
+}
@@ -0,0 +1,26 @@
+package org.sagebionetworks.bridge.notification.helper;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertSame;
+
+import com.amazonaws.services.dynamodbv2.document.ItemCollection;
+import com.amazonaws.services.dynamodbv2.document.ScanOutcome;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.spec.ScanSpec;
+import org.testng.annotations.Test;
+
+public class DynamoScanHelperTest {
+    @Test
+    public void scan() {
+        // Mock table. ItemCollection can be mocked, but its iterator can't, so just check that we pass through.
+        @SuppressWarnings("unchecked")
+        ItemCollection<ScanOutcome> mockItemCollection = mock(ItemCollection.class);
+        ScanSpec scanSpec = new ScanSpec();
+        Table mockTable = mock(Table.class);
+        when(mockTable.scan(scanSpec)).thenReturn(mockItemCollection);
+
+        // Execute and validate
+        assertSame(new DynamoScanHelper().scan(mockTable, scanSpec), mockItemCollection);
+    }
+}
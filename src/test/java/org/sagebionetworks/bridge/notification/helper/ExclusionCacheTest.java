@@ -0,0 +1,74 @@
+package org.sagebionetworks.bridge.notification.helper;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import org.joda.time.DateTimeUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.notification.worker.ExclusionStage;
+
+public class ExclusionCacheTest {
+    private static final long MARKER = 1234L;
+    private static final long START_MILLIS = 1524872475831L;
+    private static final String STUDY_ID = "test-study";
+    private static final String USER_ID = "test-user";
+
+    private File tempDir;
+
+    @BeforeMethod
+    public void before() throws Exception {
+        tempDir = Files.createTempDirectory("ExclusionCacheTest").toFile();
+    }
+
+    @AfterMethod
+    public void after() throws Exception {
+        MoreFiles.deleteRecursively(tempDir.toPath(), RecursiveDeleteOption.ALLOW_INSECURE);
+        DateTimeUtils.setCurrentMillisSystem();
+    }
+
+    @Test
+    public void persistsAcrossInstances() {
+        ExclusionCache cache = makeCache();
+        for (ExclusionStage oneStage : ExclusionStage.values()) {
+            cache.put(STUDY_ID, oneStage.name(), MARKER, oneStage);
+        }
+        cache.save(STUDY_ID);
+
+        // A new cache, eg after the worker restarts, reads the entries from disk.
+        ExclusionCache loadedCache = makeCache();
+        for (ExclusionStage oneStage : ExclusionStage.values()) {
+            assertEquals(loadedCache.get(STUDY_ID, oneStage.name(), MARKER), oneStage);
+        }
+    }
+
+    @Test
+    public void exclusionExpiresAfterMaxAge() {
+        // Some changes, like a withdrawn user consenting again, don't change the marker. The max age bounds how long
+        // a stale exclusion is used.
+        ExclusionCache cache = makeCache();
+        cache.setMaxAgeDays(7);
+        DateTimeUtils.setCurrentMillisFixed(START_MILLIS);
+        cache.put(STUDY_ID, USER_ID, MARKER, ExclusionStage.CONSENT);
+
+        DateTimeUtils.setCurrentMillisFixed(START_MILLIS + TimeUnit.DAYS.toMillis(7) - 1);
+        assertEquals(cache.get(STUDY_ID, USER_ID, MARKER), ExclusionStage.CONSENT);
+
+        DateTimeUtils.setCurrentMillisFixed(START_MILLIS + TimeUnit.DAYS.toMillis(7));
+        assertNull(cache.get(STUDY_ID, USER_ID, MARKER));
+    }
+
+    private ExclusionCache makeCache() {
+        ExclusionCache cache = new ExclusionCache();
+        cache.setCacheDirectory(tempDir);
+        return cache;
+    }
+}
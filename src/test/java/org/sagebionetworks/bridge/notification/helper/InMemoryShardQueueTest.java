@@ -0,0 +1,31 @@
+package org.sagebionetworks.bridge.notification.helper;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.testng.annotations.Test;
+
+public class InMemoryShardQueueTest {
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+
+    @Test
+    public void sendAndPoll() {
+        JsonNode request1 = JSON_MAPPER.createObjectNode().put("shardIndex", 0);
+        JsonNode request2 = JSON_MAPPER.createObjectNode().put("shardIndex", 1);
+
+        InMemoryShardQueue shardQueue = new InMemoryShardQueue();
+        assertEquals(shardQueue.size(), 0);
+        assertNull(shardQueue.poll());
+
+        // Requests come out in the order they were sent.
+        shardQueue.send(request1);
+        shardQueue.send(request2);
+        assertEquals(shardQueue.size(), 2);
+        assertSame(shardQueue.poll(), request1);
+        assertSame(shardQueue.poll(), request2);
+        assertNull(shardQueue.poll());
+    }
+}
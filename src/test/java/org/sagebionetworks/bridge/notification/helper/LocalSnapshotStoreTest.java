@@ -0,0 +1,148 @@
+package org.sagebionetworks.bridge.notification.helper;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class LocalSnapshotStoreTest {
+    private static final String USER_ID_1 = "user-1";
+    private static final String USER_ID_2 = "user-2";
+
+    private File file;
+    private File tempDir;
+
+    @BeforeMethod
+    public void before() throws Exception {
+        tempDir = Files.createTempDirectory("LocalSnapshotStoreTest").toFile();
+        file = new File(tempDir, "test-store.bin");
+    }
+
+    @AfterMethod
+    public void after() throws Exception {
+        MoreFiles.deleteRecursively(tempDir.toPath(), RecursiveDeleteOption.ALLOW_INSECURE);
+    }
+
+    @Test
+    public void missingFileStartsEmpty() {
+        LocalSnapshotStore<String> store = new LocalSnapshotStore<>(file, new StringCodec(1));
+        assertEquals(store.size(), 0);
+        assertNull(store.get(USER_ID_1));
+    }
+
+    @Test
+    public void saveAndLoad() throws Exception {
+        LocalSnapshotStore<String> store = new LocalSnapshotStore<>(file, new StringCodec(1));
+        store.put(USER_ID_1, 11L, 1000L, "value-1");
+        store.put(USER_ID_2, 22L, 2000L, "value-2");
+        store.save();
+        assertTrue(file.exists());
+
+        // A new store for the same file loads the saved entries.
+        LocalSnapshotStore<String> loadedStore = new LocalSnapshotStore<>(file, new StringCodec(1));
+        assertEquals(loadedStore.size(), 2);
+
+        LocalSnapshotStore.Entry<String> entry1 = loadedStore.get(USER_ID_1);
+        assertEquals(entry1.getMarker(), 11L);
+        assertEquals(entry1.getStoredOn(), 1000L);
+        assertEquals(entry1.getValue(), "value-1");
+
+        LocalSnapshotStore.Entry<String> entry2 = loadedStore.get(USER_ID_2);
+        assertEquals(entry2.getMarker(), 22L);
+        assertEquals(entry2.getStoredOn(), 2000L);
+        assertEquals(entry2.getValue(), "value-2");
+    }
+
+    @Test
+    public void saveCreatesDirectory() throws Exception {
+        File nestedFile = new File(new File(tempDir, "nested"), "test-store.bin");
+        LocalSnapshotStore<String> store = new LocalSnapshotStore<>(nestedFile, new StringCodec(1));
+        store.put(USER_ID_1, 11L, 1000L, "value-1");
+        store.save();
+        assertTrue(nestedFile.exists());
+    }
+
+    @Test
+    public void saveWithoutChangesDoesNothing() throws Exception {
+        LocalSnapshotStore<String> store = new LocalSnapshotStore<>(file, new StringCodec(1));
+        store.save();
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void remove() throws Exception {
+        LocalSnapshotStore<String> store = new LocalSnapshotStore<>(file, new StringCodec(1));
+        store.put(USER_ID_1, 11L, 1000L, "value-1");
+        store.put(USER_ID_2, 22L, 2000L, "value-2");
+        store.save();
+
+        store.remove(USER_ID_1);
+        store.save();
+
+        LocalSnapshotStore<String> loadedStore = new LocalSnapshotStore<>(file, new StringCodec(1));
+        assertEquals(loadedStore.size(), 1);
+        assertNull(loadedStore.get(USER_ID_1));
+        assertEquals(loadedStore.get(USER_ID_2).getValue(), "value-2");
+    }
+
+    @Test
+    public void codecVersionChangeDiscardsFile() throws Exception {
+        LocalSnapshotStore<String> store = new LocalSnapshotStore<>(file, new StringCodec(1));
+        store.put(USER_ID_1, 11L, 1000L, "value-1");
+        store.save();
+
+        LocalSnapshotStore<String> loadedStore = new LocalSnapshotStore<>(file, new StringCodec(2));
+        assertEquals(loadedStore.size(), 0);
+    }
+
+    @Test
+    public void corruptFileStartsEmpty() throws Exception {
+        LocalSnapshotStore<String> store = new LocalSnapshotStore<>(file, new StringCodec(1));
+        store.put(USER_ID_1, 11L, 1000L, "value-1");
+        store.put(USER_ID_2, 22L, 2000L, "value-2");
+        store.save();
+
+        // Truncate the file in the middle of an entry.
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        Files.write(file.toPath(), Arrays.copyOf(bytes, bytes.length - 3));
+
+        LocalSnapshotStore<String> loadedStore = new LocalSnapshotStore<>(file, new StringCodec(1));
+        assertEquals(loadedStore.size(), 0);
+    }
+
+    private static class StringCodec implements LocalSnapshotStore.Codec<String> {
+        private final int version;
+
+        StringCodec(int version) {
+            this.version = version;
+        }
+
+        @Override
+        public int getVersion() {
+            return version;
+        }
+
+        @Override
+        public String read(DataInput in) throws IOException {
+            return in.readUTF();
+        }
+
+        @Override
+        public void write(DataOutput out, String value) throws IOException {
+            out.writeUTF(value);
+        }
+    }
+}
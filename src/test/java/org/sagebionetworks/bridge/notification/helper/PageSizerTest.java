@@ -0,0 +1,105 @@
+package org.sagebionetworks.bridge.notification.helper;
+
+import static org.testng.Assert.assertEquals;
+
+import org.testng.annotations.Test;
+
+public class PageSizerTest {
+    private static final long TARGET_LATENCY_MILLIS = 1000;
+
+    @Test
+    public void fixedNeverChanges() {
+        PageSizer pageSizer = PageSizer.fixed(10);
+        assertEquals(pageSizer.getPageSize(), 10);
+
+        pageSizer.recordSuccess(10, 10, 1);
+        assertEquals(pageSizer.getPageSize(), 10);
+
+        pageSizer.recordSuccess(10, 10, Long.MAX_VALUE - 1);
+        assertEquals(pageSizer.getPageSize(), 10);
+
+        pageSizer.recordError(10);
+        assertEquals(pageSizer.getPageSize(), 10);
+    }
+
+    @Test
+    public void adaptiveGrowsOnFastFullPagesUpToMax() {
+        PageSizer pageSizer = PageSizer.adaptive(10, 5, 100, TARGET_LATENCY_MILLIS);
+        assertEquals(pageSizer.getPageSize(), 10);
+
+        pageSizer.recordSuccess(10, 10, 100);
+        assertEquals(pageSizer.getPageSize(), 20);
+
+        pageSizer.recordSuccess(20, 20, TARGET_LATENCY_MILLIS);
+        assertEquals(pageSizer.getPageSize(), 40);
+
+        pageSizer.recordSuccess(40, 40, 100);
+        pageSizer.recordSuccess(80, 80, 100);
+        assertEquals(pageSizer.getPageSize(), 100);
+
+        pageSizer.recordSuccess(100, 100, 100);
+        assertEquals(pageSizer.getPageSize(), 100);
+    }
+
+    @Test
+    public void adaptiveDoesNotGrowOnPartialPages() {
+        PageSizer pageSizer = PageSizer.adaptive(10, 5, 100, TARGET_LATENCY_MILLIS);
+        pageSizer.recordSuccess(10, 9, 100);
+        assertEquals(pageSizer.getPageSize(), 10);
+    }
+
+    @Test
+    public void adaptiveShrinksOnSlowPagesDownToMin() {
+        PageSizer pageSizer = PageSizer.adaptive(40, 5, 100, TARGET_LATENCY_MILLIS);
+
+        pageSizer.recordSuccess(40, 40, TARGET_LATENCY_MILLIS + 1);
+        assertEquals(pageSizer.getPageSize(), 20);
+
+        // Partial pages still shrink if they're slow.
+        pageSizer.recordSuccess(20, 3, TARGET_LATENCY_MILLIS + 1);
+        assertEquals(pageSizer.getPageSize(), 10);
+
+        pageSizer.recordSuccess(10, 10, TARGET_LATENCY_MILLIS + 1);
+        pageSizer.recordSuccess(5, 5, TARGET_LATENCY_MILLIS + 1);
+        assertEquals(pageSizer.getPageSize(), 5);
+    }
+
+    @Test
+    public void adaptiveShrinksOnError() {
+        PageSizer pageSizer = PageSizer.adaptive(40, 5, 100, TARGET_LATENCY_MILLIS);
+        pageSizer.recordError(40);
+        assertEquals(pageSizer.getPageSize(), 20);
+    }
+
+    @Test
+    public void stalePageSizesDoNotOvershoot() {
+        // Two threads both requested pages of size 10. Both come back fast. We only grow to 20, not 40.
+        PageSizer pageSizer = PageSizer.adaptive(10, 5, 100, TARGET_LATENCY_MILLIS);
+        pageSizer.recordSuccess(10, 10, 100);
+        pageSizer.recordSuccess(10, 10, 100);
+        assertEquals(pageSizer.getPageSize(), 20);
+
+        // A slow page from the old page size shrinks to 5, not below the current size's half.
+        pageSizer.recordSuccess(10, 10, TARGET_LATENCY_MILLIS + 1);
+        assertEquals(pageSizer.getPageSize(), 5);
+
+        // A fast page from the old page size of 20 still justifies growing back to 40.
+        pageSizer.recordSuccess(20, 20, 100);
+        assertEquals(pageSizer.getPageSize(), 40);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void minGreaterThanMax() {
+        PageSizer.adaptive(10, 20, 10, TARGET_LATENCY_MILLIS);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void minLessThanOne() {
+        PageSizer.adaptive(10, 0, 100, TARGET_LATENCY_MILLIS);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void initialOutOfBounds() {
+        PageSizer.adaptive(200, 5, 100, TARGET_LATENCY_MILLIS);
+    }
+}
@@ -0,0 +1,83 @@
+package org.sagebionetworks.bridge.notification.helper;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.MoreFiles;
+import com.google.common.io.RecursiveDeleteOption;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.notification.worker.ParticipantSnapshot;
+
+public class ParticipantSnapshotCacheTest {
+    private static final long MARKER = 1234L;
+    private static final String STUDY_ID = "test-study";
+    private static final String USER_ID = "test-user";
+
+    private File tempDir;
+
+    @BeforeMethod
+    public void before() throws Exception {
+        tempDir = Files.createTempDirectory("ParticipantSnapshotCacheTest").toFile();
+    }
+
+    @AfterMethod
+    public void after() throws Exception {
+        MoreFiles.deleteRecursively(tempDir.toPath(), RecursiveDeleteOption.ALLOW_INSECURE);
+    }
+
+    @Test
+    public void persistsAcrossInstances() {
+        ParticipantSnapshot snapshot = new ParticipantSnapshot();
+        snapshot.setConsentedSubpopulationGuidSet(ImmutableSet.of("subpop-1", "subpop-2"));
+        snapshot.setDataGroupList(ImmutableList.of("group-1", "group-2"));
+        snapshot.setPhoneVerified(true);
+        snapshot.setTimeZone("-07:00");
+
+        ParticipantSnapshot loadedSnapshot = saveAndLoad(snapshot);
+        assertEquals(loadedSnapshot.getConsentedSubpopulationGuidSet(), ImmutableSet.of("subpop-1", "subpop-2"));
+        assertEquals(loadedSnapshot.getDataGroupList(), ImmutableList.of("group-1", "group-2"));
+        assertEquals(loadedSnapshot.getPhoneVerified(), Boolean.TRUE);
+        assertEquals(loadedSnapshot.getTimeZone(), "-07:00");
+    }
+
+    @Test
+    public void phoneNotVerified() {
+        ParticipantSnapshot snapshot = new ParticipantSnapshot();
+        snapshot.setPhoneVerified(false);
+
+        ParticipantSnapshot loadedSnapshot = saveAndLoad(snapshot);
+        assertEquals(loadedSnapshot.getPhoneVerified(), Boolean.FALSE);
+    }
+
+    @Test
+    public void nullFields() {
+        ParticipantSnapshot loadedSnapshot = saveAndLoad(new ParticipantSnapshot());
+        assertNull(loadedSnapshot.getConsentedSubpopulationGuidSet());
+        assertNull(loadedSnapshot.getDataGroupList());
+        assertNull(loadedSnapshot.getPhoneVerified());
+        assertNull(loadedSnapshot.getTimeZone());
+    }
+
+    private ParticipantSnapshot saveAndLoad(ParticipantSnapshot snapshot) {
+        ParticipantSnapshotCache cache = makeCache();
+        cache.put(STUDY_ID, USER_ID, MARKER, snapshot);
+        cache.save(STUDY_ID);
+
+        // A new cache, eg after the worker restarts, reads the entries from disk.
+        return makeCache().get(STUDY_ID, USER_ID, MARKER);
+    }
+
+    private ParticipantSnapshotCache makeCache() {
+        ParticipantSnapshotCache cache = new ParticipantSnapshotCache();
+        cache.setCacheDirectory(tempDir);
+        return cache;
+    }
+}
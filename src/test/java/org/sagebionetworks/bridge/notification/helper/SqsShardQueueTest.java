@@ -0,0 +1,25 @@
+package org.sagebionetworks.bridge.notification.helper;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.testng.annotations.Test;
+
+public class SqsShardQueueTest {
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+    private static final String QUEUE_URL = "https://sqs.us-east-1.amazonaws.com/123456789012/test-queue";
+
+    @Test
+    public void send() {
+        AmazonSQS mockSqsClient = mock(AmazonSQS.class);
+        ObjectNode request = JSON_MAPPER.createObjectNode();
+        request.put("studyId", "test-study");
+        request.put("shardIndex", 2);
+
+        new SqsShardQueue(mockSqsClient, QUEUE_URL).send(request);
+        verify(mockSqsClient).sendMessage(QUEUE_URL, "{\"studyId\":\"test-study\",\"shardIndex\":2}");
+    }
+}
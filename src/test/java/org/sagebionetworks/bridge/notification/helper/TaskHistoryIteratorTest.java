@@ -175,13 +175,51 @@ public class TaskHistoryIteratorTest {
         }
     }
 
+    @Test
+    public void adaptivePageSizeGrows() throws Exception {
+        // The first page is full and fast, so the second page is twice as big.
+        mockApiWithPage(null, 10, 0, 9, "page2");
+        mockApiWithPage("page2", 20, 10, 14, null);
+
+        PageSizer pageSizer = PageSizer.adaptive(10, 5, 100, 60000);
+        TaskHistoryIterator iter = new TaskHistoryIterator(mockClientManager, STUDY_ID, USER_ID, TASK_ID,
+                SCHEDULED_ON_START, SCHEDULED_ON_END, pageSizer);
+        testIterator(iter, 15);
+
+        // The second page was partial, so we stay at 20.
+        assertEquals(pageSizer.getPageSize(), 20);
+    }
+
+    @Test
+    public void adaptivePageSizeShrinksOnError() throws Exception {
+        Call<ForwardCursorScheduledActivityList> mockPageCall = mock(Call.class);
+        when(mockPageCall.execute()).thenThrow(IOException.class);
+        when(mockApi.getParticipantTaskHistory(STUDY_ID, USER_ID, TASK_ID, SCHEDULED_ON_START, SCHEDULED_ON_END,
+                null, 40)).thenReturn(mockPageCall);
+
+        PageSizer pageSizer = PageSizer.adaptive(40, 5, 100, 60000);
+        try {
+            new TaskHistoryIterator(mockClientManager, STUDY_ID, USER_ID, TASK_ID, SCHEDULED_ON_START,
+                    SCHEDULED_ON_END, pageSizer);
+            fail("expected exception");
+        } catch (RuntimeException ex) {
+            // expected exception
+        }
+        assertEquals(pageSizer.getPageSize(), 20);
+    }
+
     private void mockApiWithPage(String curOffsetKey, int start, int end, String nextPageOffsetKey) throws Exception {
+        mockApiWithPage(curOffsetKey, TaskHistoryIterator.PAGE_SIZE, start, end, nextPageOffsetKey);
+    }
+
+    private void mockApiWithPage(String curOffsetKey, int pageSize, int start, int end, String nextPageOffsetKey)
+            throws Exception {
         // Mock page call.
         Response<ForwardCursorScheduledActivityList> pageResponse = makePageResponse(start, end, nextPageOffsetKey);
         Call<ForwardCursorScheduledActivityList> mockPageCall = mock(Call.class);
         when(mockPageCall.execute()).thenReturn(pageResponse);
         when(mockApi.getParticipantTaskHistory(STUDY_ID, USER_ID, TASK_ID, SCHEDULED_ON_START, SCHEDULED_ON_END,
-                curOffsetKey, TaskHistoryIterator.PAGE_SIZE)).thenReturn(mockPageCall);
+                curOffsetKey, pageSize)).thenReturn(mockPageCall);
     }
 
     private Response<ForwardCursorScheduledActivityList> makePageResponse(int start, int end,
@@ -204,9 +242,11 @@ public class TaskHistoryIteratorTest {
     }
 
     private void testIterator(int expectedCount) {
-        TaskHistoryIterator iter = new TaskHistoryIterator(mockClientManager, STUDY_ID, USER_ID, TASK_ID,
-                SCHEDULED_ON_START, SCHEDULED_ON_END);
+        testIterator(new TaskHistoryIterator(mockClientManager, STUDY_ID, USER_ID, TASK_ID, SCHEDULED_ON_START,
+                SCHEDULED_ON_END), expectedCount);
+    }
 
+    private void testIterator(TaskHistoryIterator iter, int expectedCount) {
         int numActivities = 0;
         while (iter.hasNext()) {
             ScheduledActivity scheduledActivity = iter.next();
@@ -0,0 +1,216 @@
+package org.sagebionetworks.bridge.notification.helper;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableMap;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.notification.worker.WorkerConfig;
+
+public class WorkerConfigCacheTest {
+    private static final String STUDY_ID = "test-study";
+
+    private List<Runnable> backgroundTaskList;
+    private WorkerConfigCache cache;
+    private DynamoHelper mockDynamoHelper;
+    private FakeTicker ticker;
+
+    @BeforeMethod
+    public void before() {
+        mockDynamoHelper = mock(DynamoHelper.class);
+
+        // Background tasks are queued up, so tests can control when reloads happen.
+        backgroundTaskList = new ArrayList<>();
+        ExecutorService mockExecutor = mock(ExecutorService.class);
+        doAnswer(invocation -> backgroundTaskList.add(invocation.getArgumentAt(0, Runnable.class)))
+                .when(mockExecutor).execute(any());
+
+        ticker = new FakeTicker();
+        cache = new WorkerConfigCache(ticker);
+        cache.setBackgroundExecutor(mockExecutor);
+        cache.setDynamoHelper(mockDynamoHelper);
+    }
+
+    @Test
+    public void cachesConfig() {
+        WorkerConfig config = new WorkerConfig();
+        when(mockDynamoHelper.getNotificationConfigForStudy(STUDY_ID)).thenReturn(config);
+
+        // First call loads, second call is a cache hit.
+        assertSame(cache.getConfig(STUDY_ID), config);
+        assertSame(cache.getConfig(STUDY_ID), config);
+        verify(mockDynamoHelper, times(1)).getNotificationConfigForStudy(STUDY_ID);
+
+        CacheStats stats = cache.getStats();
+        assertEquals(stats.hitCount(), 1);
+        assertEquals(stats.missCount(), 1);
+        assertEquals(stats.loadSuccessCount(), 1);
+    }
+
+    @Test
+    public void refreshesInBackground() {
+        WorkerConfig oldConfig = new WorkerConfig();
+        WorkerConfig newConfig = new WorkerConfig();
+        when(mockDynamoHelper.getNotificationConfigForStudy(STUDY_ID)).thenReturn(oldConfig, newConfig);
+        assertSame(cache.getConfig(STUDY_ID), oldConfig);
+
+        // Past the refresh interval, we still get the old config, but a reload is scheduled in the background.
+        ticker.advance(WorkerConfigCache.REFRESH_AFTER_WRITE_MINUTES + 1, TimeUnit.MINUTES);
+        assertSame(cache.getConfig(STUDY_ID), oldConfig);
+        assertEquals(backgroundTaskList.size(), 1);
+
+        // Run the reload. Now we get the new config.
+        backgroundTaskList.get(0).run();
+        assertSame(cache.getConfig(STUDY_ID), newConfig);
+        verify(mockDynamoHelper, times(2)).getNotificationConfigForStudy(STUDY_ID);
+    }
+
+    @Test
+    public void failedRefreshKeepsOldConfig() {
+        WorkerConfig oldConfig = new WorkerConfig();
+        when(mockDynamoHelper.getNotificationConfigForStudy(STUDY_ID)).thenReturn(oldConfig).thenThrow(
+                RuntimeException.class);
+        assertSame(cache.getConfig(STUDY_ID), oldConfig);
+
+        ticker.advance(WorkerConfigCache.REFRESH_AFTER_WRITE_MINUTES + 1, TimeUnit.MINUTES);
+        assertSame(cache.getConfig(STUDY_ID), oldConfig);
+        backgroundTaskList.get(0).run();
+        assertSame(cache.getConfig(STUDY_ID), oldConfig);
+        assertEquals(cache.getStats().loadExceptionCount(), 1);
+    }
+
+    @Test
+    public void expiredConfigLoadsSynchronously() {
+        WorkerConfig oldConfig = new WorkerConfig();
+        WorkerConfig newConfig = new WorkerConfig();
+        when(mockDynamoHelper.getNotificationConfigForStudy(STUDY_ID)).thenReturn(oldConfig, newConfig);
+        assertSame(cache.getConfig(STUDY_ID), oldConfig);
+
+        ticker.advance(WorkerConfigCache.EXPIRE_AFTER_WRITE_MINUTES + 1, TimeUnit.MINUTES);
+        assertSame(cache.getConfig(STUDY_ID), newConfig);
+        assertEquals(backgroundTaskList.size(), 0);
+    }
+
+    @Test
+    public void invalidate() {
+        WorkerConfig oldConfig = new WorkerConfig();
+        WorkerConfig newConfig = new WorkerConfig();
+        when(mockDynamoHelper.getNotificationConfigForStudy(STUDY_ID)).thenReturn(oldConfig, newConfig);
+        assertSame(cache.getConfig(STUDY_ID), oldConfig);
+
+        cache.invalidate(STUDY_ID);
+        assertSame(cache.getConfig(STUDY_ID), newConfig);
+    }
+
+    @Test
+    public void invalidateAll() {
+        WorkerConfig oldConfig = new WorkerConfig();
+        WorkerConfig newConfig = new WorkerConfig();
+        when(mockDynamoHelper.getNotificationConfigForStudy(STUDY_ID)).thenReturn(oldConfig, newConfig);
+        assertSame(cache.getConfig(STUDY_ID), oldConfig);
+
+        cache.invalidateAll();
+        assertSame(cache.getConfig(STUDY_ID), newConfig);
+    }
+
+    @Test
+    public void preload() {
+        WorkerConfig config1 = new WorkerConfig();
+        WorkerConfig config2 = new WorkerConfig();
+        when(mockDynamoHelper.getAllNotificationConfigs()).thenReturn(ImmutableMap.of("study-1", config1,
+                "study-2", config2));
+        cache.preload();
+
+        // Preloaded configs don't need to call DDB.
+        assertSame(cache.getConfig("study-1"), config1);
+        assertSame(cache.getConfig("study-2"), config2);
+        verify(mockDynamoHelper, times(0)).getNotificationConfigForStudy(any());
+    }
+
+    @Test
+    public void preloadErrorIsSwallowed() {
+        when(mockDynamoHelper.getAllNotificationConfigs()).thenThrow(RuntimeException.class);
+        cache.preload();
+
+        // Configs can still be loaded on demand.
+        WorkerConfig config = new WorkerConfig();
+        when(mockDynamoHelper.getNotificationConfigForStudy(STUDY_ID)).thenReturn(config);
+        assertSame(cache.getConfig(STUDY_ID), config);
+    }
+
+    @Test
+    public void loadErrorIsUnwrapped() {
+        IllegalArgumentException originalEx = new IllegalArgumentException("test exception");
+        when(mockDynamoHelper.getNotificationConfigForStudy(STUDY_ID)).thenThrow(originalEx);
+        try {
+            cache.getConfig(STUDY_ID);
+            fail("expected exception");
+        } catch (IllegalArgumentException ex) {
+            assertSame(ex, originalEx);
+        }
+    }
+
+    @Test
+    public void concurrentCallsShareOneLoad() throws Exception {
+        // The first load blocks until the second caller is waiting on the same study.
+        WorkerConfig config = new WorkerConfig();
+        CountDownLatch loadStartedLatch = new CountDownLatch(1);
+        CountDownLatch finishLoadLatch = new CountDownLatch(1);
+        when(mockDynamoHelper.getNotificationConfigForStudy(STUDY_ID)).thenAnswer(invocation -> {
+            loadStartedLatch.countDown();
+            finishLoadLatch.await();
+            return config;
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<WorkerConfig> future1 = executor.submit(() -> cache.getConfig(STUDY_ID));
+            loadStartedLatch.await();
+            Future<WorkerConfig> future2 = executor.submit(() -> cache.getConfig(STUDY_ID));
+
+            // Give the second caller a moment to start waiting, then finish the load.
+            Thread.sleep(50);
+            finishLoadLatch.countDown();
+            assertSame(future1.get(), config);
+            assertSame(future2.get(), config);
+        } finally {
+            executor.shutdown();
+        }
+
+        verify(mockDynamoHelper, times(1)).getNotificationConfigForStudy(STUDY_ID);
+    }
+
+    // Ticker which only moves when the test tells it to.
+    private static class FakeTicker extends Ticker {
+        private final AtomicLong nanos = new AtomicLong();
+
+        void advance(long time, TimeUnit unit) {
+            nanos.addAndGet(unit.toNanos(time));
+        }
+
+        @Override
+        public long read() {
+            return nanos.get();
+        }
+    }
+}
@@ -1,16 +1,28 @@
 package org.sagebionetworks.bridge.notification.worker;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
+import java.io.IOException;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -19,15 +31,21 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeUtils;
+import org.joda.time.DateTimeZone;
 import org.joda.time.LocalDate;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import org.sagebionetworks.bridge.notification.helper.ActivityEventCache;
 import org.sagebionetworks.bridge.notification.helper.BridgeHelper;
 import org.sagebionetworks.bridge.notification.helper.DynamoHelper;
+import org.sagebionetworks.bridge.notification.helper.ExclusionCache;
+import org.sagebionetworks.bridge.notification.helper.ParticipantSnapshotCache;
+import org.sagebionetworks.bridge.notification.helper.TaskHistoryIterator;
 import org.sagebionetworks.bridge.rest.model.AccountSummary;
 import org.sagebionetworks.bridge.rest.model.ActivityEvent;
 import org.sagebionetworks.bridge.rest.model.Phone;
@@ -36,7 +54,7 @@ import org.sagebionetworks.bridge.rest.model.ScheduledActivity;
 import org.sagebionetworks.bridge.rest.model.StudyParticipant;
 import org.sagebionetworks.bridge.rest.model.UserConsentHistory;
 
-@SuppressWarnings("JavaReflectionMemberAccess")
+@SuppressWarnings({ "JavaReflectionMemberAccess", "unchecked" })
 public class BridgeNotificationWorkerProcessorProcessAccountTest {
     private static final String EVENT_ID_ENROLLMENT = "enrollment";
     private static final String EVENT_ID_BURST_2_START = "custom:activityBurst2Start";
@@ -66,10 +84,15 @@ public class BridgeNotificationWorkerProcessorProcessAccountTest {
 
     private List<ScheduledActivity> activityList;
     private Map<String, List<UserConsentHistory>> consentHistoryMap;
+    private ActivityEventCache mockActivityEventCache;
     private BridgeHelper mockBridgeHelper;
     private DynamoHelper mockDynamoHelper;
+    private ExclusionCache mockExclusionCache;
     private StudyParticipant mockParticipant;
+    private ParticipantSnapshotCache mockParticipantSnapshotCache;
     private BridgeNotificationWorkerProcessor processor;
+    private WorkerConfig config;
+    private CompiledWorkerConfig workerConfig;
 
     @BeforeClass
     public static void mockNow() {
@@ -86,6 +109,9 @@ public class BridgeNotificationWorkerProcessorProcessAccountTest {
         // Set up mocks
         mockBridgeHelper = mock(BridgeHelper.class);
         mockDynamoHelper = mock(DynamoHelper.class);
+        mockActivityEventCache = mock(ActivityEventCache.class);
+        mockExclusionCache = mock(ExclusionCache.class);
+        mockParticipantSnapshotCache = mock(ParticipantSnapshotCache.class);
 
         // Mock getActivityEvents - enrollment, burst 2 start, and an unrelated event (which will be ignored)
         ActivityEvent enrollmentEvent = new ActivityEvent().eventId(EVENT_ID_ENROLLMENT).timestamp(ENROLLMENT_TIME);
@@ -119,10 +145,7 @@ public class BridgeNotificationWorkerProcessorProcessAccountTest {
             // We only care about scheduledOn and status, and for status, we only care about finished vs not finished.
             ScheduledActivity activity = new ScheduledActivity().status(ScheduleStatus.AVAILABLE);
 
-            // Use reflection to set scheduledOn.
-            Field scheduledOnField = ScheduledActivity.class.getDeclaredField("scheduledOn");
-            scheduledOnField.setAccessible(true);
-            scheduledOnField.set(activity, ENROLLMENT_TIME.plusDays(i));
+            setScheduledOn(activity, ENROLLMENT_TIME.plusDays(i));
 
             activityList.add(activity);
         }
@@ -146,7 +169,7 @@ public class BridgeNotificationWorkerProcessorProcessAccountTest {
                 REQUIRED_DATA_GROUP_1, MESSAGE_PRE_BURST,
                 REQUIRED_DATA_GROUP_2, MESSAGE_PRE_BURST);
 
-        WorkerConfig config = new WorkerConfig();
+        config = new WorkerConfig();
         config.setBurstDurationDays(9);
         config.setBurstStartEventIdSet(ImmutableSet.of(EVENT_ID_ENROLLMENT, EVENT_ID_BURST_2_START));
         config.setBurstTaskId(TASK_ID);
@@ -163,39 +186,42 @@ public class BridgeNotificationWorkerProcessorProcessAccountTest {
         config.setPreburstMessagesByDataGroup(preburstMessageMap);
         config.setRequiredDataGroupsOneOfSet(ImmutableSet.of(REQUIRED_DATA_GROUP_1, REQUIRED_DATA_GROUP_2));
         config.setRequiredSubpopulationGuidSet(ImmutableSet.of(REQUIRED_SUBPOP_1, REQUIRED_SUBPOP_2));
-        when(mockDynamoHelper.getNotificationConfigForStudy(STUDY_ID)).thenReturn(config);
+        workerConfig = CompiledWorkerConfig.compile(config);
 
         // Create processor
         processor = new BridgeNotificationWorkerProcessor();
+        processor.setActivityEventCache(mockActivityEventCache);
         processor.setBridgeHelper(mockBridgeHelper);
         processor.setDynamoHelper(mockDynamoHelper);
+        processor.setExclusionCache(mockExclusionCache);
+        processor.setParticipantSnapshotCache(mockParticipantSnapshotCache);
     }
 
     @Test
     public void unverifiedPhone() throws Exception {
         when(mockParticipant.getPhoneVerified()).thenReturn(false);
-        processor.processAccountForDate(STUDY_ID, TEST_DATE, ACCOUNT_SUMMARY);
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
         verifyNoNotification();
     }
 
     @Test
     public void noTimezone() throws Exception {
         when(mockParticipant.getTimeZone()).thenReturn(null);
-        processor.processAccountForDate(STUDY_ID, TEST_DATE, ACCOUNT_SUMMARY);
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
         verifyNoNotification();
     }
 
     @Test
     public void timezoneTooLow() throws Exception {
         when(mockParticipant.getTimeZone()).thenReturn("-12:00");
-        processor.processAccountForDate(STUDY_ID, TEST_DATE, ACCOUNT_SUMMARY);
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
         verifyNoNotification();
     }
 
     @Test
     public void timezoneTooHigh() throws Exception {
         when(mockParticipant.getTimeZone()).thenReturn("+00:00");
-        processor.processAccountForDate(STUDY_ID, TEST_DATE, ACCOUNT_SUMMARY);
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
         verifyNoNotification();
     }
 
@@ -203,21 +229,28 @@ public class BridgeNotificationWorkerProcessorProcessAccountTest {
     public void noConsent() throws Exception {
         // Consent history returns empty lists for each subpop.
         consentHistoryMap.put(REQUIRED_SUBPOP_1, ImmutableList.of());
-        processor.processAccountForDate(STUDY_ID, TEST_DATE, ACCOUNT_SUMMARY);
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
         verifyNoNotification();
     }
 
     @Test
     public void consentWithdrawn() throws Exception {
         consentHistoryMap.get(REQUIRED_SUBPOP_1).get(1).setWithdrewOn(ENROLLMENT_TIME);
-        processor.processAccountForDate(STUDY_ID, TEST_DATE, ACCOUNT_SUMMARY);
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
+        verifyNoNotification();
+    }
+
+    @Test
+    public void noConsentHistoryForSubpop() throws Exception {
+        consentHistoryMap.remove(REQUIRED_SUBPOP_1);
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
         verifyNoNotification();
     }
 
     @Test
     public void missingRequiredDataGroup() throws Exception {
         when(mockParticipant.getDataGroups()).thenReturn(ImmutableList.of("irrelevant-other-group"));
-        processor.processAccountForDate(STUDY_ID, TEST_DATE, ACCOUNT_SUMMARY);
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
         verifyNoNotification();
     }
 
@@ -225,41 +258,41 @@ public class BridgeNotificationWorkerProcessorProcessAccountTest {
     public void excludedByDataGroup() throws Exception {
         when(mockParticipant.getDataGroups()).thenReturn(ImmutableList.of("irrelevant-other-group",
                 REQUIRED_DATA_GROUP_1, EXCLUDED_DATA_GROUP_2));
-        processor.processAccountForDate(STUDY_ID, TEST_DATE, ACCOUNT_SUMMARY);
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
         verifyNoNotification();
     }
 
     @Test
     public void beforeBurst() throws Exception {
-        processor.processAccountForDate(STUDY_ID, ENROLLMENT_DATE.minusDays(2), ACCOUNT_SUMMARY);
+        processor.processAccountForDate(makeRunContext(ENROLLMENT_DATE.minusDays(2)), ACCOUNT_SUMMARY);
         verifyNoNotification();
     }
 
     @Test
     public void betweenBursts() throws Exception {
         // Next burst starts on enrollment + 14 days
-        processor.processAccountForDate(STUDY_ID, ENROLLMENT_DATE.plusDays(12), ACCOUNT_SUMMARY);
+        processor.processAccountForDate(makeRunContext(ENROLLMENT_DATE.plusDays(12)), ACCOUNT_SUMMARY);
         verifyNoNotification();
     }
 
     @Test
     public void afterBurst() throws Exception {
         // Next burst starts on enrollment + 14 and lasts 9 days. Enrollment + 23 is the first day after the bursts.
-        processor.processAccountForDate(STUDY_ID, ENROLLMENT_DATE.plusDays(23), ACCOUNT_SUMMARY);
+        processor.processAccountForDate(makeRunContext(ENROLLMENT_DATE.plusDays(23)), ACCOUNT_SUMMARY);
         verifyNoNotification();
     }
 
     @Test
     public void blackoutHead() throws Exception {
         // First three days (0, 1, 2) are blackout days
-        processor.processAccountForDate(STUDY_ID, ENROLLMENT_DATE.plusDays(2), ACCOUNT_SUMMARY);
+        processor.processAccountForDate(makeRunContext(ENROLLMENT_DATE.plusDays(2)), ACCOUNT_SUMMARY);
         verifyNoNotification();
     }
 
     @Test
     public void blackoutTail() throws Exception {
         // Last days (8) is a blackout days
-        processor.processAccountForDate(STUDY_ID, ENROLLMENT_DATE.plusDays(8), ACCOUNT_SUMMARY);
+        processor.processAccountForDate(makeRunContext(ENROLLMENT_DATE.plusDays(8)), ACCOUNT_SUMMARY);
         verifyNoNotification();
     }
 
@@ -267,7 +300,7 @@ public class BridgeNotificationWorkerProcessorProcessAccountTest {
     @Test
     public void noActivities() throws Exception {
         activityList.clear();
-        processor.processAccountForDate(STUDY_ID, TEST_DATE, ACCOUNT_SUMMARY);
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
         verifyNoNotification();
     }
 
@@ -275,7 +308,7 @@ public class BridgeNotificationWorkerProcessorProcessAccountTest {
     public void didTodaysActivities() throws Exception {
         // Today is enrollment + 3. Do that activity.
         activityList.get(3).setStatus(ScheduleStatus.FINISHED);
-        processor.processAccountForDate(STUDY_ID, TEST_DATE, ACCOUNT_SUMMARY);
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
         verifyNoNotification();
     }
 
@@ -285,7 +318,7 @@ public class BridgeNotificationWorkerProcessorProcessAccountTest {
         activityList.get(0).setStatus(ScheduleStatus.FINISHED);
         activityList.get(1).setStatus(ScheduleStatus.FINISHED);
         activityList.get(2).setStatus(ScheduleStatus.FINISHED);
-        processor.processAccountForDate(STUDY_ID, TEST_DATE, ACCOUNT_SUMMARY);
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
         verifyNoNotification();
     }
 
@@ -298,7 +331,7 @@ public class BridgeNotificationWorkerProcessorProcessAccountTest {
         activityList.get(3).setStatus(ScheduleStatus.FINISHED);
         activityList.get(4).setStatus(ScheduleStatus.FINISHED);
         activityList.get(5).setStatus(ScheduleStatus.FINISHED);
-        processor.processAccountForDate(STUDY_ID, ENROLLMENT_DATE.plusDays(7), ACCOUNT_SUMMARY);
+        processor.processAccountForDate(makeRunContext(ENROLLMENT_DATE.plusDays(7)), ACCOUNT_SUMMARY);
         verifyNoNotification();
     }
 
@@ -314,7 +347,7 @@ public class BridgeNotificationWorkerProcessorProcessAccountTest {
         when(mockDynamoHelper.getLastNotificationTimeForUser(USER_ID)).thenReturn(userNotification);
 
         // Execute and verify
-        processor.processAccountForDate(STUDY_ID, TEST_DATE, ACCOUNT_SUMMARY);
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
         verifyNoNotification();
     }
 
@@ -322,12 +355,780 @@ public class BridgeNotificationWorkerProcessorProcessAccountTest {
     @Test
     public void noActivityEvents() throws Exception {
         when(mockBridgeHelper.getActivityEvents(STUDY_ID, USER_ID)).thenReturn(ImmutableList.of());
-        processor.processAccountForDate(STUDY_ID, TEST_DATE, ACCOUNT_SUMMARY);
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
+        verifyNoNotification();
+    }
+
+    @Test
+    public void earlyRejectionSkipsExpensiveCalls() throws Exception {
+        // Unverified phone is the first stage in the default order. We never call for the user's last notification or
+        // activity events.
+        when(mockParticipant.getPhoneVerified()).thenReturn(false);
+        RunContext runContext = makeRunContext(TEST_DATE);
+        processor.processAccountForDate(runContext, ACCOUNT_SUMMARY);
+        verifyNoNotification();
+        verify(mockDynamoHelper, never()).getLastNotificationTimeForUser(any());
+        verify(mockBridgeHelper, never()).getActivityEvents(any(), any());
+
+        // Verify stats.
+        ExclusionPipeline pipeline = runContext.getExclusionPipeline();
+        assertEquals(pipeline.getNumEvaluated(ExclusionStage.PHONE_VERIFIED), 1);
+        assertEquals(pipeline.getNumRejected(ExclusionStage.PHONE_VERIFIED), 1);
+        assertEquals(pipeline.getNumEvaluated(ExclusionStage.TIME_ZONE), 0);
+        assertEquals(pipeline.getNumFetched(UserResource.PARTICIPANT), 1);
+        assertEquals(pipeline.getNumFetched(UserResource.LAST_NOTIFICATION), 0);
+    }
+
+    @Test
+    public void eligibleUserRunsAllStages() throws Exception {
+        RunContext runContext = makeRunContext(TEST_DATE);
+        processor.processAccountForDate(runContext, ACCOUNT_SUMMARY);
+        verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY_1);
+
+        // Each stage ran once, and each resource was fetched once.
+        ExclusionPipeline pipeline = runContext.getExclusionPipeline();
+        for (ExclusionStage oneStage : ExclusionStage.values()) {
+            assertEquals(pipeline.getNumEvaluated(oneStage), 1, oneStage.name());
+            assertEquals(pipeline.getNumRejected(oneStage), 0, oneStage.name());
+        }
+        for (UserResource oneResource : UserResource.values()) {
+            assertEquals(pipeline.getNumFetched(oneResource), 1, oneResource.name());
+        }
+        verify(mockBridgeHelper, times(1)).getParticipant(STUDY_ID, USER_ID);
+    }
+
+    @Test
+    public void reorderedStagesSkipParticipant() throws Exception {
+        // Prime the stats so that recent notification runs first. Getting the participant is expensive, and recent
+        // notification rejects everyone.
+        RunContext runContext = makeRunContext(TEST_DATE);
+        ExclusionPipeline pipeline = runContext.getExclusionPipeline();
+        for (int i = 0; i < 100; i++) {
+            pipeline.recordFetch(UserResource.PARTICIPANT, 100000000);
+            pipeline.recordStage(ExclusionStage.RECENT_NOTIFICATION, true, 1000);
+        }
+        for (int i = 1; i < ExclusionPipeline.MIN_USERS_BEFORE_REORDER; i++) {
+            pipeline.startUser();
+        }
+
+        // User was notified recently.
+        UserNotification userNotification = new UserNotification();
+        userNotification.setMessage(MESSAGE_EARLY_1);
+        userNotification.setTime(ENROLLMENT_TIME.getMillis());
+        userNotification.setType(NotificationType.EARLY);
+        userNotification.setUserId(USER_ID);
+        when(mockDynamoHelper.getLastNotificationTimeForUser(USER_ID)).thenReturn(userNotification);
+
+        // Execute and verify. We never get the participant. (The burst calendar and exclusion cache stages are free,
+        // so they run first.)
+        processor.processAccountForDate(runContext, ACCOUNT_SUMMARY);
+        verifyNoNotification();
+        assertEquals(pipeline.getStageOrder().get(2), ExclusionStage.RECENT_NOTIFICATION);
+        verify(mockBridgeHelper, never()).getParticipant(any(), any());
+    }
+
+    @Test
+    public void notifiedRecentlyFromIndex() throws Exception {
+        // User is in the recent notification index. We don't query the notification log.
+        UserNotification userNotification = new UserNotification();
+        userNotification.setTime(ENROLLMENT_TIME.getMillis());
+        userNotification.setType(NotificationType.EARLY);
+        userNotification.setUserId(USER_ID);
+        RunContext runContext = makeRunContextBuilder(TEST_DATE)
+                .withRecentNotificationsByUserId(ImmutableMap.of(USER_ID, userNotification)).build();
+
+        processor.processAccountForDate(runContext, ACCOUNT_SUMMARY);
+        verifyNoNotification();
+        verify(mockDynamoHelper, never()).getLastNotificationTimeForUser(any());
+    }
+
+    @Test
+    public void notInIndex() throws Exception {
+        // Index is loaded, but the user isn't in it, so they weren't notified recently.
+        UserNotification userNotification = new UserNotification();
+        userNotification.setTime(ENROLLMENT_TIME.getMillis());
+        userNotification.setType(NotificationType.EARLY);
+        userNotification.setUserId("other-user");
+        RunContext runContext = makeRunContextBuilder(TEST_DATE)
+                .withRecentNotificationsByUserId(ImmutableMap.of("other-user", userNotification)).build();
+
+        processor.processAccountForDate(runContext, ACCOUNT_SUMMARY);
+        verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY_1);
+        verify(mockDynamoHelper, never()).getLastNotificationTimeForUser(any());
+    }
+
+    @Test
+    public void burstCalendarFarFromBurst() throws Exception {
+        // Two weeks after burst 2 ended, the user is excluded without calling Bridge.
+        BurstCalendarEntry entry = makeBurstCalendarEntry();
+        processor.processAccountForDate(makeRunContext(ENROLLMENT_DATE.plusDays(37), entry), ACCOUNT_SUMMARY);
+        verifyNoNotification();
+        verify(mockBridgeHelper, never()).getParticipant(any(), any());
+        verify(mockBridgeHelper, never()).getActivityEvents(any(), any());
+        verify(mockDynamoHelper, never()).bufferBurstCalendarEntry(any());
+    }
+
+    @Test
+    public void burstCalendarAllowsSlackAroundBurst() throws Exception {
+        // Two days before the burst starts is outside of the pre-burst day, but within the slack for time zone
+        // changes. The user isn't excluded by the burst calendar, but is still excluded by the burst window.
+        BurstCalendarEntry entry = makeBurstCalendarEntry();
+        RunContext runContext = makeRunContext(ENROLLMENT_DATE.minusDays(2), entry);
+        processor.processAccountForDate(runContext, ACCOUNT_SUMMARY);
+        verifyNoNotification();
+        assertEquals(runContext.getExclusionPipeline().getNumRejected(ExclusionStage.BURST_CALENDAR), 0);
+        assertEquals(runContext.getExclusionPipeline().getNumRejected(ExclusionStage.BURST_WINDOW), 1);
+    }
+
+    @Test
+    public void burstCalendarNearBurst() throws Exception {
+        // The user is in a burst, so the user is processed normally. The entry is up to date, so we don't rewrite it.
+        BurstCalendarEntry entry = makeBurstCalendarEntry();
+        processor.processAccountForDate(makeRunContext(TEST_DATE, entry), ACCOUNT_SUMMARY);
+        verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY_1);
+        verify(mockDynamoHelper, never()).bufferBurstCalendarEntry(any());
+    }
+
+    @Test
+    public void burstCalendarMissingEntryIsWritten() throws Exception {
+        // The calendar is loaded, but the user doesn't have an entry. The user is processed normally, and we write
+        // the entry.
+        RunContext runContext = makeRunContextBuilder(TEST_DATE).withBurstCalendarByUserId(ImmutableMap.of())
+                .build();
+        processor.processAccountForDate(runContext, ACCOUNT_SUMMARY);
+        verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY_1);
+        verifyBurstCalendarEntryWritten();
+    }
+
+    @Test
+    public void burstCalendarOldEntryIsRewritten() throws Exception {
+        // The entry is too old to use, so we can't exclude the user even though the entry says they're not in a burst.
+        BurstCalendarEntry entry = makeBurstCalendarEntry();
+        entry.setBurstStartDateList(ImmutableList.of(ENROLLMENT_DATE.minusDays(60)));
+        entry.setUpdatedOn(new DateTime(MOCK_NOW_MILLIS).minusDays(
+                BridgeNotificationWorkerProcessor.DEFAULT_BURST_CALENDAR_MAX_AGE_DAYS).getMillis());
+        processor.processAccountForDate(makeRunContext(TEST_DATE, entry), ACCOUNT_SUMMARY);
+        verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY_1);
+        verifyBurstCalendarEntryWritten();
+    }
+
+    @Test
+    public void burstCalendarEntryForOldConfigIsRewritten() throws Exception {
+        // The entry was computed from different burst events, so we can't use it.
+        BurstCalendarEntry entry = makeBurstCalendarEntry();
+        entry.setBurstStartDateList(ImmutableList.of(ENROLLMENT_DATE.minusDays(60)));
+        entry.setBurstStartEventIdSet(ImmutableSet.of(EVENT_ID_ENROLLMENT));
+        processor.processAccountForDate(makeRunContext(TEST_DATE, entry), ACCOUNT_SUMMARY);
+        verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY_1);
+        verifyBurstCalendarEntryWritten();
+    }
+
+    @Test
+    public void burstCalendarNotWrittenWithoutActivityEvents() throws Exception {
+        // User is excluded before we get their activity events, so we can't write their entry.
+        when(mockParticipant.getPhoneVerified()).thenReturn(false);
+        RunContext runContext = makeRunContextBuilder(TEST_DATE).withBurstCalendarByUserId(ImmutableMap.of())
+                .build();
+        processor.processAccountForDate(runContext, ACCOUNT_SUMMARY);
         verifyNoNotification();
+        verify(mockDynamoHelper, never()).bufferBurstCalendarEntry(any());
+    }
+
+    @Test
+    public void burstCalendarSkipsCompletedBurst() throws Exception {
+        // The user already completed burst 1, so they're excluded for the rest of the burst without calling Bridge.
+        BurstCalendarEntry entry = makeBurstCalendarEntry();
+        entry.setCompletedBurstStartDateSet(ImmutableSet.of(ENROLLMENT_DATE));
+        RunContext runContext = makeRunContext(ENROLLMENT_DATE.plusDays(7), entry);
+        processor.processAccountForDate(runContext, ACCOUNT_SUMMARY);
+        verifyNoNotification();
+        assertEquals(runContext.getExclusionPipeline().getNumRejected(ExclusionStage.BURST_CALENDAR), 1);
+        verify(mockBridgeHelper, never()).getParticipant(any(), any());
+        verify(mockBridgeHelper, never()).getActivityEvents(any(), any());
+        verify(mockBridgeHelper, never()).getTaskHistory(any(), any(), any(), any(), any());
+        verify(mockDynamoHelper, never()).bufferBurstCalendarEntry(any());
+    }
+
+    @Test
+    public void burstCalendarAllowsSlackAroundCompletedBurst() throws Exception {
+        // The last day of the burst is within the slack for time zone changes, so the user isn't excluded by the
+        // burst calendar, but is still excluded by the burst window.
+        BurstCalendarEntry entry = makeBurstCalendarEntry();
+        entry.setCompletedBurstStartDateSet(ImmutableSet.of(ENROLLMENT_DATE));
+        RunContext runContext = makeRunContext(ENROLLMENT_DATE.plusDays(8), entry);
+        processor.processAccountForDate(runContext, ACCOUNT_SUMMARY);
+        verifyNoNotification();
+        assertEquals(runContext.getExclusionPipeline().getNumRejected(ExclusionStage.BURST_CALENDAR), 0);
+        assertEquals(runContext.getExclusionPipeline().getNumRejected(ExclusionStage.BURST_WINDOW), 1);
+    }
+
+    @Test
+    public void burstCalendarDoesntSkipOtherBurst() throws Exception {
+        // The user completed burst 2, but we're in burst 1, so the user is processed normally.
+        BurstCalendarEntry entry = makeBurstCalendarEntry();
+        entry.setCompletedBurstStartDateSet(ImmutableSet.of(STUDY_BURST_2_START_TIME.toLocalDate()));
+        processor.processAccountForDate(makeRunContext(TEST_DATE, entry), ACCOUNT_SUMMARY);
+        verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY_1);
+        verify(mockDynamoHelper, never()).bufferBurstCalendarEntry(any());
+    }
+
+    @Test
+    public void completedBurstIsRecorded() throws Exception {
+        // Participant did days 0-5, which completes the burst. The entry is up to date, but we write it to record
+        // the completed burst.
+        for (int i = 0; i < 6; i++) {
+            activityList.get(i).setStatus(ScheduleStatus.FINISHED);
+        }
+        BurstCalendarEntry oldEntry = makeBurstCalendarEntry();
+        oldEntry.setUpdatedOn(MOCK_NOW_MILLIS - 1000);
+        processor.processAccountForDate(makeRunContext(ENROLLMENT_DATE.plusDays(6), oldEntry), ACCOUNT_SUMMARY);
+        verifyNoNotification();
+
+        ArgumentCaptor<BurstCalendarEntry> entryCaptor = ArgumentCaptor.forClass(BurstCalendarEntry.class);
+        verify(mockDynamoHelper).bufferBurstCalendarEntry(entryCaptor.capture());
+        BurstCalendarEntry entry = entryCaptor.getValue();
+        assertEquals(entry.getBurstStartDateList(), oldEntry.getBurstStartDateList());
+        assertEquals(entry.getCompletedBurstStartDateSet(), ImmutableSet.of(ENROLLMENT_DATE));
+        assertEquals(entry.getUpdatedOn(), MOCK_NOW_MILLIS - 1000);
+        assertEquals(entry.getUserId(), USER_ID);
+
+        // The old entry isn't modified.
+        assertTrue(oldEntry.getCompletedBurstStartDateSet().isEmpty());
+    }
+
+    @Test
+    public void completedBurstIsRecordedInNewEntry() throws Exception {
+        // The user doesn't have an entry yet. The new entry includes the completed burst.
+        for (int i = 0; i < 6; i++) {
+            activityList.get(i).setStatus(ScheduleStatus.FINISHED);
+        }
+        RunContext runContext = makeRunContextBuilder(ENROLLMENT_DATE.plusDays(6))
+                .withBurstCalendarByUserId(ImmutableMap.of()).build();
+        processor.processAccountForDate(runContext, ACCOUNT_SUMMARY);
+        verifyNoNotification();
+
+        ArgumentCaptor<BurstCalendarEntry> entryCaptor = ArgumentCaptor.forClass(BurstCalendarEntry.class);
+        verify(mockDynamoHelper).bufferBurstCalendarEntry(entryCaptor.capture());
+        assertEquals(entryCaptor.getValue().getCompletedBurstStartDateSet(), ImmutableSet.of(ENROLLMENT_DATE));
+    }
+
+    @Test
+    public void completedBurstsAreKeptWhenEntryIsRewritten() throws Exception {
+        // The entry is too old to use, so it's rewritten. Completed bursts that still match the burst dates are kept.
+        BurstCalendarEntry entry = makeBurstCalendarEntry();
+        entry.setCompletedBurstStartDateSet(ImmutableSet.of(ENROLLMENT_DATE.minusDays(60),
+                STUDY_BURST_2_START_TIME.toLocalDate()));
+        entry.setUpdatedOn(new DateTime(MOCK_NOW_MILLIS).minusDays(
+                BridgeNotificationWorkerProcessor.DEFAULT_BURST_CALENDAR_MAX_AGE_DAYS).getMillis());
+        processor.processAccountForDate(makeRunContext(TEST_DATE, entry), ACCOUNT_SUMMARY);
+        verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY_1);
+
+        ArgumentCaptor<BurstCalendarEntry> entryCaptor = ArgumentCaptor.forClass(BurstCalendarEntry.class);
+        verify(mockDynamoHelper).bufferBurstCalendarEntry(entryCaptor.capture());
+        assertEquals(entryCaptor.getValue().getCompletedBurstStartDateSet(), ImmutableSet.of(
+                STUDY_BURST_2_START_TIME.toLocalDate()));
+    }
+
+    @Test
+    public void adherenceRecordIsWrittenForPastDays() throws Exception {
+        // No record yet. Mark day 0 and 1 as finished. We missed days 2 and 3, and we send a notification. Today (day
+        // 3) isn't over, so only days 0-2 go into the record.
+        processor.setBurstAdherenceRecordEnabled(true);
+        activityList.get(0).setStatus(ScheduleStatus.FINISHED);
+        activityList.get(1).setStatus(ScheduleStatus.FINISHED);
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
+        verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY_1);
+
+        // We read task history from the start of the burst.
+        verify(mockBridgeHelper).getTaskHistory(STUDY_ID, USER_ID, TASK_ID,
+                ENROLLMENT_DATE.toDateTimeAtStartOfDay(ENROLLMENT_TIME.getZone()),
+                TEST_DATE.plusDays(1).toDateTimeAtStartOfDay(ENROLLMENT_TIME.getZone()));
+
+        BurstAdherenceRecord record = captureBurstAdherenceRecord();
+        assertEquals(record.getBurstStartDate(), ENROLLMENT_DATE);
+        assertEquals(record.getBurstTaskId(), TASK_ID);
+        assertEquals(record.getNumDays(), 3);
+        assertTrue(record.isDayFinished(0));
+        assertTrue(record.isDayFinished(1));
+        assertFalse(record.isDayFinished(2));
+        assertEquals(record.getStudyId(), STUDY_ID);
+        assertEquals(record.getUserId(), USER_ID);
+    }
+
+    @Test
+    public void adherenceRecordSkipsRecordedDays() throws Exception {
+        // Record says the user finished days 0 and 1, and missed day 2. Day 3 (today) is also missed, so we send a
+        // notification.
+        processor.setBurstAdherenceRecordEnabled(true);
+        when(mockDynamoHelper.getBurstAdherenceRecord(STUDY_ID, USER_ID)).thenReturn(makeBurstAdherenceRecord(
+                ENROLLMENT_DATE, true, true, false));
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
+        verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY_1);
+
+        // We only read task history from today.
+        verify(mockBridgeHelper).getTaskHistory(STUDY_ID, USER_ID, TASK_ID,
+                TEST_DATE.toDateTimeAtStartOfDay(ENROLLMENT_TIME.getZone()),
+                TEST_DATE.plusDays(1).toDateTimeAtStartOfDay(ENROLLMENT_TIME.getZone()));
+
+        // No new past days, so we don't rewrite the record.
+        verify(mockDynamoHelper, never()).bufferBurstAdherenceRecord(any());
+    }
+
+    @Test
+    public void adherenceRecordDecidesWithoutTaskHistory() throws Exception {
+        // Record says the user missed days 0-2, which decides an early notification. We only need to check if the
+        // user did today's activity, which they didn't.
+        processor.setBurstAdherenceRecordEnabled(true);
+        when(mockDynamoHelper.getBurstAdherenceRecord(STUDY_ID, USER_ID)).thenReturn(makeBurstAdherenceRecord(
+                ENROLLMENT_DATE, false, false, false));
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
+        verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY_1);
+
+        // One call, for today only.
+        verify(mockBridgeHelper, times(1)).getTaskHistory(any(), any(), any(), any(), any());
+        verify(mockBridgeHelper).getTaskHistory(STUDY_ID, USER_ID, TASK_ID,
+                TEST_DATE.toDateTimeAtStartOfDay(ENROLLMENT_TIME.getZone()),
+                TEST_DATE.plusDays(1).toDateTimeAtStartOfDay(ENROLLMENT_TIME.getZone()));
+    }
+
+    @Test
+    public void adherenceRecordForOtherBurstIsReplaced() throws Exception {
+        // Record is for a previous burst, so we read task history from the start of the current burst, and write a
+        // new record. Days 0 and 1 are missed, which decides the notification, so we stop reading after day 1.
+        processor.setBurstAdherenceRecordEnabled(true);
+        when(mockDynamoHelper.getBurstAdherenceRecord(STUDY_ID, USER_ID)).thenReturn(makeBurstAdherenceRecord(
+                ENROLLMENT_DATE.minusDays(60), true, true, true));
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
+        verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY_1);
+
+        verify(mockBridgeHelper).getTaskHistory(STUDY_ID, USER_ID, TASK_ID,
+                ENROLLMENT_DATE.toDateTimeAtStartOfDay(ENROLLMENT_TIME.getZone()),
+                TEST_DATE.plusDays(1).toDateTimeAtStartOfDay(ENROLLMENT_TIME.getZone()));
+        BurstAdherenceRecord record = captureBurstAdherenceRecord();
+        assertEquals(record.getBurstStartDate(), ENROLLMENT_DATE);
+        assertEquals(record.getNumDays(), 2);
+    }
+
+    @Test
+    public void adherenceRecordErrorFallsBack() throws Exception {
+        // Error reading the record. We read the whole burst's task history instead.
+        processor.setBurstAdherenceRecordEnabled(true);
+        when(mockDynamoHelper.getBurstAdherenceRecord(STUDY_ID, USER_ID)).thenThrow(RuntimeException.class);
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
+        verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY_1);
+        verify(mockBridgeHelper).getTaskHistory(STUDY_ID, USER_ID, TASK_ID,
+                ENROLLMENT_DATE.toDateTimeAtStartOfDay(ENROLLMENT_TIME.getZone()),
+                TEST_DATE.plusDays(1).toDateTimeAtStartOfDay(ENROLLMENT_TIME.getZone()));
+    }
+
+    @Test
+    public void timeZoneIsSharedAcrossUsers() throws Exception {
+        // Process the same user twice in the same run. The time zone is parsed once for the whole run.
+        RunContext runContext = makeRunContext(TEST_DATE);
+        processor.processAccountForDate(runContext, ACCOUNT_SUMMARY);
+        processor.processAccountForDate(runContext, ACCOUNT_SUMMARY);
+        assertEquals(runContext.getTimeZoneTable().size(), 1);
+    }
+
+    @Test
+    public void completedBurstStopsReadingActivities() throws Exception {
+        // Participant did days 0-5, which completes the burst. We never need to look at days 6 and 7.
+        for (int i = 0; i < 6; i++) {
+            activityList.get(i).setStatus(ScheduleStatus.FINISHED);
+        }
+        CountingIterator<ScheduledActivity> countingIterator = new CountingIterator<>(activityList.iterator());
+        when(mockBridgeHelper.getTaskHistory(eq(STUDY_ID), eq(USER_ID), eq(TASK_ID), any(), any())).thenReturn(
+                countingIterator);
+
+        processor.processAccountForDate(makeRunContext(ENROLLMENT_DATE.plusDays(7)), ACCOUNT_SUMMARY);
+        verifyNoNotification();
+        assertEquals(countingIterator.numRead, 6);
+    }
+
+    @Test
+    public void duplicateActivityIsIgnored() throws Exception {
+        // Day 1 has a duplicate activity which is finished. The first activity (not finished) wins, so the participant
+        // missed days 0 and 1.
+        ScheduledActivity duplicateActivity = new ScheduledActivity().status(ScheduleStatus.FINISHED);
+        setScheduledOn(duplicateActivity, ENROLLMENT_TIME.plusDays(1));
+        activityList.add(2, duplicateActivity);
+        when(mockBridgeHelper.getTaskHistory(eq(STUDY_ID), eq(USER_ID), eq(TASK_ID), any(), any())).thenReturn(
+                activityList.iterator());
+
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
+        verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY_1);
+    }
+
+    @Test
+    public void earlyDecisionChecksTodayWithOneCall() throws Exception {
+        // Days 0 and 1 are missed, which decides an EARLY notification. The rest of the history isn't loaded, so we
+        // make one call for today's activities instead. Today's activity is finished, so don't notify.
+        activityList.get(3).setStatus(ScheduleStatus.FINISHED);
+        TaskHistoryIterator mockIterator = mockUnloadedTaskHistoryIterator();
+        when(mockBridgeHelper.getTaskHistory(eq(STUDY_ID), eq(USER_ID), eq(TASK_ID), any(), any())).thenReturn(
+                mockIterator, ImmutableList.of(activityList.get(3)).iterator());
+
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
+        verifyNoNotification();
+        verify(mockIterator, times(2)).next();
+        verifyTodaysTaskHistoryCall();
+    }
+
+    @Test
+    public void earlyDecisionChecksTodayWithOneCallNotFinished() throws Exception {
+        // Same as above, except today's activity is not finished, so we notify.
+        TaskHistoryIterator mockIterator = mockUnloadedTaskHistoryIterator();
+        when(mockBridgeHelper.getTaskHistory(eq(STUDY_ID), eq(USER_ID), eq(TASK_ID), any(), any())).thenReturn(
+                mockIterator, ImmutableList.of(activityList.get(3)).iterator());
+
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
+        verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY_1);
+        verify(mockIterator, times(2)).next();
+        verifyTodaysTaskHistoryCall();
+    }
+
+    @Test
+    public void activityEventCacheDisabledByDefault() throws Exception {
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
+        verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY_1);
+        verifyZeroInteractions(mockActivityEventCache);
+    }
+
+    @Test
+    public void activityEventCacheHitSkipsBridge() throws Exception {
+        processor.setActivityEventCacheEnabled(true);
+        long marker = BridgeNotificationWorkerProcessor.computeActivityEventMarker(ACCOUNT_SUMMARY,
+                workerConfig.getBurstStartEventIdSet());
+        when(mockActivityEventCache.get(STUDY_ID, USER_ID, marker)).thenReturn(ImmutableList.of(
+                new ActivityEvent().eventId(EVENT_ID_ENROLLMENT).timestamp(ENROLLMENT_TIME)));
+
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
+        verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY_1);
+        verify(mockBridgeHelper, never()).getActivityEvents(anyString(), anyString());
+        verify(mockActivityEventCache, never()).put(anyString(), anyString(), anyLong(), any());
+    }
+
+    @Test
+    public void activityEventCacheMissFetchesAndCaches() throws Exception {
+        processor.setActivityEventCacheEnabled(true);
+        long marker = BridgeNotificationWorkerProcessor.computeActivityEventMarker(ACCOUNT_SUMMARY,
+                workerConfig.getBurstStartEventIdSet());
+        when(mockActivityEventCache.get(STUDY_ID, USER_ID, marker)).thenReturn(null);
+
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
+        verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY_1);
+        verify(mockBridgeHelper).getActivityEvents(STUDY_ID, USER_ID);
+
+        // Only the burst start events are cached.
+        ArgumentCaptor<List> eventListCaptor = ArgumentCaptor.forClass(List.class);
+        verify(mockActivityEventCache).put(eq(STUDY_ID), eq(USER_ID), eq(marker), eventListCaptor.capture());
+        List<ActivityEvent> cachedEventList = eventListCaptor.getValue();
+        assertEquals(cachedEventList.size(), 2);
+        assertEquals(cachedEventList.get(0).getEventId(), EVENT_ID_ENROLLMENT);
+        assertEquals(cachedEventList.get(1).getEventId(), EVENT_ID_BURST_2_START);
+    }
+
+    @Test
+    public void activityEventCacheSkipsMissingEvents() throws Exception {
+        // The user doesn't have a burst 2 start event yet. We don't cache this, so we'll see the event once it's set.
+        processor.setActivityEventCacheEnabled(true);
+        when(mockBridgeHelper.getActivityEvents(STUDY_ID, USER_ID)).thenReturn(ImmutableList.of(new ActivityEvent()
+                .eventId(EVENT_ID_ENROLLMENT).timestamp(ENROLLMENT_TIME)));
+
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
+        verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY_1);
+        verify(mockActivityEventCache, never()).put(anyString(), anyString(), anyLong(), any());
+    }
+
+    @Test
+    public void activityEventMarker() {
+        long marker = BridgeNotificationWorkerProcessor.computeActivityEventMarker(ACCOUNT_SUMMARY,
+                ImmutableSet.of(EVENT_ID_ENROLLMENT, EVENT_ID_BURST_2_START));
+
+        // Order of the event IDs doesn't matter.
+        assertEquals(BridgeNotificationWorkerProcessor.computeActivityEventMarker(ACCOUNT_SUMMARY,
+                ImmutableSet.of(EVENT_ID_BURST_2_START, EVENT_ID_ENROLLMENT)), marker);
+
+        // Changing the account summary or the event IDs changes the marker.
+        AccountSummary modifiedAccountSummary = new AccountSummary().id(USER_ID).email("new-email@example.com");
+        assertNotEquals(BridgeNotificationWorkerProcessor.computeActivityEventMarker(modifiedAccountSummary,
+                ImmutableSet.of(EVENT_ID_ENROLLMENT, EVENT_ID_BURST_2_START)), marker);
+        assertNotEquals(BridgeNotificationWorkerProcessor.computeActivityEventMarker(ACCOUNT_SUMMARY,
+                ImmutableSet.of(EVENT_ID_ENROLLMENT)), marker);
+    }
+
+    @Test
+    public void participantSnapshotCacheDisabledByDefault() throws Exception {
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
+        verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY_1);
+        verifyZeroInteractions(mockParticipantSnapshotCache);
+    }
+
+    @Test
+    public void participantSnapshotCacheMissFetchesAndCaches() throws Exception {
+        processor.setParticipantSnapshotCacheEnabled(true);
+        long marker = BridgeNotificationWorkerProcessor.computeParticipantSnapshotMarker(ACCOUNT_SUMMARY);
+
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
+        verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY_1);
+        verify(mockBridgeHelper).getParticipant(STUDY_ID, USER_ID);
+
+        ArgumentCaptor<ParticipantSnapshot> snapshotCaptor = ArgumentCaptor.forClass(ParticipantSnapshot.class);
+        verify(mockParticipantSnapshotCache).put(eq(STUDY_ID), eq(USER_ID), eq(marker), snapshotCaptor.capture());
+        assertValidParticipantSnapshot(snapshotCaptor.getValue());
+    }
+
+    @Test
+    public void ineligibleParticipantSnapshotIsNotCached() throws Exception {
+        // Verifying the phone doesn't change the marker, so a cached snapshot would keep excluding the user.
+        processor.setParticipantSnapshotCacheEnabled(true);
+        when(mockParticipant.getPhoneVerified()).thenReturn(false);
+
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
+        verifyNoNotification();
+        verify(mockParticipantSnapshotCache, never()).put(anyString(), anyString(), anyLong(), any());
+    }
+
+    @Test
+    public void participantSnapshotCacheHitRejectsWithoutFetch() throws Exception {
+        // The cached snapshot passes, and the user is excluded by a stage that doesn't use the participant.
+        processor.setParticipantSnapshotCacheEnabled(true);
+        mockParticipantSnapshotCache(makeValidParticipantSnapshot());
+
+        UserNotification userNotification = new UserNotification();
+        userNotification.setTime(ENROLLMENT_TIME.getMillis());
+        userNotification.setType(NotificationType.EARLY);
+        userNotification.setUserId(USER_ID);
+        when(mockDynamoHelper.getLastNotificationTimeForUser(USER_ID)).thenReturn(userNotification);
+
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
+        verifyNoNotification();
+        verify(mockBridgeHelper, never()).getParticipant(anyString(), anyString());
+    }
+
+    @Test
+    public void participantSnapshotCacheHitNeverRejects() throws Exception {
+        // The cached snapshot says the phone isn't verified, but the user has since verified it.
+        processor.setParticipantSnapshotCacheEnabled(true);
+        ParticipantSnapshot snapshot = makeValidParticipantSnapshot();
+        snapshot.setPhoneVerified(false);
+        mockParticipantSnapshotCache(snapshot);
+
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
+        verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY_1);
+        verify(mockBridgeHelper).getParticipant(STUDY_ID, USER_ID);
+    }
+
+    @Test
+    public void participantSnapshotCacheHitFetchesParticipantBeforeNotifying() throws Exception {
+        processor.setParticipantSnapshotCacheEnabled(true);
+        mockParticipantSnapshotCache(makeValidParticipantSnapshot());
+
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
+        verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY_1);
+
+        // The participant is fetched once, and the fresh snapshot replaces the cached one.
+        verify(mockBridgeHelper).getParticipant(STUDY_ID, USER_ID);
+        verify(mockParticipantSnapshotCache).put(eq(STUDY_ID), eq(USER_ID), anyLong(), any());
+    }
+
+    @Test
+    public void outdatedParticipantSnapshotDoesNotNotify() throws Exception {
+        // Cached snapshot says the user is consented, but they've since withdrawn.
+        processor.setParticipantSnapshotCacheEnabled(true);
+        mockParticipantSnapshotCache(makeValidParticipantSnapshot());
+        consentHistoryMap.get(REQUIRED_SUBPOP_1).get(1).setWithdrewOn(ENROLLMENT_TIME);
+
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
+        verifyNoNotification();
+        verify(mockBridgeHelper).getParticipant(STUDY_ID, USER_ID);
+    }
+
+    @Test
+    public void makeParticipantSnapshot() {
+        // Subpop 1 is consented. Subpop 2 is withdrawn. Subpop 3 has no consents.
+        consentHistoryMap.get(REQUIRED_SUBPOP_2).get(1).setWithdrewOn(ENROLLMENT_TIME);
+        consentHistoryMap.put("subpop-3", ImmutableList.of());
+
+        ParticipantSnapshot snapshot = BridgeNotificationWorkerProcessor.makeParticipantSnapshot(mockParticipant);
+        assertEquals(snapshot.getConsentedSubpopulationGuidSet(), ImmutableSet.of(REQUIRED_SUBPOP_1));
+        assertEquals(snapshot.getDataGroupList(), ImmutableList.of("irrelevant-data-group", REQUIRED_DATA_GROUP_1));
+        assertTrue(snapshot.getPhoneVerified());
+        assertEquals(snapshot.getTimeZone(), "-07:00");
+    }
+
+    @Test
+    public void exclusionCacheDisabledByDefault() throws Exception {
+        when(mockParticipant.getPhoneVerified()).thenReturn(false);
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
+        verifyNoNotification();
+        verifyZeroInteractions(mockExclusionCache);
+    }
+
+    @Test
+    public void exclusionCacheHitSkipsUser() throws Exception {
+        processor.setExclusionCacheEnabled(true);
+        when(mockExclusionCache.get(STUDY_ID, USER_ID, BridgeNotificationWorkerProcessor.computeExclusionMarker(
+                ACCOUNT_SUMMARY, workerConfig))).thenReturn(ExclusionStage.DATA_GROUPS);
+
+        RunContext runContext = makeRunContext(TEST_DATE);
+        processor.processAccountForDate(runContext, ACCOUNT_SUMMARY);
+        verifyNoNotification();
+        verify(mockBridgeHelper, never()).getParticipant(anyString(), anyString());
+        assertEquals(runContext.getExclusionPipeline().getNumRejected(ExclusionStage.EXCLUSION_CACHE), 1);
+    }
+
+    @Test
+    public void exclusionCacheMissProcessesUser() throws Exception {
+        processor.setExclusionCacheEnabled(true);
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
+        verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY_1);
+        verify(mockExclusionCache, never()).put(anyString(), anyString(), anyLong(), any());
+    }
+
+    @Test
+    public void unverifiedPhoneIsNotCached() throws Exception {
+        // Verifying a phone doesn't change the account summary, so the cache wouldn't notice.
+        when(mockParticipant.getPhoneVerified()).thenReturn(false);
+        verifyExclusionNotCached();
+    }
+
+    @Test
+    public void timezoneOutsideWindowIsCached() throws Exception {
+        when(mockParticipant.getTimeZone()).thenReturn("-12:00");
+        verifyExclusionCached(ExclusionStage.TIME_ZONE);
+    }
+
+    @Test
+    public void noTimezoneIsNotCached() throws Exception {
+        when(mockParticipant.getTimeZone()).thenReturn(null);
+        verifyExclusionNotCached();
+    }
+
+    @Test
+    public void consentWithdrawnIsCached() throws Exception {
+        consentHistoryMap.get(REQUIRED_SUBPOP_1).get(1).setWithdrewOn(ENROLLMENT_TIME);
+        verifyExclusionCached(ExclusionStage.CONSENT);
+    }
+
+    @Test
+    public void noConsentIsNotCached() throws Exception {
+        consentHistoryMap.put(REQUIRED_SUBPOP_1, ImmutableList.of());
+        verifyExclusionNotCached();
+    }
+
+    @Test
+    public void excludedDataGroupIsNotCached() throws Exception {
+        // Data group changes don't change the marker, so we'd never notice the user leaving the excluded group.
+        when(mockParticipant.getDataGroups()).thenReturn(ImmutableList.of(REQUIRED_DATA_GROUP_1,
+                EXCLUDED_DATA_GROUP_1));
+        verifyExclusionNotCached();
+    }
+
+    @Test
+    public void burstWindowIsNotCached() throws Exception {
+        // Outside of the burst window changes from day to day, so it isn't cached.
+        processor.setExclusionCacheEnabled(true);
+        processor.processAccountForDate(makeRunContext(ENROLLMENT_DATE.plusDays(10)), ACCOUNT_SUMMARY);
+        verifyNoNotification();
+        verify(mockExclusionCache, never()).put(anyString(), anyString(), anyLong(), any());
+    }
+
+    @Test
+    public void exclusionMarker() {
+        long marker = BridgeNotificationWorkerProcessor.computeExclusionMarker(ACCOUNT_SUMMARY, workerConfig);
+
+        // Changing the account summary changes the marker.
+        AccountSummary modifiedAccountSummary = new AccountSummary().id(USER_ID).email("new-email@example.com");
+        assertNotEquals(BridgeNotificationWorkerProcessor.computeExclusionMarker(modifiedAccountSummary,
+                workerConfig), marker);
+
+        // Changing eligibility config changes the marker.
+        WorkerConfig config = CompiledWorkerConfigTest.makeValidWorkerConfig();
+        long baseConfigMarker = BridgeNotificationWorkerProcessor.computeExclusionMarker(ACCOUNT_SUMMARY,
+                CompiledWorkerConfig.compile(config));
+        config.setExcludedDataGroupSet(ImmutableSet.of("another-excluded-group"));
+        assertNotEquals(BridgeNotificationWorkerProcessor.computeExclusionMarker(ACCOUNT_SUMMARY,
+                CompiledWorkerConfig.compile(config)), baseConfigMarker);
+
+        // Changing other config doesn't.
+        config = CompiledWorkerConfigTest.makeValidWorkerConfig();
+        config.setBurstDurationDays(config.getBurstDurationDays() + 1);
+        assertEquals(BridgeNotificationWorkerProcessor.computeExclusionMarker(ACCOUNT_SUMMARY,
+                CompiledWorkerConfig.compile(config)), baseConfigMarker);
+    }
+
+    private void verifyExclusionCached(ExclusionStage stage) throws Exception {
+        processor.setExclusionCacheEnabled(true);
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
+        verifyNoNotification();
+        verify(mockExclusionCache).put(STUDY_ID, USER_ID, BridgeNotificationWorkerProcessor.computeExclusionMarker(
+                ACCOUNT_SUMMARY, workerConfig), stage);
+    }
+
+    private void verifyExclusionNotCached() throws Exception {
+        processor.setExclusionCacheEnabled(true);
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
+        verifyNoNotification();
+        verify(mockExclusionCache, never()).put(anyString(), anyString(), anyLong(), any());
+    }
+
+    private void mockParticipantSnapshotCache(ParticipantSnapshot snapshot) {
+        long marker = BridgeNotificationWorkerProcessor.computeParticipantSnapshotMarker(ACCOUNT_SUMMARY);
+        when(mockParticipantSnapshotCache.get(STUDY_ID, USER_ID, marker)).thenReturn(snapshot);
+    }
+
+    private static ParticipantSnapshot makeValidParticipantSnapshot() {
+        ParticipantSnapshot snapshot = new ParticipantSnapshot();
+        snapshot.setConsentedSubpopulationGuidSet(ImmutableSet.of(REQUIRED_SUBPOP_1, REQUIRED_SUBPOP_2));
+        snapshot.setDataGroupList(ImmutableList.of(REQUIRED_DATA_GROUP_1));
+        snapshot.setPhoneVerified(true);
+        snapshot.setTimeZone("-07:00");
+        return snapshot;
+    }
+
+    private static void assertValidParticipantSnapshot(ParticipantSnapshot snapshot) {
+        assertEquals(snapshot.getConsentedSubpopulationGuidSet(), ImmutableSet.of(REQUIRED_SUBPOP_1,
+                REQUIRED_SUBPOP_2));
+        assertEquals(snapshot.getDataGroupList(), ImmutableList.of("irrelevant-data-group", REQUIRED_DATA_GROUP_1));
+        assertTrue(snapshot.getPhoneVerified());
+        assertEquals(snapshot.getTimeZone(), "-07:00");
+    }
+
+    // Removes the activities scheduled on the given days of the burst, and re-mocks the task history with what's
+    // left. Days must be in ascending order.
+    private void removeActivitiesOnDays(int... days) {
+        for (int i = days.length - 1; i >= 0; i--) {
+            activityList.remove(days[i]);
+        }
+        when(mockBridgeHelper.getTaskHistory(eq(STUDY_ID), eq(USER_ID), eq(TASK_ID), any(), any())).thenReturn(
+                activityList.iterator());
+    }
+
+    // Mocks a TaskHistoryIterator which returns days 0 and 1, and claims that the next item still needs to be loaded.
+    private TaskHistoryIterator mockUnloadedTaskHistoryIterator() {
+        TaskHistoryIterator mockIterator = mock(TaskHistoryIterator.class);
+        when(mockIterator.hasNext()).thenReturn(true);
+        when(mockIterator.hasNextItemInPage()).thenReturn(false);
+        when(mockIterator.next()).thenReturn(activityList.get(0), activityList.get(1));
+        return mockIterator;
+    }
+
+    private void verifyTodaysTaskHistoryCall() {
+        ArgumentCaptor<DateTime> startCaptor = ArgumentCaptor.forClass(DateTime.class);
+        ArgumentCaptor<DateTime> endCaptor = ArgumentCaptor.forClass(DateTime.class);
+        verify(mockBridgeHelper, times(2)).getTaskHistory(eq(STUDY_ID), eq(USER_ID), eq(TASK_ID),
+                startCaptor.capture(), endCaptor.capture());
+
+        DateTimeZone timeZone = DateTimeZone.forOffsetHours(-7);
+        assertEquals(startCaptor.getAllValues().get(1).getMillis(), TEST_DATE.toDateTimeAtStartOfDay(timeZone)
+                .getMillis());
+        assertEquals(endCaptor.getAllValues().get(1).getMillis(), TEST_DATE.plusDays(1)
+                .toDateTimeAtStartOfDay(timeZone).getMillis());
     }
 
     private void verifyNoNotification() throws Exception {
-        verify(mockDynamoHelper, never()).setLastNotificationTimeForUser(any());
+        verify(mockDynamoHelper, never()).bufferNotificationLog(any());
         verify(mockBridgeHelper, never()).sendSmsToUser(any(), any(), any());
     }
 
@@ -335,16 +1136,54 @@ public class BridgeNotificationWorkerProcessorProcessAccountTest {
     public void didNoActivities() throws Exception {
         // This is the "base case" for our tests. Since the majority of our tests do no send notifications, we wanted
         // the basic configuration to send a notification, to help ensure that our tests are working properly.
-        processor.processAccountForDate(STUDY_ID, TEST_DATE, ACCOUNT_SUMMARY);
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
         verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY_1);
     }
 
+    @Test(expectedExceptions = IllegalStateException.class, expectedExceptionsMessageRegExp =
+            "No messages found for type EARLY for user " + USER_ID)
+    public void missingMessage() throws Exception {
+        // The config compiles without an EARLY message for the user's data group. Only this user fails, when we try
+        // to notify them. The run logs the error and goes on to the next user.
+        config.setMissedEarlyActivitiesMessagesByDataGroup(ImmutableMap.of(REQUIRED_DATA_GROUP_2, MESSAGE_EARLY_2));
+        workerConfig = CompiledWorkerConfig.compile(config);
+        try {
+            processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
+        } finally {
+            verifyNoNotification();
+        }
+    }
+
     @Test
     public void missedThreeTotalDays() throws Exception {
         // We did days 1 and 3, but missed 0, 2, and 4
         activityList.get(1).setStatus(ScheduleStatus.FINISHED);
         activityList.get(3).setStatus(ScheduleStatus.FINISHED);
-        processor.processAccountForDate(STUDY_ID, ENROLLMENT_DATE.plusDays(4), ACCOUNT_SUMMARY);
+        processor.processAccountForDate(makeRunContext(ENROLLMENT_DATE.plusDays(4)), ACCOUNT_SUMMARY);
+        verifySentNotification(NotificationType.CUMULATIVE, MESSAGE_CUMULATIVE);
+    }
+
+    @Test
+    public void cumulativeDecidedOnGapDaysTodayFinished() throws Exception {
+        // Days 1, 3, and 5 have no activities, and count as missed. We only find the third missed day when we read
+        // today's activity (day 6), which is finished, so we don't notify.
+        removeActivitiesOnDays(1, 3, 5);
+        activityList.get(0).setStatus(ScheduleStatus.FINISHED);
+        activityList.get(1).setStatus(ScheduleStatus.FINISHED);
+        activityList.get(2).setStatus(ScheduleStatus.FINISHED);
+        activityList.get(3).setStatus(ScheduleStatus.FINISHED);
+        processor.processAccountForDate(makeRunContext(ENROLLMENT_DATE.plusDays(6)), ACCOUNT_SUMMARY);
+        verifyNoNotification();
+    }
+
+    @Test
+    public void cumulativeDecidedOnGapDaysTodayNotFinished() throws Exception {
+        // Same as above, but today's activity isn't finished, so we notify.
+        removeActivitiesOnDays(1, 3, 5);
+        activityList.get(0).setStatus(ScheduleStatus.FINISHED);
+        activityList.get(1).setStatus(ScheduleStatus.FINISHED);
+        activityList.get(2).setStatus(ScheduleStatus.FINISHED);
+        processor.processAccountForDate(makeRunContext(ENROLLMENT_DATE.plusDays(6)), ACCOUNT_SUMMARY);
         verifySentNotification(NotificationType.CUMULATIVE, MESSAGE_CUMULATIVE);
     }
 
@@ -352,7 +1191,7 @@ public class BridgeNotificationWorkerProcessorProcessAccountTest {
     public void preburstNotification() throws Exception {
         // Technically, the notification worker will never process a user _before_ they're enrolled. But for the
         // purposes of this test, this represents sending the pre-burst notification a day before the start of burst.
-        processor.processAccountForDate(STUDY_ID, ENROLLMENT_DATE.minusDays(1), ACCOUNT_SUMMARY);
+        processor.processAccountForDate(makeRunContext(ENROLLMENT_DATE.minusDays(1)), ACCOUNT_SUMMARY);
         verifySentNotification(NotificationType.PRE_BURST, MESSAGE_PRE_BURST);
     }
 
@@ -367,7 +1206,7 @@ public class BridgeNotificationWorkerProcessorProcessAccountTest {
         when(mockDynamoHelper.getLastNotificationTimeForUser(USER_ID)).thenReturn(userNotification);
 
         // User should still get a notification.
-        processor.processAccountForDate(STUDY_ID, TEST_DATE, ACCOUNT_SUMMARY);
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
         verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY_1);
     }
 
@@ -376,7 +1215,7 @@ public class BridgeNotificationWorkerProcessorProcessAccountTest {
         // Mark day 0 and 1 as finished. We missed days 2 and days 3, and we send a notification.
         activityList.get(0).setStatus(ScheduleStatus.FINISHED);
         activityList.get(1).setStatus(ScheduleStatus.FINISHED);
-        processor.processAccountForDate(STUDY_ID, TEST_DATE, ACCOUNT_SUMMARY);
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
         verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY_1);
     }
 
@@ -387,7 +1226,7 @@ public class BridgeNotificationWorkerProcessorProcessAccountTest {
         activityList.get(1).setStatus(ScheduleStatus.FINISHED);
         activityList.get(2).setStatus(ScheduleStatus.FINISHED);
         activityList.get(3).setStatus(ScheduleStatus.FINISHED);
-        processor.processAccountForDate(STUDY_ID, ENROLLMENT_DATE.plusDays(5), ACCOUNT_SUMMARY);
+        processor.processAccountForDate(makeRunContext(ENROLLMENT_DATE.plusDays(5)), ACCOUNT_SUMMARY);
         verifySentNotification(NotificationType.LATE, MESSAGE_LATE);
     }
 
@@ -400,7 +1239,7 @@ public class BridgeNotificationWorkerProcessorProcessAccountTest {
         // Mark day 0 and 1 as finished. We missed days 2 and days 3, and we send a notification.
         activityList.get(0).setStatus(ScheduleStatus.FINISHED);
         activityList.get(1).setStatus(ScheduleStatus.FINISHED);
-        processor.processAccountForDate(STUDY_ID, TEST_DATE, ACCOUNT_SUMMARY);
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
 
         verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY_2);
     }
@@ -418,25 +1257,355 @@ public class BridgeNotificationWorkerProcessorProcessAccountTest {
         when(mockDynamoHelper.getLastNotificationTimeForUser(USER_ID)).thenReturn(userNotification);
 
         // Execute and verify
-        processor.processAccountForDate(STUDY_ID, TEST_DATE, ACCOUNT_SUMMARY);
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
+        verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY_1);
+    }
+
+    @Test
+    public void runLedgerDisabled() throws Exception {
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
+        verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY_1);
+        verify(mockDynamoHelper, never()).claimRunLedgerNotification(any());
+        verify(mockDynamoHelper, never()).bufferRunLedgerEntry(any());
+    }
+
+    @Test
+    public void runLedgerRecordsEvaluatedUser() throws Exception {
+        // User did today's activities, so they're evaluated but not notified.
+        processor.setRunLedgerEnabled(true);
+        activityList.get(3).setStatus(ScheduleStatus.FINISHED);
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
+        verifyNoNotification();
+        verify(mockDynamoHelper, never()).claimRunLedgerNotification(any());
+
+        ArgumentCaptor<RunLedgerEntry> entryCaptor = ArgumentCaptor.forClass(RunLedgerEntry.class);
+        verify(mockDynamoHelper).bufferRunLedgerEntry(entryCaptor.capture());
+        RunLedgerEntry entry = entryCaptor.getValue();
+        assertEquals(entry.getDate(), TEST_DATE);
+        assertEquals(entry.getStatus(), RunLedgerStatus.EVALUATED);
+        assertEquals(entry.getStudyId(), STUDY_ID);
+        assertEquals(entry.getUpdatedOn(), MOCK_NOW_MILLIS);
+        assertEquals(entry.getUserId(), USER_ID);
+    }
+
+    @Test
+    public void runLedgerRecordsExcludedUser() throws Exception {
+        processor.setRunLedgerEnabled(true);
+        when(mockParticipant.getPhoneVerified()).thenReturn(false);
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
+        verifyNoNotification();
+
+        ArgumentCaptor<RunLedgerEntry> entryCaptor = ArgumentCaptor.forClass(RunLedgerEntry.class);
+        verify(mockDynamoHelper).bufferRunLedgerEntry(entryCaptor.capture());
+        assertEquals(entryCaptor.getValue().getStatus(), RunLedgerStatus.EVALUATED);
+    }
+
+    @Test
+    public void runLedgerClaimsBeforeNotifying() throws Exception {
+        processor.setRunLedgerEnabled(true);
+        when(mockDynamoHelper.claimRunLedgerNotification(any())).thenReturn(true);
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
         verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY_1);
+
+        // The claim is written before the SMS is sent. We don't also write an evaluated entry, which would replace it.
+        ArgumentCaptor<RunLedgerEntry> entryCaptor = ArgumentCaptor.forClass(RunLedgerEntry.class);
+        InOrder inOrder = inOrder(mockDynamoHelper, mockBridgeHelper);
+        inOrder.verify(mockDynamoHelper).claimRunLedgerNotification(entryCaptor.capture());
+        inOrder.verify(mockBridgeHelper).sendSmsToUser(any(), any(), any());
+        verify(mockDynamoHelper, never()).bufferRunLedgerEntry(any());
+
+        RunLedgerEntry entry = entryCaptor.getValue();
+        assertEquals(entry.getDate(), TEST_DATE);
+        assertEquals(entry.getStatus(), RunLedgerStatus.NOTIFIED);
+        assertEquals(entry.getStudyId(), STUDY_ID);
+        assertEquals(entry.getUserId(), USER_ID);
+    }
+
+    @Test
+    public void runLedgerAlreadyNotified() throws Exception {
+        // Another delivery of this request already notified the user.
+        processor.setRunLedgerEnabled(true);
+        when(mockDynamoHelper.claimRunLedgerNotification(any())).thenReturn(false);
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
+        verifyNoNotification();
+        verify(mockDynamoHelper, never()).bufferRunLedgerEntry(any());
+    }
+
+    @Test
+    public void runLedgerClaimErrorDoesntNotify() throws Exception {
+        processor.setRunLedgerEnabled(true);
+        when(mockDynamoHelper.claimRunLedgerNotification(any())).thenThrow(RuntimeException.class);
+        try {
+            processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
+            fail("expected exception");
+        } catch (RuntimeException ex) {
+            // expected exception
+        }
+        verifyNoNotification();
+        verify(mockDynamoHelper, never()).bufferRunLedgerEntry(any());
+        verify(mockDynamoHelper, never()).writeRunLedgerFailure(any());
+    }
+
+    @Test
+    public void conditionalNotificationLogClaimsBeforeSending() throws Exception {
+        // The notification is logged at the run's notification time, before the SMS is sent, and isn't buffered.
+        processor.setConditionalNotificationLogEnabled(true);
+        when(mockDynamoHelper.claimNotificationLog(any())).thenReturn(true);
+        long notificationTime = MOCK_NOW_MILLIS - 60000;
+        RunContext runContext = makeRunContextBuilder(TEST_DATE).withNotificationTime(notificationTime).build();
+        processor.processAccountForDate(runContext, ACCOUNT_SUMMARY);
+
+        ArgumentCaptor<UserNotification> notificationCaptor = ArgumentCaptor.forClass(UserNotification.class);
+        InOrder inOrder = inOrder(mockDynamoHelper, mockBridgeHelper);
+        inOrder.verify(mockDynamoHelper).claimNotificationLog(notificationCaptor.capture());
+        inOrder.verify(mockBridgeHelper).sendSmsToUser(STUDY_ID, USER_ID, MESSAGE_EARLY_1);
+        verify(mockDynamoHelper, never()).bufferNotificationLog(any());
+
+        UserNotification notification = notificationCaptor.getValue();
+        assertEquals(notification.getMessage(), MESSAGE_EARLY_1);
+        assertEquals(notification.getTime(), notificationTime);
+        assertEquals(notification.getType(), NotificationType.EARLY);
+        assertEquals(notification.getUserId(), USER_ID);
+    }
+
+    @Test
+    public void conditionalNotificationLogAlreadyClaimed() throws Exception {
+        // Another node in the same run already notified the user.
+        processor.setConditionalNotificationLogEnabled(true);
+        when(mockDynamoHelper.claimNotificationLog(any())).thenReturn(false);
+        processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
+        verifyNoNotification();
+    }
+
+    @Test
+    public void runLedgerRecordsErrors() throws Exception {
+        // Users that fail with an error are recorded, so they can be retried.
+        processor.setRunLedgerEnabled(true);
+        when(mockBridgeHelper.getParticipant(STUDY_ID, USER_ID)).thenThrow(IOException.class);
+        try {
+            processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
+            fail("expected exception");
+        } catch (IOException ex) {
+            // expected exception
+        }
+        verify(mockDynamoHelper, never()).bufferRunLedgerEntry(any());
+
+        ArgumentCaptor<RunLedgerEntry> entryCaptor = ArgumentCaptor.forClass(RunLedgerEntry.class);
+        verify(mockDynamoHelper).writeRunLedgerFailure(entryCaptor.capture());
+
+        RunLedgerEntry entry = entryCaptor.getValue();
+        assertEquals(entry.getDate(), TEST_DATE);
+        assertEquals(entry.getErrorClass(), IOException.class.getName());
+        assertEquals(entry.getStatus(), RunLedgerStatus.FAILED);
+        assertEquals(entry.getStudyId(), STUDY_ID);
+        assertEquals(entry.getUserId(), USER_ID);
+    }
+
+    @Test
+    public void runLedgerErrorRecordingErrorKeepsOriginalError() throws Exception {
+        processor.setRunLedgerEnabled(true);
+        when(mockBridgeHelper.getParticipant(STUDY_ID, USER_ID)).thenThrow(IOException.class);
+        when(mockDynamoHelper.writeRunLedgerFailure(any())).thenThrow(IllegalStateException.class);
+        try {
+            processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
+            fail("expected exception");
+        } catch (IOException ex) {
+            // expected exception
+        }
+    }
+
+    @Test
+    public void runLedgerDoesntRecordErrorsAfterClaim() throws Exception {
+        // The user was claimed for a notification, but sending the SMS failed. Don't record the failure, since a retry
+        // might notify the user twice.
+        processor.setRunLedgerEnabled(true);
+        when(mockDynamoHelper.claimRunLedgerNotification(any())).thenReturn(true);
+        doThrow(IOException.class).when(mockBridgeHelper).sendSmsToUser(any(), any(), any());
+        try {
+            processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
+            fail("expected exception");
+        } catch (IOException ex) {
+            // expected exception
+        }
+        verify(mockDynamoHelper, never()).writeRunLedgerFailure(any());
+        verify(mockDynamoHelper, never()).bufferRunLedgerEntry(any());
+    }
+
+    @Test
+    public void runLedgerDisabledDoesntRecordErrors() throws Exception {
+        when(mockBridgeHelper.getParticipant(STUDY_ID, USER_ID)).thenThrow(IOException.class);
+        try {
+            processor.processAccountForDate(makeRunContext(TEST_DATE), ACCOUNT_SUMMARY);
+            fail("expected exception");
+        } catch (IOException ex) {
+            // expected exception
+        }
+        verify(mockDynamoHelper, never()).writeRunLedgerFailure(any());
+    }
+
+    @Test
+    public void backfillDryRunFetchesOnce() throws Exception {
+        processor.setActivityEventCacheEnabled(true);
+        processor.setBurstAdherenceRecordEnabled(true);
+        processor.setParticipantSnapshotCacheEnabled(true);
+        processor.setRunLedgerEnabled(true);
+        List<RunContext> runContextList = ImmutableList.of(makeRunContext(TEST_DATE),
+                makeRunContext(TEST_DATE.plusDays(1)));
+        processor.processAccountForDateRange(runContextList, ACCOUNT_SUMMARY, false);
+
+        // Both dates would have notified the user, but nothing was sent or written.
+        assertEquals(runContextList.get(0).getDryRunNotificationCount(NotificationType.EARLY), 1);
+        assertEquals(runContextList.get(1).getDryRunNotificationCount(NotificationType.EARLY), 1);
+        verifyNoNotification();
+        verify(mockDynamoHelper, never()).getBurstAdherenceRecord(any(), any());
+        verify(mockDynamoHelper, never()).bufferBurstAdherenceRecord(any());
+        verify(mockDynamoHelper, never()).bufferRunLedgerEntry(any());
+        verify(mockDynamoHelper, never()).claimRunLedgerNotification(any());
+        verify(mockActivityEventCache, never()).put(anyString(), anyString(), anyLong(), any());
+        verify(mockParticipantSnapshotCache, never()).put(anyString(), anyString(), anyLong(), any());
+
+        // Everything was fetched once. Task history was fetched through the end of the last date.
+        verify(mockBridgeHelper, times(1)).getParticipant(STUDY_ID, USER_ID);
+        verify(mockBridgeHelper, times(1)).getActivityEvents(STUDY_ID, USER_ID);
+        verify(mockDynamoHelper, times(1)).getLastNotificationTimeForUser(USER_ID);
+        DateTimeZone timeZone = DateTimeZone.forOffsetHours(-7);
+        verify(mockBridgeHelper, times(1)).getTaskHistory(STUDY_ID, USER_ID, TASK_ID,
+                ENROLLMENT_DATE.toDateTimeAtStartOfDay(timeZone), TEST_DATE.plusDays(2).toDateTimeAtStartOfDay(
+                        timeZone));
+    }
+
+    @Test
+    public void backfillDryRunDoesntCacheExclusions() throws Exception {
+        processor.setExclusionCacheEnabled(true);
+        when(mockParticipant.getTimeZone()).thenReturn("-12:00");
+        List<RunContext> runContextList = ImmutableList.of(makeRunContext(TEST_DATE),
+                makeRunContext(TEST_DATE.plusDays(1)));
+        processor.processAccountForDateRange(runContextList, ACCOUNT_SUMMARY, false);
+        verifyNoNotification();
+        verify(mockExclusionCache, never()).put(anyString(), anyString(), anyLong(), any());
+    }
+
+    @Test
+    public void backfillRecentNotificationIsRelativeToDate() throws Exception {
+        // The user was notified 9.5 days ago. That's outside the 9 day burst duration for the last date, but inside it
+        // for the date before.
+        UserNotification userNotification = new UserNotification();
+        userNotification.setTime(new DateTime(MOCK_NOW_MILLIS).minusDays(9).minusHours(12).getMillis());
+        userNotification.setType(NotificationType.EARLY);
+        userNotification.setUserId(USER_ID);
+        when(mockDynamoHelper.getLastNotificationTimeForUser(USER_ID)).thenReturn(userNotification);
+
+        List<RunContext> runContextList = ImmutableList.of(makeRunContext(TEST_DATE),
+                makeRunContext(TEST_DATE.plusDays(1)));
+        processor.processAccountForDateRange(runContextList, ACCOUNT_SUMMARY, false);
+        assertEquals(runContextList.get(0).getDryRunNotificationCount(NotificationType.EARLY), 0);
+        assertEquals(runContextList.get(1).getDryRunNotificationCount(NotificationType.EARLY), 1);
+    }
+
+    @Test
+    public void backfillSendsLatest() throws Exception {
+        // The first date is in the blackout period, so the dry run wouldn't have sent anything.
+        List<RunContext> runContextList = ImmutableList.of(makeRunContext(TEST_DATE.minusDays(1)),
+                makeRunContext(TEST_DATE));
+        processor.processAccountForDateRange(runContextList, ACCOUNT_SUMMARY, true);
+        verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY_1);
+        for (NotificationType oneType : NotificationType.values()) {
+            assertEquals(runContextList.get(0).getDryRunNotificationCount(oneType), 0);
+            assertEquals(runContextList.get(1).getDryRunNotificationCount(oneType), 0);
+        }
+        verify(mockBridgeHelper, times(1)).getParticipant(STUDY_ID, USER_ID);
+        verify(mockBridgeHelper, times(1)).getTaskHistory(any(), any(), any(), any(), any());
+    }
+
+    @Test
+    public void backfillSendLatestAfterDryRunNotification() throws Exception {
+        // The first date would have notified the user. That wasn't sent, so the last date still notifies them.
+        List<RunContext> runContextList = ImmutableList.of(makeRunContext(TEST_DATE),
+                makeRunContext(TEST_DATE.plusDays(1)));
+        processor.processAccountForDateRange(runContextList, ACCOUNT_SUMMARY, true);
+        assertEquals(runContextList.get(0).getDryRunNotificationCount(NotificationType.EARLY), 1);
+        verifySentNotification(NotificationType.EARLY, MESSAGE_EARLY_1);
+        verify(mockBridgeHelper, times(1)).getTaskHistory(any(), any(), any(), any(), any());
     }
 
     private void verifySentNotification(NotificationType type, String message) throws Exception {
         // Verify notification log
         ArgumentCaptor<UserNotification> userNotificationCaptor = ArgumentCaptor.forClass(UserNotification.class);
-        verify(mockDynamoHelper).setLastNotificationTimeForUser(userNotificationCaptor.capture());
+        verify(mockDynamoHelper).bufferNotificationLog(userNotificationCaptor.capture());
 
         UserNotification userNotification = userNotificationCaptor.getValue();
         assertEquals(userNotification.getMessage(), message);
         assertEquals(userNotification.getTime(), MOCK_NOW_MILLIS);
         assertEquals(userNotification.getType(), type);
         assertEquals(userNotification.getUserId(), USER_ID);
+        assertEquals(userNotification.getStudyId(), STUDY_ID);
 
         // Verify SMS message
         verify(mockBridgeHelper).sendSmsToUser(STUDY_ID, USER_ID, message);
     }
 
+    private RunContext makeRunContext(LocalDate date) {
+        return makeRunContextBuilder(date).build();
+    }
+
+    private RunContext.Builder makeRunContextBuilder(LocalDate date) {
+        return new RunContext.Builder().withStudyId(STUDY_ID).withDate(date).withWorkerConfig(workerConfig);
+    }
+
+    private RunContext makeRunContext(LocalDate date, BurstCalendarEntry entry) {
+        return makeRunContextBuilder(date).withBurstCalendarByUserId(ImmutableMap.of(USER_ID, entry)).build();
+    }
+
+    // Makes an up-to-date burst calendar entry for the test user, with both bursts.
+    private static BurstCalendarEntry makeBurstCalendarEntry() {
+        BurstCalendarEntry entry = new BurstCalendarEntry();
+        entry.setBurstStartDateList(ImmutableList.of(ENROLLMENT_DATE, STUDY_BURST_2_START_TIME.toLocalDate()));
+        entry.setBurstStartEventIdSet(ImmutableSet.of(EVENT_ID_ENROLLMENT, EVENT_ID_BURST_2_START));
+        entry.setStudyId(STUDY_ID);
+        entry.setUpdatedOn(MOCK_NOW_MILLIS);
+        entry.setUserId(USER_ID);
+        return entry;
+    }
+
+    private void verifyBurstCalendarEntryWritten() {
+        ArgumentCaptor<BurstCalendarEntry> entryCaptor = ArgumentCaptor.forClass(BurstCalendarEntry.class);
+        verify(mockDynamoHelper).bufferBurstCalendarEntry(entryCaptor.capture());
+
+        BurstCalendarEntry entry = entryCaptor.getValue();
+        assertEquals(entry.getBurstStartDateList(), ImmutableList.of(ENROLLMENT_DATE,
+                STUDY_BURST_2_START_TIME.toLocalDate()));
+        assertEquals(entry.getBurstStartEventIdSet(), ImmutableSet.of(EVENT_ID_ENROLLMENT, EVENT_ID_BURST_2_START));
+        assertTrue(entry.getCompletedBurstStartDateSet().isEmpty());
+        assertEquals(entry.getStudyId(), STUDY_ID);
+        assertEquals(entry.getUpdatedOn(), MOCK_NOW_MILLIS);
+        assertEquals(entry.getUserId(), USER_ID);
+    }
+
+    private static BurstAdherenceRecord makeBurstAdherenceRecord(LocalDate burstStartDate, boolean... finished) {
+        BurstAdherenceRecord record = new BurstAdherenceRecord();
+        record.setBurstStartDate(burstStartDate);
+        record.setBurstTaskId(TASK_ID);
+        record.setStudyId(STUDY_ID);
+        record.setUserId(USER_ID);
+        for (boolean oneFinished : finished) {
+            record.addDay(oneFinished);
+        }
+        return record;
+    }
+
+    private BurstAdherenceRecord captureBurstAdherenceRecord() {
+        ArgumentCaptor<BurstAdherenceRecord> recordCaptor = ArgumentCaptor.forClass(BurstAdherenceRecord.class);
+        verify(mockDynamoHelper).bufferBurstAdherenceRecord(recordCaptor.capture());
+        return recordCaptor.getValue();
+    }
+
+    private static void setScheduledOn(ScheduledActivity activity, DateTime scheduledOn) throws Exception {
+        // Use reflection to set scheduledOn.
+        Field scheduledOnField = ScheduledActivity.class.getDeclaredField("scheduledOn");
+        scheduledOnField.setAccessible(true);
+        scheduledOnField.set(activity, scheduledOn);
+    }
+
     private static List<UserConsentHistory> makeValidConsentHistory() {
         // For good measure, there are 2 consents in the consent history. The first one is outdated. The second one is
         // current.
@@ -447,4 +1616,25 @@ public class BridgeNotificationWorkerProcessorProcessAccountTest {
                 "2018-02-27T20:21:50.683-0700"));
         return ImmutableList.of(consent1, consent2);
     }
+
+    // Iterator wrapper which counts how many items were read.
+    private static class CountingIterator<T> implements Iterator<T> {
+        private final Iterator<T> wrapped;
+        private int numRead = 0;
+
+        CountingIterator(Iterator<T> wrapped) {
+            this.wrapped = wrapped;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return wrapped.hasNext();
+        }
+
+        @Override
+        public T next() {
+            numRead++;
+            return wrapped.next();
+        }
+    }
 }
@@ -1,58 +1,128 @@
 package org.sagebionetworks.bridge.notification.worker;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.same;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeUtils;
 import org.joda.time.LocalDate;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import org.sagebionetworks.bridge.notification.helper.BridgeHelper;
+import org.sagebionetworks.bridge.notification.helper.ActivityEventCache;
 import org.sagebionetworks.bridge.notification.helper.DynamoHelper;
+import org.sagebionetworks.bridge.notification.helper.ExclusionCache;
+import org.sagebionetworks.bridge.notification.helper.InMemoryShardQueue;
+import org.sagebionetworks.bridge.notification.helper.ParticipantSnapshotCache;
+import org.sagebionetworks.bridge.notification.helper.ShardQueue;
+import org.sagebionetworks.bridge.notification.helper.WorkerConfigCache;
 import org.sagebionetworks.bridge.rest.model.AccountSummary;
 import org.sagebionetworks.bridge.sqs.PollSqsWorkerBadRequestException;
 
 public class BridgeNotificationWorkerProcessorTest {
+    private static final String BACKFILL_START_DATE_STRING = "2018-04-25";
+    private static final LocalDate BACKFILL_START_DATE = LocalDate.parse(BACKFILL_START_DATE_STRING);
     private static final String DATE_STRING = "2018-04-27";
     private static final LocalDate DATE = LocalDate.parse(DATE_STRING);
+    private static final long MOCK_NOW_MILLIS = 1524872475831L;
+    private static final long RUN_STARTED_ON = 1524870000000L;
     private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
     private static final String STUDY_ID = "test-study";
     private static final String TAG = "dummy tag";
+    private static final String RUN_ID = STUDY_ID + ":" + DATE_STRING + ":" + TAG;
 
+    private ActivityEventCache mockActivityEventCache;
     private BridgeHelper mockBridgeHelper;
     private DynamoHelper mockDynamoHelper;
+    private ExclusionCache mockExclusionCache;
+    private ParticipantSnapshotCache mockParticipantSnapshotCache;
+    private WorkerConfigCache mockWorkerConfigCache;
     private BridgeNotificationWorkerProcessor processor;
+    private RunOrchestrator runOrchestrator;
 
     @BeforeMethod
     public void before() throws Exception {
         // Set up mocks
+        mockActivityEventCache = mock(ActivityEventCache.class);
         mockBridgeHelper = mock(BridgeHelper.class);
         mockDynamoHelper = mock(DynamoHelper.class);
+        mockExclusionCache = mock(ExclusionCache.class);
+        mockParticipantSnapshotCache = mock(ParticipantSnapshotCache.class);
+        mockWorkerConfigCache = mock(WorkerConfigCache.class);
+        when(mockWorkerConfigCache.getConfig(STUDY_ID)).thenReturn(CompiledWorkerConfigTest.makeValidWorkerConfig());
+
+        // Create orchestrator. Spy the orchestrator so we can mock its leases and work unit claimers.
+        runOrchestrator = spy(new RunOrchestrator());
+        runOrchestrator.setBridgeHelper(mockBridgeHelper);
+        runOrchestrator.setDynamoHelper(mockDynamoHelper);
 
         // Create processor. Spy the processor so we can test processAccountForDate() in a separate set of tests.
         processor = spy(new BridgeNotificationWorkerProcessor());
+        processor.setActivityEventCache(mockActivityEventCache);
         processor.setBridgeHelper(mockBridgeHelper);
         processor.setDynamoHelper(mockDynamoHelper);
-        processor.setPerUserRateLimit(1000.0);
+        processor.setExclusionCache(mockExclusionCache);
+        processor.setParticipantSnapshotCache(mockParticipantSnapshotCache);
+        processor.setRunOrchestrator(runOrchestrator);
+        processor.setWorkerConfigCache(mockWorkerConfigCache);
+        processor.setPerThreadRateLimit(1000.0);
+
+        doNothing().when(processor).processAccountForDate(any(), any());
+
+        // By default, sharded runs are new, rather than redelivered.
+        when(mockDynamoHelper.startShardedRun(any(), anyInt(), anyLong(), anyLong())).thenAnswer(invocation ->
+                makeShardedRun(invocation.getArgumentAt(1, Integer.class), invocation.getArgumentAt(2, Long.class)));
+    }
 
-        doNothing().when(processor).processAccountForDate(any(), any(), any());
+    @AfterMethod
+    public void after() {
+        DateTimeUtils.setCurrentMillisSystem();
     }
 
     @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
             "studyId must be specified")
     public void argsNoStudyId() throws Exception {
         ObjectNode requestNode = makeValidRequestNode();
-        requestNode.remove(BridgeNotificationWorkerProcessor.REQUEST_PARAM_STUDY_ID);
+        requestNode.remove(RunRequest.REQUEST_PARAM_STUDY_ID);
         processor.accept(requestNode);
     }
 
@@ -60,7 +130,7 @@ public class BridgeNotificationWorkerProcessorTest {
             "studyId must be specified")
     public void argsNullStudyId() throws Exception {
         ObjectNode requestNode = makeValidRequestNode();
-        requestNode.putNull(BridgeNotificationWorkerProcessor.REQUEST_PARAM_STUDY_ID);
+        requestNode.putNull(RunRequest.REQUEST_PARAM_STUDY_ID);
         processor.accept(requestNode);
     }
 
@@ -68,7 +138,7 @@ public class BridgeNotificationWorkerProcessorTest {
             "studyId must be a string")
     public void argsStudyIdWrongType() throws Exception {
         ObjectNode requestNode = makeValidRequestNode();
-        requestNode.put(BridgeNotificationWorkerProcessor.REQUEST_PARAM_STUDY_ID, 1234);
+        requestNode.put(RunRequest.REQUEST_PARAM_STUDY_ID, 1234);
         processor.accept(requestNode);
     }
 
@@ -76,7 +146,7 @@ public class BridgeNotificationWorkerProcessorTest {
             "date must be specified")
     public void argsNoDate() throws Exception {
         ObjectNode requestNode = makeValidRequestNode();
-        requestNode.remove(BridgeNotificationWorkerProcessor.REQUEST_PARAM_DATE);
+        requestNode.remove(RunRequest.REQUEST_PARAM_DATE);
         processor.accept(requestNode);
     }
 
@@ -84,7 +154,7 @@ public class BridgeNotificationWorkerProcessorTest {
             "date must be specified")
     public void argsNullDate() throws Exception {
         ObjectNode requestNode = makeValidRequestNode();
-        requestNode.putNull(BridgeNotificationWorkerProcessor.REQUEST_PARAM_DATE);
+        requestNode.putNull(RunRequest.REQUEST_PARAM_DATE);
         processor.accept(requestNode);
     }
 
@@ -92,7 +162,7 @@ public class BridgeNotificationWorkerProcessorTest {
             "date must be a string")
     public void argsDateWrongType() throws Exception {
         ObjectNode requestNode = makeValidRequestNode();
-        requestNode.put(BridgeNotificationWorkerProcessor.REQUEST_PARAM_DATE, 20180427);
+        requestNode.put(RunRequest.REQUEST_PARAM_DATE, 20180427);
         processor.accept(requestNode);
     }
 
@@ -100,7 +170,227 @@ public class BridgeNotificationWorkerProcessorTest {
             "date must be in the format YYYY-MM-DD")
     public void argsDateInvalidFormat() throws Exception {
         ObjectNode requestNode = makeValidRequestNode();
-        requestNode.put(BridgeNotificationWorkerProcessor.REQUEST_PARAM_DATE, "April 27, 2018");
+        requestNode.put(RunRequest.REQUEST_PARAM_DATE, "April 27, 2018");
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "retryFailedUsers must be a boolean")
+    public void argsRetryFailedUsersWrongType() throws Exception {
+        processor.setRunLedgerEnabled(true);
+        ObjectNode requestNode = makeValidRequestNode();
+        requestNode.put(RunRequest.REQUEST_PARAM_RETRY_FAILED_USERS, "true");
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "retryFailedUsers requires the run ledger to be enabled")
+    public void argsRetryFailedUsersWithoutRunLedger() throws Exception {
+        processor.accept(makeRetryRequestNode());
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "userIds must be an array")
+    public void argsUserIdsWrongType() throws Exception {
+        ObjectNode requestNode = makeValidRequestNode();
+        requestNode.put(RunRequest.REQUEST_PARAM_USER_IDS, "user-0");
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "userIds must not be empty")
+    public void argsUserIdsEmpty() throws Exception {
+        ObjectNode requestNode = makeValidRequestNode();
+        requestNode.putArray(RunRequest.REQUEST_PARAM_USER_IDS);
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "userIds must only contain non-empty strings")
+    public void argsUserIdsNotStrings() throws Exception {
+        ObjectNode requestNode = makeValidRequestNode();
+        requestNode.putArray(RunRequest.REQUEST_PARAM_USER_IDS).add("user-0").add(1234);
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "userIds must only contain non-empty strings")
+    public void argsUserIdsEmptyString() throws Exception {
+        ObjectNode requestNode = makeValidRequestNode();
+        requestNode.putArray(RunRequest.REQUEST_PARAM_USER_IDS).add("");
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "userIds can't be specified with retryFailedUsers")
+    public void argsUserIdsWithRetryFailedUsers() throws Exception {
+        processor.setRunLedgerEnabled(true);
+        ObjectNode requestNode = makeRetryRequestNode();
+        requestNode.putArray(RunRequest.REQUEST_PARAM_USER_IDS).add("user-0");
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "backfillStartDate must be a string")
+    public void argsBackfillStartDateWrongType() throws Exception {
+        ObjectNode requestNode = makeValidRequestNode();
+        requestNode.put(RunRequest.REQUEST_PARAM_BACKFILL_START_DATE, 20180425);
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "backfillStartDate must be in the format YYYY-MM-DD")
+    public void argsBackfillStartDateInvalidFormat() throws Exception {
+        ObjectNode requestNode = makeValidRequestNode();
+        requestNode.put(RunRequest.REQUEST_PARAM_BACKFILL_START_DATE, "April 25, 2018");
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "backfillStartDate must be before date")
+    public void argsBackfillStartDateNotBeforeDate() throws Exception {
+        ObjectNode requestNode = makeValidRequestNode();
+        requestNode.put(RunRequest.REQUEST_PARAM_BACKFILL_START_DATE, DATE_STRING);
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "backfill can't be more than 14 days")
+    public void argsBackfillTooLong() throws Exception {
+        ObjectNode requestNode = makeValidRequestNode();
+        LocalDate startDate = DATE.minusDays(RunRequest.MAX_BACKFILL_DAYS);
+        requestNode.put(RunRequest.REQUEST_PARAM_BACKFILL_START_DATE, startDate.toString());
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "backfillStartDate can't be specified with retryFailedUsers")
+    public void argsBackfillWithRetryFailedUsers() throws Exception {
+        processor.setRunLedgerEnabled(true);
+        ObjectNode requestNode = makeRetryRequestNode();
+        requestNode.put(RunRequest.REQUEST_PARAM_BACKFILL_START_DATE,
+                BACKFILL_START_DATE_STRING);
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "backfillSendMode requires backfillStartDate")
+    public void argsBackfillSendModeWithoutStartDate() throws Exception {
+        ObjectNode requestNode = makeValidRequestNode();
+        requestNode.put(RunRequest.REQUEST_PARAM_BACKFILL_SEND_MODE, "latest");
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "backfillSendMode must be a string")
+    public void argsBackfillSendModeWrongType() throws Exception {
+        ObjectNode requestNode = makeBackfillRequestNode();
+        requestNode.put(RunRequest.REQUEST_PARAM_BACKFILL_SEND_MODE, true);
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "backfillSendMode must be none or latest")
+    public void argsBackfillSendModeInvalid() throws Exception {
+        ObjectNode requestNode = makeBackfillRequestNode();
+        requestNode.put(RunRequest.REQUEST_PARAM_BACKFILL_SEND_MODE, "all");
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "shardIndex must be a non-negative integer")
+    public void argsShardIndexWrongType() throws Exception {
+        ObjectNode requestNode = makeShardRequestNode(0, 0, 2);
+        requestNode.put(RunRequest.REQUEST_PARAM_SHARD_INDEX, "zero");
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "shardStartOffset must be a non-negative integer")
+    public void argsShardStartOffsetNegative() throws Exception {
+        processor.accept(makeShardRequestNode(0, -1, 2));
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "shardStartOffset must be specified")
+    public void argsShardWithoutStartOffset() throws Exception {
+        ObjectNode requestNode = makeShardRequestNode(0, 0, 2);
+        requestNode.remove(RunRequest.REQUEST_PARAM_SHARD_START_OFFSET);
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "shardEndOffset must be after shardStartOffset")
+    public void argsShardEndOffsetNotAfterStartOffset() throws Exception {
+        processor.accept(makeShardRequestNode(1, 2, 2));
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "shard offsets require shardIndex")
+    public void argsShardOffsetsWithoutShardIndex() throws Exception {
+        ObjectNode requestNode = makeShardRequestNode(0, 0, 2);
+        requestNode.remove(RunRequest.REQUEST_PARAM_SHARD_INDEX);
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "shards can't be specified with userIds or retryFailedUsers")
+    public void argsShardWithUserIds() throws Exception {
+        ObjectNode requestNode = makeShardRequestNode(0, 0, 2);
+        requestNode.putArray(RunRequest.REQUEST_PARAM_USER_IDS).add("user-1");
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "workUnitSize requires numWorkUnits and firstWorkUnit")
+    public void argsWorkUnitSizeWithoutNumWorkUnits() throws Exception {
+        ObjectNode requestNode = makeWorkerRequestNode(2, 3, 0);
+        requestNode.remove(RunRequest.REQUEST_PARAM_NUM_WORK_UNITS);
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "workUnitSize and numWorkUnits must be positive")
+    public void argsWorkUnitSizeZero() throws Exception {
+        processor.accept(makeWorkerRequestNode(0, 3, 0));
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "firstWorkUnit must be less than numWorkUnits")
+    public void argsFirstWorkUnitOutOfRange() throws Exception {
+        processor.accept(makeWorkerRequestNode(2, 3, 3));
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "work units can't be specified with shards, userIds, or retryFailedUsers")
+    public void argsWorkUnitsWithShard() throws Exception {
+        ObjectNode requestNode = makeWorkerRequestNode(2, 3, 0);
+        requestNode.put(RunRequest.REQUEST_PARAM_SHARD_INDEX, 0);
+        requestNode.put(RunRequest.REQUEST_PARAM_SHARD_START_OFFSET, 0);
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "work unit params require workUnitSize")
+    public void argsWorkUnitParamsWithoutWorkUnitSize() throws Exception {
+        ObjectNode requestNode = makeWorkerRequestNode(2, 3, 0);
+        requestNode.remove(RunRequest.REQUEST_PARAM_WORK_UNIT_SIZE);
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "runStartedOn must be an integer")
+    public void argsRunStartedOnWrongType() throws Exception {
+        ObjectNode requestNode = makeShardRequestNode(0, 0, 2);
+        requestNode.put(RunRequest.REQUEST_PARAM_RUN_STARTED_ON, "yesterday");
+        processor.accept(requestNode);
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "runStartedOn requires shardIndex or workUnitSize")
+    public void argsRunStartedOnWithoutShard() throws Exception {
+        ObjectNode requestNode = makeValidRequestNode();
+        requestNode.put(RunRequest.REQUEST_PARAM_RUN_STARTED_ON, RUN_STARTED_ON);
         processor.accept(requestNode);
     }
 
@@ -112,28 +402,1229 @@ public class BridgeNotificationWorkerProcessorTest {
         AccountSummary accountSummary1 = new AccountSummary().id("user-1");
         AccountSummary accountSummary2 = new AccountSummary().id("user-2");
         AccountSummary accountSummary3 = new AccountSummary().id("user-3");
-        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID)).thenReturn(ImmutableList.of(accountSummary1,
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(ImmutableList.of(accountSummary1,
                 accountSummary2, accountSummary3).iterator());
 
-        doThrow(IOException.class).when(processor).processAccountForDate(STUDY_ID, DATE, accountSummary2);
+        doThrow(IOException.class).when(processor).processAccountForDate(any(), eq(accountSummary2));
 
         // Execute
         processor.accept(makeValidRequestNode());
 
         // Verify calls to processAccount()
-        verify(processor).processAccountForDate(STUDY_ID, DATE, accountSummary1);
-        verify(processor).processAccountForDate(STUDY_ID, DATE, accountSummary2);
-        verify(processor).processAccountForDate(STUDY_ID, DATE, accountSummary3);
+        ArgumentCaptor<RunContext> runContextCaptor = ArgumentCaptor.forClass(RunContext.class);
+        verify(processor).processAccountForDate(runContextCaptor.capture(), eq(accountSummary1));
+        verify(processor).processAccountForDate(runContextCaptor.capture(), eq(accountSummary2));
+        verify(processor).processAccountForDate(runContextCaptor.capture(), eq(accountSummary3));
+
+        // All users share the same run context.
+        List<RunContext> runContextList = runContextCaptor.getAllValues();
+        RunContext runContext = runContextList.get(0);
+        assertEquals(runContext.getStudyId(), STUDY_ID);
+        assertEquals(runContext.getDate(), DATE);
+        assertSame(runContextList.get(1), runContext);
+        assertSame(runContextList.get(2), runContext);
+
+        // Config is loaded once for the whole run.
+        verify(mockWorkerConfigCache).getConfig(STUDY_ID);
 
         // Verify call to dynamoHelper.writeWorkerLog()
         verify(mockDynamoHelper).writeWorkerLog(TAG);
     }
 
+    @Test
+    public void errorGettingNextUserIsRateLimited() throws Exception {
+        // Getting the next user fails twice, then succeeds. Each retry waits for the rate limiter.
+        AccountSummary accountSummary = new AccountSummary().id("test-user");
+        @SuppressWarnings("unchecked")
+        Iterator<AccountSummary> mockIterator = mock(Iterator.class);
+        when(mockIterator.hasNext()).thenReturn(true, true, true, false);
+        when(mockIterator.next()).thenThrow(new RuntimeException("test exception"))
+                .thenThrow(new RuntimeException("test exception")).thenReturn(accountSummary);
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(mockIterator);
+
+        // Execute
+        processor.accept(makeValidRequestNode());
+        verify(processor, times(3)).acquireRateLimitPermit();
+        verify(processor).processAccountForDate(any(), eq(accountSummary));
+        verify(mockDynamoHelper).writeWorkerLog(TAG);
+    }
+
+    @Test
+    public void writeWorkerLogWaitsForAllUsers() throws Exception {
+        // 20 users, 4 threads. Each user takes a little while to process, so many users are in flight at once.
+        processor.setNumThreads(4);
+
+        List<AccountSummary> accountSummaryList = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            accountSummaryList.add(new AccountSummary().id("user-" + i));
+        }
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(accountSummaryList.iterator());
+
+        AtomicInteger numInFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        AtomicInteger numFinished = new AtomicInteger();
+        doAnswer(invocation -> {
+            int inFlight = numInFlight.incrementAndGet();
+            maxInFlight.accumulateAndGet(inFlight, Math::max);
+            Thread.sleep(20);
+            numInFlight.decrementAndGet();
+            numFinished.incrementAndGet();
+            return null;
+        }).when(processor).processAccountForDate(any(), any());
+
+        // When we write the worker log, all users must be finished.
+        doAnswer(invocation -> {
+            assertEquals(numFinished.get(), 20);
+            return null;
+        }).when(mockDynamoHelper).writeWorkerLog(TAG);
+
+        // Execute
+        processor.accept(makeValidRequestNode());
+
+        // Verify
+        for (AccountSummary oneAccountSummary : accountSummaryList) {
+            verify(processor).processAccountForDate(any(), eq(oneAccountSummary));
+        }
+        verify(mockDynamoHelper).writeWorkerLog(TAG);
+        assertTrue(maxInFlight.get() > 1);
+        assertTrue(maxInFlight.get() <= 4);
+    }
+
+    @Test
+    public void notificationLogIsFlushedBeforeWorkerLog() throws Exception {
+        AccountSummary accountSummary = new AccountSummary().id("test-user");
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(ImmutableList.of(accountSummary)
+                .iterator());
+
+        // Execute
+        processor.accept(makeValidRequestNode());
+
+        // Verify
+        InOrder inOrder = inOrder(processor, mockDynamoHelper);
+        inOrder.verify(processor).processAccountForDate(any(), eq(accountSummary));
+        inOrder.verify(mockDynamoHelper).flushNotificationLog();
+        inOrder.verify(mockDynamoHelper).writeWorkerLog(TAG);
+    }
+
+    @Test
+    public void invalidConfig() throws Exception {
+        WorkerConfig workerConfig = CompiledWorkerConfigTest.makeValidWorkerConfig();
+        workerConfig.setBurstTaskId(null);
+        when(mockWorkerConfigCache.getConfig(STUDY_ID)).thenReturn(workerConfig);
+
+        try {
+            processor.accept(makeValidRequestNode());
+            fail("expected exception");
+        } catch (PollSqsWorkerBadRequestException ex) {
+            assertEquals(ex.getMessage(), "Invalid notification config for study " + STUDY_ID +
+                    ": burstTaskId must be specified");
+        }
+
+        // We never start processing users.
+        verify(mockBridgeHelper, never()).getAllAccountSummaries(any(), anyInt());
+        verify(mockDynamoHelper, never()).writeWorkerLog(any());
+    }
+
+    @Test(expectedExceptions = PollSqsWorkerBadRequestException.class, expectedExceptionsMessageRegExp =
+            "Invalid notification config for study " + STUDY_ID + ": test exception")
+    public void missingConfig() throws Exception {
+        when(mockWorkerConfigCache.getConfig(STUDY_ID)).thenThrow(new IllegalArgumentException("test exception"));
+        processor.accept(makeValidRequestNode());
+    }
+
+    @Test
+    public void recentNotificationIndexDisabledByDefault() throws Exception {
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(ImmutableList.of(new AccountSummary()
+                .id("user-1")).iterator());
+        processor.accept(makeValidRequestNode());
+
+        verify(mockDynamoHelper, never()).getLatestNotificationsSince(any(), anyLong());
+        assertNull(captureRunContext().getRecentNotificationsByUserId());
+    }
+
+    @Test
+    public void recentNotificationIndexEnabled() throws Exception {
+        processor.setRecentNotificationIndexEnabled(true);
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(ImmutableList.of(new AccountSummary()
+                .id("user-1")).iterator());
+        Map<String, UserNotification> recentNotificationsByUserId = ImmutableMap.of("user-1",
+                new UserNotification());
+        when(mockDynamoHelper.getLatestNotificationsSince(any(), anyLong())).thenReturn(recentNotificationsByUserId);
+
+        long startMillis = DateTime.now().getMillis();
+        processor.accept(makeValidRequestNode());
+
+        // Index starts burstDurationDays (9 days) before now.
+        ArgumentCaptor<Long> sinceMillisCaptor = ArgumentCaptor.forClass(Long.class);
+        verify(mockDynamoHelper).getLatestNotificationsSince(eq(STUDY_ID), sinceMillisCaptor.capture());
+        long expectedSinceMillis = startMillis - TimeUnit.DAYS.toMillis(9);
+        long sinceMillis = sinceMillisCaptor.getValue();
+        assertTrue(sinceMillis >= expectedSinceMillis && sinceMillis - expectedSinceMillis < 60000);
+
+        assertSame(captureRunContext().getRecentNotificationsByUserId(), recentNotificationsByUserId);
+    }
+
+    @Test
+    public void recentNotificationIndexCoversBackfill() throws Exception {
+        processor.setRecentNotificationIndexEnabled(true);
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(ImmutableList.of(new AccountSummary()
+                .id("user-1")).iterator());
+        when(mockDynamoHelper.getLatestNotificationsSince(any(), anyLong())).thenReturn(ImmutableMap.of());
+
+        long startMillis = DateTime.now().getMillis();
+        processor.accept(makeBackfillRequestNode());
+
+        // Index starts burstDurationDays (9 days) before the first backfill date, which is 2 days before the date.
+        ArgumentCaptor<Long> sinceMillisCaptor = ArgumentCaptor.forClass(Long.class);
+        verify(mockDynamoHelper).getLatestNotificationsSince(eq(STUDY_ID), sinceMillisCaptor.capture());
+        long expectedSinceMillis = startMillis - TimeUnit.DAYS.toMillis(11);
+        long sinceMillis = sinceMillisCaptor.getValue();
+        assertTrue(sinceMillis >= expectedSinceMillis && sinceMillis - expectedSinceMillis < 60000);
+    }
+
+    @Test
+    public void recentNotificationIndexErrorFallsBack() throws Exception {
+        processor.setRecentNotificationIndexEnabled(true);
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(ImmutableList.of(new AccountSummary()
+                .id("user-1")).iterator());
+        when(mockDynamoHelper.getLatestNotificationsSince(any(), anyLong())).thenThrow(RuntimeException.class);
+
+        // Run still completes, without the index.
+        processor.accept(makeValidRequestNode());
+        assertNull(captureRunContext().getRecentNotificationsByUserId());
+        verify(mockDynamoHelper).writeWorkerLog(TAG);
+    }
+
+    @Test
+    public void burstCalendarDisabledByDefault() throws Exception {
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(ImmutableList.of(new AccountSummary()
+                .id("user-1")).iterator());
+        processor.accept(makeValidRequestNode());
+
+        verify(mockDynamoHelper, never()).getBurstCalendar(any());
+        verify(mockDynamoHelper, never()).flushBurstCalendar();
+        assertNull(captureRunContext().getBurstCalendarByUserId());
+    }
+
+    @Test
+    public void burstCalendarEnabled() throws Exception {
+        processor.setBurstCalendarEnabled(true);
+        AccountSummary accountSummary = new AccountSummary().id("user-1");
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(ImmutableList.of(accountSummary)
+                .iterator());
+        Map<String, BurstCalendarEntry> burstCalendarByUserId = ImmutableMap.of("user-1", new BurstCalendarEntry());
+        when(mockDynamoHelper.getBurstCalendar(STUDY_ID)).thenReturn(burstCalendarByUserId);
+
+        processor.accept(makeValidRequestNode());
+        assertSame(captureRunContext().getBurstCalendarByUserId(), burstCalendarByUserId);
+
+        // Burst calendar writes are flushed before the worker log.
+        InOrder inOrder = inOrder(processor, mockDynamoHelper);
+        inOrder.verify(processor).processAccountForDate(any(), eq(accountSummary));
+        inOrder.verify(mockDynamoHelper).flushBurstCalendar();
+        inOrder.verify(mockDynamoHelper).writeWorkerLog(TAG);
+    }
+
+    @Test
+    public void burstCalendarErrorFallsBack() throws Exception {
+        processor.setBurstCalendarEnabled(true);
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(ImmutableList.of(new AccountSummary()
+                .id("user-1")).iterator());
+        when(mockDynamoHelper.getBurstCalendar(STUDY_ID)).thenThrow(RuntimeException.class);
+
+        // Run still completes, without the burst calendar.
+        processor.accept(makeValidRequestNode());
+        assertNull(captureRunContext().getBurstCalendarByUserId());
+        verify(mockDynamoHelper).writeWorkerLog(TAG);
+    }
+
+    @Test
+    public void burstAdherenceFlushedWhenEnabled() throws Exception {
+        processor.setBurstAdherenceRecordEnabled(true);
+        AccountSummary accountSummary = new AccountSummary().id("user-1");
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(ImmutableList.of(accountSummary)
+                .iterator());
+        processor.accept(makeValidRequestNode());
+
+        InOrder inOrder = inOrder(processor, mockDynamoHelper);
+        inOrder.verify(processor).processAccountForDate(any(), eq(accountSummary));
+        inOrder.verify(mockDynamoHelper).flushBurstAdherence();
+        inOrder.verify(mockDynamoHelper).writeWorkerLog(TAG);
+    }
+
+    @Test
+    public void burstAdherenceNotFlushedWhenDisabled() throws Exception {
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(ImmutableList.<AccountSummary>of()
+                .iterator());
+        processor.accept(makeValidRequestNode());
+        verify(mockDynamoHelper, never()).flushBurstAdherence();
+    }
+
+    @Test
+    public void activityEventCacheSavedWhenEnabled() throws Exception {
+        processor.setActivityEventCacheEnabled(true);
+        AccountSummary accountSummary = new AccountSummary().id("user-1");
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(ImmutableList.of(accountSummary)
+                .iterator());
+        processor.accept(makeValidRequestNode());
+
+        InOrder inOrder = inOrder(processor, mockActivityEventCache, mockDynamoHelper);
+        inOrder.verify(processor).processAccountForDate(any(), eq(accountSummary));
+        inOrder.verify(mockActivityEventCache).save(STUDY_ID);
+        inOrder.verify(mockDynamoHelper).writeWorkerLog(TAG);
+    }
+
+    @Test
+    public void activityEventCacheNotSavedWhenDisabled() throws Exception {
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(ImmutableList.<AccountSummary>of()
+                .iterator());
+        processor.accept(makeValidRequestNode());
+        verify(mockActivityEventCache, never()).save(any());
+    }
+
+    @Test
+    public void exclusionCacheSavedWhenEnabled() throws Exception {
+        processor.setExclusionCacheEnabled(true);
+        AccountSummary accountSummary = new AccountSummary().id("user-1");
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(ImmutableList.of(accountSummary)
+                .iterator());
+        processor.accept(makeValidRequestNode());
+
+        InOrder inOrder = inOrder(processor, mockExclusionCache, mockDynamoHelper);
+        inOrder.verify(processor).processAccountForDate(any(), eq(accountSummary));
+        inOrder.verify(mockExclusionCache).save(STUDY_ID);
+        inOrder.verify(mockDynamoHelper).writeWorkerLog(TAG);
+    }
+
+    @Test
+    public void exclusionCacheNotSavedWhenDisabled() throws Exception {
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(ImmutableList.<AccountSummary>of()
+                .iterator());
+        processor.accept(makeValidRequestNode());
+        verify(mockExclusionCache, never()).save(any());
+    }
+
+    @Test
+    public void participantSnapshotCacheSavedWhenEnabled() throws Exception {
+        processor.setParticipantSnapshotCacheEnabled(true);
+        AccountSummary accountSummary = new AccountSummary().id("user-1");
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(ImmutableList.of(accountSummary)
+                .iterator());
+        processor.accept(makeValidRequestNode());
+
+        InOrder inOrder = inOrder(processor, mockParticipantSnapshotCache, mockDynamoHelper);
+        inOrder.verify(processor).processAccountForDate(any(), eq(accountSummary));
+        inOrder.verify(mockParticipantSnapshotCache).save(STUDY_ID);
+        inOrder.verify(mockDynamoHelper).writeWorkerLog(TAG);
+    }
+
+    @Test
+    public void participantSnapshotCacheNotSavedWhenDisabled() throws Exception {
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(ImmutableList.<AccountSummary>of()
+                .iterator());
+        processor.accept(makeValidRequestNode());
+        verify(mockParticipantSnapshotCache, never()).save(any());
+    }
+
+    @Test
+    public void runCheckpointDisabled() throws Exception {
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(ImmutableList.of(new AccountSummary()
+                .id("user-1")).iterator());
+        processor.accept(makeValidRequestNode());
+        verify(mockDynamoHelper, never()).getRunCheckpoint(any());
+        verify(mockDynamoHelper, never()).writeRunCheckpoint(any());
+    }
+
+    @Test
+    public void runCheckpointWrittenPeriodically() throws Exception {
+        // 5 users, one at a time, with a checkpoint every 2 users.
+        processor.setNumThreads(1);
+        processor.setRunCheckpointEnabled(true);
+        processor.setRunCheckpointInterval(2);
+        List<AccountSummary> accountSummaryList = makeAccountSummaryList(5);
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(accountSummaryList.iterator());
+        doThrow(IOException.class).when(processor).processAccountForDate(any(), eq(accountSummaryList.get(1)));
+
+        // Execute
+        processor.accept(makeValidRequestNode());
+        verify(processor, times(5)).processAccountForDate(any(), any());
+        verify(mockDynamoHelper).getRunCheckpoint(RUN_ID);
+
+        // Verify checkpoints. Offsets only move forward, and the last checkpoint is at the end of the roster.
+        List<RunCheckpoint> checkpointList = captureRunCheckpoints();
+        assertTrue(checkpointList.size() >= 2);
+        for (int i = 1; i < checkpointList.size(); i++) {
+            assertTrue(checkpointList.get(i).getOffset() >= checkpointList.get(i - 1).getOffset());
+        }
+        RunCheckpoint lastCheckpoint = checkpointList.get(checkpointList.size() - 1);
+        assertEquals(lastCheckpoint.getNumErrors(), 1);
+        assertEquals(lastCheckpoint.getNumResumes(), 0);
+        assertEquals(lastCheckpoint.getOffset(), 5);
+        assertEquals(lastCheckpoint.getRunId(), RUN_ID);
+        assertTrue(lastCheckpoint.getUpdatedOn() > 0);
+
+        // Each checkpoint waits for the notification log, and the last one is written before the worker log.
+        InOrder inOrder = inOrder(mockDynamoHelper);
+        inOrder.verify(mockDynamoHelper).flushNotificationLog();
+        inOrder.verify(mockDynamoHelper).writeRunCheckpoint(any());
+        inOrder.verify(mockDynamoHelper).writeWorkerLog(TAG);
+    }
+
+    @Test
+    public void runResumesFromCheckpoint() throws Exception {
+        processor.setRunCheckpointEnabled(true);
+        RunCheckpoint previousCheckpoint = new RunCheckpoint();
+        previousCheckpoint.setNumErrors(2);
+        previousCheckpoint.setNumResumes(1);
+        previousCheckpoint.setOffset(10);
+        previousCheckpoint.setRunId(RUN_ID);
+        previousCheckpoint.setUpdatedOn(DateTime.now().minusHours(1).getMillis());
+        when(mockDynamoHelper.getRunCheckpoint(RUN_ID)).thenReturn(previousCheckpoint);
+
+        List<AccountSummary> accountSummaryList = makeAccountSummaryList(3);
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 10)).thenReturn(accountSummaryList.iterator());
+
+        // Execute
+        processor.accept(makeValidRequestNode());
+        for (AccountSummary oneAccountSummary : accountSummaryList) {
+            verify(processor).processAccountForDate(any(), eq(oneAccountSummary));
+        }
+        verify(mockBridgeHelper, never()).getAllAccountSummaries(STUDY_ID, 0);
+
+        // The final checkpoint carries over the counts from the previous attempt.
+        List<RunCheckpoint> checkpointList = captureRunCheckpoints();
+        RunCheckpoint lastCheckpoint = checkpointList.get(checkpointList.size() - 1);
+        assertEquals(lastCheckpoint.getNumErrors(), 2);
+        assertEquals(lastCheckpoint.getNumResumes(), 2);
+        assertEquals(lastCheckpoint.getOffset(), 13);
+    }
+
+    @Test
+    public void oldRunCheckpointIsIgnored() throws Exception {
+        processor.setRunCheckpointEnabled(true);
+        RunCheckpoint previousCheckpoint = new RunCheckpoint();
+        previousCheckpoint.setOffset(10);
+        previousCheckpoint.setRunId(RUN_ID);
+        previousCheckpoint.setUpdatedOn(DateTime.now().minusHours(
+                BridgeNotificationWorkerProcessor.RUN_CHECKPOINT_MAX_AGE_HOURS + 1).getMillis());
+        when(mockDynamoHelper.getRunCheckpoint(RUN_ID)).thenReturn(previousCheckpoint);
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(makeAccountSummaryList(1)
+                .iterator());
+
+        processor.accept(makeValidRequestNode());
+        verify(processor).processAccountForDate(any(), any());
+        assertEquals(captureRunCheckpoints().get(0).getNumResumes(), 0);
+    }
+
+    @Test
+    public void runCheckpointErrorsDontFailRun() throws Exception {
+        // Loading the checkpoint fails, so we start from the beginning. Writing the checkpoint fails, so we log and
+        // keep going.
+        processor.setRunCheckpointEnabled(true);
+        when(mockDynamoHelper.getRunCheckpoint(RUN_ID)).thenThrow(RuntimeException.class);
+        doThrow(RuntimeException.class).when(mockDynamoHelper).writeRunCheckpoint(any());
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(makeAccountSummaryList(1)
+                .iterator());
+
+        processor.accept(makeValidRequestNode());
+        verify(processor).processAccountForDate(any(), any());
+        verify(mockDynamoHelper).writeWorkerLog(TAG);
+    }
+
+    @Test
+    public void runLedgerDisabled() throws Exception {
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(makeAccountSummaryList(1).iterator());
+        processor.accept(makeValidRequestNode());
+        verify(processor).processAccountForDate(any(), any());
+        verify(mockDynamoHelper, never()).getRunLedger(any(), any());
+        verify(mockDynamoHelper, never()).flushRunLedger();
+    }
+
+    @Test
+    public void runLedgerSkipsHandledUsers() throws Exception {
+        // user-0 was evaluated and user-1 was notified by an earlier delivery. Only user-2 is processed.
+        processor.setRunLedgerEnabled(true);
+        when(mockDynamoHelper.getRunLedger(STUDY_ID, DATE)).thenReturn(ImmutableMap.of(
+                "user-0", RunLedgerStatus.EVALUATED, "user-1", RunLedgerStatus.NOTIFIED));
+        List<AccountSummary> accountSummaryList = makeAccountSummaryList(3);
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(accountSummaryList.iterator());
+
+        // Execute
+        processor.accept(makeValidRequestNode());
+        verify(processor).processAccountForDate(any(), eq(accountSummaryList.get(2)));
+        verify(processor).processAccountForDate(any(), any());
+
+        // Skipped users don't wait for the rate limiter.
+        verify(processor).acquireRateLimitPermit();
+
+        // The ledger is flushed before the worker log.
+        InOrder inOrder = inOrder(mockDynamoHelper);
+        inOrder.verify(mockDynamoHelper).flushRunLedger();
+        inOrder.verify(mockDynamoHelper).writeWorkerLog(TAG);
+    }
+
+    @Test
+    public void runLedgerSkippedUsersAreCheckpointed() throws Exception {
+        processor.setRunCheckpointEnabled(true);
+        processor.setRunLedgerEnabled(true);
+        when(mockDynamoHelper.getRunLedger(STUDY_ID, DATE)).thenReturn(ImmutableMap.of(
+                "user-0", RunLedgerStatus.EVALUATED, "user-1", RunLedgerStatus.EVALUATED));
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(makeAccountSummaryList(2).iterator());
+
+        processor.accept(makeValidRequestNode());
+        verify(processor, never()).processAccountForDate(any(), any());
+
+        List<RunCheckpoint> checkpointList = captureRunCheckpoints();
+        assertEquals(checkpointList.get(checkpointList.size() - 1).getOffset(), 2);
+    }
+
+    @Test
+    public void runLedgerLoadErrorProcessesAllUsers() throws Exception {
+        processor.setRunLedgerEnabled(true);
+        when(mockDynamoHelper.getRunLedger(STUDY_ID, DATE)).thenThrow(RuntimeException.class);
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(makeAccountSummaryList(2).iterator());
+
+        processor.accept(makeValidRequestNode());
+        verify(processor, times(2)).processAccountForDate(any(), any());
+        verify(mockDynamoHelper).writeWorkerLog(TAG);
+    }
+
+    @Test
+    public void runLedgerDoesntSkipFailedUsers() throws Exception {
+        processor.setRunLedgerEnabled(true);
+        when(mockDynamoHelper.getRunLedger(STUDY_ID, DATE)).thenReturn(ImmutableMap.of(
+                "user-0", RunLedgerStatus.FAILED, "user-1", RunLedgerStatus.EVALUATED));
+        List<AccountSummary> accountSummaryList = makeAccountSummaryList(2);
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(accountSummaryList.iterator());
+
+        processor.accept(makeValidRequestNode());
+        verify(processor).processAccountForDate(any(), eq(accountSummaryList.get(0)));
+        verify(processor).processAccountForDate(any(), any());
+    }
+
+    @Test
+    public void retryFailedUsers() throws Exception {
+        // Only the failed users are processed, in order of user ID, without reading the roster.
+        processor.setRunCheckpointEnabled(true);
+        processor.setRunLedgerEnabled(true);
+        when(mockDynamoHelper.getRunLedger(STUDY_ID, DATE)).thenReturn(ImmutableMap.of(
+                "user-2", RunLedgerStatus.FAILED, "user-0", RunLedgerStatus.EVALUATED,
+                "user-1", RunLedgerStatus.FAILED, "user-3", RunLedgerStatus.NOTIFIED));
+
+        // Process the users on the calling thread, so we can check the order.
+        List<String> userIdList = new ArrayList<>();
+        doAnswer(invocation -> {
+            synchronized (userIdList) {
+                userIdList.add(invocation.getArgumentAt(1, AccountSummary.class).getId());
+            }
+            return null;
+        }).when(processor).processAccountForDate(any(), any());
+        processor.setNumThreads(1);
+
+        processor.accept(makeRetryRequestNode());
+        assertEquals(userIdList, ImmutableList.of("user-1", "user-2"));
+
+        verify(mockBridgeHelper, never()).getAllAccountSummaries(any());
+        verify(mockBridgeHelper, never()).getAllAccountSummaries(any(), anyInt());
+
+        // Retries don't use checkpoints.
+        verify(mockDynamoHelper, never()).getRunCheckpoint(any());
+        verify(mockDynamoHelper, never()).writeRunCheckpoint(any());
+
+        verify(mockDynamoHelper).flushRunLedger();
+        verify(mockDynamoHelper).writeWorkerLog(TAG);
+    }
+
+    @Test
+    public void retryFailedUsersNoFailures() throws Exception {
+        processor.setRunLedgerEnabled(true);
+        when(mockDynamoHelper.getRunLedger(STUDY_ID, DATE)).thenReturn(ImmutableMap.of(
+                "user-0", RunLedgerStatus.EVALUATED));
+
+        processor.accept(makeRetryRequestNode());
+        verify(processor, never()).processAccountForDate(any(), any());
+        verify(mockDynamoHelper).writeWorkerLog(TAG);
+    }
+
+    @Test
+    public void retryFailedUsersLedgerLoadError() throws Exception {
+        // If we can't load the ledger, we don't know who to retry. The request fails, so it can be redelivered.
+        processor.setRunLedgerEnabled(true);
+        when(mockDynamoHelper.getRunLedger(STUDY_ID, DATE)).thenThrow(RuntimeException.class);
+        try {
+            processor.accept(makeRetryRequestNode());
+            fail("expected exception");
+        } catch (RuntimeException ex) {
+            // expected exception
+        }
+        verify(processor, never()).processAccountForDate(any(), any());
+        verify(mockDynamoHelper, never()).writeWorkerLog(any());
+    }
+
+    @Test
+    public void targetedUsers() throws Exception {
+        // Only the requested users are processed, in order, without reading the roster. Duplicates are processed once.
+        processor.setRunCheckpointEnabled(true);
+        List<String> userIdList = new ArrayList<>();
+        doAnswer(invocation -> {
+            synchronized (userIdList) {
+                userIdList.add(invocation.getArgumentAt(1, AccountSummary.class).getId());
+            }
+            return null;
+        }).when(processor).processAccountForDate(any(), any());
+        processor.setNumThreads(1);
+
+        ObjectNode requestNode = makeValidRequestNode();
+        requestNode.putArray(RunRequest.REQUEST_PARAM_USER_IDS).add("user-b").add("user-a")
+                .add("user-b");
+        processor.accept(requestNode);
+        assertEquals(userIdList, ImmutableList.of("user-b", "user-a"));
+
+        verify(mockBridgeHelper, never()).getAllAccountSummaries(any());
+        verify(mockBridgeHelper, never()).getAllAccountSummaries(any(), anyInt());
+        verify(mockDynamoHelper, never()).getRunCheckpoint(any());
+        verify(mockDynamoHelper, never()).writeRunCheckpoint(any());
+        verify(mockDynamoHelper).writeWorkerLog(TAG);
+    }
+
+    @Test
+    public void targetedUsersNullIsWholeStudy() throws Exception {
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(makeAccountSummaryList(2).iterator());
+        ObjectNode requestNode = makeValidRequestNode();
+        requestNode.putNull(RunRequest.REQUEST_PARAM_USER_IDS);
+        processor.accept(requestNode);
+        verify(processor, times(2)).processAccountForDate(any(), any());
+    }
+
+    @Test
+    public void targetedUsersSkipsHandledUsers() throws Exception {
+        processor.setRunLedgerEnabled(true);
+        when(mockDynamoHelper.getRunLedger(STUDY_ID, DATE)).thenReturn(ImmutableMap.of(
+                "user-a", RunLedgerStatus.NOTIFIED));
+
+        ObjectNode requestNode = makeValidRequestNode();
+        requestNode.putArray(RunRequest.REQUEST_PARAM_USER_IDS).add("user-a").add("user-b");
+        processor.accept(requestNode);
+
+        ArgumentCaptor<AccountSummary> accountSummaryCaptor = ArgumentCaptor.forClass(AccountSummary.class);
+        verify(processor).processAccountForDate(any(), accountSummaryCaptor.capture());
+        assertEquals(accountSummaryCaptor.getValue().getId(), "user-b");
+    }
+
+    @Test
+    public void backfill() throws Exception {
+        // The ledger isn't used to skip users in a backfill.
+        processor.setRunCheckpointEnabled(true);
+        processor.setRunLedgerEnabled(true);
+        doNothing().when(processor).processAccountForDateRange(any(), any(), anyBoolean());
+        List<AccountSummary> accountSummaryList = makeAccountSummaryList(1);
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(accountSummaryList.iterator());
+
+        processor.accept(makeBackfillRequestNode());
+
+        // Each user is processed once for the whole range, with a context for each date.
+        ArgumentCaptor<List> runContextListCaptor = ArgumentCaptor.forClass(List.class);
+        verify(processor).processAccountForDateRange(runContextListCaptor.capture(), same(accountSummaryList.get(
+                0)), eq(false));
+        verify(processor, never()).processAccountForDate(any(), any());
+
+        List<RunContext> runContextList = runContextListCaptor.getValue();
+        assertEquals(runContextList.size(), 3);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(runContextList.get(i).getStudyId(), STUDY_ID);
+            assertEquals(runContextList.get(i).getDate(), BACKFILL_START_DATE.plusDays(i));
+        }
+
+        // The backfill has its own checkpoint.
+        verify(mockDynamoHelper).getRunCheckpoint(STUDY_ID + ":" + BACKFILL_START_DATE_STRING + "/" + DATE_STRING +
+                ":" + TAG);
+        verify(mockDynamoHelper, never()).getRunLedger(any(), any());
+        verify(mockDynamoHelper).writeWorkerLog(TAG);
+    }
+
+    @Test
+    public void backfillSendModeNone() throws Exception {
+        doNothing().when(processor).processAccountForDateRange(any(), any(), anyBoolean());
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(makeAccountSummaryList(1).iterator());
+
+        ObjectNode requestNode = makeBackfillRequestNode();
+        requestNode.put(RunRequest.REQUEST_PARAM_BACKFILL_SEND_MODE, "none");
+        processor.accept(requestNode);
+        verify(processor).processAccountForDateRange(any(), any(), eq(false));
+    }
+
+    @Test
+    public void backfillSendModeLatest() throws Exception {
+        doNothing().when(processor).processAccountForDateRange(any(), any(), anyBoolean());
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(makeAccountSummaryList(1).iterator());
+
+        // Send mode is case-insensitive.
+        ObjectNode requestNode = makeBackfillRequestNode();
+        requestNode.put(RunRequest.REQUEST_PARAM_BACKFILL_SEND_MODE, "LATEST");
+        processor.accept(requestNode);
+        verify(processor).processAccountForDateRange(any(), any(), eq(true));
+    }
+
+    @Test
+    public void shardingDisabledByDefault() throws Exception {
+        ShardQueue mockShardQueue = mock(ShardQueue.class);
+        runOrchestrator.setShardQueue(mockShardQueue);
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(makeAccountSummaryList(1).iterator());
+
+        processor.accept(makeValidRequestNode());
+        verify(mockBridgeHelper, never()).getAccountSummaryTotal(any());
+        verify(mockShardQueue, never()).send(any());
+        verify(mockDynamoHelper).writeWorkerLog(TAG);
+    }
+
+    @Test
+    public void shardingSmallStudyIsNotSharded() throws Exception {
+        InMemoryShardQueue shardQueue = new InMemoryShardQueue();
+        runOrchestrator.setShardingEnabled(true);
+        runOrchestrator.setShardQueue(shardQueue);
+        runOrchestrator.setShardSize(2);
+        when(mockBridgeHelper.getAccountSummaryTotal(STUDY_ID)).thenReturn(2);
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(makeAccountSummaryList(2).iterator());
+
+        processor.accept(makeValidRequestNode());
+        verify(processor, times(2)).processAccountForDate(any(), any());
+        assertEquals(shardQueue.size(), 0);
+        verify(mockDynamoHelper, never()).startShardedRun(any(), anyInt(), anyLong(), anyLong());
+        verify(mockDynamoHelper, never()).finishShard(any(), anyInt());
+        verify(mockDynamoHelper).writeWorkerLog(TAG);
+    }
+
+    @Test
+    public void shardingCoordinatorSendsShards() throws Exception {
+        // 5 users, 2 per shard, is 3 shards.
+        InMemoryShardQueue shardQueue = new InMemoryShardQueue();
+        runOrchestrator.setShardingEnabled(true);
+        runOrchestrator.setShardQueue(shardQueue);
+        runOrchestrator.setShardSize(2);
+        when(mockBridgeHelper.getAccountSummaryTotal(STUDY_ID)).thenReturn(5);
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_MILLIS);
+
+        processor.accept(makeValidRequestNode());
+
+        // The coordinator doesn't process any users, and doesn't write the worker log.
+        verify(mockBridgeHelper, never()).getAllAccountSummaries(any(), anyInt());
+        verify(processor, never()).processAccountForDate(any(), any());
+        verify(mockDynamoHelper, never()).writeWorkerLog(any());
+        verify(mockDynamoHelper).startShardedRun(RUN_ID, 3, MOCK_NOW_MILLIS, MOCK_NOW_MILLIS - TimeUnit.HOURS.toMillis(
+                BridgeNotificationWorkerProcessor.RUN_CHECKPOINT_MAX_AGE_HOURS));
+
+        // Each shard is a copy of the request, with the shard's range and the run's start time. The last shard goes to
+        // the end of the roster.
+        assertEquals(shardQueue.size(), 3);
+        assertEquals(shardQueue.poll(), makeShardRequestNode(0, 0, 2).put(
+                RunRequest.REQUEST_PARAM_RUN_STARTED_ON, MOCK_NOW_MILLIS));
+        assertEquals(shardQueue.poll(), makeShardRequestNode(1, 2, 4).put(
+                RunRequest.REQUEST_PARAM_RUN_STARTED_ON, MOCK_NOW_MILLIS));
+        ObjectNode lastShardRequestNode = makeShardRequestNode(2, 4, 0).put(
+                RunRequest.REQUEST_PARAM_RUN_STARTED_ON, MOCK_NOW_MILLIS);
+        lastShardRequestNode.remove(RunRequest.REQUEST_PARAM_SHARD_END_OFFSET);
+        assertEquals(shardQueue.poll(), lastShardRequestNode);
+    }
+
+    @Test
+    public void shardingCoordinatorRedeliveryJoinsRun() throws Exception {
+        // The run was already started with 2 shards. Since then, more users joined the study, but we keep the run's
+        // shards and start time, so shards that already finished stay finished.
+        InMemoryShardQueue shardQueue = new InMemoryShardQueue();
+        runOrchestrator.setShardingEnabled(true);
+        runOrchestrator.setShardQueue(shardQueue);
+        runOrchestrator.setShardSize(2);
+        when(mockBridgeHelper.getAccountSummaryTotal(STUDY_ID)).thenReturn(5);
+        when(mockDynamoHelper.startShardedRun(eq(RUN_ID), anyInt(), anyLong(), anyLong())).thenReturn(
+                makeShardedRun(2, RUN_STARTED_ON));
+
+        processor.accept(makeValidRequestNode());
+        assertEquals(shardQueue.size(), 2);
+        assertEquals(shardQueue.poll(), makeShardRequestNode(0, 0, 2).put(
+                RunRequest.REQUEST_PARAM_RUN_STARTED_ON, RUN_STARTED_ON));
+        ObjectNode lastShardRequestNode = makeShardRequestNode(1, 2, 0).put(
+                RunRequest.REQUEST_PARAM_RUN_STARTED_ON, RUN_STARTED_ON);
+        lastShardRequestNode.remove(RunRequest.REQUEST_PARAM_SHARD_END_OFFSET);
+        assertEquals(shardQueue.poll(), lastShardRequestNode);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void shardingWithoutQueue() throws Exception {
+        runOrchestrator.setShardingEnabled(true);
+        processor.accept(makeValidRequestNode());
+    }
+
+    @Test
+    public void shardingTargetedUsersAreNotSharded() throws Exception {
+        runOrchestrator.setShardingEnabled(true);
+        runOrchestrator.setShardQueue(mock(ShardQueue.class));
+
+        ObjectNode requestNode = makeValidRequestNode();
+        requestNode.putArray(RunRequest.REQUEST_PARAM_USER_IDS).add("user-1");
+        processor.accept(requestNode);
+        verify(mockBridgeHelper, never()).getAccountSummaryTotal(any());
+        verify(processor).processAccountForDate(any(), any());
+    }
+
+    @Test
+    public void shardProcessesItsRange() throws Exception {
+        // The shard starts at offset 2 and stops before offset 4, even though the roster keeps going.
+        runOrchestrator.setShardingEnabled(true);
+        processor.setRunCheckpointEnabled(true);
+        List<AccountSummary> accountSummaryList = makeAccountSummaryList(5);
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 2)).thenReturn(accountSummaryList.subList(2, 5)
+                .iterator());
+        when(mockDynamoHelper.finishShard(RUN_ID, 1)).thenReturn(false);
+
+        processor.accept(makeShardRequestNode(1, 2, 4));
+        verify(processor).processAccountForDate(any(), same(accountSummaryList.get(2)));
+        verify(processor).processAccountForDate(any(), same(accountSummaryList.get(3)));
+        verify(processor, times(2)).processAccountForDate(any(), any());
+
+        // Shards don't split further, and each shard has its own checkpoint.
+        verify(mockBridgeHelper, never()).getAccountSummaryTotal(any());
+        verify(mockDynamoHelper).getRunCheckpoint(RUN_ID + "#shard-1");
+        List<RunCheckpoint> checkpointList = captureRunCheckpoints();
+        assertEquals(checkpointList.get(checkpointList.size() - 1).getOffset(), 4);
+
+        // This isn't the last shard to finish, so it doesn't write the worker log.
+        verify(mockDynamoHelper).finishShard(RUN_ID, 1);
+        verify(mockDynamoHelper, never()).writeWorkerLog(any());
+    }
+
+    @Test
+    public void lastShardWritesWorkerLog() throws Exception {
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 4)).thenReturn(makeAccountSummaryList(1).iterator());
+        when(mockDynamoHelper.finishShard(RUN_ID, 2)).thenReturn(true);
+
+        ObjectNode requestNode = makeShardRequestNode(2, 4, 0);
+        requestNode.remove(RunRequest.REQUEST_PARAM_SHARD_END_OFFSET);
+        processor.accept(requestNode);
+        verify(processor).processAccountForDate(any(), any());
+
+        InOrder inOrder = inOrder(mockDynamoHelper);
+        inOrder.verify(mockDynamoHelper).flushNotificationLog();
+        inOrder.verify(mockDynamoHelper).finishShard(RUN_ID, 2);
+        inOrder.verify(mockDynamoHelper).writeWorkerLog(TAG);
+    }
+
+    @Test
+    public void workStealingCoordinatorSendsWorkers() throws Exception {
+        // 5 users, 1 per work unit, is 5 units, split between 2 workers.
+        InMemoryShardQueue shardQueue = new InMemoryShardQueue();
+        runOrchestrator.setShardingEnabled(true);
+        runOrchestrator.setShardQueue(shardQueue);
+        runOrchestrator.setShardSize(2);
+        runOrchestrator.setWorkStealingEnabled(true);
+        runOrchestrator.setWorkUnitSize(1);
+        runOrchestrator.setNumWorkStealingWorkers(2);
+        when(mockBridgeHelper.getAccountSummaryTotal(STUDY_ID)).thenReturn(5);
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_MILLIS);
+
+        processor.accept(makeValidRequestNode());
+        verify(processor, never()).processAccountForDate(any(), any());
+        verify(mockDynamoHelper, never()).writeWorkerLog(any());
+
+        // Each work unit counts as a shard, and the workers start at evenly spread units.
+        verify(mockDynamoHelper).startShardedRun(eq(RUN_ID), eq(5), eq(MOCK_NOW_MILLIS), anyLong());
+        assertEquals(shardQueue.size(), 2);
+        assertEquals(shardQueue.poll(), makeWorkerRequestNode(1, 5, 0).put(
+                RunRequest.REQUEST_PARAM_RUN_STARTED_ON, MOCK_NOW_MILLIS));
+        assertEquals(shardQueue.poll(), makeWorkerRequestNode(1, 5, 2).put(
+                RunRequest.REQUEST_PARAM_RUN_STARTED_ON, MOCK_NOW_MILLIS));
+    }
+
+    @Test
+    public void workStealingCoordinatorRedeliveryAfterUnitsFinished() throws Exception {
+        // The run was already started with 3 units, and units 0 and 1 have finished. The redelivered coordinator joins
+        // the run instead of resetting it.
+        InMemoryShardQueue shardQueue = new InMemoryShardQueue();
+        runOrchestrator.setShardingEnabled(true);
+        runOrchestrator.setShardQueue(shardQueue);
+        runOrchestrator.setShardSize(2);
+        runOrchestrator.setWorkStealingEnabled(true);
+        runOrchestrator.setWorkUnitSize(2);
+        runOrchestrator.setNumWorkStealingWorkers(1);
+        when(mockBridgeHelper.getAccountSummaryTotal(STUDY_ID)).thenReturn(8);
+        when(mockDynamoHelper.startShardedRun(eq(RUN_ID), anyInt(), anyLong(), anyLong())).thenReturn(
+                makeShardedRun(3, RUN_STARTED_ON));
+
+        processor.accept(makeValidRequestNode());
+        assertEquals(shardQueue.size(), 1);
+        JsonNode workerRequestNode = shardQueue.poll();
+        assertEquals(workerRequestNode, makeWorkerRequestNode(2, 3, 0).put(
+                RunRequest.REQUEST_PARAM_RUN_STARTED_ON, RUN_STARTED_ON));
+
+        // The worker only gets the unit that hasn't finished. Finishing it finishes the run.
+        WorkUnitClaimer mockClaimer = mock(WorkUnitClaimer.class);
+        when(mockClaimer.claimNextWorkUnit()).thenReturn(2, (Integer) null);
+        when(mockClaimer.renewLeaseIfNeeded()).thenReturn(true);
+        when(mockClaimer.finishWorkUnit()).thenReturn(true);
+        doReturn(mockClaimer).when(runOrchestrator).makeWorkUnitClaimer(RUN_ID + "@" + RUN_STARTED_ON, 3, 0);
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 4)).thenReturn(makeAccountSummaryList(2).iterator());
+        when(mockDynamoHelper.finishShard(RUN_ID, 2)).thenReturn(true);
+
+        processor.accept(workerRequestNode);
+        verify(processor, times(2)).processAccountForDate(any(), any());
+        verify(mockDynamoHelper).finishShard(RUN_ID, 2);
+        verify(mockDynamoHelper).writeWorkerLog(TAG);
+    }
+
+    @Test
+    public void workStealingFewerUnitsThanWorkers() throws Exception {
+        InMemoryShardQueue shardQueue = new InMemoryShardQueue();
+        runOrchestrator.setShardingEnabled(true);
+        runOrchestrator.setShardQueue(shardQueue);
+        runOrchestrator.setShardSize(2);
+        runOrchestrator.setWorkStealingEnabled(true);
+        runOrchestrator.setWorkUnitSize(2);
+        when(mockBridgeHelper.getAccountSummaryTotal(STUDY_ID)).thenReturn(3);
+
+        processor.accept(makeValidRequestNode());
+        verify(mockDynamoHelper).startShardedRun(eq(RUN_ID), eq(2), anyLong(), anyLong());
+        assertEquals(shardQueue.size(), 2);
+    }
+
+    @Test
+    public void workStealingWorkerProcessesClaimedUnits() throws Exception {
+        // 3 units of 2 users. This worker claims units 0 and 2, and another worker does unit 1. The last unit goes
+        // to the end of the roster.
+        processor.setRunCheckpointEnabled(true);
+        WorkUnitClaimer mockClaimer = mock(WorkUnitClaimer.class);
+        when(mockClaimer.claimNextWorkUnit()).thenReturn(0, 2, null);
+        when(mockClaimer.renewLeaseIfNeeded()).thenReturn(true);
+        when(mockClaimer.finishWorkUnit()).thenReturn(true);
+        doReturn(mockClaimer).when(runOrchestrator).makeWorkUnitClaimer(RUN_ID, 3, 0);
+
+        List<AccountSummary> accountSummaryList = makeAccountSummaryList(7);
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(accountSummaryList.iterator());
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 4)).thenReturn(accountSummaryList.subList(4, 7)
+                .iterator());
+        when(mockDynamoHelper.finishShard(RUN_ID, 2)).thenReturn(true);
+
+        processor.accept(makeWorkerRequestNode(2, 3, 0));
+        verify(processor, times(5)).processAccountForDate(any(), any());
+        verify(processor, never()).processAccountForDate(any(), same(accountSummaryList.get(2)));
+        verify(processor, never()).processAccountForDate(any(), same(accountSummaryList.get(3)));
+        verify(processor).processAccountForDate(any(), same(accountSummaryList.get(6)));
+
+        // Each unit has its own checkpoint, so a stolen unit resumes where it left off.
+        verify(mockDynamoHelper).getRunCheckpoint(RUN_ID + "#unit-0");
+        verify(mockDynamoHelper).getRunCheckpoint(RUN_ID + "#unit-2");
+
+        // Each unit is finished in turn, and whoever finishes the last unit writes the worker log.
+        verify(mockClaimer, times(2)).finishWorkUnit();
+        InOrder inOrder = inOrder(mockDynamoHelper);
+        inOrder.verify(mockDynamoHelper).finishShard(RUN_ID, 0);
+        inOrder.verify(mockDynamoHelper).finishShard(RUN_ID, 2);
+        inOrder.verify(mockDynamoHelper).writeWorkerLog(TAG);
+    }
+
+    @Test
+    public void workStealingWorkerStopsWhenLeaseLost() throws Exception {
+        // We process one user, then another worker steals the unit.
+        processor.setRunCheckpointEnabled(true);
+        WorkUnitClaimer mockClaimer = mock(WorkUnitClaimer.class);
+        when(mockClaimer.claimNextWorkUnit()).thenReturn(0, (Integer) null);
+        when(mockClaimer.renewLeaseIfNeeded()).thenReturn(true, false);
+        doReturn(mockClaimer).when(runOrchestrator).makeWorkUnitClaimer(RUN_ID, 2, 0);
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(makeAccountSummaryList(4)
+                .iterator());
+
+        processor.accept(makeWorkerRequestNode(2, 2, 0));
+        verify(processor).processAccountForDate(any(), any());
+
+        // Buffered writes are still flushed, but the unit's new owner finishes it and writes its checkpoints.
+        verify(mockDynamoHelper).flushNotificationLog();
+        verify(mockDynamoHelper, never()).writeRunCheckpoint(any());
+        verify(mockClaimer, never()).finishWorkUnit();
+        verify(mockDynamoHelper, never()).finishShard(any(), anyInt());
+        verify(mockDynamoHelper, never()).writeWorkerLog(any());
+    }
+
+    @Test
+    public void studyRunLeaseDisabled() throws Exception {
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(makeAccountSummaryList(1).iterator());
+        processor.accept(makeValidRequestNode());
+        verify(runOrchestrator, never()).makeStudyRunLeaseKeeper(any(), any(), any());
+        verify(mockDynamoHelper).writeWorkerLog(TAG);
+    }
+
+    @Test
+    public void studyRunLeaseAcquiredAndReleased() throws Exception {
+        runOrchestrator.setStudyRunLeaseEnabled(true);
+        StudyRunLeaseKeeper mockKeeper = mockStudyRunLeaseKeeper(RUN_ID);
+        when(mockKeeper.acquire(anyLong())).thenReturn(true);
+        when(mockKeeper.getStartedOn()).thenReturn(RUN_STARTED_ON);
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(makeAccountSummaryList(1).iterator());
+
+        processor.accept(makeValidRequestNode());
+        verify(mockKeeper).acquire(TimeUnit.SECONDS.toMillis(
+                RunOrchestrator.DEFAULT_STUDY_RUN_LEASE_MAX_WAIT_SECONDS));
+        verify(mockKeeper).renewLeaseIfNeeded();
+
+        // The run's notification time is when the lease holder started the run.
+        assertEquals(captureRunContext().getNotificationTime(), RUN_STARTED_ON);
+
+        // The lease is released once everything is flushed, before the worker log.
+        InOrder inOrder = inOrder(mockDynamoHelper, mockKeeper);
+        inOrder.verify(mockDynamoHelper).flushNotificationLog();
+        inOrder.verify(mockKeeper).release();
+        inOrder.verify(mockDynamoHelper).writeWorkerLog(TAG);
+    }
+
+    @Test
+    public void studyRunLeaseDuplicateIsDropped() throws Exception {
+        // The same run already finished, so this is a duplicate delivery.
+        runOrchestrator.setStudyRunLeaseEnabled(true);
+        StudyRunLeaseKeeper mockKeeper = mockStudyRunLeaseKeeper(RUN_ID);
+        when(mockKeeper.acquire(anyLong())).thenReturn(false);
+
+        processor.accept(makeValidRequestNode());
+        verify(mockBridgeHelper, never()).getAllAccountSummaries(any(), anyInt());
+        verify(processor, never()).processAccountForDate(any(), any());
+        verify(mockKeeper, never()).release();
+        verify(mockDynamoHelper, never()).writeWorkerLog(any());
+    }
+
+    @Test
+    public void studyRunLeaseLostStopsRun() throws Exception {
+        // We process one user, then another run takes over the study and date.
+        processor.setRunCheckpointEnabled(true);
+        runOrchestrator.setStudyRunLeaseEnabled(true);
+        StudyRunLeaseKeeper mockKeeper = mockStudyRunLeaseKeeper(RUN_ID);
+        when(mockKeeper.acquire(anyLong())).thenReturn(true);
+        when(mockKeeper.getStartedOn()).thenReturn(RUN_STARTED_ON);
+        when(mockKeeper.renewLeaseIfNeeded()).thenReturn(true, false);
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(makeAccountSummaryList(4)
+                .iterator());
+
+        processor.accept(makeValidRequestNode());
+        verify(processor).processAccountForDate(any(), any());
+
+        // Buffered writes are still flushed, but whoever took over writes the checkpoints and finishes the run.
+        verify(mockDynamoHelper).flushNotificationLog();
+        verify(mockDynamoHelper, never()).writeRunCheckpoint(any());
+        verify(mockKeeper, never()).release();
+        verify(mockDynamoHelper, never()).writeWorkerLog(any());
+    }
+
+    @Test
+    public void studyRunLeaseLostStopsWorkStealingWorker() throws Exception {
+        // We claim unit 0 and process one user, then another run takes over the study and date. We don't claim any
+        // more units, since they'd all fail the same way.
+        runOrchestrator.setStudyRunLeaseEnabled(true);
+        StudyRunLeaseKeeper mockKeeper = mockStudyRunLeaseKeeper(RUN_ID);
+        when(mockKeeper.renewLeaseIfNeeded()).thenReturn(true, false);
+        WorkUnitClaimer mockClaimer = mock(WorkUnitClaimer.class);
+        when(mockClaimer.claimNextWorkUnit()).thenReturn(0, 1, null);
+        when(mockClaimer.renewLeaseIfNeeded()).thenReturn(true);
+        when(mockClaimer.finishWorkUnit()).thenReturn(true);
+        doReturn(mockClaimer).when(runOrchestrator).makeWorkUnitClaimer(RUN_ID, 2, 0);
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(makeAccountSummaryList(4)
+                .iterator());
+
+        processor.accept(makeWorkerRequestNode(2, 2, 0));
+        verify(processor).processAccountForDate(any(), any());
+        verify(mockClaimer).claimNextWorkUnit();
+        verify(mockClaimer, never()).finishWorkUnit();
+        verify(mockBridgeHelper, never()).getAllAccountSummaries(STUDY_ID, 2);
+        verify(mockDynamoHelper, never()).finishShard(any(), anyInt());
+        verify(mockKeeper, never()).release();
+        verify(mockDynamoHelper, never()).writeWorkerLog(any());
+    }
+
+    @Test
+    public void studyRunLeaseCoordinatorKeepsLease() throws Exception {
+        // The coordinator acquires the lease, and the shards release it.
+        InMemoryShardQueue shardQueue = new InMemoryShardQueue();
+        runOrchestrator.setShardingEnabled(true);
+        runOrchestrator.setShardQueue(shardQueue);
+        runOrchestrator.setShardSize(2);
+        runOrchestrator.setStudyRunLeaseEnabled(true);
+        StudyRunLeaseKeeper mockKeeper = mockStudyRunLeaseKeeper(RUN_ID);
+        when(mockKeeper.acquire(anyLong())).thenReturn(true);
+        when(mockKeeper.getStartedOn()).thenReturn(RUN_STARTED_ON);
+        when(mockBridgeHelper.getAccountSummaryTotal(STUDY_ID)).thenReturn(3);
+
+        processor.accept(makeValidRequestNode());
+        verify(mockKeeper).acquire(anyLong());
+        verify(mockKeeper, never()).release();
+
+        // The shards use the lease holder's start time.
+        assertEquals(shardQueue.size(), 2);
+        assertEquals(shardQueue.poll().get(RunRequest.REQUEST_PARAM_RUN_STARTED_ON)
+                .longValue(), RUN_STARTED_ON);
+    }
+
+    @Test
+    public void studyRunLeaseShardOnlyRenews() throws Exception {
+        runOrchestrator.setStudyRunLeaseEnabled(true);
+        StudyRunLeaseKeeper mockKeeper = mockStudyRunLeaseKeeper(RUN_ID);
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 4)).thenReturn(makeAccountSummaryList(1).iterator());
+        when(mockDynamoHelper.finishShard(RUN_ID, 2)).thenReturn(true);
+
+        ObjectNode requestNode = makeShardRequestNode(2, 4, 0);
+        requestNode.remove(RunRequest.REQUEST_PARAM_SHARD_END_OFFSET);
+        requestNode.put(RunRequest.REQUEST_PARAM_RUN_STARTED_ON, RUN_STARTED_ON);
+        processor.accept(requestNode);
+        verify(mockKeeper, never()).acquire(anyLong());
+        verify(mockKeeper).renewLeaseIfNeeded();
+        assertEquals(captureRunContext().getNotificationTime(), RUN_STARTED_ON);
+
+        // This is the last shard to finish, so it releases the lease.
+        InOrder inOrder = inOrder(mockDynamoHelper, mockKeeper);
+        inOrder.verify(mockDynamoHelper).finishShard(RUN_ID, 2);
+        inOrder.verify(mockKeeper).release();
+        inOrder.verify(mockDynamoHelper).writeWorkerLog(TAG);
+    }
+
+    @Test
+    public void studyRunLeaseTargetedRunHasOwnLeaseRunId() throws Exception {
+        // A run for a list of users never joins the full run, even though they share a run ID.
+        runOrchestrator.setStudyRunLeaseEnabled(true);
+        StudyRunLeaseKeeper mockKeeper = mock(StudyRunLeaseKeeper.class);
+        when(mockKeeper.acquire(anyLong())).thenReturn(true);
+        when(mockKeeper.getStartedOn()).thenReturn(RUN_STARTED_ON);
+        when(mockKeeper.renewLeaseIfNeeded()).thenReturn(true);
+        doReturn(mockKeeper).when(runOrchestrator).makeStudyRunLeaseKeeper(eq(STUDY_ID), eq(DATE), startsWith(RUN_ID +
+                "#targeted-"));
+
+        ObjectNode requestNode = makeValidRequestNode();
+        requestNode.putArray(RunRequest.REQUEST_PARAM_USER_IDS).add("user-1");
+        processor.accept(requestNode);
+        verify(mockKeeper).acquire(anyLong());
+        verify(processor).processAccountForDate(any(), any());
+        verify(mockKeeper).release();
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class, expectedExceptionsMessageRegExp =
+            "Conditional notification log writes require the study run lease")
+    public void conditionalNotificationLogRequiresStudyRunLease() throws Exception {
+        processor.setConditionalNotificationLogEnabled(true);
+        processor.accept(makeValidRequestNode());
+    }
+
+    @Test
+    public void conditionalNotificationLogWithStudyRunLease() throws Exception {
+        processor.setConditionalNotificationLogEnabled(true);
+        runOrchestrator.setStudyRunLeaseEnabled(true);
+        StudyRunLeaseKeeper mockKeeper = mockStudyRunLeaseKeeper(RUN_ID);
+        when(mockKeeper.acquire(anyLong())).thenReturn(true);
+        when(mockKeeper.getStartedOn()).thenReturn(RUN_STARTED_ON);
+        when(mockBridgeHelper.getAllAccountSummaries(STUDY_ID, 0)).thenReturn(makeAccountSummaryList(1).iterator());
+
+        processor.accept(makeValidRequestNode());
+        assertEquals(captureRunContext().getNotificationTime(), RUN_STARTED_ON);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void runCheckpointIntervalMustBePositive() {
+        processor.setRunCheckpointInterval(0);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void burstCalendarMaxAgeDaysMustBePositive() {
+        processor.setBurstCalendarMaxAgeDays(0);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void numThreadsMustBePositive() {
+        processor.setNumThreads(0);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void perThreadRateLimitMustBePositive() {
+        processor.setPerThreadRateLimit(0.0);
+    }
+
+    @Test
+    public void rateLimitScalesWithNumThreads() {
+        BridgeNotificationWorkerProcessor newProcessor = new BridgeNotificationWorkerProcessor();
+        assertEquals(newProcessor.getPerUserRateLimit(), BridgeNotificationWorkerProcessor.DEFAULT_NUM_THREADS *
+                BridgeNotificationWorkerProcessor.DEFAULT_PER_THREAD_RATE_LIMIT, 0.001);
+
+        newProcessor.setNumThreads(8);
+        assertEquals(newProcessor.getPerUserRateLimit(), 8.0, 0.001);
+
+        newProcessor.setPerThreadRateLimit(2.5);
+        assertEquals(newProcessor.getPerUserRateLimit(), 20.0, 0.001);
+
+        newProcessor.setNumThreads(2);
+        assertEquals(newProcessor.getPerUserRateLimit(), 5.0, 0.001);
+    }
+
+    // Captures the run context from the single user processed in the run.
+    private RunContext captureRunContext() throws Exception {
+        ArgumentCaptor<RunContext> runContextCaptor = ArgumentCaptor.forClass(RunContext.class);
+        verify(processor).processAccountForDate(runContextCaptor.capture(), any());
+        return runContextCaptor.getValue();
+    }
+
+    private static ShardedRun makeShardedRun(int numShards, long startedOn) {
+        ShardedRun shardedRun = new ShardedRun();
+        shardedRun.setNumShards(numShards);
+        shardedRun.setStartedOn(startedOn);
+        return shardedRun;
+    }
+
+    // Mocks the lease keeper for the given run. Renewals succeed by default.
+    private StudyRunLeaseKeeper mockStudyRunLeaseKeeper(String runId) {
+        StudyRunLeaseKeeper mockKeeper = mock(StudyRunLeaseKeeper.class);
+        when(mockKeeper.renewLeaseIfNeeded()).thenReturn(true);
+        doReturn(mockKeeper).when(runOrchestrator).makeStudyRunLeaseKeeper(STUDY_ID, DATE, runId);
+        return mockKeeper;
+    }
+
+    // Captures every run checkpoint written during the run, in order.
+    private List<RunCheckpoint> captureRunCheckpoints() {
+        ArgumentCaptor<RunCheckpoint> checkpointCaptor = ArgumentCaptor.forClass(RunCheckpoint.class);
+        verify(mockDynamoHelper, atLeastOnce()).writeRunCheckpoint(checkpointCaptor.capture());
+        return checkpointCaptor.getAllValues();
+    }
+
+    private static List<AccountSummary> makeAccountSummaryList(int numUsers) {
+        List<AccountSummary> accountSummaryList = new ArrayList<>();
+        for (int i = 0; i < numUsers; i++) {
+            accountSummaryList.add(new AccountSummary().id("user-" + i));
+        }
+        return accountSummaryList;
+    }
+
+    private static ObjectNode makeBackfillRequestNode() {
+        ObjectNode requestNode = makeValidRequestNode();
+        requestNode.put(RunRequest.REQUEST_PARAM_BACKFILL_START_DATE,
+                BACKFILL_START_DATE_STRING);
+        return requestNode;
+    }
+
+    private static ObjectNode makeRetryRequestNode() {
+        ObjectNode requestNode = makeValidRequestNode();
+        requestNode.put(RunRequest.REQUEST_PARAM_RETRY_FAILED_USERS, true);
+        return requestNode;
+    }
+
+    private static ObjectNode makeShardRequestNode(int shardIndex, int startOffset, int endOffset) {
+        ObjectNode requestNode = makeValidRequestNode();
+        requestNode.put(RunRequest.REQUEST_PARAM_SHARD_INDEX, shardIndex);
+        requestNode.put(RunRequest.REQUEST_PARAM_SHARD_START_OFFSET, startOffset);
+        requestNode.put(RunRequest.REQUEST_PARAM_SHARD_END_OFFSET, endOffset);
+        return requestNode;
+    }
+
+    private static ObjectNode makeWorkerRequestNode(int workUnitSize, int numWorkUnits, int firstWorkUnit) {
+        ObjectNode requestNode = makeValidRequestNode();
+        requestNode.put(RunRequest.REQUEST_PARAM_WORK_UNIT_SIZE, workUnitSize);
+        requestNode.put(RunRequest.REQUEST_PARAM_NUM_WORK_UNITS, numWorkUnits);
+        requestNode.put(RunRequest.REQUEST_PARAM_FIRST_WORK_UNIT, firstWorkUnit);
+        return requestNode;
+    }
+
     private static ObjectNode makeValidRequestNode() {
         ObjectNode requestNode = JSON_MAPPER.createObjectNode();
-        requestNode.put(BridgeNotificationWorkerProcessor.REQUEST_PARAM_STUDY_ID, STUDY_ID);
-        requestNode.put(BridgeNotificationWorkerProcessor.REQUEST_PARAM_DATE, DATE_STRING);
-        requestNode.put(BridgeNotificationWorkerProcessor.REQUEST_PARAM_TAG, TAG);
+        requestNode.put(RunRequest.REQUEST_PARAM_STUDY_ID, STUDY_ID);
+        requestNode.put(RunRequest.REQUEST_PARAM_DATE, DATE_STRING);
+        requestNode.put(RunRequest.REQUEST_PARAM_TAG, TAG);
         return requestNode;
     }
 }
@@ -0,0 +1,90 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class BurstAdherenceEvaluatorTest {
+    private BurstAdherenceEvaluator evaluator;
+
+    @BeforeMethod
+    public void before() {
+        // earlyLateCutoffDays=5, numActivitiesToCompleteBurst=6, numMissedConsecutiveDaysToNotify=2,
+        // numMissedDaysToNotify=3
+        WorkerConfig config = CompiledWorkerConfigTest.makeValidWorkerConfig();
+        evaluator = new BurstAdherenceEvaluator(CompiledWorkerConfig.compile(config));
+    }
+
+    @Test
+    public void noDays() {
+        assertFalse(evaluator.isDecided());
+        assertFalse(evaluator.isCompleted());
+        assertNull(evaluator.getNotificationType());
+        assertEquals(evaluator.getNumDays(), 0);
+    }
+
+    @Test
+    public void finishedDaysAreUndecided() {
+        assertFalse(evaluator.addDay(true));
+        assertFalse(evaluator.addDay(true));
+        assertFalse(evaluator.isDecided());
+        assertNull(evaluator.getNotificationType());
+        assertEquals(evaluator.getNumDays(), 2);
+    }
+
+    @Test
+    public void missedConsecutiveDaysEarly() {
+        assertFalse(evaluator.addDay(true));
+        assertFalse(evaluator.addDay(false));
+        assertTrue(evaluator.addDay(false));
+        assertEquals(evaluator.getNotificationType(), NotificationType.EARLY);
+        assertEquals(evaluator.getNumDays(), 3);
+    }
+
+    @Test
+    public void missedConsecutiveDaysLate() {
+        // 4 finished days, then the 5th and 6th days are missed. The 6th day has 5 days before it, which is late.
+        for (int i = 0; i < 4; i++) {
+            assertFalse(evaluator.addDay(true));
+        }
+        assertFalse(evaluator.addDay(false));
+        assertTrue(evaluator.addDay(false));
+        assertEquals(evaluator.getNotificationType(), NotificationType.LATE);
+    }
+
+    @Test
+    public void missedCumulativeDays() {
+        assertFalse(evaluator.addDay(false));
+        assertFalse(evaluator.addDay(true));
+        assertFalse(evaluator.addDay(false));
+        assertFalse(evaluator.addDay(true));
+        assertTrue(evaluator.addDay(false));
+        assertFalse(evaluator.isCompleted());
+        assertEquals(evaluator.getNotificationType(), NotificationType.CUMULATIVE);
+    }
+
+    @Test
+    public void completedBurst() {
+        for (int i = 0; i < 5; i++) {
+            assertFalse(evaluator.addDay(true));
+        }
+        assertTrue(evaluator.addDay(true));
+        assertTrue(evaluator.isCompleted());
+        assertNull(evaluator.getNotificationType());
+    }
+
+    @Test
+    public void daysAfterDecisionAreIgnored() {
+        evaluator.addDay(false);
+        assertTrue(evaluator.addDay(false));
+
+        // More missed days would otherwise make this cumulative.
+        assertTrue(evaluator.addDay(false));
+        assertEquals(evaluator.getNotificationType(), NotificationType.EARLY);
+        assertEquals(evaluator.getNumDays(), 2);
+    }
+}
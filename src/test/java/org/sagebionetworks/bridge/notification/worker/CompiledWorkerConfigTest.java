@@ -0,0 +1,169 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.util.Map;
+import java.util.function.Consumer;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+public class CompiledWorkerConfigTest {
+    private static final String REQUIRED_DATA_GROUP_1 = "required-group-1";
+    private static final String REQUIRED_DATA_GROUP_2 = "required-group-2";
+
+    @Test
+    public void compile() {
+        WorkerConfig workerConfig = makeValidWorkerConfig();
+        CompiledWorkerConfig compiledConfig = CompiledWorkerConfig.compile(workerConfig);
+        assertEquals(compiledConfig.getBurstDurationDays(), 9);
+        assertEquals(compiledConfig.getBurstStartEventIdSet(), ImmutableSet.of("enrollment"));
+        assertEquals(compiledConfig.getBurstTaskId(), "study-burst-task");
+        assertEquals(compiledConfig.getEarlyLateCutoffDays(), 5);
+        assertEquals(compiledConfig.getExcludedDataGroupSet(), ImmutableSet.of("excluded-group"));
+        assertEquals(compiledConfig.getNotificationBlackoutDaysFromStart(), 3);
+        assertEquals(compiledConfig.getNotificationBlackoutDaysFromEnd(), 1);
+        assertEquals(compiledConfig.getNumActivitiesToCompleteBurst(), 6);
+        assertEquals(compiledConfig.getNumMissedConsecutiveDaysToNotify(), 2);
+        assertEquals(compiledConfig.getNumMissedDaysToNotify(), 3);
+        assertEquals(compiledConfig.getRequiredDataGroupsOneOfSet(), ImmutableSet.of(REQUIRED_DATA_GROUP_1,
+                REQUIRED_DATA_GROUP_2));
+        assertEquals(compiledConfig.getRequiredSubpopulationGuidSet(), ImmutableSet.of("required-subpop"));
+
+        assertEquals(compiledConfig.getMessagesByDataGroup(NotificationType.CUMULATIVE),
+                workerConfig.getMissedCumulativeActivitiesMessagesByDataGroup());
+        assertEquals(compiledConfig.getMessagesByDataGroup(NotificationType.EARLY),
+                workerConfig.getMissedEarlyActivitiesMessagesByDataGroup());
+        assertEquals(compiledConfig.getMessagesByDataGroup(NotificationType.LATE),
+                workerConfig.getMissedLaterActivitiesMessagesByDataGroup());
+        assertEquals(compiledConfig.getMessagesByDataGroup(NotificationType.PRE_BURST),
+                workerConfig.getPreburstMessagesByDataGroup());
+    }
+
+    @Test
+    public void snapshotIsUnaffectedByLaterChanges() {
+        WorkerConfig workerConfig = makeValidWorkerConfig();
+        CompiledWorkerConfig compiledConfig = CompiledWorkerConfig.compile(workerConfig);
+
+        workerConfig.setBurstDurationDays(19);
+        workerConfig.setBurstTaskId("other-task");
+        workerConfig.setMissedEarlyActivitiesMessagesByDataGroup(ImmutableMap.of());
+
+        assertEquals(compiledConfig.getBurstDurationDays(), 9);
+        assertEquals(compiledConfig.getBurstTaskId(), "study-burst-task");
+        assertEquals(compiledConfig.getMessageForDataGroups(NotificationType.EARLY,
+                ImmutableList.of(REQUIRED_DATA_GROUP_1)), "early-1");
+    }
+
+    @Test
+    public void getMessageForDataGroups() {
+        CompiledWorkerConfig compiledConfig = CompiledWorkerConfig.compile(makeValidWorkerConfig());
+
+        // First data group with a message wins.
+        assertEquals(compiledConfig.getMessageForDataGroups(NotificationType.EARLY, ImmutableList.of(
+                "irrelevant-group", REQUIRED_DATA_GROUP_2, REQUIRED_DATA_GROUP_1)), "early-2");
+        assertEquals(compiledConfig.getMessageForDataGroups(NotificationType.PRE_BURST, ImmutableList.of(
+                REQUIRED_DATA_GROUP_1)), "pre-burst");
+
+        // No matching data groups.
+        assertNull(compiledConfig.getMessageForDataGroups(NotificationType.LATE, ImmutableList.of(
+                "irrelevant-group")));
+        assertNull(compiledConfig.getMessageForDataGroups(NotificationType.LATE, ImmutableList.of()));
+    }
+
+    @Test
+    public void missingMessagesAreAllowed() {
+        // A required data group is missing a message, and another message is keyed on a data group that isn't
+        // required. Only the users who would get the missing message are affected, so the config still compiles.
+        WorkerConfig workerConfig = makeValidWorkerConfig();
+        workerConfig.setMissedLaterActivitiesMessagesByDataGroup(ImmutableMap.of(REQUIRED_DATA_GROUP_1, "late",
+                "other-group", "other-late"));
+        workerConfig.setPreburstMessagesByDataGroup(null);
+        CompiledWorkerConfig compiledConfig = CompiledWorkerConfig.compile(workerConfig);
+
+        assertEquals(compiledConfig.getMessageForDataGroups(NotificationType.LATE, ImmutableList.of(
+                REQUIRED_DATA_GROUP_1)), "late");
+        assertNull(compiledConfig.getMessageForDataGroups(NotificationType.LATE, ImmutableList.of(
+                REQUIRED_DATA_GROUP_2)));
+        assertNull(compiledConfig.getMessageForDataGroups(NotificationType.PRE_BURST, ImmutableList.of(
+                REQUIRED_DATA_GROUP_1)));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class, expectedExceptionsMessageRegExp =
+            "config must be specified")
+    public void nullConfig() {
+        CompiledWorkerConfig.compile(null);
+    }
+
+    @DataProvider(name = "invalidConfigProvider")
+    public Object[][] invalidConfigProvider() {
+        return new Object[][] {
+                { (Consumer<WorkerConfig>) c -> c.setBurstDurationDays(0), "burstDurationDays must be positive" },
+                { (Consumer<WorkerConfig>) c -> c.setBurstStartEventIdSet(null),
+                        "burstStartEventIdSet must be specified" },
+                { (Consumer<WorkerConfig>) c -> c.setBurstTaskId(""), "burstTaskId must be specified" },
+                { (Consumer<WorkerConfig>) c -> c.setEarlyLateCutoffDays(-1), "earlyLateCutoffDays can't be negative" },
+                { (Consumer<WorkerConfig>) c -> c.setNotificationBlackoutDaysFromStart(-1),
+                        "notificationBlackoutDaysFromStart can't be negative" },
+                { (Consumer<WorkerConfig>) c -> c.setNotificationBlackoutDaysFromEnd(-1),
+                        "notificationBlackoutDaysFromEnd can't be negative" },
+                { (Consumer<WorkerConfig>) c -> c.setNumActivitiesToCompleteBurst(0),
+                        "numActivitiesToCompleteBurst must be positive" },
+                { (Consumer<WorkerConfig>) c -> c.setNumMissedConsecutiveDaysToNotify(0),
+                        "numMissedConsecutiveDaysToNotify must be positive" },
+                { (Consumer<WorkerConfig>) c -> c.setNumMissedDaysToNotify(0),
+                        "numMissedDaysToNotify must be positive" },
+        };
+    }
+
+    @Test(dataProvider = "invalidConfigProvider")
+    public void invalidConfig(Consumer<WorkerConfig> mutator, String expectedMessage) {
+        WorkerConfig workerConfig = makeValidWorkerConfig();
+        mutator.accept(workerConfig);
+        try {
+            CompiledWorkerConfig.compile(workerConfig);
+            throw new AssertionError("expected exception");
+        } catch (IllegalArgumentException ex) {
+            assertEquals(ex.getMessage(), expectedMessage);
+        }
+    }
+
+    // Makes a valid worker config. Package-scoped so other tests can use it.
+    static WorkerConfig makeValidWorkerConfig() {
+        Map<String, String> missedCumulativeMessageMap = ImmutableMap.of(
+                REQUIRED_DATA_GROUP_1, "cumulative",
+                REQUIRED_DATA_GROUP_2, "cumulative");
+        Map<String, String> missedEarlyMessageMap = ImmutableMap.of(
+                REQUIRED_DATA_GROUP_1, "early-1",
+                REQUIRED_DATA_GROUP_2, "early-2");
+        Map<String, String> missedLateMessageMap = ImmutableMap.of(
+                REQUIRED_DATA_GROUP_1, "late",
+                REQUIRED_DATA_GROUP_2, "late");
+        Map<String, String> preburstMessageMap = ImmutableMap.of(
+                REQUIRED_DATA_GROUP_1, "pre-burst",
+                REQUIRED_DATA_GROUP_2, "pre-burst");
+
+        WorkerConfig config = new WorkerConfig();
+        config.setBurstDurationDays(9);
+        config.setBurstStartEventIdSet(ImmutableSet.of("enrollment"));
+        config.setBurstTaskId("study-burst-task");
+        config.setEarlyLateCutoffDays(5);
+        config.setExcludedDataGroupSet(ImmutableSet.of("excluded-group"));
+        config.setMissedCumulativeActivitiesMessagesByDataGroup(missedCumulativeMessageMap);
+        config.setMissedEarlyActivitiesMessagesByDataGroup(missedEarlyMessageMap);
+        config.setMissedLaterActivitiesMessagesByDataGroup(missedLateMessageMap);
+        config.setNotificationBlackoutDaysFromStart(3);
+        config.setNotificationBlackoutDaysFromEnd(1);
+        config.setNumActivitiesToCompleteBurst(6);
+        config.setNumMissedConsecutiveDaysToNotify(2);
+        config.setNumMissedDaysToNotify(3);
+        config.setPreburstMessagesByDataGroup(preburstMessageMap);
+        config.setRequiredDataGroupsOneOfSet(ImmutableSet.of(REQUIRED_DATA_GROUP_1, REQUIRED_DATA_GROUP_2));
+        config.setRequiredSubpopulationGuidSet(ImmutableSet.of("required-subpop"));
+        return config;
+    }
+}
@@ -0,0 +1,111 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class ExclusionPipelineTest {
+    private static final List<ExclusionStage> DEFAULT_ORDER = ImmutableList.copyOf(ExclusionStage.values());
+
+    private ExclusionPipeline pipeline;
+
+    @BeforeMethod
+    public void before() {
+        pipeline = new ExclusionPipeline();
+    }
+
+    @Test
+    public void defaultOrder() {
+        assertEquals(pipeline.getStageOrder(), DEFAULT_ORDER);
+        assertEquals(pipeline.startUser(), DEFAULT_ORDER);
+
+        // With no stats, computing the order keeps the default order.
+        assertEquals(pipeline.computeStageOrder(), DEFAULT_ORDER);
+    }
+
+    @Test
+    public void stats() {
+        pipeline.recordStage(ExclusionStage.CONSENT, false, 1000);
+        pipeline.recordStage(ExclusionStage.CONSENT, true, 3000);
+        pipeline.recordFetch(UserResource.PARTICIPANT, 2000000);
+
+        assertEquals(pipeline.getNumEvaluated(ExclusionStage.CONSENT), 2);
+        assertEquals(pipeline.getNumRejected(ExclusionStage.CONSENT), 1);
+        assertEquals(pipeline.getNumEvaluated(ExclusionStage.DATA_GROUPS), 0);
+        assertEquals(pipeline.getNumFetched(UserResource.PARTICIPANT), 1);
+        assertEquals(pipeline.getNumFetched(UserResource.ACTIVITY_EVENTS), 0);
+
+        String stats = pipeline.formatStats();
+        assertTrue(stats.contains("CONSENT={evaluated=2, rejected=1, avgMicros=2}"), stats);
+        assertTrue(stats.contains("PARTICIPANT={fetched=1, avgMillis=2}"), stats);
+    }
+
+    @Test
+    public void selectiveStageWithCheapResourceMovesFirst() {
+        // Getting the participant is expensive and the participant stages rarely reject anyone. The recent
+        // notification stage rejects most users and its resource is cheap.
+        for (int i = 0; i < 100; i++) {
+            pipeline.recordFetch(UserResource.PARTICIPANT, 100000000);
+            pipeline.recordFetch(UserResource.LAST_NOTIFICATION, 10000000);
+            pipeline.recordStage(ExclusionStage.PHONE_VERIFIED, false, 1000);
+            pipeline.recordStage(ExclusionStage.TIME_ZONE, false, 1000);
+            pipeline.recordStage(ExclusionStage.CONSENT, false, 1000);
+            pipeline.recordStage(ExclusionStage.DATA_GROUPS, false, 1000);
+            pipeline.recordStage(ExclusionStage.RECENT_NOTIFICATION, i % 10 != 0, 1000);
+        }
+
+        // The burst calendar and exclusion cache stages have no resources to fetch, so they always run first.
+        List<ExclusionStage> order = pipeline.computeStageOrder();
+        assertEquals(order.subList(0, 3), ImmutableList.of(ExclusionStage.BURST_CALENDAR,
+                ExclusionStage.EXCLUSION_CACHE, ExclusionStage.RECENT_NOTIFICATION));
+    }
+
+    @Test
+    public void sharedResourceIsOnlyChargedOnce() {
+        // Data groups rejects half the users, but needs the expensive participant. Once the participant is fetched,
+        // the other participant stages are cheap, so they run before burst window, which needs activity events too.
+        for (int i = 0; i < 100; i++) {
+            pipeline.recordFetch(UserResource.PARTICIPANT, 100000000);
+            pipeline.recordFetch(UserResource.ACTIVITY_EVENTS, 100000000);
+            pipeline.recordFetch(UserResource.LAST_NOTIFICATION, 100000000);
+            pipeline.recordStage(ExclusionStage.PHONE_VERIFIED, i % 20 == 0, 1000);
+            pipeline.recordStage(ExclusionStage.TIME_ZONE, i % 20 == 0, 1000);
+            pipeline.recordStage(ExclusionStage.CONSENT, i % 20 == 0, 1000);
+            pipeline.recordStage(ExclusionStage.DATA_GROUPS, i % 2 == 0, 1000);
+            pipeline.recordStage(ExclusionStage.RECENT_NOTIFICATION, i % 20 == 0, 1000);
+            pipeline.recordStage(ExclusionStage.BURST_WINDOW, i % 4 == 0, 1000);
+        }
+
+        List<ExclusionStage> order = pipeline.computeStageOrder();
+        assertEquals(order.subList(0, 2), ImmutableList.of(ExclusionStage.BURST_CALENDAR,
+                ExclusionStage.EXCLUSION_CACHE));
+        assertEquals(order.get(2), ExclusionStage.DATA_GROUPS);
+        assertEquals(order.subList(3, 6), ImmutableList.of(ExclusionStage.PHONE_VERIFIED,
+                ExclusionStage.TIME_ZONE, ExclusionStage.CONSENT));
+        assertEquals(order.get(6), ExclusionStage.BURST_WINDOW);
+        assertEquals(order.get(7), ExclusionStage.RECENT_NOTIFICATION);
+    }
+
+    @Test
+    public void startUserReordersPeriodically() {
+        // Make recent notification the obvious first stage.
+        for (int i = 0; i < 100; i++) {
+            pipeline.recordFetch(UserResource.PARTICIPANT, 100000000);
+            pipeline.recordStage(ExclusionStage.RECENT_NOTIFICATION, true, 1000);
+        }
+
+        // We keep the default order until we've seen enough users.
+        for (int i = 1; i < ExclusionPipeline.MIN_USERS_BEFORE_REORDER; i++) {
+            assertEquals(pipeline.startUser(), DEFAULT_ORDER);
+        }
+
+        // Then we reorder. Recent notification runs right after the burst calendar and exclusion cache, which are free.
+        assertEquals(pipeline.startUser().get(2), ExclusionStage.RECENT_NOTIFICATION);
+        assertEquals(pipeline.getStageOrder().get(2), ExclusionStage.RECENT_NOTIFICATION);
+    }
+}
@@ -0,0 +1,194 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.joda.time.LocalDate;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.notification.helper.BridgeHelper;
+import org.sagebionetworks.bridge.notification.helper.DynamoHelper;
+import org.sagebionetworks.bridge.notification.helper.ShardQueue;
+
+public class RunOrchestratorTest {
+    private static final String DATE_STRING = "2018-04-27";
+    private static final LocalDate DATE = LocalDate.parse(DATE_STRING);
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+    private static final String STUDY_ID = "test-study";
+    private static final String TAG = "dummy tag";
+    private static final String RUN_ID = STUDY_ID + ":" + DATE_STRING + ":" + TAG;
+
+    private BridgeHelper mockBridgeHelper;
+    private DynamoHelper mockDynamoHelper;
+    private ShardQueue mockShardQueue;
+    private RunOrchestrator orchestrator;
+
+    @BeforeMethod
+    public void before() {
+        mockBridgeHelper = mock(BridgeHelper.class);
+        mockDynamoHelper = mock(DynamoHelper.class);
+        mockShardQueue = mock(ShardQueue.class);
+
+        orchestrator = spy(new RunOrchestrator());
+        orchestrator.setBridgeHelper(mockBridgeHelper);
+        orchestrator.setDynamoHelper(mockDynamoHelper);
+        orchestrator.setShardQueue(mockShardQueue);
+    }
+
+    @Test
+    public void noLeaseKeeperIfLeaseDisabled() throws Exception {
+        assertNull(orchestrator.makeStudyRunLeaseKeeper(RunRequest.parse(makeValidRequestNode())));
+        verify(orchestrator, never()).makeStudyRunLeaseKeeper(any(), any(), any());
+    }
+
+    @Test
+    public void leaseKeeperUsesRunId() throws Exception {
+        orchestrator.setStudyRunLeaseEnabled(true);
+        orchestrator.makeStudyRunLeaseKeeper(RunRequest.parse(makeValidRequestNode()));
+        verify(orchestrator).makeStudyRunLeaseKeeper(STUDY_ID, DATE, RUN_ID);
+    }
+
+    @Test
+    public void targetedRunGetsItsOwnLeaseRunId() throws Exception {
+        orchestrator.setStudyRunLeaseEnabled(true);
+        ObjectNode requestNode = makeValidRequestNode();
+        requestNode.putArray(RunRequest.REQUEST_PARAM_USER_IDS).add("user-1");
+        orchestrator.makeStudyRunLeaseKeeper(RunRequest.parse(requestNode));
+        verify(orchestrator).makeStudyRunLeaseKeeper(eq(STUDY_ID), eq(DATE), startsWith(RUN_ID + "#targeted-"));
+    }
+
+    @Test
+    public void startShardedRunDoesNothingIfShardingDisabled() throws Exception {
+        ObjectNode requestNode = makeValidRequestNode();
+        assertFalse(orchestrator.startShardedRun(RunRequest.parse(requestNode), requestNode, 1234L));
+        verifyZeroInteractions(mockBridgeHelper, mockDynamoHelper, mockShardQueue);
+    }
+
+    @Test
+    public void startShardedRunDoesNothingForShard() throws Exception {
+        orchestrator.setShardingEnabled(true);
+        ObjectNode requestNode = makeValidRequestNode();
+        requestNode.put(RunRequest.REQUEST_PARAM_SHARD_INDEX, 0);
+        requestNode.put(RunRequest.REQUEST_PARAM_SHARD_START_OFFSET, 0);
+        assertFalse(orchestrator.startShardedRun(RunRequest.parse(requestNode), requestNode, 1234L));
+        verifyZeroInteractions(mockBridgeHelper, mockDynamoHelper, mockShardQueue);
+    }
+
+    @Test
+    public void startShardedRunDoesNothingForSmallStudy() throws Exception {
+        orchestrator.setShardingEnabled(true);
+        orchestrator.setShardSize(2);
+        when(mockBridgeHelper.getAccountSummaryTotal(STUDY_ID)).thenReturn(2);
+
+        ObjectNode requestNode = makeValidRequestNode();
+        assertFalse(orchestrator.startShardedRun(RunRequest.parse(requestNode), requestNode, 1234L));
+        verifyZeroInteractions(mockDynamoHelper, mockShardQueue);
+    }
+
+    @Test
+    public void wholeRunFinishes() throws Exception {
+        List<String> checkpointIdList = new ArrayList<>();
+        List<String> finishedList = new ArrayList<>();
+        orchestrator.processRequest(RunRequest.parse(makeValidRequestNode()),
+                (checkpointId, startOffset, endOffset, workUnitClaimer) -> {
+                    checkpointIdList.add(checkpointId + "[" + startOffset + "," + endOffset + ")");
+                    return RangeOutcome.FINISHED;
+                }, () -> finishedList.add(RUN_ID));
+        assertEquals(checkpointIdList.size(), 1);
+        assertEquals(checkpointIdList.get(0), RUN_ID + "[0," + Integer.MAX_VALUE + ")");
+        assertEquals(finishedList.size(), 1);
+        verify(mockDynamoHelper, never()).finishShard(anyString(), anyInt());
+    }
+
+    @Test
+    public void onlyLastShardFinishesRun() throws Exception {
+        ObjectNode requestNode = makeValidRequestNode();
+        requestNode.put(RunRequest.REQUEST_PARAM_SHARD_INDEX, 1);
+        requestNode.put(RunRequest.REQUEST_PARAM_SHARD_START_OFFSET, 2);
+        requestNode.put(RunRequest.REQUEST_PARAM_SHARD_END_OFFSET, 4);
+        RunRequest request = RunRequest.parse(requestNode);
+
+        List<String> checkpointIdList = new ArrayList<>();
+        List<String> finishedList = new ArrayList<>();
+        RunOrchestrator.RangeProcessor rangeProcessor = (checkpointId, startOffset, endOffset, workUnitClaimer) -> {
+            checkpointIdList.add(checkpointId + "[" + startOffset + "," + endOffset + ")");
+            return RangeOutcome.FINISHED;
+        };
+
+        // Another shard is still running.
+        when(mockDynamoHelper.finishShard(RUN_ID, 1)).thenReturn(false);
+        orchestrator.processRequest(request, rangeProcessor, () -> finishedList.add(RUN_ID));
+        assertEquals(checkpointIdList.get(0), RUN_ID + "#shard-1[2,4)");
+        assertEquals(finishedList.size(), 0);
+
+        // This is the last shard.
+        when(mockDynamoHelper.finishShard(RUN_ID, 1)).thenReturn(true);
+        orchestrator.processRequest(request, rangeProcessor, () -> finishedList.add(RUN_ID));
+        assertEquals(finishedList.size(), 1);
+    }
+
+    @Test
+    public void lostLeaseDoesntFinishRun() throws Exception {
+        List<String> finishedList = new ArrayList<>();
+        orchestrator.processRequest(RunRequest.parse(makeValidRequestNode()),
+                (checkpointId, startOffset, endOffset, workUnitClaimer) -> RangeOutcome.STUDY_RUN_LEASE_LOST,
+                () -> finishedList.add(RUN_ID));
+        assertEquals(finishedList.size(), 0);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void shardSizeMustBePositive() {
+        orchestrator.setShardSize(0);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void workUnitSizeMustBePositive() {
+        orchestrator.setWorkUnitSize(0);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void numWorkStealingWorkersMustBePositive() {
+        orchestrator.setNumWorkStealingWorkers(0);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void workUnitLeaseSecondsMustBePositive() {
+        orchestrator.setWorkUnitLeaseSeconds(0);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void studyRunLeaseSecondsMustBePositive() {
+        orchestrator.setStudyRunLeaseSeconds(0);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void studyRunLeaseMaxWaitSecondsCantBeNegative() {
+        orchestrator.setStudyRunLeaseMaxWaitSeconds(-1);
+    }
+
+    private static ObjectNode makeValidRequestNode() {
+        ObjectNode requestNode = JSON_MAPPER.createObjectNode();
+        requestNode.put(RunRequest.REQUEST_PARAM_STUDY_ID, STUDY_ID);
+        requestNode.put(RunRequest.REQUEST_PARAM_DATE, DATE_STRING);
+        requestNode.put(RunRequest.REQUEST_PARAM_TAG, TAG);
+        return requestNode;
+    }
+}
@@ -0,0 +1,59 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+import static org.testng.Assert.assertEquals;
+
+import org.testng.annotations.Test;
+
+public class RunProgressTest {
+    @Test
+    public void inOrder() {
+        RunProgress runProgress = new RunProgress(0, 0);
+        assertEquals(runProgress.getOffset(), 0);
+
+        runProgress.finishUser(0, false);
+        assertEquals(runProgress.getOffset(), 1);
+
+        runProgress.finishUser(1, false);
+        assertEquals(runProgress.getOffset(), 2);
+        assertEquals(runProgress.getNumErrors(), 0);
+    }
+
+    @Test
+    public void outOfOrder() {
+        // The offset doesn't move past a user who hasn't finished.
+        RunProgress runProgress = new RunProgress(0, 0);
+        runProgress.finishUser(1, false);
+        runProgress.finishUser(2, false);
+        assertEquals(runProgress.getOffset(), 0);
+
+        runProgress.finishUser(0, false);
+        assertEquals(runProgress.getOffset(), 3);
+    }
+
+    @Test
+    public void startOffset() {
+        RunProgress runProgress = new RunProgress(10, 0);
+        assertEquals(runProgress.getOffset(), 10);
+
+        runProgress.finishUser(11, false);
+        assertEquals(runProgress.getOffset(), 10);
+
+        runProgress.finishUser(10, false);
+        assertEquals(runProgress.getOffset(), 12);
+    }
+
+    @Test
+    public void errors() {
+        // Errors carry over from the previous attempt. Users with errors are still finished.
+        RunProgress runProgress = new RunProgress(0, 2);
+        runProgress.finishUser(0, true);
+        runProgress.finishUser(1, false);
+        assertEquals(runProgress.getNumErrors(), 3);
+        assertEquals(runProgress.getOffset(), 2);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void userBeforeStartOffset() {
+        new RunProgress(10, 0).finishUser(9, false);
+    }
+}
@@ -0,0 +1,131 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.collect.ImmutableList;
+import org.joda.time.LocalDate;
+import org.testng.annotations.Test;
+
+public class RunRequestTest {
+    private static final String DATE_STRING = "2018-04-27";
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+    private static final String STUDY_ID = "test-study";
+    private static final String TAG = "dummy tag";
+    private static final String RUN_ID = STUDY_ID + ":" + DATE_STRING + ":" + TAG;
+
+    @Test
+    public void minimalRequest() throws Exception {
+        ObjectNode requestNode = JSON_MAPPER.createObjectNode();
+        requestNode.put(RunRequest.REQUEST_PARAM_STUDY_ID, STUDY_ID);
+        requestNode.put(RunRequest.REQUEST_PARAM_DATE, DATE_STRING);
+
+        RunRequest request = RunRequest.parse(requestNode);
+        assertEquals(request.getStudyId(), STUDY_ID);
+        assertEquals(request.getDate(), LocalDate.parse(DATE_STRING));
+        assertEquals(request.getDateString(), DATE_STRING);
+        assertNull(request.getTag());
+        assertEquals(request.getRunId(), STUDY_ID + ":" + DATE_STRING + ":");
+        assertFalse(request.isRetryFailedUsers());
+        assertNull(request.getTargetUserIdList());
+        assertFalse(request.isTargetedRun());
+        assertNull(request.getBackfillStartDate());
+        assertEquals(request.getBackfillSendMode(), BackfillSendMode.NONE);
+        assertNull(request.getShardIndex());
+        assertEquals(request.getShardStartOffset(), 0);
+        assertEquals(request.getShardEndOffset(), Integer.MAX_VALUE);
+        assertFalse(request.isShard());
+        assertFalse(request.isWorkStealingWorker());
+        assertTrue(request.isRunStart());
+        assertNull(request.getRunStartedOn());
+    }
+
+    @Test
+    public void userIdsAreDeduped() throws Exception {
+        ObjectNode requestNode = makeValidRequestNode();
+        requestNode.putArray(RunRequest.REQUEST_PARAM_USER_IDS).add("user-b").add("user-a").add("user-b");
+
+        RunRequest request = RunRequest.parse(requestNode);
+        assertEquals(request.getTargetUserIdList(), ImmutableList.of("user-b", "user-a"));
+        assertTrue(request.isTargetedRun());
+        assertTrue(request.isRunStart());
+    }
+
+    @Test
+    public void backfill() throws Exception {
+        ObjectNode requestNode = makeValidRequestNode();
+        requestNode.put(RunRequest.REQUEST_PARAM_BACKFILL_START_DATE, "2018-04-25");
+        requestNode.put(RunRequest.REQUEST_PARAM_BACKFILL_SEND_MODE, "latest");
+
+        RunRequest request = RunRequest.parse(requestNode);
+        assertEquals(request.getBackfillStartDate(), LocalDate.parse("2018-04-25"));
+        assertEquals(request.getBackfillSendMode(), BackfillSendMode.LATEST);
+
+        // A backfill's run ID includes its start date, so it doesn't share checkpoints with a run for the date alone.
+        assertEquals(request.getRunId(), STUDY_ID + ":2018-04-25/" + DATE_STRING + ":" + TAG);
+    }
+
+    @Test
+    public void shard() throws Exception {
+        ObjectNode requestNode = makeValidRequestNode();
+        requestNode.put(RunRequest.REQUEST_PARAM_SHARD_INDEX, 1);
+        requestNode.put(RunRequest.REQUEST_PARAM_SHARD_START_OFFSET, 100);
+        requestNode.put(RunRequest.REQUEST_PARAM_SHARD_END_OFFSET, 200);
+        requestNode.put(RunRequest.REQUEST_PARAM_RUN_STARTED_ON, 1234L);
+
+        RunRequest request = RunRequest.parse(requestNode);
+        assertEquals(request.getRunId(), RUN_ID);
+        assertEquals(request.getShardIndex().intValue(), 1);
+        assertEquals(request.getShardStartOffset(), 100);
+        assertEquals(request.getShardEndOffset(), 200);
+        assertTrue(request.isShard());
+        assertFalse(request.isWorkStealingWorker());
+        assertFalse(request.isRunStart());
+        assertEquals(request.getRunStartedOn().longValue(), 1234L);
+    }
+
+    @Test
+    public void lastShardHasNoEndOffset() throws Exception {
+        ObjectNode requestNode = makeValidRequestNode();
+        requestNode.put(RunRequest.REQUEST_PARAM_SHARD_INDEX, 2);
+        requestNode.put(RunRequest.REQUEST_PARAM_SHARD_START_OFFSET, 200);
+
+        RunRequest request = RunRequest.parse(requestNode);
+        assertEquals(request.getShardStartOffset(), 200);
+        assertEquals(request.getShardEndOffset(), Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void workStealingWorker() throws Exception {
+        ObjectNode requestNode = makeValidRequestNode();
+        requestNode.put(RunRequest.REQUEST_PARAM_WORK_UNIT_SIZE, 10);
+        requestNode.put(RunRequest.REQUEST_PARAM_NUM_WORK_UNITS, 5);
+        requestNode.put(RunRequest.REQUEST_PARAM_FIRST_WORK_UNIT, 3);
+
+        RunRequest request = RunRequest.parse(requestNode);
+        assertEquals(request.getWorkUnitSize().intValue(), 10);
+        assertEquals(request.getNumWorkUnits().intValue(), 5);
+        assertEquals(request.getFirstWorkUnit().intValue(), 3);
+        assertTrue(request.isWorkStealingWorker());
+        assertFalse(request.isShard());
+        assertFalse(request.isRunStart());
+    }
+
+    @Test
+    public void makeRunId() {
+        assertEquals(RunRequest.makeRunId(STUDY_ID, DATE_STRING, TAG), RUN_ID);
+        assertEquals(RunRequest.makeRunId(STUDY_ID, DATE_STRING, null), STUDY_ID + ":" + DATE_STRING + ":");
+    }
+
+    private static ObjectNode makeValidRequestNode() {
+        ObjectNode requestNode = JSON_MAPPER.createObjectNode();
+        requestNode.put(RunRequest.REQUEST_PARAM_STUDY_ID, STUDY_ID);
+        requestNode.put(RunRequest.REQUEST_PARAM_DATE, DATE_STRING);
+        requestNode.put(RunRequest.REQUEST_PARAM_TAG, TAG);
+        return requestNode;
+    }
+}
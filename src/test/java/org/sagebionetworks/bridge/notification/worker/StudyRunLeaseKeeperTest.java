@@ -0,0 +1,228 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTimeUtils;
+import org.joda.time.LocalDate;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.notification.helper.DynamoHelper;
+
+public class StudyRunLeaseKeeperTest {
+    private static final LocalDate DATE = LocalDate.parse("2018-04-27");
+    private static final long LEASE_MILLIS = 3000;
+    private static final long MAX_WAIT_MILLIS = StudyRunLeaseKeeper.WAIT_MILLIS * 3;
+    private static final long MOCK_NOW_MILLIS = 1524872475831L;
+    private static final String RUN_ID = "test-run";
+    private static final String STUDY_ID = "test-study";
+
+    private StudyRunLeaseKeeper keeper;
+    private DynamoHelper mockDynamoHelper;
+
+    @BeforeMethod
+    public void before() {
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_MILLIS);
+
+        // Lease writes succeed by default. Sleeping advances the clock.
+        mockDynamoHelper = mock(DynamoHelper.class);
+        when(mockDynamoHelper.acquireStudyRunLease(eq(STUDY_ID), eq(DATE), eq(RUN_ID), anyLong(), anyLong()))
+                .thenReturn(true);
+        when(mockDynamoHelper.renewStudyRunLease(eq(STUDY_ID), eq(DATE), eq(RUN_ID), anyLong())).thenReturn(true);
+        when(mockDynamoHelper.releaseStudyRunLease(STUDY_ID, DATE, RUN_ID)).thenReturn(true);
+
+        keeper = spy(new StudyRunLeaseKeeper(mockDynamoHelper, STUDY_ID, DATE, RUN_ID, LEASE_MILLIS));
+        doAnswer(invocation -> {
+            DateTimeUtils.setCurrentMillisFixed(DateTimeUtils.currentTimeMillis() + invocation.getArgumentAt(0,
+                    Long.class));
+            return null;
+        }).when(keeper).sleep(anyLong());
+    }
+
+    @AfterMethod
+    public void after() {
+        DateTimeUtils.setCurrentMillisSystem();
+    }
+
+    @Test
+    public void acquireUnclaimedLease() {
+        assertTrue(keeper.acquire(MAX_WAIT_MILLIS));
+        assertEquals(keeper.getStartedOn().longValue(), MOCK_NOW_MILLIS);
+        verify(mockDynamoHelper).acquireStudyRunLease(STUDY_ID, DATE, RUN_ID, MOCK_NOW_MILLIS,
+                MOCK_NOW_MILLIS + LEASE_MILLIS);
+        verify(keeper, never()).sleep(anyLong());
+    }
+
+    @Test
+    public void acquireAfterOtherRunFinished() {
+        when(mockDynamoHelper.getStudyRunLease(STUDY_ID, DATE)).thenReturn(makeLease("other-run",
+                StudyRunStatus.FINISHED, MOCK_NOW_MILLIS - 1000));
+        assertTrue(keeper.acquire(MAX_WAIT_MILLIS));
+        verify(mockDynamoHelper).acquireStudyRunLease(STUDY_ID, DATE, RUN_ID, MOCK_NOW_MILLIS,
+                MOCK_NOW_MILLIS + LEASE_MILLIS);
+    }
+
+    @Test
+    public void sameRunFinishedRecently() {
+        // This is a duplicate delivery of a run that already finished.
+        when(mockDynamoHelper.getStudyRunLease(STUDY_ID, DATE)).thenReturn(makeLease(RUN_ID,
+                StudyRunStatus.FINISHED, MOCK_NOW_MILLIS - 1000));
+        assertFalse(keeper.acquire(MAX_WAIT_MILLIS));
+        verify(mockDynamoHelper, never()).acquireStudyRunLease(any(), any(), any(), anyLong(), anyLong());
+    }
+
+    @Test
+    public void sameRunFinishedLongAgo() {
+        // The same run was sent again on purpose, long after it finished.
+        long finishedOn = MOCK_NOW_MILLIS - TimeUnit.HOURS.toMillis(
+                BridgeNotificationWorkerProcessor.RUN_CHECKPOINT_MAX_AGE_HOURS);
+        when(mockDynamoHelper.getStudyRunLease(STUDY_ID, DATE)).thenReturn(makeLease(RUN_ID,
+                StudyRunStatus.FINISHED, finishedOn));
+        assertTrue(keeper.acquire(MAX_WAIT_MILLIS));
+        assertEquals(keeper.getStartedOn().longValue(), MOCK_NOW_MILLIS);
+    }
+
+    @Test
+    public void waitsForOtherRun() {
+        // Another run holds the lease, then finishes.
+        when(mockDynamoHelper.getStudyRunLease(STUDY_ID, DATE)).thenReturn(
+                makeLease("other-run", StudyRunStatus.RUNNING, MOCK_NOW_MILLIS + LEASE_MILLIS),
+                makeLease("other-run", StudyRunStatus.FINISHED, MOCK_NOW_MILLIS + 1000));
+        assertTrue(keeper.acquire(MAX_WAIT_MILLIS));
+        verify(keeper).sleep(StudyRunLeaseKeeper.WAIT_MILLIS);
+
+        long now = MOCK_NOW_MILLIS + StudyRunLeaseKeeper.WAIT_MILLIS;
+        assertEquals(keeper.getStartedOn().longValue(), now);
+        verify(mockDynamoHelper).acquireStudyRunLease(STUDY_ID, DATE, RUN_ID, now, now + LEASE_MILLIS);
+    }
+
+    @Test
+    public void joinsSameRun() {
+        // The same run is in progress on another node. We wait for it to finish, then drop.
+        when(mockDynamoHelper.getStudyRunLease(STUDY_ID, DATE)).thenReturn(
+                makeLease(RUN_ID, StudyRunStatus.RUNNING, MOCK_NOW_MILLIS + LEASE_MILLIS),
+                makeLease(RUN_ID, StudyRunStatus.FINISHED, MOCK_NOW_MILLIS + 1000));
+        assertFalse(keeper.acquire(MAX_WAIT_MILLIS));
+        verify(keeper).sleep(StudyRunLeaseKeeper.WAIT_MILLIS);
+        verify(mockDynamoHelper, never()).acquireStudyRunLease(any(), any(), any(), anyLong(), anyLong());
+    }
+
+    @Test
+    public void takesOverExpiredSameRun() {
+        // The same run's node died. We take over, and keep its start time.
+        when(mockDynamoHelper.getStudyRunLease(STUDY_ID, DATE)).thenReturn(makeLease(RUN_ID, StudyRunStatus.RUNNING,
+                MOCK_NOW_MILLIS - 1));
+        assertTrue(keeper.acquire(MAX_WAIT_MILLIS));
+        assertEquals(keeper.getStartedOn().longValue(), 1234L);
+        verify(mockDynamoHelper).acquireStudyRunLease(STUDY_ID, DATE, RUN_ID, 1234L, MOCK_NOW_MILLIS + LEASE_MILLIS);
+    }
+
+    @Test
+    public void takesOverExpiredOtherRun() {
+        // Another run's node died. We start our own run.
+        when(mockDynamoHelper.getStudyRunLease(STUDY_ID, DATE)).thenReturn(makeLease("other-run",
+                StudyRunStatus.RUNNING, MOCK_NOW_MILLIS - 1));
+        assertTrue(keeper.acquire(MAX_WAIT_MILLIS));
+        assertEquals(keeper.getStartedOn().longValue(), MOCK_NOW_MILLIS);
+    }
+
+    @Test
+    public void lostAcquireRaceChecksAgain() {
+        when(mockDynamoHelper.getStudyRunLease(STUDY_ID, DATE)).thenReturn(null, makeLease("other-run",
+                StudyRunStatus.FINISHED, MOCK_NOW_MILLIS));
+        when(mockDynamoHelper.acquireStudyRunLease(eq(STUDY_ID), eq(DATE), eq(RUN_ID), anyLong(), anyLong()))
+                .thenReturn(false, true);
+        assertTrue(keeper.acquire(MAX_WAIT_MILLIS));
+        verify(mockDynamoHelper, times(2)).acquireStudyRunLease(eq(STUDY_ID), eq(DATE), eq(RUN_ID), anyLong(),
+                anyLong());
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void timesOutWaiting() {
+        // The other run keeps renewing its lease.
+        when(mockDynamoHelper.getStudyRunLease(STUDY_ID, DATE)).thenAnswer(invocation -> makeLease("other-run",
+                StudyRunStatus.RUNNING, DateTimeUtils.currentTimeMillis() + LEASE_MILLIS));
+        try {
+            keeper.acquire(MAX_WAIT_MILLIS);
+        } finally {
+            verify(keeper, times(3)).sleep(StudyRunLeaseKeeper.WAIT_MILLIS);
+            verify(mockDynamoHelper, never()).acquireStudyRunLease(any(), any(), any(), anyLong(), anyLong());
+        }
+    }
+
+    @Test
+    public void renewLeaseIfNeeded() {
+        // Shards and work units don't acquire the lease, so the first renewal happens right away.
+        assertTrue(keeper.renewLeaseIfNeeded());
+        verify(mockDynamoHelper).renewStudyRunLease(STUDY_ID, DATE, RUN_ID, MOCK_NOW_MILLIS + LEASE_MILLIS);
+
+        // Too soon to renew.
+        assertTrue(keeper.renewLeaseIfNeeded());
+        verify(mockDynamoHelper).renewStudyRunLease(any(), any(), any(), anyLong());
+
+        // After a third of the lease, we renew.
+        long renewalMillis = MOCK_NOW_MILLIS + LEASE_MILLIS / 3;
+        DateTimeUtils.setCurrentMillisFixed(renewalMillis);
+        assertTrue(keeper.renewLeaseIfNeeded());
+        verify(mockDynamoHelper).renewStudyRunLease(STUDY_ID, DATE, RUN_ID, renewalMillis + LEASE_MILLIS);
+    }
+
+    @Test
+    public void renewAfterAcquireWaits() {
+        assertTrue(keeper.acquire(MAX_WAIT_MILLIS));
+        assertTrue(keeper.renewLeaseIfNeeded());
+        verify(mockDynamoHelper, never()).renewStudyRunLease(any(), any(), any(), anyLong());
+    }
+
+    @Test
+    public void renewLeaseLost() {
+        when(mockDynamoHelper.renewStudyRunLease(eq(STUDY_ID), eq(DATE), eq(RUN_ID), anyLong())).thenReturn(false);
+        assertFalse(keeper.renewLeaseIfNeeded());
+    }
+
+    @Test
+    public void renewLeaseErrorKeepsGoing() {
+        when(mockDynamoHelper.renewStudyRunLease(eq(STUDY_ID), eq(DATE), eq(RUN_ID), anyLong())).thenThrow(
+                RuntimeException.class);
+        assertTrue(keeper.renewLeaseIfNeeded());
+    }
+
+    @Test
+    public void release() {
+        keeper.release();
+        verify(mockDynamoHelper).releaseStudyRunLease(STUDY_ID, DATE, RUN_ID);
+    }
+
+    @Test
+    public void releaseErrorIsIgnored() {
+        when(mockDynamoHelper.releaseStudyRunLease(STUDY_ID, DATE, RUN_ID)).thenThrow(RuntimeException.class);
+        keeper.release();
+    }
+
+    // Makes a lease for a run started at time 1234. For a running lease, the given time is when the lease expires. For
+    // a finished lease, it's when the run finished.
+    private static StudyRunLease makeLease(String runId, StudyRunStatus status, long time) {
+        StudyRunLease lease = new StudyRunLease();
+        lease.setLeaseExpiresOn(time);
+        lease.setRunId(runId);
+        lease.setStartedOn(1234L);
+        lease.setStatus(status);
+        lease.setUpdatedOn(time);
+        return lease;
+    }
+}
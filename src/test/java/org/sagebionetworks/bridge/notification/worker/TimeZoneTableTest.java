@@ -0,0 +1,63 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class TimeZoneTableTest {
+    private static final LocalDate DATE = LocalDate.parse("2018-04-27");
+    private static final DateTime NOW = DateTime.parse("2018-04-27T16:41:15.831-0700");
+
+    private TimeZoneTable table;
+
+    @BeforeMethod
+    public void before() {
+        table = new TimeZoneTable(DATE, NOW);
+    }
+
+    @Test
+    public void zoneInfo() {
+        TimeZoneTable.ZoneInfo zoneInfo = table.get("-07:00");
+        DateTimeZone expectedTimeZone = DateTimeZone.forOffsetHours(-7);
+        assertEquals(zoneInfo.getTimeZone(), expectedTimeZone);
+        assertTrue(zoneInfo.isAllowed());
+        assertEquals(zoneInfo.getDateStart(), DATE.toDateTimeAtStartOfDay(expectedTimeZone));
+        assertEquals(zoneInfo.getDateEnd(), DATE.plusDays(1).toDateTimeAtStartOfDay(expectedTimeZone));
+        assertEquals(zoneInfo.getDateStart().getMillis(), DateTime.parse("2018-04-27T00:00:00.000-0700")
+                .getMillis());
+        assertEquals(zoneInfo.getDateEnd().getMillis(), DateTime.parse("2018-04-28T00:00:00.000-0700")
+                .getMillis());
+    }
+
+    @Test
+    public void eligibilityBounds() {
+        assertFalse(table.get("-12:00").isAllowed());
+        assertTrue(table.get("-11:00").isAllowed());
+        assertTrue(table.get("-01:00").isAllowed());
+        assertFalse(table.get("-00:30").isAllowed());
+        assertFalse(table.get("+00:00").isAllowed());
+        assertFalse(table.get("+09:00").isAllowed());
+    }
+
+    @Test
+    public void offsetsAreParsedOnce() {
+        TimeZoneTable.ZoneInfo zoneInfo = table.get("-07:00");
+        assertSame(table.get("-07:00"), zoneInfo);
+        assertEquals(table.size(), 1);
+
+        table.get("-05:00");
+        assertEquals(table.size(), 2);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void invalidOffset() {
+        table.get("not a time zone");
+    }
+}
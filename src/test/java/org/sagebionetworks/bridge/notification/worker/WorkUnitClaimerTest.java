@@ -0,0 +1,188 @@
+package org.sagebionetworks.bridge.notification.worker;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import org.joda.time.DateTimeUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.notification.helper.DynamoHelper;
+
+public class WorkUnitClaimerTest {
+    private static final long LEASE_MILLIS = 3000;
+    private static final long MOCK_NOW_MILLIS = 1524872475831L;
+    private static final String RUN_ID = "test-run";
+
+    private WorkUnitClaimer claimer;
+    private DynamoHelper mockDynamoHelper;
+
+    @BeforeMethod
+    public void before() {
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_MILLIS);
+
+        // 4 work units, starting at unit 2. Claims succeed by default.
+        mockDynamoHelper = mock(DynamoHelper.class);
+        when(mockDynamoHelper.claimWorkUnit(eq(RUN_ID), anyInt(), anyString(), anyLong())).thenReturn(true);
+        when(mockDynamoHelper.renewWorkUnitLease(eq(RUN_ID), anyInt(), anyString(), anyLong())).thenReturn(true);
+        when(mockDynamoHelper.finishWorkUnit(eq(RUN_ID), anyInt(), anyString())).thenReturn(true);
+
+        claimer = spy(new WorkUnitClaimer(mockDynamoHelper, RUN_ID, 4, 2, LEASE_MILLIS));
+    }
+
+    @AfterMethod
+    public void after() {
+        DateTimeUtils.setCurrentMillisSystem();
+    }
+
+    @Test
+    public void claimsUnitsInOrderFromFirstUnit() {
+        // Each unit is claimed and finished in turn, wrapping around after the last unit.
+        int[] expectedUnitIndices = { 2, 3, 0, 1 };
+        for (int expectedUnitIndex : expectedUnitIndices) {
+            assertEquals(claimer.claimNextWorkUnit().intValue(), expectedUnitIndex);
+            verify(mockDynamoHelper).claimWorkUnit(RUN_ID, expectedUnitIndex, claimer.getOwnerId(),
+                    MOCK_NOW_MILLIS + LEASE_MILLIS);
+            assertTrue(claimer.finishWorkUnit());
+            verify(mockDynamoHelper).finishWorkUnit(RUN_ID, expectedUnitIndex, claimer.getOwnerId());
+
+            // Mark the unit finished, the way another worker would see it.
+            when(mockDynamoHelper.getWorkUnitLease(RUN_ID, expectedUnitIndex)).thenReturn(makeLease(
+                    WorkUnitStatus.FINISHED, MOCK_NOW_MILLIS));
+        }
+
+        // Every unit is finished.
+        assertNull(claimer.claimNextWorkUnit());
+        verify(claimer, never()).sleep(anyLong());
+    }
+
+    @Test
+    public void skipsFinishedAndLeasedUnits() {
+        when(mockDynamoHelper.getWorkUnitLease(RUN_ID, 2)).thenReturn(makeLease(WorkUnitStatus.FINISHED,
+                MOCK_NOW_MILLIS));
+        when(mockDynamoHelper.getWorkUnitLease(RUN_ID, 3)).thenReturn(makeLease(WorkUnitStatus.LEASED,
+                MOCK_NOW_MILLIS + 1000));
+
+        assertEquals(claimer.claimNextWorkUnit().intValue(), 0);
+        verify(mockDynamoHelper, never()).claimWorkUnit(eq(RUN_ID), eq(2), anyString(), anyLong());
+        verify(mockDynamoHelper, never()).claimWorkUnit(eq(RUN_ID), eq(3), anyString(), anyLong());
+    }
+
+    @Test
+    public void stealsExpiredLease() {
+        when(mockDynamoHelper.getWorkUnitLease(RUN_ID, 2)).thenReturn(makeLease(WorkUnitStatus.LEASED,
+                MOCK_NOW_MILLIS - 1));
+        assertEquals(claimer.claimNextWorkUnit().intValue(), 2);
+        verify(mockDynamoHelper).claimWorkUnit(RUN_ID, 2, claimer.getOwnerId(), MOCK_NOW_MILLIS + LEASE_MILLIS);
+    }
+
+    @Test
+    public void lostClaimRaceMovesOn() {
+        when(mockDynamoHelper.claimWorkUnit(eq(RUN_ID), eq(2), anyString(), anyLong())).thenReturn(false);
+        assertEquals(claimer.claimNextWorkUnit().intValue(), 3);
+    }
+
+    @Test
+    public void waitsForLeasedUnits() {
+        // Units 0, 1, and 3 are finished. Unit 2 is leased by another worker, whose node dies. Once the lease
+        // expires, we steal it.
+        WorkUnitLease finishedLease = makeLease(WorkUnitStatus.FINISHED, MOCK_NOW_MILLIS);
+        when(mockDynamoHelper.getWorkUnitLease(RUN_ID, 0)).thenReturn(finishedLease);
+        when(mockDynamoHelper.getWorkUnitLease(RUN_ID, 1)).thenReturn(finishedLease);
+        when(mockDynamoHelper.getWorkUnitLease(RUN_ID, 3)).thenReturn(finishedLease);
+        when(mockDynamoHelper.getWorkUnitLease(RUN_ID, 2)).thenReturn(makeLease(WorkUnitStatus.LEASED,
+                MOCK_NOW_MILLIS + WorkUnitClaimer.WAIT_MILLIS / 2));
+        doAnswer(invocation -> {
+            DateTimeUtils.setCurrentMillisFixed(DateTimeUtils.currentTimeMillis() + invocation.getArgumentAt(0,
+                    Long.class));
+            return null;
+        }).when(claimer).sleep(anyLong());
+
+        assertEquals(claimer.claimNextWorkUnit().intValue(), 2);
+        verify(claimer).sleep(WorkUnitClaimer.WAIT_MILLIS);
+
+        // Finished units are only read once.
+        verify(mockDynamoHelper).getWorkUnitLease(RUN_ID, 0);
+    }
+
+    @Test
+    public void renewLeaseIfNeeded() {
+        assertEquals(claimer.claimNextWorkUnit().intValue(), 2);
+
+        // Too soon to renew.
+        assertTrue(claimer.renewLeaseIfNeeded());
+        verify(mockDynamoHelper, never()).renewWorkUnitLease(any(), anyInt(), any(), anyLong());
+
+        // After a third of the lease, we renew.
+        long renewalMillis = MOCK_NOW_MILLIS + LEASE_MILLIS / 3;
+        DateTimeUtils.setCurrentMillisFixed(renewalMillis);
+        assertTrue(claimer.renewLeaseIfNeeded());
+        verify(mockDynamoHelper).renewWorkUnitLease(RUN_ID, 2, claimer.getOwnerId(), renewalMillis + LEASE_MILLIS);
+    }
+
+    @Test
+    public void renewLeaseLost() {
+        when(mockDynamoHelper.renewWorkUnitLease(eq(RUN_ID), eq(2), anyString(), anyLong())).thenReturn(false);
+        assertEquals(claimer.claimNextWorkUnit().intValue(), 2);
+
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_MILLIS + LEASE_MILLIS);
+        assertFalse(claimer.renewLeaseIfNeeded());
+
+        // We no longer hold the unit, so we can't finish it.
+        assertFalse(claimer.finishWorkUnit());
+        verify(mockDynamoHelper, never()).finishWorkUnit(any(), anyInt(), any());
+    }
+
+    @Test
+    public void renewLeaseErrorKeepsGoing() {
+        when(mockDynamoHelper.renewWorkUnitLease(eq(RUN_ID), eq(2), anyString(), anyLong())).thenThrow(
+                RuntimeException.class);
+        assertEquals(claimer.claimNextWorkUnit().intValue(), 2);
+
+        DateTimeUtils.setCurrentMillisFixed(MOCK_NOW_MILLIS + LEASE_MILLIS);
+        assertTrue(claimer.renewLeaseIfNeeded());
+        assertTrue(claimer.finishWorkUnit());
+    }
+
+    @Test
+    public void finishLostUnitIsClaimedAgain() {
+        // Another worker stole the unit before we could finish it. We don't count it as finished.
+        when(mockDynamoHelper.finishWorkUnit(eq(RUN_ID), eq(2), anyString())).thenReturn(false);
+        assertEquals(claimer.claimNextWorkUnit().intValue(), 2);
+        assertFalse(claimer.finishWorkUnit());
+
+        // The unit isn't in our finished set, so we check it again. This time, its new owner holds it.
+        when(mockDynamoHelper.getWorkUnitLease(RUN_ID, 2)).thenReturn(makeLease(WorkUnitStatus.LEASED,
+                MOCK_NOW_MILLIS + LEASE_MILLIS));
+        assertEquals(claimer.claimNextWorkUnit().intValue(), 3);
+    }
+
+    @Test
+    public void renewWithoutUnit() {
+        assertFalse(claimer.renewLeaseIfNeeded());
+        assertFalse(claimer.finishWorkUnit());
+    }
+
+    private static WorkUnitLease makeLease(WorkUnitStatus status, long leaseExpiresOn) {
+        WorkUnitLease lease = new WorkUnitLease();
+        lease.setLeaseExpiresOn(leaseExpiresOn);
+        lease.setOwnerId("other-owner");
+        lease.setRunId(RUN_ID);
+        lease.setStatus(status);
+        return lease;
+    }
+}